@@ -26,6 +26,16 @@ import com.openxc.sources.VehicleDataSource;
  * values arrive. The DataPipeline then passes this value on to all currently
  * registered data sinks.
  *
+ * Each sink can be given a {@link KeyedMessageFilter} to thin out what it's
+ * sent - e.g. to keep a trace recorder at full rate while an uploader only
+ * gets changed values a few times a second.
+ *
+ * By default sinks are called one after another on the source's thread. A sink
+ * that might be slow - one that writes to a file or makes a binder call - can
+ * be given a thread of its own with {@link
+ * #dispatchInBackground(VehicleDataSink)}, so it doesn't hold up the source or
+ * the other sinks.
+ *
  * The Pipeline can have an optional Operator, which implements a few callbacks
  * to check the status of the pipeline - e.g. if some source in the pipeline is
  * active.
@@ -39,6 +49,10 @@ public class DataPipeline implements SourceCallback {
             new ConcurrentHashMap<>();
     private CopyOnWriteArrayList<VehicleDataSink> mSinks =
             new CopyOnWriteArrayList<>();
+    private Map<VehicleDataSink, KeyedMessageFilter> mSinkFilters =
+            new ConcurrentHashMap<>();
+    private Map<VehicleDataSink, SinkDispatcher> mSinkDispatchers =
+            new ConcurrentHashMap<>();
     private CopyOnWriteArrayList<VehicleDataSource> mSources =
             new CopyOnWriteArrayList<>();
 
@@ -62,7 +76,9 @@ public class DataPipeline implements SourceCallback {
      * This method is required to implement the SourceCallback interface.
      *
      * If any data sink throws a DataSinkException when receiving data, it will
-     * be removed from the list of sinks.
+     * be removed from the list of sinks. Sinks with a filter are only sent the
+     * message if their filter accepts it, and sinks dispatched in the
+     * background only have the message queued for them here.
      */
     @Override
     public void receive(VehicleMessage message) {
@@ -71,25 +87,48 @@ public class DataPipeline implements SourceCallback {
         }
 
         if(message instanceof KeyedMessage) {
+            // Keys are interned, so after the first message of each type this
+            // just replaces the value in the map
             KeyedMessage keyedMessage = message.asKeyedMessage();
             mKeyedMessages.put(keyedMessage.getKey(), keyedMessage);
         }
 
-        List<VehicleDataSink> deadSinks = new ArrayList<>();
+        List<VehicleDataSink> deadSinks = null;
+        boolean filtered = !mSinkFilters.isEmpty();
+        boolean dispatched = !mSinkDispatchers.isEmpty();
         for (VehicleDataSink sink : mSinks) {
+            if(filtered) {
+                KeyedMessageFilter filter = mSinkFilters.get(sink);
+                if(filter != null && !filter.accept(message)) {
+                    continue;
+                }
+            }
+
+            if(dispatched) {
+                SinkDispatcher dispatcher = mSinkDispatchers.get(sink);
+                if(dispatcher != null && dispatcher.dispatch(message)) {
+                    continue;
+                }
+            }
+
             try {
                 sink.receive(message);
             } catch (DataSinkException e) {
                 Log.w(TAG, this.getClass().getName() + ": The sink " +
                         sink + " exploded when we sent a new message " +
                         "-- removing it from the pipeline: " + e);
+                if(deadSinks == null) {
+                    deadSinks = new ArrayList<>();
+                }
                 deadSinks.add(sink);
             }
         }
 
         mMessagesReceived++;
-        for(VehicleDataSink sink : deadSinks) {
-            removeSink(sink);
+        if(deadSinks != null) {
+            for(VehicleDataSink sink : deadSinks) {
+                removeSink(sink);
+            }
         }
     }
 
@@ -101,6 +140,104 @@ public class DataPipeline implements SourceCallback {
         return sink;
     }
 
+    /**
+     * Add a new sink to the pipeline that is only sent the messages its filter
+     * accepts.
+     *
+     * @param filter the filter for this sink alone, or null to send it
+     *      everything.
+     */
+    public VehicleDataSink addSink(VehicleDataSink sink,
+            KeyedMessageFilter filter) {
+        setSinkFilter(sink, filter);
+        return addSink(sink);
+    }
+
+    /**
+     * Change the filter for a sink, which doesn't have to be added yet.
+     *
+     * @param filter the filter for this sink alone, or null to send it
+     *      everything.
+     */
+    public void setSinkFilter(VehicleDataSink sink,
+            KeyedMessageFilter filter) {
+        if(filter == null) {
+            mSinkFilters.remove(sink);
+        } else {
+            mSinkFilters.put(sink, filter);
+        }
+    }
+
+    /**
+     * @return the filter for the sink, or null if it's sent everything.
+     */
+    public KeyedMessageFilter getSinkFilter(VehicleDataSink sink) {
+        return mSinkFilters.get(sink);
+    }
+
+    /**
+     * Send messages to a sink from a thread of its own, with the default queue
+     * capacity and overflow policy.
+     *
+     * @see #dispatchInBackground(VehicleDataSink, int,
+     *      SinkDispatcher.OverflowPolicy)
+     */
+    public SinkDispatcher dispatchInBackground(VehicleDataSink sink) {
+        return dispatchInBackground(sink,
+                SinkDispatcher.DEFAULT_QUEUE_CAPACITY,
+                SinkDispatcher.DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * Send messages to a sink from a thread of its own, so that it doesn't
+     * hold up the source or the other sinks. The sink doesn't have to be added
+     * yet.
+     *
+     * If the sink already has a dispatcher, the new one only starts once the
+     * messages queued in the old one have been delivered, so they still arrive
+     * in order.
+     *
+     * @param queueCapacity the number of messages to hold for the sink before
+     *      the overflow policy kicks in.
+     * @param overflowPolicy what to do when the sink's queue is full.
+     * @return the dispatcher, for its metrics.
+     */
+    public SinkDispatcher dispatchInBackground(VehicleDataSink sink,
+            int queueCapacity, SinkDispatcher.OverflowPolicy overflowPolicy) {
+        SinkDispatcher previous = mSinkDispatchers.get(sink);
+        SinkDispatcher dispatcher = new SinkDispatcher(this, sink,
+                queueCapacity, overflowPolicy, previous);
+        if(previous != null) {
+            // Anything still sent to the old dispatcher is passed along to
+            // the new one
+            previous.handOver(dispatcher);
+        }
+        mSinkDispatchers.put(sink, dispatcher);
+        return dispatcher;
+    }
+
+    /**
+     * Go back to calling a sink directly from the source's thread, once the
+     * messages already queued for it have been delivered. New messages for
+     * the sink are held until then.
+     */
+    public void dispatchInline(VehicleDataSink sink) {
+        SinkDispatcher dispatcher = mSinkDispatchers.get(sink);
+        if(dispatcher != null) {
+            dispatcher.handOver(null);
+            dispatcher.awaitFinished();
+            mSinkDispatchers.remove(sink, dispatcher);
+        }
+    }
+
+    /**
+     * @return the dispatcher for the sink, or null if it's called from the
+     *      source's thread.
+     */
+    public SinkDispatcher getSinkDispatcher(VehicleDataSink sink) {
+        return mSinkDispatchers.get(sink);
+    }
+
     /**
      * Remove a previously added sink from the pipeline.
      *
@@ -113,6 +250,11 @@ public class DataPipeline implements SourceCallback {
     public void removeSink(VehicleDataSink sink) {
         if(sink != null) {
             mSinks.remove(sink);
+            mSinkFilters.remove(sink);
+            SinkDispatcher dispatcher = mSinkDispatchers.remove(sink);
+            if(dispatcher != null) {
+                dispatcher.stop();
+            }
             sink.stop();
         }
     }
@@ -178,10 +320,15 @@ public class DataPipeline implements SourceCallback {
      * Remove and stop all sinks in the pipeline.
      */
     public void clearSinks() {
+        for(SinkDispatcher dispatcher : mSinkDispatchers.values()) {
+            dispatcher.stop();
+        }
+        mSinkDispatchers.clear();
         for (VehicleDataSink mSink : mSinks) {
             (mSink).stop();
         }
         mSinks.clear();
+        mSinkFilters.clear();
     }
 
     /**
@@ -256,6 +403,8 @@ public class DataPipeline implements SourceCallback {
         return MoreObjects.toStringHelper(this)
             .add("sources", mSources)
             .add("sinks", mSinks)
+            .add("sinkFilters", mSinkFilters)
+            .add("sinkDispatchers", mSinkDispatchers)
             .add("numKeyedMessageTypes", mKeyedMessages.size())
             .toString();
     }
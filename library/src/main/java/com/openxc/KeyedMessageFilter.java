@@ -0,0 +1,269 @@
+package com.openxc;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.KeyedMessage;
+import com.openxc.messages.MessageKey;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Thin out the messages sent to a sink, separately for each kind of message.
+ *
+ * Each {@link MessageKey} (e.g. each signal name) can have a {@link Rule}
+ * that rate-limits it, drops values that haven't changed (or haven't changed
+ * by more than a deadband), or both. Messages without a rule of their own use
+ * the default rule, if there is one, and messages without a key are always
+ * let through.
+ *
+ * A filter keeps track of the last message it let through for each key, so it
+ * must only be used for one sink - give it to the pipeline with
+ * {@link DataPipeline#addSink(com.openxc.sinks.VehicleDataSink,
+ * KeyedMessageFilter)}.
+ */
+public class KeyedMessageFilter {
+    private final Map<MessageKey, Rule> mRules = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MessageKey, KeyState> mStates =
+            new ConcurrentHashMap<>();
+    private final AtomicLong mAcceptedCount = new AtomicLong();
+    private final AtomicLong mSuppressedCount = new AtomicLong();
+    private volatile Rule mDefaultRule;
+
+    /**
+     * How to thin out one kind of message.
+     *
+     * The checks are applied in order: a message is dropped if it's sooner
+     * than the maximum rate allows after the last one let through, and then,
+     * if changes are being watched, if its value is the same as (or within
+     * the deadband of) the last one let through. An unchanged value is still
+     * sent once the heartbeat interval has passed, so a sink can tell the
+     * signal is alive.
+     */
+    public static class Rule {
+        public static final double NO_RATE_LIMIT = 0;
+        public static final double NO_DEADBAND = -1;
+        public static final long NO_HEARTBEAT = 0;
+
+        private final long mMinimumIntervalNanos;
+        private final double mDeadband;
+        private final long mHeartbeatNanos;
+
+        /**
+         * @param maximumRateHz the most messages per second to let through,
+         *      or {@link #NO_RATE_LIMIT}.
+         * @param deadband how much a numeric value has to change by to be
+         *      let through. 0 drops only values that are exactly the same -
+         *      which is also how non-numeric values are compared - and
+         *      {@link #NO_DEADBAND} doesn't look at values at all.
+         * @param heartbeatMillis how long to drop unchanged values for before
+         *      letting one through anyway, or {@link #NO_HEARTBEAT} to drop
+         *      them for as long as they don't change.
+         */
+        public Rule(double maximumRateHz, double deadband,
+                long heartbeatMillis) {
+            if(maximumRateHz < 0 || Double.isNaN(maximumRateHz) ||
+                    Double.isNaN(deadband) || heartbeatMillis < 0) {
+                throw new IllegalArgumentException("Invalid rule: rate " +
+                        maximumRateHz + "Hz, deadband " + deadband +
+                        ", heartbeat " + heartbeatMillis + "ms");
+            }
+
+            mMinimumIntervalNanos = maximumRateHz == NO_RATE_LIMIT ? 0 :
+                    (long) (TimeUnit.SECONDS.toNanos(1) / maximumRateHz);
+            mDeadband = deadband;
+            mHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        }
+
+        /**
+         * @return a rule that lets through at most a number of messages per
+         *      second.
+         */
+        public static Rule maximumRate(double maximumRateHz) {
+            return new Rule(maximumRateHz, NO_DEADBAND, NO_HEARTBEAT);
+        }
+
+        /**
+         * @return a rule that only lets through values that differ from the
+         *      last one, and a repeat after every heartbeat interval.
+         */
+        public static Rule onChange(long heartbeatMillis) {
+            return new Rule(NO_RATE_LIMIT, 0, heartbeatMillis);
+        }
+
+        /**
+         * @return a rule that only lets through numeric values that have
+         *      moved more than the deadband from the last one, and a repeat
+         *      after every heartbeat interval.
+         */
+        public static Rule deadband(double deadband, long heartbeatMillis) {
+            return new Rule(NO_RATE_LIMIT, deadband, heartbeatMillis);
+        }
+
+        boolean accept(KeyState state, VehicleMessage message, long now) {
+            if(state.mLastMessage == null) {
+                return true;
+            }
+
+            long elapsed = now - state.mLastNanos;
+            if(elapsed < mMinimumIntervalNanos) {
+                return false;
+            }
+
+            if(mDeadband == NO_DEADBAND ||
+                    (mHeartbeatNanos != NO_HEARTBEAT &&
+                        elapsed >= mHeartbeatNanos)) {
+                return true;
+            }
+            return changed(state.mLastMessage, message);
+        }
+
+        private boolean changed(VehicleMessage last, VehicleMessage message) {
+            if(last instanceof SimpleVehicleMessage &&
+                    message instanceof SimpleVehicleMessage) {
+                Object lastValue = ((SimpleVehicleMessage) last).getValue();
+                Object value = ((SimpleVehicleMessage) message).getValue();
+                if(last instanceof EventedSimpleVehicleMessage &&
+                        message instanceof EventedSimpleVehicleMessage &&
+                        !Objects.equal(
+                            ((EventedSimpleVehicleMessage) last).getEvent(),
+                            ((EventedSimpleVehicleMessage) message)
+                                .getEvent())) {
+                    return true;
+                }
+
+                if(lastValue instanceof Number && value instanceof Number) {
+                    return Math.abs(((Number) value).doubleValue() -
+                            ((Number) lastValue).doubleValue()) > mDeadband;
+                }
+                return !Objects.equal(lastValue, value);
+            } else if(last instanceof CanMessage &&
+                    message instanceof CanMessage) {
+                return !Arrays.equals(((CanMessage) last).getData(),
+                        ((CanMessage) message).getData());
+            }
+            // There's no general way to compare the values of other
+            // messages, so they always count as changed
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                .add("minimumIntervalNanos", mMinimumIntervalNanos)
+                .add("deadband", mDeadband)
+                .add("heartbeatNanos", mHeartbeatNanos)
+                .toString();
+        }
+    }
+
+    private static class KeyState {
+        private VehicleMessage mLastMessage;
+        private long mLastNanos;
+    }
+
+    /**
+     * Set the rule for one kind of message, replacing any it had.
+     *
+     * @param rule the rule, or null to use the default rule.
+     */
+    public void setRule(MessageKey key, Rule rule) {
+        if(rule == null) {
+            mRules.remove(key);
+        } else {
+            mRules.put(key, rule);
+        }
+    }
+
+    public Rule getRule(MessageKey key) {
+        return mRules.get(key);
+    }
+
+    /**
+     * Set the rule for messages without one of their own.
+     *
+     * @param rule the rule, or null to let them all through.
+     */
+    public void setDefaultRule(Rule rule) {
+        mDefaultRule = rule;
+    }
+
+    public Rule getDefaultRule() {
+        return mDefaultRule;
+    }
+
+    /**
+     * @return true if the message should be sent on to the sink.
+     */
+    public boolean accept(VehicleMessage message) {
+        return accept(message, System.nanoTime());
+    }
+
+    /**
+     * @return the number of messages let through.
+     */
+    public long getAcceptedCount() {
+        return mAcceptedCount.get();
+    }
+
+    /**
+     * @return the number of messages dropped.
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("rules", mRules)
+            .add("defaultRule", mDefaultRule)
+            .add("accepted", mAcceptedCount)
+            .add("suppressed", mSuppressedCount)
+            .toString();
+    }
+
+    boolean accept(VehicleMessage message, long now) {
+        if(!(message instanceof KeyedMessage)) {
+            mAcceptedCount.incrementAndGet();
+            return true;
+        }
+
+        MessageKey key = message.asKeyedMessage().getKey();
+        Rule rule = mRules.get(key);
+        if(rule == null) {
+            rule = mDefaultRule;
+        }
+        if(rule == null) {
+            mAcceptedCount.incrementAndGet();
+            return true;
+        }
+
+        KeyState state = mStates.get(key);
+        if(state == null) {
+            state = new KeyState();
+            KeyState existing = mStates.putIfAbsent(key, state);
+            if(existing != null) {
+                state = existing;
+            }
+        }
+
+        synchronized(state) {
+            if(!rule.accept(state, message, now)) {
+                mSuppressedCount.incrementAndGet();
+                return false;
+            }
+            state.mLastMessage = message;
+            state.mLastNanos = now;
+        }
+        mAcceptedCount.incrementAndGet();
+        return true;
+    }
+}
@@ -0,0 +1,434 @@
+package com.openxc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.google.common.base.MoreObjects;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.sinks.DataSinkException;
+import com.openxc.sinks.VehicleDataSink;
+import com.openxc.util.BoundedRingQueue;
+import com.openxc.util.LatencyHistogram;
+
+/**
+ * Deliver messages from a {@link DataPipeline} to one sink on a thread of its
+ * own, so a slow sink doesn't hold up the source or the other sinks.
+ *
+ * Messages wait in a fixed-size lock-free ring until the sink is ready for
+ * them. What happens when the sink falls so far behind that the ring fills up
+ * is decided by the {@link OverflowPolicy}. If the sink throws a
+ * {@link DataSinkException}, it's removed from the pipeline just like a sink
+ * that's called directly.
+ *
+ * When the pipeline switches the sink to another dispatcher, or back to being
+ * called directly, this one is handed over: it takes no more messages and
+ * delivers the ones it has queued, and the sink isn't called any other way
+ * until it's done. The sink always sees messages in order, and never on two
+ * threads at once.
+ *
+ * Create one with {@link DataPipeline#dispatchInBackground(VehicleDataSink,
+ * int, OverflowPolicy)}.
+ */
+public class SinkDispatcher {
+    private final static String TAG = "SinkDispatcher";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY =
+            OverflowPolicy.DROP_OLDEST;
+
+    private static final int BATCH_SIZE = 64;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long FULL_WAIT_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long STOP_WAIT_MILLIS = 1000;
+    private static final long CLEAR_WAIT_MILLIS = 100;
+
+    /**
+     * What to do with a new message when the sink's queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the sink to make room. No messages are lost, but the sink
+         * holds up the source again once it's a queue-length behind.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued message to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the new message, keeping what's already queued.
+         */
+        DROP_NEWEST
+    }
+
+    private final DataPipeline mPipeline;
+    private final VehicleDataSink mSink;
+    private final BoundedRingQueue<VehicleMessage> mQueue;
+    private final OverflowPolicy mOverflowPolicy;
+    private final DispatchThread mDispatchThread;
+    private final LatencyHistogram mReceiveLatency = new LatencyHistogram();
+    // Messages queued but not yet delivered or dropped, including those the
+    // dispatch thread is working on right now.
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final AtomicInteger mMaxPendingCount = new AtomicInteger();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final Object mClearedLock = new Object();
+    private volatile boolean mDispatchThreadWaiting;
+    // The dispatcher the sink had before this one, which has to finish
+    // delivering its messages before this one starts
+    private volatile SinkDispatcher mPredecessor;
+    // Set once this dispatcher has been replaced - mSuccessor is null if the
+    // sink went back to being called directly
+    private volatile SinkDispatcher mSuccessor;
+    private volatile boolean mHandedOver;
+
+    SinkDispatcher(DataPipeline pipeline, VehicleDataSink sink,
+            int queueCapacity, OverflowPolicy overflowPolicy) {
+        this(pipeline, sink, queueCapacity, overflowPolicy, null);
+    }
+
+    /**
+     * @param predecessor the sink's current dispatcher, if it has one - this
+     *      one only starts delivering once it has finished.
+     */
+    SinkDispatcher(DataPipeline pipeline, VehicleDataSink sink,
+            int queueCapacity, OverflowPolicy overflowPolicy,
+            SinkDispatcher predecessor) {
+        mPipeline = pipeline;
+        mSink = sink;
+        mQueue = new BoundedRingQueue<>(queueCapacity);
+        mOverflowPolicy = overflowPolicy;
+        mPredecessor = predecessor;
+        mDispatchThread = new DispatchThread();
+        mDispatchThread.start();
+    }
+
+    /**
+     * Queue a message for the sink, applying the overflow policy if the queue
+     * is full.
+     *
+     * @return false if the caller should deliver the message to the sink
+     *      itself, because the sink has gone back to being called directly.
+     */
+    boolean dispatch(VehicleMessage message) {
+        // Counted as pending before checking if we've been handed over, so
+        // the dispatch thread can't finish while a message is on its way in
+        int pending = mPendingCount.incrementAndGet();
+        if(mHandedOver && Thread.currentThread() != mDispatchThread) {
+            cleared(1);
+            if(mDispatchThreadWaiting) {
+                LockSupport.unpark(mDispatchThread);
+            }
+            return forward(message);
+        }
+
+        if(!mDispatchThread.isRunning()) {
+            drop();
+            return true;
+        }
+
+        int max = mMaxPendingCount.get();
+        while(pending > max && !mMaxPendingCount.compareAndSet(max, pending)) {
+            max = mMaxPendingCount.get();
+        }
+
+        if(!mQueue.offer(message)) {
+            overflow(message);
+        }
+
+        if(mDispatchThreadWaiting) {
+            LockSupport.unpark(mDispatchThread);
+        }
+        return true;
+    }
+
+    /**
+     * Stop taking messages, and stop the dispatch thread once the ones already
+     * queued have been delivered. Any message sent here after this goes to
+     * the successor.
+     *
+     * @param successor the sink's new dispatcher, or null if the sink is going
+     *      back to being called directly.
+     */
+    void handOver(SinkDispatcher successor) {
+        mSuccessor = successor;
+        mHandedOver = true;
+        LockSupport.unpark(mDispatchThread);
+    }
+
+    /**
+     * Wait for the dispatch thread to finish - after {@link
+     * #handOver(SinkDispatcher)}, that's once it has delivered everything it
+     * had queued.
+     */
+    void awaitFinished() {
+        if(Thread.currentThread() == mDispatchThread) {
+            return;
+        }
+        try {
+            mDispatchThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the dispatch thread, discarding anything still queued, and wait a
+     * moment for it to finish the message it's delivering. A predecessor
+     * that's still delivering is stopped too.
+     */
+    void stop() {
+        SinkDispatcher predecessor = mPredecessor;
+        if(predecessor != null) {
+            predecessor.stop();
+        }
+        mDispatchThread.done();
+        if(Thread.currentThread() != mDispatchThread) {
+            try {
+                mDispatchThread.join(STOP_WAIT_MILLIS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Block until everything queued so far has been delivered or dropped.
+     */
+    public void clearQueue() {
+        synchronized(mClearedLock) {
+            while(mPendingCount.get() > 0 && mDispatchThread.isRunning()) {
+                try {
+                    mClearedLock.wait(CLEAR_WAIT_MILLIS);
+                } catch(InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public VehicleDataSink getSink() {
+        return mSink;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public int getQueueCapacity() {
+        return mQueue.capacity();
+    }
+
+    /**
+     * @return the number of messages waiting to be delivered.
+     */
+    public int getQueueDepth() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * @return the most messages that have been waiting at once.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxPendingCount.get();
+    }
+
+    /**
+     * @return the number of messages the sink has received.
+     */
+    public long getDeliveredMessageCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * @return the number of messages discarded because the queue was full.
+     */
+    public long getDroppedMessageCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return how long each call to the sink's receive method took.
+     */
+    public LatencyHistogram getReceiveLatency() {
+        return mReceiveLatency;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("sink", mSink)
+            .add("overflowPolicy", mOverflowPolicy)
+            .add("queueDepth", getQueueDepth())
+            .add("delivered", getDeliveredMessageCount())
+            .add("dropped", getDroppedMessageCount())
+            .add("receiveLatency", mReceiveLatency)
+            .toString();
+    }
+
+    private void overflow(VehicleMessage message) {
+        OverflowPolicy policy = mOverflowPolicy;
+        if(policy == OverflowPolicy.BLOCK &&
+                Thread.currentThread() == mDispatchThread) {
+            // The sink sent a message back through the pipeline - waiting for
+            // ourselves to make room would never finish.
+            policy = OverflowPolicy.DROP_OLDEST;
+        }
+
+        switch(policy) {
+        case BLOCK:
+            while(!mQueue.offer(message)) {
+                if(!mDispatchThread.isRunning()) {
+                    drop();
+                    return;
+                }
+                LockSupport.unpark(mDispatchThread);
+                LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+            }
+            break;
+        case DROP_OLDEST:
+            while(!mQueue.offer(message)) {
+                if(mQueue.poll() != null) {
+                    drop();
+                }
+            }
+            break;
+        case DROP_NEWEST:
+            drop();
+            break;
+        }
+    }
+
+    private boolean forward(VehicleMessage message) {
+        SinkDispatcher successor = mSuccessor;
+        if(successor != null) {
+            return successor.dispatch(message);
+        }
+        // Hold the message until everything queued before it has been
+        // delivered, then let the caller deliver it
+        awaitFinished();
+        return false;
+    }
+
+    private void drop() {
+        mDroppedCount.incrementAndGet();
+        mPendingCount.decrementAndGet();
+    }
+
+    private void cleared(int count) {
+        if(mPendingCount.addAndGet(-count) == 0) {
+            synchronized(mClearedLock) {
+                mClearedLock.notifyAll();
+            }
+        }
+    }
+
+    private class DispatchThread extends Thread {
+        private volatile boolean mRunning = true;
+
+        DispatchThread() {
+            super(TAG + " for " + mSink.getClass().getSimpleName());
+        }
+
+        private boolean isRunning() {
+            return mRunning;
+        }
+
+        private void done() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            synchronized(mClearedLock) {
+                mClearedLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            SinkDispatcher predecessor = mPredecessor;
+            if(predecessor != null) {
+                predecessor.awaitFinished();
+                mPredecessor = null;
+            }
+
+            VehicleMessage[] batch = new VehicleMessage[BATCH_SIZE];
+            try {
+                while(isRunning()) {
+                    int count = mQueue.drainTo(batch, batch.length);
+                    if(count == 0) {
+                        if(mHandedOver && mPendingCount.get() == 0) {
+                            // Everything queued before the hand over has
+                            // been delivered
+                            break;
+                        }
+                        waitForMessages();
+                        continue;
+                    }
+
+                    int delivered = deliver(batch, count);
+                    for(int i = 0; i < count; i++) {
+                        batch[i] = null;
+                    }
+                    cleared(count);
+                    if(delivered < count) {
+                        mPipeline.removeSink(mSink);
+                        break;
+                    }
+                }
+            } finally {
+                mRunning = false;
+                while(mQueue.poll() != null) {
+                    drop();
+                }
+                synchronized(mClearedLock) {
+                    mClearedLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * @return the number of messages delivered before the sink failed, or
+         *      count if it didn't.
+         */
+        private int deliver(VehicleMessage[] batch, int count) {
+            for(int i = 0; i < count; i++) {
+                if(!isRunning()) {
+                    mDroppedCount.addAndGet(count - i);
+                    return count;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    mSink.receive(batch[i]);
+                } catch(DataSinkException e) {
+                    Log.w(TAG, "The sink " + mSink + " exploded when we " +
+                            "sent a new message -- removing it from the " +
+                            "pipeline: " + e);
+                    mDroppedCount.addAndGet(count - i - 1);
+                    return i;
+                }
+                mReceiveLatency.record(System.nanoTime() - start);
+                mDeliveredCount.incrementAndGet();
+            }
+            return count;
+        }
+
+        private void waitForMessages() {
+            mDispatchThreadWaiting = true;
+            // Check again after announcing we're waiting, in case a message
+            // arrived in between and the sender didn't see the flag
+            if(mQueue.isEmpty() && isRunning()) {
+                // Once handed over, only a message that's on its way in can
+                // still be pending, so it won't be long
+                LockSupport.parkNanos(this, mHandedOver ?
+                        FULL_WAIT_NANOS : IDLE_WAIT_NANOS);
+            }
+            mDispatchThreadWaiting = false;
+        }
+    }
+}
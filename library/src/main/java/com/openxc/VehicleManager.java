@@ -305,6 +305,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
         // receiving the first response
         mNotifier.register(ExactKeyMatcher.buildExactMatcher(message.getKey()),
                 listener, false);
+        updateSubscription();
         send(message);
     }
 
@@ -344,6 +345,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
             Measurement.Listener listener) {
         Log.i(TAG, "Adding listener " + listener + " for " + measurementType);
         mNotifier.register(measurementType, listener);
+        updateSubscription();
     }
 
     /**
@@ -366,6 +368,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
             VehicleMessage.Listener listener) {
         Log.i(TAG, "Adding listener " + listener + " for " + messageType);
         mNotifier.register(messageType, listener);
+        updateSubscription();
     }
 
     /**
@@ -407,6 +410,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
     public void addListener(KeyMatcher matcher, VehicleMessage.Listener listener) {
         Log.i(TAG, "Adding listener " + listener + " to " + matcher);
         mNotifier.register(matcher, listener);
+        updateSubscription();
     }
 
     /**
@@ -424,6 +428,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
             Measurement.Listener listener) {
         Log.i(TAG, "Removing listener " + listener + " for " + measurementType);
         mNotifier.unregister(measurementType, listener);
+        updateSubscription();
     }
 
     /**
@@ -438,6 +443,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
     public void removeListener(Class<? extends VehicleMessage> messageType,
             VehicleMessage.Listener listener) {
         mNotifier.unregister(messageType, listener);
+        updateSubscription();
     }
 
     /**
@@ -462,6 +468,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
     public void removeListener(KeyMatcher matcher,
             VehicleMessage.Listener listener) {
         mNotifier.unregister(matcher, listener);
+        updateSubscription();
     }
 
     /**
@@ -517,6 +524,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
     public void addSink(VehicleDataSink sink) {
         Log.i(TAG, "Adding data sink " + sink);
         mRemoteOriginPipeline.addSink(sink);
+        updateSubscription();
     }
 
     /**
@@ -526,6 +534,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
         if(sink != null) {
             mRemoteOriginPipeline.removeSink(sink);
             sink.stop();
+            updateSubscription();
         }
     }
 
@@ -826,6 +835,7 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
 
             mRemoteSource = new RemoteListenerSource(mRemoteService);
             mRemoteOriginPipeline.addSource(mRemoteSource);
+            updateSubscription();
 
             mUserSink = new UserSink(mRemoteService);
             mUserOriginPipeline.addSink(mUserSink);
@@ -845,6 +855,29 @@ public class VehicleManager extends Service implements DataPipeline.Operator {
         }
     };
 
+    /**
+     * Tell the VehicleService which messages our listeners want, so it doesn't
+     * spend binder transactions on the rest.
+     *
+     * Sinks added by the app and listeners with custom KeyMatchers expect
+     * every message, so in those cases we ask for everything.
+     */
+    private void updateSubscription() {
+        RemoteListenerSource source = mRemoteSource;
+        if(source == null) {
+            return;
+        }
+
+        // mNotifier is always in the pipeline, anything else is the app's
+        if(mRemoteOriginPipeline.getSinks().size() > 1 ||
+                mNotifier.hasCustomMatchers()) {
+            source.clearSubscription();
+        } else {
+            source.setSubscription(mNotifier.getSubscribedKeys(),
+                    mNotifier.getSubscribedMessageTypes());
+        }
+    }
+
     private void bindRemote() {
         Log.i(TAG, "Binding to VehicleService");
         Intent intent = new Intent(VehicleService.class.getName());
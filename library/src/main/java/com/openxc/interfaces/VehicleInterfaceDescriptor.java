@@ -13,12 +13,20 @@ public class VehicleInterfaceDescriptor implements Parcelable {
             VehicleInterfaceDescriptor.class.getName();
     private boolean mConnected;
     private Class<? extends VehicleInterface> mInterfaceClass;
+    private double mWriteBytesPerSecond;
 
     public VehicleInterfaceDescriptor(
             Class<? extends VehicleInterface> interfaceClass,
             boolean connected) {
+        this(interfaceClass, connected, 0);
+    }
+
+    public VehicleInterfaceDescriptor(
+            Class<? extends VehicleInterface> interfaceClass,
+            boolean connected, double writeBytesPerSecond) {
         mInterfaceClass = interfaceClass;
         mConnected = connected;
+        mWriteBytesPerSecond = writeBytesPerSecond;
     }
 
     public VehicleInterfaceDescriptor(VehicleInterface vi) {
@@ -33,6 +41,15 @@ public class VehicleInterfaceDescriptor implements Parcelable {
         return mInterfaceClass;
     }
 
+    /**
+     * @return the measured rate data was written to the VI while there was
+     *      something to send, or 0 if it isn't measured for this kind of VI.
+     *      It's a statistic, so it isn't compared by equals().
+     */
+    public double getWriteBytesPerSecond() {
+        return mWriteBytesPerSecond;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj == null) {
@@ -55,6 +72,7 @@ public class VehicleInterfaceDescriptor implements Parcelable {
         return toStringHelper(this)
             .add("class", mInterfaceClass)
             .add("connected", mConnected)
+            .add("writeBytesPerSecond", mWriteBytesPerSecond)
             .toString();
     }
 
@@ -67,6 +85,7 @@ public class VehicleInterfaceDescriptor implements Parcelable {
     public void writeToParcel(Parcel out, int flags) {
         out.writeInt(mConnected ? 1 : 0);
         out.writeString(mInterfaceClass.getName());
+        out.writeDouble(mWriteBytesPerSecond);
     }
 
     protected void readFromParcel(Parcel in) {
@@ -77,6 +96,7 @@ public class VehicleInterfaceDescriptor implements Parcelable {
         } catch(VehicleInterfaceException e) {
             Log.w(TAG, "Unable to load class for vehicle interface by name", e);
         }
+        mWriteBytesPerSecond = in.readDouble();
     }
 
     public static final Parcelable.Creator<VehicleInterfaceDescriptor> CREATOR =
@@ -2,64 +2,160 @@ package com.openxc.interfaces.bluetooth;
 
 import android.util.Log;
 
+import com.google.common.base.MoreObjects;
+import com.openxc.util.ByteRingBuffer;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.BufferOverflowException;
-import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Created by AKUMA128 on 2/9/2018.
+ * The bytes a BLE VI sends as notifications, for the data source's read loop.
+ *
+ * The GATT callback copies each notification straight in to a lock-free ring
+ * with {@link #putDataInBuffer(byte[])}, without parsing it or allocating, and
+ * the data source's thread reads it back out in bulk. The message framing is
+ * left to the data source's streamer, which already handles messages split
+ * across reads.
+ *
+ * If the reader falls so far behind that a notification doesn't fit, that
+ * notification is dropped and counted - see {@link #getOverflowCount()}.
  */
-
 public class BLEInputStream extends InputStream {
-    public static final int MAX_READ_BUFFER_CAPACITY = 4096;
+    public static final int MAX_READ_BUFFER_CAPACITY = 16 * 1024;
     private static final String TAG = BLEInputStream.class.getSimpleName();
-    private static BLEInputStream bleInputStream = null;
+    // How long a read waits for a notification before returning nothing, so
+    // the caller can check if the VI disconnected
+    private static final long READ_WAIT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(100);
 
-    private ByteBuffer buf = ByteBuffer.allocate(MAX_READ_BUFFER_CAPACITY);
+    private final ByteRingBuffer mBuffer;
+    private final byte[] mSingleByte = new byte[1];
+    private final AtomicLong mReceivedByteCount = new AtomicLong();
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private final AtomicLong mOverflowedByteCount = new AtomicLong();
+    private volatile Thread mReader;
+    private volatile boolean mReaderWaiting;
 
-    public static BLEInputStream getInstance() {
-        if (bleInputStream == null) {
-            bleInputStream = new BLEInputStream();
-        }
-        return bleInputStream;
+    public BLEInputStream() {
+        this(MAX_READ_BUFFER_CAPACITY);
+    }
+
+    public BLEInputStream(int capacity) {
+        mBuffer = new ByteRingBuffer(capacity);
     }
 
+    /**
+     * Read one byte, waiting briefly for one to arrive.
+     *
+     * @return the byte, or -1 if none arrived in time.
+     */
+    @Override
     public int read() throws IOException {
-        if (!buf.hasRemaining()) {
+        if(read(mSingleByte, 0, 1) == 0) {
             return -1;
         }
-        return buf.get() & 0xFF;
+        return mSingleByte[0] & 0xFF;
     }
 
-    public synchronized int read(byte[] bytes, int off, int len)
-            throws IOException {
-        buf.flip();
-        int bufferLength = buf.limit();
-        try {
-            buf.get(bytes, off, bufferLength);
-        } catch (BufferUnderflowException e) {
-            Log.d(TAG, "BufferUnderflow bufferLength : " + bufferLength);
+    /**
+     * Read as many bytes as are available, up to len, waiting briefly for some
+     * to arrive if there are none. Only one thread should read.
+     *
+     * Unlike most InputStreams this doesn't block until there's data - it
+     * returns 0 if nothing arrives in time, so the caller can check that the
+     * connection is still up.
+     */
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        int count = mBuffer.poll(bytes, off, len);
+        if(count == 0 && len > 0) {
+            mReader = Thread.currentThread();
+            mReaderWaiting = true;
+            // Check again after announcing we're waiting, in case a
+            // notification arrived in between and the callback didn't see
+            // the flag
+            if(mBuffer.isEmpty()) {
+                LockSupport.parkNanos(this, READ_WAIT_NANOS);
+            }
+            mReaderWaiting = false;
+            count = mBuffer.poll(bytes, off, len);
         }
-        buf.clear();
-        return bufferLength;
+        return count;
     }
 
-    public synchronized void putDataInBuffer(byte[] data) {
-        try {
-            buf.put(data);
-        } catch (BufferOverflowException e) {
-            Log.e(TAG, "Buffer overflowing Resetting!!!!");
-            buf.clear();
+    @Override
+    public int available() {
+        return mBuffer.size();
+    }
+
+    /**
+     * Add the bytes of a notification. Only the GATT callback thread should
+     * call this.
+     */
+    public void putDataInBuffer(byte[] data) {
+        putDataInBuffer(data, 0, data.length);
+    }
+
+    public void putDataInBuffer(byte[] data, int offset, int length) {
+        if(mBuffer.offer(data, offset, length)) {
+            mReceivedByteCount.addAndGet(length);
+        } else {
+            if(mOverflowCount.getAndIncrement() == 0) {
+                Log.w(TAG, "BLE read buffer is full, dropping notifications");
+            }
+            mOverflowedByteCount.addAndGet(length);
+        }
+
+        if(mReaderWaiting) {
+            LockSupport.unpark(mReader);
         }
     }
 
     public boolean doesBufferHasRemaining() {
-        return buf.position() > 0;
+        return !mBuffer.isEmpty();
     }
 
+    /**
+     * Discard anything left from a previous connection. Only the reading
+     * thread, or one holding the connection lock while nothing is reading,
+     * should call this.
+     */
     public void clearBuffer() {
-        buf.clear();
+        mBuffer.clear();
+    }
+
+    /**
+     * @return the number of bytes received and buffered.
+     */
+    public long getReceivedByteCount() {
+        return mReceivedByteCount.get();
+    }
+
+    /**
+     * @return the number of notifications dropped because the buffer was full.
+     */
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    /**
+     * @return the number of bytes in the notifications that were dropped.
+     */
+    public long getOverflowedByteCount() {
+        return mOverflowedByteCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("buffered", mBuffer.size())
+            .add("capacity", mBuffer.capacity())
+            .add("received", getReceivedByteCount())
+            .add("overflows", getOverflowCount())
+            .add("overflowedBytes", getOverflowedByteCount())
+            .toString();
     }
 }
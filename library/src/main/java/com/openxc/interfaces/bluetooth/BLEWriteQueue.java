@@ -0,0 +1,335 @@
+package com.openxc.interfaces.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send bytes to a BLE VI's write characteristic, one packet at a time.
+ *
+ * Outgoing bytes wait in a circular buffer. Only one packet is written at a
+ * time - the next one goes out as soon as the GATT callback says the last one
+ * is done (see {@link #onWriteComplete(boolean)}), instead of after a fixed
+ * delay. Packets are as large as the negotiated MTU allows, so once the MTU
+ * has been raised a typical diagnostic request fits in one or two packets.
+ *
+ * A packet stays at the head of the buffer until its write succeeds. A write
+ * that fails, or whose callback never comes, is tried again a few times
+ * before the packet is dropped, so one lost write doesn't silently cut a
+ * command short.
+ */
+public class BLEWriteQueue {
+    private final static String TAG = BLEWriteQueue.class.getSimpleName();
+
+    public static final int DEFAULT_MTU = 23;
+    // The ATT opcode and attribute handle take up this much of each packet
+    private static final int ATT_HEADER_BYTES = 3;
+    // No attribute value can be longer than this, whatever the MTU - the
+    // stack rejects bigger writes
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+    // If the callback for a write never comes, give up on it after this long
+    // so the queue doesn't stall for good
+    static final long WRITE_TIMEOUT_MILLIS = 1000;
+    // How many times to try sending a packet before dropping it
+    static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mCount;
+    private byte[] mPacket = new byte[DEFAULT_MTU - ATT_HEADER_BYTES];
+    private BluetoothGatt mGatt;
+    private BluetoothGattCharacteristic mCharacteristic;
+    private int mMtu = DEFAULT_MTU;
+    private boolean mWriteInFlight;
+    private int mInFlightBytes;
+    private int mAttempts;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mWriteTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onWriteTimeout();
+        }
+    };
+
+    private long mBurstStartNanos;
+    private long mBusyNanos;
+    private long mBytesWritten;
+    private long mPacketsWritten;
+    private long mFailedWriteCount;
+    private long mDroppedByteCount;
+    private long mRejectedByteCount;
+
+    /**
+     * @param capacity the most bytes that can be waiting to be sent.
+     */
+    public BLEWriteQueue(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be positive, was " + capacity);
+        }
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Set the characteristic to write to, once services have been discovered.
+     */
+    public synchronized void setCharacteristic(BluetoothGatt gatt,
+            BluetoothGattCharacteristic characteristic) {
+        mGatt = gatt;
+        mCharacteristic = characteristic;
+        if(characteristic != null && (characteristic.getProperties() &
+                    BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)
+                != 0) {
+            // The stack still calls back when each write has been handed to
+            // the controller, which is all the flow control we need, and the
+            // VI doesn't have to acknowledge each packet
+            characteristic.setWriteType(
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        pump();
+    }
+
+    /**
+     * Use bigger packets after the MTU has been raised.
+     */
+    public synchronized void setMtu(int mtu) {
+        if(mtu < DEFAULT_MTU) {
+            Log.w(TAG, "Ignoring MTU smaller than the minimum: " + mtu);
+            return;
+        }
+        Log.d(TAG, "MTU changed to " + mtu);
+        mMtu = mtu;
+        mPacket = new byte[Math.min(mtu - ATT_HEADER_BYTES,
+                    MAX_ATTRIBUTE_LENGTH)];
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Forget any unsent bytes and the negotiated MTU, e.g. on a new
+     * connection. The counters are kept.
+     */
+    public synchronized void reset() {
+        mHead = 0;
+        mCount = 0;
+        mWriteInFlight = false;
+        mAttempts = 0;
+        mHandler.removeCallbacks(mWriteTimeout);
+        mGatt = null;
+        mCharacteristic = null;
+        setMtu(DEFAULT_MTU);
+        endBurst();
+    }
+
+    /**
+     * Queue bytes to send, and start sending them if the queue was idle.
+     *
+     * @return false if there isn't room for all of the bytes, in which case
+     *      none of them are queued.
+     */
+    public synchronized boolean offer(byte[] bytes) {
+        if(bytes.length > mBuffer.length - mCount) {
+            mRejectedByteCount += bytes.length;
+            return false;
+        }
+
+        if(mCount == 0 && !mWriteInFlight) {
+            mBurstStartNanos = System.nanoTime();
+        }
+
+        int tail = (mHead + mCount) % mBuffer.length;
+        int firstPart = Math.min(bytes.length, mBuffer.length - tail);
+        System.arraycopy(bytes, 0, mBuffer, tail, firstPart);
+        System.arraycopy(bytes, firstPart, mBuffer, 0,
+                bytes.length - firstPart);
+        mCount += bytes.length;
+        pump();
+        return true;
+    }
+
+    /**
+     * Call from the GATT callback when a write to the characteristic finishes.
+     */
+    public synchronized void onWriteComplete(boolean success) {
+        if(!mWriteInFlight) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mWriteTimeout);
+        mWriteInFlight = false;
+        if(success) {
+            mBytesWritten += mInFlightBytes;
+            mPacketsWritten++;
+            release(mInFlightBytes);
+        } else {
+            Log.w(TAG, "Write of " + mInFlightBytes + " bytes to BLE " +
+                    "characteristic failed");
+            writeFailed();
+        }
+
+        if(mCount == 0) {
+            endBurst();
+        }
+        pump();
+    }
+
+    /**
+     * Write the next packet if nothing is in flight.
+     *
+     * This is called whenever something might have freed up the GATT
+     * connection, since Android only allows one operation on it at a time.
+     */
+    public synchronized void pump() {
+        if(mWriteInFlight || mCount == 0) {
+            return;
+        }
+
+        int length = Math.min(mCount, mPacket.length);
+        byte[] packet = mPacket;
+        if(length < packet.length) {
+            packet = new byte[length];
+        }
+        int firstPart = Math.min(length, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, packet, 0, firstPart);
+        System.arraycopy(mBuffer, 0, packet, firstPart, length - firstPart);
+
+        if(writePacket(packet)) {
+            // The bytes stay queued until the write is known to have worked
+            mWriteInFlight = true;
+            mInFlightBytes = length;
+            mAttempts++;
+            mHandler.postDelayed(mWriteTimeout, WRITE_TIMEOUT_MILLIS);
+        }
+        // Otherwise another GATT operation is in progress - try again when
+        // its callback comes in
+    }
+
+    private synchronized void onWriteTimeout() {
+        if(!mWriteInFlight) {
+            return;
+        }
+
+        Log.w(TAG, "No callback for the last BLE write after " +
+                WRITE_TIMEOUT_MILLIS + "ms");
+        mWriteInFlight = false;
+        writeFailed();
+        if(mCount == 0) {
+            endBurst();
+        }
+        pump();
+    }
+
+    /**
+     * Leave the packet at the head of the queue to be sent again, unless it's
+     * been tried too many times already.
+     */
+    private void writeFailed() {
+        mFailedWriteCount++;
+        if(mAttempts >= MAX_WRITE_ATTEMPTS) {
+            Log.w(TAG, "Dropping " + mInFlightBytes + " bytes after " +
+                    mAttempts + " failed BLE writes");
+            mDroppedByteCount += mInFlightBytes;
+            release(mInFlightBytes);
+        }
+    }
+
+    /**
+     * Remove a packet from the head of the queue.
+     */
+    private void release(int length) {
+        mHead = (mHead + length) % mBuffer.length;
+        mCount -= length;
+        mAttempts = 0;
+    }
+
+    /**
+     * @return true if the packet was handed to the Bluetooth stack, and a
+     *      write callback will follow.
+     */
+    boolean writePacket(byte[] packet) {
+        if(mGatt == null || mCharacteristic == null) {
+            return false;
+        }
+        // The stack copies the value when the write is started, so the packet
+        // can be reused after this
+        mCharacteristic.setValue(packet);
+        return mGatt.writeCharacteristic(mCharacteristic);
+    }
+
+    /**
+     * @return the number of bytes waiting to be sent, including any that are
+     *      being written now.
+     */
+    public synchronized int getQueuedByteCount() {
+        return mCount;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized long getPacketsWritten() {
+        return mPacketsWritten;
+    }
+
+    public synchronized long getFailedWriteCount() {
+        return mFailedWriteCount;
+    }
+
+    /**
+     * @return the number of bytes given up on after too many failed writes.
+     */
+    public synchronized long getDroppedByteCount() {
+        return mDroppedByteCount;
+    }
+
+    /**
+     * @return the number of bytes turned away because the queue was full.
+     */
+    public synchronized long getRejectedByteCount() {
+        return mRejectedByteCount;
+    }
+
+    /**
+     * @return the bytes per second written while there was something to send,
+     *      or 0 if nothing has been written yet.
+     */
+    public synchronized double getThroughputBytesPerSecond() {
+        long busy = mBusyNanos;
+        if(mCount > 0 || mWriteInFlight) {
+            busy += System.nanoTime() - mBurstStartNanos;
+        }
+        if(busy <= 0) {
+            return 0;
+        }
+        return mBytesWritten * (double) TimeUnit.SECONDS.toNanos(1) / busy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("mtu", mMtu)
+            .add("queuedBytes", mCount)
+            .add("bytesWritten", mBytesWritten)
+            .add("packetsWritten", mPacketsWritten)
+            .add("failedWrites", mFailedWriteCount)
+            .add("droppedBytes", mDroppedByteCount)
+            .add("bytesPerSecond", (long) getThroughputBytesPerSecond())
+            .toString();
+    }
+
+    private void endBurst() {
+        if(mBurstStartNanos != 0) {
+            mBusyNanos += System.nanoTime() - mBurstStartNanos;
+            mBurstStartNanos = 0;
+        }
+    }
+}
@@ -24,9 +24,7 @@ import com.openxc.sources.SourceCallback;
 import com.openxcplatform.R;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
@@ -45,12 +43,15 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
         implements VehicleInterface {
     private static final String TAG = BluetoothVehicleInterface.class.getSimpleName();
     public static final String DEVICE_NAME_PREFIX = "OPENXC-VI-";
+    // RFCOMM reads rarely return more than this at once, and BLE reads come
+    // out of a 16KB ring that's drained as fast as notifications arrive
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
 
     private DeviceManager mDeviceManager;
     private Thread mAcceptThread;
     private String mExplicitAddress;
     private String mConnectedAddress;
-    private BufferedWriter mOutStream;
+    private CoalescingWriteQueue mWriteQueue;
     private BufferedInputStream mInStream;
     private BluetoothSocket mSocket;
     private boolean mPerformAutomaticScan = true;
@@ -60,7 +61,7 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
     private BluetoothGatt mBluetoothGatt;
 
     private boolean connectingToBLE = false;
-    BLEInputStream mBLEInputStream;
+    private BLEInputStream mBLEInputStream;
 
     public BluetoothVehicleInterface(SourceCallback callback, Context context,
                                      String address) throws DataSourceException {
@@ -197,6 +198,17 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
         }
     }
 
+    /**
+     * @return the bytes per second written to a BLE VI while there was
+     *      something to send, or 0 for a classic Bluetooth VI.
+     */
+    public double getWriteThroughput() {
+        if (connectingToBLE) {
+            return mDeviceManager.getBLEWriteThroughput();
+        }
+        return 0;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -204,6 +216,9 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
                 .add("connectedDeviceAddress", mConnectedAddress)
                 .add("socket", mSocket)
                 .add("bluetoothGatt", mBluetoothGatt)
+                .add("writeQueue", mWriteQueue)
+                .add("bleInputStream", mDeviceManager.getBLEInputStream())
+                .add("bleWriteQueue", mDeviceManager.getBLEWriteQueue())
                 .toString();
     }
 
@@ -411,6 +426,11 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
         }
     }
 
+    @Override
+    protected int getReadBufferSize() {
+        return READ_BUFFER_SIZE;
+    }
+
     @Override
     protected int read(byte[] bytes) throws IOException {
         mConnectionLock.readLock().lock();
@@ -422,9 +442,11 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
             if (isConnected() && !connectingToBLE) {
                 bytesRead = mInStream.read(bytes, 0, bytes.length);
             } else if (isConnected()) {
-                if (mBLEInputStream != null && mBLEInputStream.doesBufferHasRemaining()) {
-                    bytesRead = mInStream.read(bytes, 0, bytes.length);
-                } else if (mDeviceManager.isBLEDisconnected()) {
+                if (mBLEInputStream != null) {
+                    // Waits briefly for a notification, rather than spinning
+                    bytesRead = mBLEInputStream.read(bytes, 0, bytes.length);
+                }
+                if (bytesRead == 0 && mDeviceManager.isBLEDisconnected()) {
                     //Disconnect BLE if GattCallBack state changed to disconnected
                     mConnectedAddress = null;
                     bytesRead = -1;
@@ -441,19 +463,17 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
         boolean success = false;
         try {
             if (isConnected() && !connectingToBLE) {
-                mOutStream.write(new String(bytes));
-                // TODO what if we didn't flush every time? might be faster for
-                // sustained writes.
-                mOutStream.flush();
-                success = true;
+                // Written from the queue's thread, together with any other
+                // commands sent around the same time
+                success = mWriteQueue != null && mWriteQueue.offer(bytes);
+                if (!success) {
+                    Log.w(TAG, "Unable to queue write to socket");
+                }
             } else if (isConnected() && connectingToBLE && !mDeviceManager.isBLEDisconnected()) {
-                mDeviceManager.writeCharacteristicToBLE(bytes);
-                success = true;
+                success = mDeviceManager.writeCharacteristicToBLE(bytes);
             } else {
                 Log.w(TAG, "Unable to write -- not connected");
             }
-        } catch (IOException e) {
-            Log.d(TAG, "Error writing to stream", e);
         } finally {
             mConnectionLock.readLock().unlock();
         }
@@ -500,15 +520,11 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
                 mInStream = null;
             }
 
-            try {
-                if (mOutStream != null) {
-                    mOutStream.close();
-                    Log.d(TAG, "Disconnected from the output stream");
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "Unable to close the output stream", e);
-            } finally {
-                mOutStream = null;
+            if (mWriteQueue != null) {
+                // The socket owns the output stream, and it's closed already
+                mWriteQueue.close();
+                mWriteQueue = null;
+                Log.d(TAG, "Stopped the write queue");
             }
 
             disconnected();
@@ -527,8 +543,8 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
         try {
             if (!connectingToBLE) {
                 try {
-                    mOutStream = new BufferedWriter(new OutputStreamWriter(
-                            mSocket.getOutputStream()));
+                    mWriteQueue = new CoalescingWriteQueue(
+                            mSocket.getOutputStream());
                     mInStream = new BufferedInputStream(mSocket.getInputStream());
                     Log.i(TAG, "Socket stream to vehicle interface " +
                             "opened successfully");
@@ -538,9 +554,8 @@ public class BluetoothVehicleInterface extends BytestreamDataSource
                     throw new BluetoothException();
                 }
             } else {
-                mBLEInputStream = BLEInputStream.getInstance();
+                mBLEInputStream = mDeviceManager.getBLEInputStream();
                 mBLEInputStream.clearBuffer();
-                mInStream = new BufferedInputStream(mBLEInputStream);
                 Log.i(TAG, "Input stream to vehicle interface " +
                         "opened successfully");
             }
@@ -0,0 +1,353 @@
+package com.openxc.interfaces.bluetooth;
+
+import android.util.Log;
+
+import com.google.common.base.MoreObjects;
+import com.openxc.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send commands to an output stream from a thread of its own, joining
+ * commands that arrive close together in to a single write.
+ *
+ * Queued commands are written and flushed once no new command has arrived for
+ * the idle time, once enough bytes are waiting, or once the oldest waiting
+ * command has been held for the maximum delay - see
+ * {@link #setFlushPolicy(long, long, int)}. A burst of requests at startup
+ * then goes out in a few socket writes instead of one flush per command.
+ *
+ * Commands are plain bytes and are never converted to a String, so binary
+ * payloads go out untouched.
+ */
+public class CoalescingWriteQueue {
+    private final static String TAG =
+            CoalescingWriteQueue.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final long DEFAULT_FLUSH_IDLE_MILLIS = 2;
+    public static final long DEFAULT_FLUSH_MAX_DELAY_MILLIS = 20;
+    public static final int DEFAULT_FLUSH_BYTES = 1024;
+
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final OutputStream mOutput;
+    private final Object mLock = new Object();
+    private final WriterThread mWriterThread;
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+    // Guarded by mLock - commands are appended to mPending, and the writer
+    // swaps it with mWriteBuffer before writing it out
+    private byte[] mPending;
+    private byte[] mWriteBuffer;
+    private int mPendingBytes;
+    private int mPendingCommands;
+    private long mFirstPendingNanos;
+    private long mLastOfferNanos;
+    private boolean mRunning = true;
+    private boolean mWriteInProgress;
+    private int mFlushWaiters;
+    private IOException mWriteError;
+
+    private long mFlushIdleNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_IDLE_MILLIS);
+    private long mFlushMaxDelayNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_MAX_DELAY_MILLIS);
+    private int mFlushBytes = DEFAULT_FLUSH_BYTES;
+
+    private long mCommandCount;
+    private long mBytesWritten;
+    private long mWriteCount;
+    private long mRejectedCommandCount;
+    private long mRateWindowStartNanos;
+    private long mRateWindowCommands;
+    private double mCommandsPerSecond;
+
+    public CoalescingWriteQueue(OutputStream output) {
+        this(output, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the most bytes that can be waiting to be written.
+     */
+    public CoalescingWriteQueue(OutputStream output, int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be positive, was " + capacity);
+        }
+        mOutput = output;
+        mPending = new byte[capacity];
+        mWriteBuffer = new byte[capacity];
+        mWriterThread = new WriterThread();
+        mWriterThread.start();
+    }
+
+    /**
+     * Control when queued commands are written out.
+     *
+     * @param idleMillis write once no new command has arrived for this long.
+     * @param maxDelayMillis write once the oldest command has waited this
+     *      long, even if commands keep coming.
+     * @param bytes write as soon as this many bytes are waiting.
+     */
+    public void setFlushPolicy(long idleMillis, long maxDelayMillis,
+            int bytes) {
+        if(idleMillis < 0 || maxDelayMillis < idleMillis || bytes < 1) {
+            throw new IllegalArgumentException("Invalid flush policy: idle " +
+                    idleMillis + "ms, max delay " + maxDelayMillis +
+                    "ms, " + bytes + " bytes");
+        }
+        synchronized(mLock) {
+            mFlushIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            mFlushMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+                    maxDelayMillis);
+            mFlushBytes = bytes;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue a command to be written.
+     *
+     * @return false if the queue is closed, a previous write failed, or there
+     *      isn't room for the command.
+     */
+    public boolean offer(byte[] command) {
+        synchronized(mLock) {
+            if(!mRunning || mWriteError != null ||
+                    command.length > mPending.length - mPendingBytes) {
+                mRejectedCommandCount++;
+                return false;
+            }
+
+            long now = System.nanoTime();
+            if(mPendingBytes == 0) {
+                mFirstPendingNanos = now;
+                mLock.notifyAll();
+            } else if(mPendingBytes + command.length >= mFlushBytes) {
+                mLock.notifyAll();
+            }
+            System.arraycopy(command, 0, mPending, mPendingBytes,
+                    command.length);
+            mPendingBytes += command.length;
+            mPendingCommands++;
+            mLastOfferNanos = now;
+            return true;
+        }
+    }
+
+    /**
+     * Block until everything queued so far has been written, or the queue
+     * stops.
+     */
+    public void flush() throws InterruptedException {
+        synchronized(mLock) {
+            mFlushWaiters++;
+            mLock.notifyAll();
+            try {
+                while(mRunning && mWriteError == null &&
+                        (mPendingBytes > 0 || mWriteInProgress)) {
+                    mLock.wait();
+                }
+            } finally {
+                mFlushWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Stop the writer thread, discarding anything not yet written. The output
+     * stream is left open.
+     */
+    public void close() {
+        synchronized(mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the error from the last write, if it failed - nothing more is
+     *      written after that.
+     */
+    public IOException getWriteError() {
+        synchronized(mLock) {
+            return mWriteError;
+        }
+    }
+
+    /**
+     * @return the number of commands written.
+     */
+    public long getCommandCount() {
+        synchronized(mLock) {
+            return mCommandCount;
+        }
+    }
+
+    /**
+     * @return the number of writes to the output stream, each followed by a
+     *      flush.
+     */
+    public long getWriteCount() {
+        synchronized(mLock) {
+            return mWriteCount;
+        }
+    }
+
+    public long getBytesWritten() {
+        synchronized(mLock) {
+            return mBytesWritten;
+        }
+    }
+
+    /**
+     * @return the number of commands turned away by {@link #offer(byte[])}.
+     */
+    public long getRejectedCommandCount() {
+        synchronized(mLock) {
+            return mRejectedCommandCount;
+        }
+    }
+
+    /**
+     * @return the rate commands were written at, averaged over the latest
+     *      stretch of at least a second - it's only updated by writes.
+     */
+    public double getCommandsPerSecond() {
+        synchronized(mLock) {
+            return mCommandsPerSecond;
+        }
+    }
+
+    /**
+     * @return how long each write and flush of the output stream took.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    @Override
+    public String toString() {
+        synchronized(mLock) {
+            return MoreObjects.toStringHelper(this)
+                .add("pendingBytes", mPendingBytes)
+                .add("commands", mCommandCount)
+                .add("writes", mWriteCount)
+                .add("bytesWritten", mBytesWritten)
+                .add("rejectedCommands", mRejectedCommandCount)
+                .add("commandsPerSecond", mCommandsPerSecond)
+                .add("writeLatency", mWriteLatency)
+                .toString();
+        }
+    }
+
+    private void countWritten(int commands, int bytes, long now) {
+        mCommandCount += commands;
+        mBytesWritten += bytes;
+        mWriteCount++;
+
+        if(now - mRateWindowStartNanos >= RATE_WINDOW_NANOS) {
+            if(mRateWindowCommands > 0) {
+                mCommandsPerSecond = mRateWindowCommands *
+                        (double) RATE_WINDOW_NANOS /
+                        Math.max(RATE_WINDOW_NANOS,
+                                now - mRateWindowStartNanos);
+            }
+            mRateWindowStartNanos = now;
+            mRateWindowCommands = 0;
+        }
+        mRateWindowCommands += commands;
+    }
+
+    private class WriterThread extends Thread {
+        WriterThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                int bytes;
+                int commands;
+                synchronized(mLock) {
+                    try {
+                        if(!waitForFlush()) {
+                            break;
+                        }
+                    } catch(InterruptedException e) {
+                        break;
+                    }
+
+                    byte[] swap = mWriteBuffer;
+                    mWriteBuffer = mPending;
+                    mPending = swap;
+                    bytes = mPendingBytes;
+                    commands = mPendingCommands;
+                    mPendingBytes = 0;
+                    mPendingCommands = 0;
+                    mWriteInProgress = true;
+                }
+
+                long start = System.nanoTime();
+                IOException error = null;
+                try {
+                    mOutput.write(mWriteBuffer, 0, bytes);
+                    mOutput.flush();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to write to stream", e);
+                    error = e;
+                }
+                long end = System.nanoTime();
+
+                synchronized(mLock) {
+                    mWriteInProgress = false;
+                    if(error != null) {
+                        mWriteError = error;
+                        mRejectedCommandCount += commands;
+                    } else {
+                        mWriteLatency.record(end - start);
+                        countWritten(commands, bytes, end);
+                    }
+                    mLock.notifyAll();
+                }
+            }
+
+            synchronized(mLock) {
+                mRunning = false;
+                mLock.notifyAll();
+            }
+            Log.d(TAG, "Stopped writer thread");
+        }
+
+        /**
+         * Wait until the pending commands should be written. Must hold mLock.
+         *
+         * @return false if the queue has stopped.
+         */
+        private boolean waitForFlush() throws InterruptedException {
+            while(mRunning && mWriteError == null) {
+                if(mPendingBytes == 0) {
+                    mLock.wait();
+                    continue;
+                }
+
+                if(mFlushWaiters > 0 || mPendingBytes >= mFlushBytes) {
+                    return true;
+                }
+
+                long now = System.nanoTime();
+                long idleDeadline = mLastOfferNanos + mFlushIdleNanos;
+                long delayDeadline = mFirstPendingNanos + mFlushMaxDelayNanos;
+                long wait = Math.min(idleDeadline, delayDeadline) - now;
+                if(wait <= 0) {
+                    return true;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, wait);
+            }
+            return false;
+        }
+    }
+}
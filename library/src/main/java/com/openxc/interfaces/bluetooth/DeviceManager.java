@@ -3,8 +3,6 @@ package com.openxc.interfaces.bluetooth;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
@@ -15,8 +13,6 @@ import android.util.Log;
 import com.openxc.util.SupportSettingsUtils;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.BufferOverflowException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
@@ -45,9 +41,15 @@ public class DeviceManager {
     private GattCallback mGattCallback;
 
     public static final int MAX_WRITE_BUFFER_CAPACITY = 1024;
-    private byte[] writeArray = new byte[MAX_WRITE_BUFFER_CAPACITY];
-    private int queueEnd = 0;
+    /**
+     * @deprecated BLE writes are paced by the write callbacks now, not a
+     * fixed delay.
+     */
+    @Deprecated
     public static final int PACKET_SENDING_WAIT_TIME_MS = 50;
+    private final BLEWriteQueue mWriteQueue =
+            new BLEWriteQueue(MAX_WRITE_BUFFER_CAPACITY);
+    private final BLEInputStream mInputStream = new BLEInputStream();
 
 
     /**
@@ -282,7 +284,8 @@ public class DeviceManager {
         }
         mSocketConnecting.set(true);
         try {
-            mGattCallback = new GattCallback();
+            mWriteQueue.reset();
+            mGattCallback = new GattCallback(mInputStream, mWriteQueue);
             mBluetoothGatt = device.connectGatt(mContext, true, mGattCallback);
             mBluetoothGatt.connect();
             mGattCallback.setBluetoothGatt(mBluetoothGatt);
@@ -322,61 +325,37 @@ public class DeviceManager {
         }
     }
 
+    /**
+     * Queue bytes to send to the BLE device. They're sent as soon as the
+     * previous writes have finished.
+     *
+     * @return false if the bytes didn't fit in the write queue.
+     */
     public boolean writeCharacteristicToBLE(byte[] bytes) {
-        try {
-            for (int i = 0; i < bytes.length; i++) {
-                writeArray[queueEnd++] = bytes[i];
-            }
-        } catch (BufferOverflowException e) {
-            Log.d(TAG, "Buffer overflowing!!!!");
+        if (!mWriteQueue.offer(bytes)) {
+            Log.d(TAG, "BLE write queue is full, dropping " + bytes.length +
+                    " bytes");
             return false;
         }
-
-        BLESendData();
         return true;
     }
 
-    private void BLESendData() {
-        if (queueEnd <= 0) {
-            return;
-        }
-        if (mBluetoothGatt != null) {
-            BluetoothGattService openXCService = mBluetoothGatt.getService(UUID.fromString(GattCallback.C5_OPENXC_BLE_SERVICE_UUID));
-            if (openXCService != null) {
-                BluetoothGattCharacteristic characteristic = openXCService.getCharacteristic(UUID.fromString(GattCallback.C5_OPENXC_BLE_CHARACTERISTIC_WRITE_UUID));
-                if (characteristic != null) {
-
-                    while (queueEnd != 0) {
-                        byte[] sendingPacket;
-                        if (queueEnd >= 20) {
-                            sendingPacket = new byte[20];
-                            System.arraycopy(writeArray, 0, sendingPacket, 0, 20);
-                            System.arraycopy(writeArray, 20, writeArray, 0, queueEnd - 20);
-                            queueEnd = queueEnd - 20;
-
-                        } else {
-                            sendingPacket = new byte[queueEnd];
-                            System.arraycopy(writeArray, 0, sendingPacket, 0, queueEnd);
-                            queueEnd = 0;
-                        }
-                        characteristic.setValue(sendingPacket);
-                        try {
-                            Thread.sleep(PACKET_SENDING_WAIT_TIME_MS);
-
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Interrupted");
-                            e.printStackTrace();
-                        }
-                        mBluetoothGatt.writeCharacteristic(characteristic);
-                    }
-                } else {
-                    Log.d(TAG, "characteristic is null");
-                }
-            } else {
-                Log.d(TAG, "OpenXC Service not found!");
-            }
-        } else {
-            Log.d(TAG, "Gatt not found!");
-        }
+    /**
+     * @return the bytes per second sent to the BLE device while there was
+     *      something to send.
+     */
+    public double getBLEWriteThroughput() {
+        return mWriteQueue.getThroughputBytesPerSecond();
+    }
+
+    public BLEWriteQueue getBLEWriteQueue() {
+        return mWriteQueue;
+    }
+
+    /**
+     * @return the stream of bytes received from the BLE device.
+     */
+    public BLEInputStream getBLEInputStream() {
+        return mInputStream;
     }
 }
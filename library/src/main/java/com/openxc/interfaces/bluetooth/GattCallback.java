@@ -1,15 +1,15 @@
 package com.openxc.interfaces.bluetooth;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.os.Build;
 import android.util.Log;
 
-import com.openxc.messages.streamers.JsonStreamer;
-
 import java.util.UUID;
 
 /**
@@ -23,12 +23,32 @@ public class GattCallback extends BluetoothGattCallback {
     public static final String C5_OPENXC_BLE_CHARACTERISTIC_NOTIFY_UUID = "6800D38B-5262-11E5-885D-FEFF819CDCE3";
     public static final String C5_OPENXC_BLE_DESCRIPTOR_NOTIFY_UUID = "00002902-0000-1000-8000-00805f9b34fb";
     public static final String C5_OPENXC_BLE_CHARACTERISTIC_WRITE_UUID = "6800D38B-5262-11E5-885D-FEFF819CDCE2";
+    // The largest MTU Android will ask for
+    public static final int REQUESTED_MTU = 517;
 
     private boolean isConnected = false;
     private boolean isDisconnected = false;
     private BluetoothGatt mBluetoothGatt;
-    private StringBuffer messageBuffer = new StringBuffer();
-    private final static String DELIMITER = "\u0000";
+    private final BLEInputStream mInputStream;
+    private final BLEWriteQueue mWriteQueue;
+
+    public GattCallback() {
+        this(new BLEInputStream(), null);
+    }
+
+    /**
+     * @param inputStream where to put the bytes of each notification.
+     * @param writeQueue the queue to hand the write characteristic to and to
+     *      tell when writes finish, if any.
+     */
+    public GattCallback(BLEInputStream inputStream, BLEWriteQueue writeQueue) {
+        mInputStream = inputStream;
+        mWriteQueue = writeQueue;
+    }
+
+    public BLEInputStream getInputStream() {
+        return mInputStream;
+    }
 
     public void setBluetoothGatt(BluetoothGatt mBluetoothGatt) {
         this.mBluetoothGatt = mBluetoothGatt;
@@ -85,22 +105,13 @@ public class GattCallback extends BluetoothGattCallback {
     }
 
     public void readChangedCharacteristic(BluetoothGattCharacteristic characteristic) {
-        byte[] data;
-        data = characteristic.getValue(); // *** this is going to get overwritten by next call, so make a queue
-
-        if (data != null && data.length > 0 && (isConnected())) {
-            messageBuffer.append(new String(data, 0, data.length));
-
-            if(JsonStreamer.containsJson(messageBuffer.toString())) {
-                int delimiterIndex = messageBuffer.indexOf(DELIMITER);
-                if (delimiterIndex != -1) {
-                    byte message[] = messageBuffer.substring(0, delimiterIndex + 1).getBytes();
-                    BLEInputStream.getInstance().putDataInBuffer(message);
-                    messageBuffer.delete(0, delimiterIndex + 1);
-                }
-            } else {
-                BLEInputStream.getInstance().putDataInBuffer(data);
-            }
+        // The value is overwritten by the next notification, so it's copied
+        // in to the input stream's buffer right away. Splitting it in to
+        // messages is left to the data source's streamer, which works out
+        // the payload format once per connection.
+        byte[] data = characteristic.getValue();
+        if (data != null && data.length > 0 && isConnected()) {
+            mInputStream.putDataInBuffer(data);
         }
     }
 
@@ -114,6 +125,54 @@ public class GattCallback extends BluetoothGattCallback {
             BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID.fromString(C5_OPENXC_BLE_DESCRIPTOR_NOTIFY_UUID));
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
             gatt.writeDescriptor(descriptor);
+
+            if (mWriteQueue != null) {
+                mWriteQueue.setCharacteristic(gatt, gattService.getCharacteristic(
+                        UUID.fromString(C5_OPENXC_BLE_CHARACTERISTIC_WRITE_UUID)));
+            }
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt,
+                                  BluetoothGattDescriptor descriptor, int status) {
+        super.onDescriptorWrite(gatt, descriptor, status);
+        // Only one GATT operation can be in progress at a time, so wait until
+        // notifications are enabled before asking for a bigger MTU
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            requestMtu(gatt);
+        } else if (mWriteQueue != null) {
+            mWriteQueue.pump();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void requestMtu(BluetoothGatt gatt) {
+        if (!gatt.requestMtu(REQUESTED_MTU)) {
+            Log.d(TAG, "Unable to request a larger MTU");
+            if (mWriteQueue != null) {
+                mWriteQueue.pump();
+            }
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
+        if (mWriteQueue != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mWriteQueue.setMtu(mtu);
+            }
+            mWriteQueue.pump();
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+                                      BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicWrite(gatt, characteristic, status);
+        if (mWriteQueue != null) {
+            mWriteQueue.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
         }
     }
 
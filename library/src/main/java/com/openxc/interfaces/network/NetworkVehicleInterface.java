@@ -29,6 +29,8 @@ public class NetworkVehicleInterface extends BytestreamDataSource
         implements VehicleInterface {
     private static final String TAG = "NetworkVehicleInterface";
     private static final int SOCKET_TIMEOUT = 10000;
+    // Enough to drain a full TCP receive window's worth of messages at once
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
     private static final String SCHEMA_SPECIFIC_PREFIX = "//";
 
     private Socket mSocket;
@@ -125,6 +127,11 @@ public class NetworkVehicleInterface extends BytestreamDataSource
         return connected;
     }
 
+    @Override
+    protected int getReadBufferSize() {
+        return READ_BUFFER_SIZE;
+    }
+
     @Override
     protected int read(byte[] bytes) throws IOException {
         mConnectionLock.readLock().lock();
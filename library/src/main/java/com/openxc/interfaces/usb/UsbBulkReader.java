@@ -0,0 +1,216 @@
+package com.openxc.interfaces.usb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Read from a USB bulk IN endpoint with several transfers queued at once.
+ *
+ * A synchronous bulkTransfer leaves the endpoint idle from the moment one
+ * transfer completes until the next one is started, and a busy VI can drop
+ * frames in that gap. This keeps a pool of {@link UsbRequest}s, each with its
+ * own direct buffer, queued on the endpoint. When one completes its bytes are
+ * handed out by {@link #read(byte[])} and it's queued again, while the others
+ * are still waiting for data.
+ *
+ * Only one thread should read.
+ */
+@TargetApi(12)
+public class UsbBulkReader {
+    private static final String TAG = "UsbBulkReader";
+
+    public static final int DEFAULT_REQUEST_COUNT = 3;
+    // Before Android P, a single request can't move more than this
+    public static final int MAX_LEGACY_TRANSFER_SIZE = 16 * 1024;
+    public static final int DEFAULT_TRANSFER_SIZE = MAX_LEGACY_TRANSFER_SIZE;
+
+    private final UsbDeviceConnection mConnection;
+    private final int mTransferSize;
+    private final List<UsbRequest> mRequests = new ArrayList<>();
+    private volatile boolean mClosed;
+
+    // The completed request whose bytes are still being read, if the caller's
+    // array was too small to take them all at once
+    private UsbRequest mCurrentRequest;
+    private ByteBuffer mCurrentBuffer;
+
+    private long mTransferCount;
+    private long mBytesTransferred;
+    private long mFailedRequestCount;
+
+    /**
+     * @param requestCount the number of transfers to keep queued.
+     * @param transferSize the most bytes each transfer can carry. It's rounded
+     *      up to a whole number of the endpoint's packets.
+     */
+    public UsbBulkReader(UsbDeviceConnection connection, UsbEndpoint endpoint,
+            int requestCount, int transferSize) {
+        if(requestCount < 1 || transferSize < 1) {
+            throw new IllegalArgumentException("Invalid USB read with " +
+                    requestCount + " requests of " + transferSize + " bytes");
+        }
+
+        mConnection = connection;
+        mTransferSize = roundTransferSize(transferSize,
+                endpoint.getMaxPacketSize());
+
+        for(int i = 0; i < requestCount; i++) {
+            UsbRequest request = newRequest();
+            if(!request.initialize(connection, endpoint)) {
+                Log.w(TAG, "Unable to initialize USB request " + i);
+                request.close();
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(mTransferSize);
+            request.setClientData(buffer);
+            mRequests.add(request);
+            queue(request);
+        }
+    }
+
+    /**
+     * Copy the bytes from the next completed transfer, waiting for one if
+     * there are none.
+     *
+     * @return the number of bytes copied, or -1 if the connection failed or
+     *      the reader was closed.
+     */
+    public int read(byte[] bytes) {
+        while(mCurrentBuffer == null || !mCurrentBuffer.hasRemaining()) {
+            if(mCurrentRequest != null) {
+                queue(mCurrentRequest);
+                mCurrentRequest = null;
+                mCurrentBuffer = null;
+            }
+
+            if(mClosed) {
+                return -1;
+            }
+
+            UsbRequest request = mConnection.requestWait();
+            if(request == null) {
+                Log.w(TAG, "Waiting for a USB transfer failed");
+                return -1;
+            }
+            if(mClosed) {
+                return -1;
+            }
+            if(!mRequests.contains(request)) {
+                continue;
+            }
+
+            ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            // The request leaves the buffer's position after the last byte
+            // it received
+            buffer.flip();
+            mTransferCount++;
+            mBytesTransferred += buffer.remaining();
+            mCurrentRequest = request;
+            mCurrentBuffer = buffer;
+        }
+
+        int count = Math.min(bytes.length, mCurrentBuffer.remaining());
+        mCurrentBuffer.get(bytes, 0, count);
+        return count;
+    }
+
+    /**
+     * Cancel the queued transfers, making a blocked {@link #read(byte[])}
+     * return. This is safe to call from any thread.
+     */
+    public void cancel() {
+        mClosed = true;
+        for(UsbRequest request : mRequests) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Cancel and release the transfers. Call this before closing the
+     * connection, and not while another thread is reading.
+     */
+    public void close() {
+        cancel();
+        for(UsbRequest request : mRequests) {
+            request.close();
+        }
+        mRequests.clear();
+        mCurrentRequest = null;
+        mCurrentBuffer = null;
+    }
+
+    public int getTransferSize() {
+        return mTransferSize;
+    }
+
+    /**
+     * @return the number of transfers kept queued.
+     */
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public long getTransferCount() {
+        return mTransferCount;
+    }
+
+    public long getBytesTransferred() {
+        return mBytesTransferred;
+    }
+
+    /**
+     * @return the number of times a transfer couldn't be queued again.
+     */
+    public long getFailedRequestCount() {
+        return mFailedRequestCount;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("requests", mRequests.size())
+            .add("transferSize", mTransferSize)
+            .add("transfers", mTransferCount)
+            .add("bytes", mBytesTransferred)
+            .add("failedRequests", mFailedRequestCount)
+            .toString();
+    }
+
+    UsbRequest newRequest() {
+        return new UsbRequest();
+    }
+
+    static int roundTransferSize(int transferSize, int packetSize) {
+        // 28 is Android P, which is newer than the SDK we compile against
+        int maximum = Build.VERSION.SDK_INT >= 28 ?
+                Integer.MAX_VALUE : MAX_LEGACY_TRANSFER_SIZE;
+        if(packetSize <= 0) {
+            return Math.min(transferSize, maximum);
+        }
+        long packets = ((long) transferSize + packetSize - 1) / packetSize;
+        if(packets * packetSize > maximum) {
+            packets = Math.max(1, maximum / packetSize);
+        }
+        return (int) (packets * packetSize);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void queue(UsbRequest request) {
+        ByteBuffer buffer = (ByteBuffer) request.getClientData();
+        buffer.clear();
+        if(!request.queue(buffer, mTransferSize)) {
+            mFailedRequestCount++;
+            Log.w(TAG, "Unable to queue USB request");
+        }
+    }
+}
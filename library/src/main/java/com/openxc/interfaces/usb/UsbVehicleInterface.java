@@ -58,6 +58,11 @@ public class UsbVehicleInterface extends BytestreamDataSource
     private UsbEndpoint mOutEndpoint;
     private PendingIntent mPermissionIntent;
     private URI mDeviceUri;
+    private volatile UsbBulkReader mReader;
+    private volatile int mReadRequestCount =
+            UsbBulkReader.DEFAULT_REQUEST_COUNT;
+    private volatile int mReadTransferSize =
+            UsbBulkReader.DEFAULT_TRANSFER_SIZE;
 
     /**
      * Construct an instance of UsbVehicleInterface with a receiver callback
@@ -181,6 +186,33 @@ public class UsbVehicleInterface extends BytestreamDataSource
         return false;
     }
 
+    /**
+     * Control how data is read from the device, from the next time it
+     * connects.
+     *
+     * @param requestCount the number of transfers to keep queued on the IN
+     *      endpoint, so it's never idle while a finished one is being handled.
+     * @param transferSize the most bytes each transfer can carry. It's rounded
+     *      up to a whole number of USB packets, and is capped at 16KB before
+     *      Android P.
+     */
+    public void setReadPolicy(int requestCount, int transferSize) {
+        if(requestCount < 1 || transferSize < 1) {
+            throw new IllegalArgumentException("Invalid USB read policy: " +
+                    requestCount + " requests of " + transferSize + " bytes");
+        }
+        mReadRequestCount = requestCount;
+        mReadTransferSize = transferSize;
+    }
+
+    public int getReadRequestCount() {
+        return mReadRequestCount;
+    }
+
+    public int getReadTransferSize() {
+        return mReadTransferSize;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -188,16 +220,30 @@ public class UsbVehicleInterface extends BytestreamDataSource
             .add("connection", mConnection)
             .add("in_endpoint", mInEndpoint)
             .add("out_endpoint", mOutEndpoint)
+            .add("reader", mReader)
             .toString();
     }
 
+    /**
+     * Read a whole transfer at a time, which is a multiple of the endpoint's
+     * packet size.
+     */
+    @Override
+    protected int getReadBufferSize() {
+        UsbBulkReader reader = mReader;
+        if(reader != null) {
+            return reader.getTransferSize();
+        }
+        return mReadTransferSize;
+    }
+
     @Override
     protected int read(byte[] bytes) throws IOException {
         mConnectionLock.readLock().lock();
         int bytesRead = 0;
         try {
-            if(isConnected()) {
-                bytesRead = mConnection.bulkTransfer(mInEndpoint, bytes, bytes.length, 0);
+            if(isConnected() && mReader != null) {
+                bytesRead = mReader.read(bytes);
             }
         } finally {
             mConnectionLock.readLock().unlock();
@@ -335,6 +381,10 @@ public class UsbVehicleInterface extends BytestreamDataSource
             mConnectionLock.writeLock().lock();
             try {
                 mConnection = setupDevice(mManager, device);
+                if(mInEndpoint != null) {
+                    mReader = new UsbBulkReader(mConnection, mInEndpoint,
+                            mReadRequestCount, mReadTransferSize);
+                }
                 connected();
                 Log.i(TAG, "Connected to USB device with " +
                         mConnection);
@@ -359,8 +409,18 @@ public class UsbVehicleInterface extends BytestreamDataSource
 
         Log.d(TAG, "Closing connection " + mConnection +
                 " with USB device");
+        UsbBulkReader reader = mReader;
+        if(reader != null) {
+            // The read loop holds the connection lock while it waits for a
+            // transfer, so wake it up before asking for the lock
+            reader.cancel();
+        }
         mConnectionLock.writeLock().lock();
         try {
+            if(mReader != null) {
+                mReader.close();
+                mReader = null;
+            }
             if(mConnection != null) {
                 mConnection.close();
             }
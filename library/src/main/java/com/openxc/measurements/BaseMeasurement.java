@@ -5,7 +5,9 @@ import com.google.common.base.Objects;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
 import android.util.Log;
@@ -15,7 +17,6 @@ import com.google.common.collect.HashBiMap;
 import com.openxc.NoValueException;
 import com.openxc.messages.EventedSimpleVehicleMessage;
 import com.openxc.messages.MessageKey;
-import com.openxc.messages.NamedVehicleMessage;
 import com.openxc.messages.SimpleVehicleMessage;
 import com.openxc.units.Unit;
 import com.openxc.util.AgingData;
@@ -49,30 +50,176 @@ public abstract class BaseMeasurement<TheUnit extends Unit>
     private static BiMap<String, Class<? extends Measurement>>
             sMeasurementIdToClass;
 
+    // Constructors for the built-in measurements, so converting an incoming
+    // message doesn't need reflection. Measurement types from outside of the
+    // library fall back to finding their constructor reflectively.
+    private static Map<Class<? extends Measurement>, MeasurementFactory>
+            sMeasurementFactories = new HashMap<>();
+
     static {
         sMeasurementIdToClass = HashBiMap.create();
-        try {
-            cacheMeasurementId(AcceleratorPedalPosition.class);
-            cacheMeasurementId(BrakePedalStatus.class);
-            cacheMeasurementId(EngineSpeed.class);
-            cacheMeasurementId(FuelConsumed.class);
-            cacheMeasurementId(FuelLevel.class);
-            cacheMeasurementId(HeadlampStatus.class);
-            cacheMeasurementId(HighBeamStatus.class);
-            cacheMeasurementId(IgnitionStatus.class);
-            cacheMeasurementId(Latitude.class);
-            cacheMeasurementId(Longitude.class);
-            cacheMeasurementId(Odometer.class);
-            cacheMeasurementId(ParkingBrakeStatus.class);
-            cacheMeasurementId(SteeringWheelAngle.class);
-            cacheMeasurementId(TorqueAtTransmission.class);
-            cacheMeasurementId(TransmissionGearPosition.class);
-            cacheMeasurementId(TurnSignalStatus.class);
-            cacheMeasurementId(VehicleButtonEvent.class);
-            cacheMeasurementId(VehicleDoorStatus.class);
-            cacheMeasurementId(VehicleSpeed.class);
-            cacheMeasurementId(WindshieldWiperStatus.class);
-        } catch(UnrecognizedMeasurementTypeException e) { }
+        registerMeasurement(AcceleratorPedalPosition.ID,
+                AcceleratorPedalPosition.class, new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new AcceleratorPedalPosition((Number) value);
+            }
+        });
+        registerMeasurement(BrakePedalStatus.ID, BrakePedalStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new BrakePedalStatus((Boolean) value);
+            }
+        });
+        registerMeasurement(EngineSpeed.ID, EngineSpeed.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new EngineSpeed((Number) value);
+            }
+        });
+        registerMeasurement(FuelConsumed.ID, FuelConsumed.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new FuelConsumed((Number) value);
+            }
+        });
+        registerMeasurement(FuelLevel.ID, FuelLevel.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new FuelLevel((Number) value);
+            }
+        });
+        registerMeasurement(HeadlampStatus.ID, HeadlampStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new HeadlampStatus((Boolean) value);
+            }
+        });
+        registerMeasurement(HighBeamStatus.ID, HighBeamStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new HighBeamStatus((Boolean) value);
+            }
+        });
+        registerMeasurement(IgnitionStatus.ID, IgnitionStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new IgnitionStatus((String) value);
+            }
+        });
+        registerMeasurement(Latitude.ID, Latitude.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new Latitude((Number) value);
+            }
+        });
+        registerMeasurement(Longitude.ID, Longitude.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new Longitude((Number) value);
+            }
+        });
+        registerMeasurement(Odometer.ID, Odometer.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new Odometer((Number) value);
+            }
+        });
+        registerMeasurement(ParkingBrakeStatus.ID, ParkingBrakeStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new ParkingBrakeStatus((Boolean) value);
+            }
+        });
+        registerMeasurement(SteeringWheelAngle.ID, SteeringWheelAngle.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new SteeringWheelAngle((Number) value);
+            }
+        });
+        registerMeasurement(TorqueAtTransmission.ID, TorqueAtTransmission.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new TorqueAtTransmission((Number) value);
+            }
+        });
+        registerMeasurement(TransmissionGearPosition.ID,
+                TransmissionGearPosition.class, new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new TransmissionGearPosition((String) value);
+            }
+        });
+        registerMeasurement(TurnSignalStatus.ID, TurnSignalStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new TurnSignalStatus((String) value);
+            }
+        });
+        registerMeasurement(VehicleButtonEvent.ID, VehicleButtonEvent.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value, Object event) {
+                return new VehicleButtonEvent((String) value, (String) event);
+            }
+        });
+        registerMeasurement(VehicleDoorStatus.ID, VehicleDoorStatus.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value, Object event) {
+                return new VehicleDoorStatus((String) value, (Boolean) event);
+            }
+        });
+        registerMeasurement(VehicleSpeed.ID, VehicleSpeed.class,
+                new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new VehicleSpeed((Number) value);
+            }
+        });
+        registerMeasurement(WindshieldWiperStatus.ID,
+                WindshieldWiperStatus.class, new MeasurementFactory() {
+            @Override
+            Measurement create(Object value) {
+                return new WindshieldWiperStatus((Boolean) value);
+            }
+        });
+    }
+
+    /**
+     * Builds a measurement from the value, and event if it has one, of a
+     * message. The methods return null if the measurement doesn't have a
+     * matching constructor.
+     */
+    private abstract static class MeasurementFactory {
+        Measurement create(Object value) {
+            return null;
+        }
+
+        Measurement create(Object value, Object event) {
+            return null;
+        }
+    }
+
+    private static void registerMeasurement(String measurementId,
+            Class<? extends Measurement> measurementType,
+            MeasurementFactory factory) {
+        sMeasurementIdToClass.put(measurementId, measurementType);
+        sMeasurementFactories.put(measurementType, factory);
     }
 
     public abstract String getGenericName();
@@ -189,8 +336,28 @@ public abstract class BaseMeasurement<TheUnit extends Unit>
         if(!sMeasurementIdToClass.inverse().containsKey(measurementType)) {
             cacheMeasurementId(measurementType);
         }
-        return new NamedVehicleMessage(
-                sMeasurementIdToClass.inverse().get(measurementType)).getKey();
+        return MessageKey.forName(
+                sMeasurementIdToClass.inverse().get(measurementType));
+    }
+
+    /**
+     * Look up the measurement type for an ID without throwing an exception
+     * when it isn't recognized, for callers checking every incoming message.
+     *
+     * @return the measurement class, or null if no measurement with this ID
+     *      has been cached.
+     */
+    public static Class<? extends Measurement> findClassForId(
+            String measurementId) {
+        return sMeasurementIdToClass.get(measurementId);
+    }
+
+    /**
+     * @return the IDs of all measurement types known so far, including the
+     *      built-in ones.
+     */
+    public static Set<String> getMeasurementIds() {
+        return new HashSet<>(sMeasurementIdToClass.keySet());
     }
 
     public static Class<? extends Measurement>
@@ -219,11 +386,55 @@ public abstract class BaseMeasurement<TheUnit extends Unit>
             Class<? extends Measurement> measurementType,
             SimpleVehicleMessage message)
                 throws UnrecognizedMeasurementTypeException, NoValueException {
-        Constructor<? extends Measurement> constructor;
         if(message == null) {
             throw new NoValueException();
         }
 
+        MeasurementFactory factory = sMeasurementFactories.get(
+                measurementType);
+        if(factory == null) {
+            return reflectMeasurement(measurementType, message);
+        }
+
+        Measurement measurement;
+        try {
+            if(message instanceof EventedSimpleVehicleMessage) {
+                measurement = factory.create(message.getValue(),
+                        message.asEventedMessage().getEvent());
+            } else {
+                measurement = factory.create(message.getValue());
+            }
+        } catch(ClassCastException e) {
+            throw new UnrecognizedMeasurementTypeException(
+                    measurementType + " has unexpected arguments", e);
+        } catch(RuntimeException e) {
+            throw new UnrecognizedMeasurementTypeException(
+                    measurementType + "'s constructor threw an exception",
+                    e);
+        }
+
+        if(measurement == null) {
+            throw new UnrecognizedMeasurementTypeException(
+                    measurementType +
+                    " doesn't have the expected constructor for " + message);
+        }
+
+        if (message.getTimestamp() != null) {
+            measurement.setTimestamp(message.getTimestamp());
+        }
+        return measurement;
+    }
+
+    /**
+     * Build a measurement by finding a constructor matching the message's
+     * value types, for measurement types without a registered factory.
+     */
+    static Measurement reflectMeasurement(
+            Class<? extends Measurement> measurementType,
+            SimpleVehicleMessage message)
+                throws UnrecognizedMeasurementTypeException {
+        Constructor<? extends Measurement> constructor;
+
         try {
             Measurement measurement;
             SimpleVehicleMessage simpleMessage = message.asSimpleMessage();
@@ -1,7 +1,6 @@
 package com.openxc.messages;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -61,10 +60,7 @@ public class CanMessage extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if(super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(BUS_KEY, getBusId());
-            key.put(ID_KEY, getId());
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forCanMessage(getBusId(), getId()));
         }
         return super.getKey();
     }
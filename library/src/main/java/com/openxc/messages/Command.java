@@ -6,7 +6,6 @@ import com.google.common.base.Objects;
 import com.google.gson.annotations.SerializedName;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -155,9 +154,7 @@ public class Command extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if (super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(COMMAND_KEY, getCommand());
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forCommand(getCommand()));
         }
         return super.getKey();
     }
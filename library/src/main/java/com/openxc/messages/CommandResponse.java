@@ -3,7 +3,6 @@ package com.openxc.messages;
 import com.google.common.base.Objects;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -92,9 +91,7 @@ public class CommandResponse extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if(super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(Command.COMMAND_KEY, getCommand());
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forCommand(getCommand()));
         }
         return super.getKey();
     }
@@ -30,9 +30,7 @@ public class CustomCommand extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if (super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(COMMAND_KEY, commands.get(COMMAND_KEY));
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forCommand(commands.get(COMMAND_KEY)));
         }
         return super.getKey();
     }
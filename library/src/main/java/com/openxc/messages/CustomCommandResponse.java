@@ -7,7 +7,6 @@ import com.google.common.base.Objects;
 import com.google.gson.annotations.SerializedName;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -79,9 +78,7 @@ public class CustomCommandResponse extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if(super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(Command.COMMAND_KEY, getCommand());
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forCommand(getCommand()));
         }
         return super.getKey();
     }
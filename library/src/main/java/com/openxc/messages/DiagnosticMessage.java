@@ -1,7 +1,6 @@
 package com.openxc.messages;
 
 import java.util.Arrays;
-import java.util.HashMap;
 
 import android.os.Parcel;
 
@@ -101,12 +100,8 @@ public abstract class DiagnosticMessage extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if(super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(CanMessage.BUS_KEY, getBusId());
-            key.put(CanMessage.ID_KEY, getId());
-            key.put(MODE_KEY, getMode());
-            key.put(PID_KEY, getPid());
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forDiagnosticMessage(getBusId(), getId(),
+                        getMode(), getPid()));
         }
         return super.getKey();
     }
@@ -73,6 +73,13 @@ public class DiagnosticResponse extends DiagnosticMessage {
         mValue = value;
     }
 
+    /**
+     * Set the success flag as reported by the vehicle interface.
+     */
+    public void setSuccess(boolean success) {
+        mSuccess = success;
+    }
+
     public NegativeResponseCode getNegativeResponseCode() {
         return mNegativeResponseCode;
     }
@@ -1,7 +1,5 @@
 package com.openxc.messages;
 
-import com.google.common.base.Objects;
-
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,17 +9,163 @@ import android.os.Parcelable;
 /**
  * A MessageKey is an identifying key for a VehicleMessage.
  *
- * The key is a simple map of string names to arbitrary objects.
+ * The key is a simple map of string names to arbitrary objects. Two keys are
+ * equal if their maps are equal, and the hash code is calculated once up front
+ * so keys are cheap to use in hash tables.
+ *
+ * The keys for the built-in message types are interned - the static factory
+ * methods (e.g. {@link #forName(String)}) always return the same instance for
+ * the same parts, and don't allocate anything once that key has been seen.
  *
  * This is used to filter incoming messages to send them to the proper
  * listeners.
  */
 public class MessageKey implements Parcelable {
-    private Map<String, Object> mParts = new HashMap<>();
+    private static final MessageKeyRegistry sRegistry =
+            new MessageKeyRegistry();
+
+    private final Map<String, Object> mParts;
+    // Only changed by the deprecated readFromParcel()
     private int mHashCode;
 
     public MessageKey(Map<String, Object> parts) {
-        mParts = parts;
+        // Copy the parts so the key can't change underneath a hash table
+        mParts = new HashMap<>(parts);
+        mHashCode = mParts.hashCode();
+    }
+
+    /**
+     * Return the canonical instance of a key with the same parts.
+     *
+     * @param key the key to look up - if an equal key hasn't been interned yet,
+     *      this instance becomes the canonical one.
+     */
+    public static MessageKey intern(MessageKey key) {
+        return sRegistry.intern(key);
+    }
+
+    /**
+     * @return the canonical key for a NamedVehicleMessage with this name.
+     */
+    public static MessageKey forName(String name) {
+        int hash = partHash(NamedVehicleMessage.NAME_KEY, name);
+        for(MessageKeyRegistry.Entry entry = sRegistry.first(hash);
+                entry != null; entry = entry.next) {
+            MessageKey key = entry.key;
+            if(key.mHashCode == hash && key.mParts.size() == 1 &&
+                    key.partEquals(NamedVehicleMessage.NAME_KEY, name)) {
+                return key;
+            }
+        }
+
+        HashMap<String, Object> parts = new HashMap<>();
+        parts.put(NamedVehicleMessage.NAME_KEY, name);
+        return intern(new MessageKey(parts));
+    }
+
+    /**
+     * @return the canonical key for a CanMessage with this bus and message ID.
+     */
+    public static MessageKey forCanMessage(int busId, int id) {
+        int hash = partHash(CanMessage.BUS_KEY, busId) +
+                partHash(CanMessage.ID_KEY, id);
+        for(MessageKeyRegistry.Entry entry = sRegistry.first(hash);
+                entry != null; entry = entry.next) {
+            MessageKey key = entry.key;
+            if(key.mHashCode == hash && key.mParts.size() == 2 &&
+                    key.partEquals(CanMessage.BUS_KEY, busId) &&
+                    key.partEquals(CanMessage.ID_KEY, id)) {
+                return key;
+            }
+        }
+
+        HashMap<String, Object> parts = new HashMap<>();
+        parts.put(CanMessage.BUS_KEY, busId);
+        parts.put(CanMessage.ID_KEY, id);
+        return intern(new MessageKey(parts));
+    }
+
+    /**
+     * @return the canonical key for a diagnostic request or response.
+     */
+    public static MessageKey forDiagnosticMessage(int busId, int id, int mode,
+            Integer pid) {
+        int hash = partHash(DiagnosticMessage.BUS_KEY, busId) +
+                partHash(DiagnosticMessage.ID_KEY, id) +
+                partHash(DiagnosticMessage.MODE_KEY, mode) +
+                partHash(DiagnosticMessage.PID_KEY, pid);
+        for(MessageKeyRegistry.Entry entry = sRegistry.first(hash);
+                entry != null; entry = entry.next) {
+            MessageKey key = entry.key;
+            if(key.mHashCode == hash && key.mParts.size() == 4 &&
+                    key.partEquals(DiagnosticMessage.BUS_KEY, busId) &&
+                    key.partEquals(DiagnosticMessage.ID_KEY, id) &&
+                    key.partEquals(DiagnosticMessage.MODE_KEY, mode) &&
+                    key.partEquals(DiagnosticMessage.PID_KEY, pid)) {
+                return key;
+            }
+        }
+
+        HashMap<String, Object> parts = new HashMap<>();
+        parts.put(DiagnosticMessage.BUS_KEY, busId);
+        parts.put(DiagnosticMessage.ID_KEY, id);
+        parts.put(DiagnosticMessage.MODE_KEY, mode);
+        parts.put(DiagnosticMessage.PID_KEY, pid);
+        return intern(new MessageKey(parts));
+    }
+
+    /**
+     * @return the canonical key for a command, or the response to a command.
+     *      The command may be a CommandType or the name of a custom command.
+     */
+    public static MessageKey forCommand(Object command) {
+        int hash = partHash(Command.COMMAND_KEY, command);
+        for(MessageKeyRegistry.Entry entry = sRegistry.first(hash);
+                entry != null; entry = entry.next) {
+            MessageKey key = entry.key;
+            if(key.mHashCode == hash && key.mParts.size() == 1 &&
+                    key.partEquals(Command.COMMAND_KEY, command)) {
+                return key;
+            }
+        }
+
+        HashMap<String, Object> parts = new HashMap<>();
+        parts.put(Command.COMMAND_KEY, command);
+        return intern(new MessageKey(parts));
+    }
+
+    /**
+     * The contribution of a single part to the key's hash code, matching
+     * {@link Map.Entry#hashCode()}.
+     */
+    private static int partHash(String name, Object value) {
+        return name.hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    private static int partHash(String name, int value) {
+        // Integer.hashCode() is the value itself
+        return name.hashCode() ^ value;
+    }
+
+    private boolean partEquals(String name, Object value) {
+        Object part = mParts.get(name);
+        if(part == null) {
+            return value == null && mParts.containsKey(name);
+        }
+        return part.equals(value);
+    }
+
+    private boolean partEquals(String name, int value) {
+        Object part = mParts.get(name);
+        return part instanceof Integer && ((Integer) part) == value;
+    }
+
+    /**
+     * @return the value of one part of the key, or null if the key doesn't
+     *      have that part.
+     */
+    public Object get(String part) {
+        return mParts.get(part);
     }
 
     @Override
@@ -31,30 +175,49 @@ public class MessageKey implements Parcelable {
 
     @Override
     public boolean equals(Object obj) {
-        if(obj == null) {
+        if(obj == this) {
+            return true;
+        }
+
+        if(obj == null || getClass() != obj.getClass()) {
             return false;
         }
 
-        // Take advantage of the fact that we likely already calculated and
-        // cached the hash code and use that for the equality comparison.
-        return hashCode() == obj.hashCode();
+        final MessageKey other = (MessageKey) obj;
+        return mHashCode == other.mHashCode && mParts.equals(other.mParts);
     }
 
     @Override
     public int hashCode() {
-        if(mHashCode == 0) {
-            mHashCode = Objects.hashCode(mParts);
-        }
         return mHashCode;
     }
 
+    @Override
+    public String toString() {
+        return mParts.toString();
+    }
+
     @Override
     public void writeToParcel(Parcel out, int flags) {
         out.writeMap(mParts);
     }
 
+    /**
+     * Replace the parts of this key with ones read from a parcel.
+     *
+     * @deprecated keys are immutable once built - use {@link #CREATOR}
+     * instead. Changing a key that's already in a hash table, or one returned
+     * by the static factories, breaks every lookup that uses it.
+     */
+    @Deprecated
     protected void readFromParcel(Parcel in) {
+        mParts.clear();
+        readParts(in);
+    }
+
+    private void readParts(Parcel in) {
         in.readMap(mParts, null);
+        mHashCode = mParts.hashCode();
     }
 
     public static final Parcelable.Creator<MessageKey> CREATOR =
@@ -71,6 +234,7 @@ public class MessageKey implements Parcelable {
     };
 
     private MessageKey(Parcel in) {
-        readFromParcel(in);
+        mParts = new HashMap<>();
+        readParts(in);
     }
 }
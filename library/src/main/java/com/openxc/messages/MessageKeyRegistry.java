@@ -0,0 +1,74 @@
+package com.openxc.messages;
+
+/**
+ * A hash table of canonical MessageKey instances.
+ *
+ * Lookups walk the buckets without taking a lock, so the MessageKey factory
+ * methods can compare a key's parts against the candidates in place instead of
+ * building a throwaway key first. Entries are immutable and only ever added, so
+ * a reader that races with an insert at worst misses the new key and falls
+ * back to {@link #intern(MessageKey)}, which re-checks under the lock.
+ */
+class MessageKeyRegistry {
+    private static final int INITIAL_CAPACITY = 256;
+
+    static class Entry {
+        final MessageKey key;
+        final Entry next;
+
+        Entry(MessageKey key, Entry next) {
+            this.key = key;
+            this.next = next;
+        }
+    }
+
+    private volatile Entry[] mTable = new Entry[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * @return the first entry in the bucket for this hash code, or null if the
+     *      bucket is empty.
+     */
+    Entry first(int hash) {
+        Entry[] table = mTable;
+        return table[bucket(hash, table.length)];
+    }
+
+    synchronized MessageKey intern(MessageKey key) {
+        int hash = key.hashCode();
+        Entry[] table = mTable;
+        for(Entry entry = table[bucket(hash, table.length)]; entry != null;
+                entry = entry.next) {
+            if(entry.key.equals(key)) {
+                return entry.key;
+            }
+        }
+
+        if(mSize + 1 > table.length * 3 / 4) {
+            table = resize(table);
+        }
+        int index = bucket(hash, table.length);
+        table[index] = new Entry(key, table[index]);
+        mSize++;
+        // Re-publish the table so readers see the new entry
+        mTable = table;
+        return key;
+    }
+
+    private static Entry[] resize(Entry[] table) {
+        Entry[] resized = new Entry[table.length * 2];
+        for(Entry head : table) {
+            for(Entry entry = head; entry != null; entry = entry.next) {
+                int index = bucket(entry.key.hashCode(), resized.length);
+                resized[index] = new Entry(entry.key, resized[index]);
+            }
+        }
+        return resized;
+    }
+
+    private static int bucket(int hash, int length) {
+        // Spread the high bits down, as the parts' hashes are often small ints
+        hash ^= (hash >>> 16);
+        return hash & (length - 1);
+    }
+}
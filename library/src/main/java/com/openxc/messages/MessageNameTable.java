@@ -0,0 +1,96 @@
+package com.openxc.messages;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An append-only table of message names, so a name both ends of a connection
+ * already know can be sent as a small integer ID instead of a string.
+ *
+ * Names are never removed or renumbered, so an ID handed out by an older copy
+ * of a table means the same thing in any newer copy.
+ */
+public class MessageNameTable {
+    public static final int NO_ID = -1;
+
+    private static final AtomicInteger sNextToken = new AtomicInteger(1);
+
+    private final int mToken;
+    private final List<String> mNames = new ArrayList<>();
+    private final Map<String, Integer> mIds = new HashMap<>();
+
+    /**
+     * Create an empty table with a token unique in this process.
+     */
+    public MessageNameTable() {
+        mToken = sNextToken.getAndIncrement();
+    }
+
+    /**
+     * Create a copy of another process' table.
+     *
+     * @param token the token of the original table.
+     * @param names the names in the original table, in ID order.
+     */
+    public MessageNameTable(int token, List<String> names) {
+        mToken = token;
+        addAll(names);
+    }
+
+    /**
+     * @return the token identifying this table (and copies of it).
+     */
+    public int getToken() {
+        return mToken;
+    }
+
+    /**
+     * Add the names to the end of the table, skipping any already in it.
+     *
+     * @return true if any names were added.
+     */
+    public synchronized boolean addAll(Collection<String> names) {
+        boolean added = false;
+        for(String name : names) {
+            if(name != null && !mIds.containsKey(name)) {
+                mIds.put(name, mNames.size());
+                mNames.add(name);
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the ID of the name, or {@link #NO_ID} if it's not in the table.
+     */
+    public synchronized int getId(String name) {
+        Integer id = mIds.get(name);
+        return id != null ? id : NO_ID;
+    }
+
+    /**
+     * @return the name with this ID, or null if the ID isn't in the table.
+     */
+    public synchronized String getName(int id) {
+        if(id < 0 || id >= mNames.size()) {
+            return null;
+        }
+        return mNames.get(id);
+    }
+
+    /**
+     * @return a copy of the names in the table, in ID order.
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(mNames);
+    }
+
+    public synchronized int size() {
+        return mNames.size();
+    }
+}
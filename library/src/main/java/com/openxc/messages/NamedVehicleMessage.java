@@ -1,7 +1,6 @@
 package com.openxc.messages;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -16,7 +15,7 @@ import com.google.gson.annotations.SerializedName;
  * Named messages are keyed on the name.
  */
 public class NamedVehicleMessage extends KeyedMessage {
-    protected static final String NAME_KEY = "name";
+    public static final String NAME_KEY = "name";
 
     @SerializedName(NAME_KEY)
     private String mName;
@@ -59,9 +58,7 @@ public class NamedVehicleMessage extends KeyedMessage {
     @Override
     public MessageKey getKey() {
         if(super.getKey() == null) {
-            HashMap<String, Object> key = new HashMap<>();
-            key.put(NAME_KEY, getName());
-            setKey(new MessageKey(key));
+            setKey(MessageKey.forName(getName()));
         }
         return super.getKey();
     }
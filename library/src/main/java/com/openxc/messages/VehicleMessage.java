@@ -94,6 +94,22 @@ public class VehicleMessage implements Parcelable, Comparable<VehicleMessage> {
         }
     }
 
+    /**
+     * Override the timestamp of the message with the number of seconds since
+     * the UNIX epoch, as represented in serialized messages.
+     *
+     * Unlike {@link #setTimestamp(Long)}, this keeps any sub-millisecond
+     * precision of the original so it isn't lost if the message is serialized
+     * again.
+     *
+     * @param timestampSeconds the timestamp to set for this message.
+     */
+    public void setTimestampSeconds(Double timestampSeconds) {
+        if(timestampSeconds != null) {
+            mTimestampSeconds = timestampSeconds;
+        }
+    }
+
     /**
      * @return true if the message has a valid timestamp.
      */
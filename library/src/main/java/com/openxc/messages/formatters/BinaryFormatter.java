@@ -28,6 +28,23 @@ public class BinaryFormatter {
         return BinaryDeserializer.deserialize(data);
     }
 
+    /**
+     * Deserialize a single vehicle message from a region of a byte array.
+     *
+     * @param data The array containing exactly one protobuf-encoded vehicle
+     *  message (without a length delimiter) between offset and offset +
+     *  length.
+     * @param offset The index of the first byte of the message.
+     * @param length The number of bytes in the message.
+     * @throws UnrecognizedMessageTypeException if a message could not be
+     *  deserialized.
+     * @return the deserialized VehicleMessage
+     */
+    public static VehicleMessage deserialize(byte[] data, int offset,
+            int length) throws UnrecognizedMessageTypeException {
+        return BinaryDeserializer.deserialize(data, offset, length);
+    }
+
     /**
      * Serialize a VehicleMessage into a byte array.
      *
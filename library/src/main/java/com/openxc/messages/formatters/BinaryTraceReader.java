@@ -0,0 +1,232 @@
+package com.openxc.messages.formatters;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+import com.openxc.messages.UnrecognizedMessageTypeException;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryTraceWriter.BlockIndexEntry;
+
+/**
+ * Read vehicle messages back from a binary trace written by a
+ * {@link BinaryTraceWriter}.
+ *
+ * Blocks are decompressed one at a time into a reused buffer, and messages are
+ * parsed out of it as they're requested. A trace that ends part way through a
+ * block (e.g. because the recorder was killed) is read up to the last complete
+ * block.
+ */
+public class BinaryTraceReader implements Closeable {
+    private final static String TAG = "BinaryTraceReader";
+
+    private final DataInputStream mInput;
+    private final short mCodec;
+    private final Inflater mInflater;
+    private byte[] mCompressed = new byte[0];
+    private byte[] mBlock = new byte[0];
+    private int mBlockLength;
+    private int mPosition;
+    private boolean mFinished;
+    private int mSkippedMessages;
+
+    /**
+     * @throws IOException if the stream doesn't start with a binary trace
+     *      header this reader understands.
+     */
+    public BinaryTraceReader(InputStream input) throws IOException {
+        mInput = new DataInputStream(input);
+        try {
+            if(mInput.readInt() != BinaryTraceWriter.MAGIC) {
+                throw new IOException("Not a binary trace");
+            }
+            short version = mInput.readShort();
+            if(version != BinaryTraceWriter.VERSION) {
+                throw new IOException("Unsupported binary trace version " +
+                        version);
+            }
+            mCodec = mInput.readShort();
+        } catch(EOFException e) {
+            throw new IOException("Binary trace is missing its header", e);
+        }
+
+        if(mCodec == BinaryTraceWriter.CODEC_DEFLATE) {
+            mInflater = new Inflater();
+        } else if(mCodec == BinaryTraceWriter.CODEC_NONE) {
+            mInflater = null;
+        } else {
+            throw new IOException("Unknown binary trace codec " + mCodec);
+        }
+    }
+
+    /**
+     * @return the next message in the trace, or null if there are no more.
+     * @throws IOException if the trace couldn't be read or a block is corrupt.
+     */
+    public VehicleMessage read() throws IOException {
+        while(!mFinished) {
+            if(mPosition >= mBlockLength && !readBlock()) {
+                mFinished = true;
+                break;
+            }
+
+            int size = readFrameSize();
+            int start = mPosition;
+            mPosition += size;
+            if(size < 0 || mPosition > mBlockLength) {
+                throw new IOException("Corrupt frame in binary trace block");
+            }
+
+            try {
+                return BinaryFormatter.deserialize(mBlock, start, size);
+            } catch(UnrecognizedMessageTypeException e) {
+                mSkippedMessages++;
+                Log.w(TAG, "Skipping unrecognized message in trace", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of messages that couldn't be deserialized and were
+     *      skipped.
+     */
+    public int getSkippedMessageCount() {
+        return mSkippedMessages;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFinished = true;
+        if(mInflater != null) {
+            mInflater.end();
+        }
+        mInput.close();
+    }
+
+    /**
+     * Read the block index from the end of a closed binary trace.
+     *
+     * @return the index entries, in file order, or null if the trace has no
+     *      index because it wasn't closed cleanly.
+     * @throws IOException if the file couldn't be read.
+     */
+    public static List<BlockIndexEntry> readIndex(RandomAccessFile file)
+            throws IOException {
+        long length = file.length();
+        if(length < BinaryTraceWriter.HEADER_SIZE +
+                BinaryTraceWriter.FOOTER_SIZE) {
+            return null;
+        }
+
+        file.seek(length - BinaryTraceWriter.FOOTER_SIZE);
+        long indexOffset = file.readLong();
+        if(file.readInt() != BinaryTraceWriter.END_MARKER ||
+                indexOffset < BinaryTraceWriter.HEADER_SIZE ||
+                indexOffset >= length) {
+            return null;
+        }
+
+        file.seek(indexOffset);
+        if(file.readInt() != BinaryTraceWriter.INDEX_MARKER) {
+            return null;
+        }
+        int count = file.readInt();
+        List<BlockIndexEntry> index = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            index.add(new BlockIndexEntry(file.readLong(), file.readInt(),
+                        file.readLong(), file.readLong()));
+        }
+        return index;
+    }
+
+    private boolean readBlock() throws IOException {
+        try {
+            // Skip over any blocks that somehow have no messages
+            do {
+                if(mInput.readInt() != BinaryTraceWriter.BLOCK_MARKER) {
+                    // The index, or garbage - either way there are no more
+                    // blocks
+                    return false;
+                }
+                mInput.readInt();
+                mInput.readLong();
+                mInput.readLong();
+                int uncompressedLength = mInput.readInt();
+                int compressedLength = mInput.readInt();
+                if(uncompressedLength < 0 || compressedLength < 0) {
+                    throw new IOException("Corrupt binary trace block header");
+                }
+
+                if(mBlock.length < uncompressedLength) {
+                    mBlock = new byte[uncompressedLength];
+                }
+                if(mInflater == null) {
+                    mInput.readFully(mBlock, 0, uncompressedLength);
+                } else {
+                    if(mCompressed.length < compressedLength) {
+                        mCompressed = new byte[compressedLength];
+                    }
+                    mInput.readFully(mCompressed, 0, compressedLength);
+                    inflate(compressedLength, uncompressedLength);
+                }
+                mBlockLength = uncompressedLength;
+                mPosition = 0;
+            } while(mBlockLength == 0);
+        } catch(EOFException e) {
+            Log.i(TAG, "Binary trace ended without an index, stopping at " +
+                    "the last complete block");
+            return false;
+        }
+        return true;
+    }
+
+    private void inflate(int compressedLength, int uncompressedLength)
+            throws IOException {
+        mInflater.reset();
+        mInflater.setInput(mCompressed, 0, compressedLength);
+        try {
+            int total = 0;
+            while(total < uncompressedLength && !mInflater.finished()) {
+                int inflated = mInflater.inflate(mBlock, total,
+                        uncompressedLength - total);
+                if(inflated == 0 && mInflater.needsInput()) {
+                    break;
+                }
+                total += inflated;
+            }
+            if(total != uncompressedLength) {
+                throw new IOException("Binary trace block is shorter than " +
+                        "its header says");
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt compressed block in binary trace",
+                    e);
+        }
+    }
+
+    private int readFrameSize() throws IOException {
+        int result = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            if(mPosition >= mBlockLength) {
+                throw new IOException("Truncated frame length in binary " +
+                        "trace block");
+            }
+            byte b = mBlock[mPosition++];
+            result |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed frame length in binary trace block");
+    }
+}
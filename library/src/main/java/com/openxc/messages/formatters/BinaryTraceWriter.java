@@ -0,0 +1,309 @@
+package com.openxc.messages.formatters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import com.openxc.messages.SerializationException;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Write vehicle messages to a block-compressed binary trace.
+ *
+ * Each message is converted with {@link BinaryFormatter#preSerialize} and
+ * written as a length-delimited protobuf frame, the same framing used on the
+ * wire by the BinaryStreamer. Frames are collected into blocks of roughly
+ * {@link #DEFAULT_BLOCK_SIZE} bytes and each block is deflated on its own, so
+ * a trace can be read or seeked one block at a time.
+ *
+ * The layout of a trace, with all integers big-endian:
+ *
+ * <pre>
+ * header: MAGIC (int), VERSION (short), codec (short)
+ * block:  BLOCK_MARKER (int), message count (int), first timestamp (long),
+ *         last timestamp (long), uncompressed length (int),
+ *         compressed length (int), compressed frames
+ * ...
+ * index:  INDEX_MARKER (int), block count (int), and for each block its
+ *         offset (long), message count (int), first and last timestamp (long)
+ * footer: index offset (long), END_MARKER (int)
+ * </pre>
+ *
+ * Timestamps are -1 if no message in the block had one. The index and footer
+ * are only written by {@link #close()} - a reader can still read every
+ * complete block from a trace that was never closed.
+ */
+public class BinaryTraceWriter implements Closeable, Flushable {
+    public static final int MAGIC = 0x4f584342; // "OXCB"
+    public static final int BLOCK_MARKER = 0x424c4b31; // "BLK1"
+    public static final int INDEX_MARKER = 0x49445831; // "IDX1"
+    public static final int END_MARKER = 0x454e4431; // "END1"
+    public static final short VERSION = 1;
+    public static final short CODEC_NONE = 0;
+    public static final short CODEC_DEFLATE = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int BLOCK_HEADER_SIZE = 32;
+    public static final int FOOTER_SIZE = 12;
+    public static final long NO_TIMESTAMP = -1;
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final DataOutputStream mOutput;
+    private final int mBlockSize;
+    private final short mCodec;
+    private final BlockBuffer mBlock;
+    private final Deflater mDeflater;
+    private final List<BlockIndexEntry> mIndex = new ArrayList<>();
+    private byte[] mCompressed = new byte[0];
+    private long mOffset;
+    private int mBlockMessageCount;
+    private long mBlockFirstTimestamp;
+    private long mBlockLastTimestamp;
+    private long mMessageCount;
+    private boolean mClosed;
+
+    public BinaryTraceWriter(OutputStream output) throws IOException {
+        this(output, DEFAULT_BLOCK_SIZE, CODEC_DEFLATE);
+    }
+
+    /**
+     * @param output the stream to write the trace to.
+     * @param blockSize the number of uncompressed bytes to collect before
+     *      compressing and writing a block.
+     * @param codec {@link #CODEC_DEFLATE} or {@link #CODEC_NONE}.
+     */
+    public BinaryTraceWriter(OutputStream output, int blockSize, short codec)
+            throws IOException {
+        if(blockSize < 1) {
+            throw new IllegalArgumentException(
+                    "Block size must be at least 1 byte");
+        }
+        if(codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+            throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+
+        mOutput = new DataOutputStream(output);
+        mBlockSize = blockSize;
+        mCodec = codec;
+        mBlock = new BlockBuffer(blockSize);
+        mDeflater = codec == CODEC_DEFLATE ?
+                new Deflater(Deflater.BEST_SPEED) : null;
+        resetBlock();
+
+        mOutput.writeInt(MAGIC);
+        mOutput.writeShort(VERSION);
+        mOutput.writeShort(mCodec);
+        mOffset = HEADER_SIZE;
+    }
+
+    /**
+     * Add a message to the current block, writing the block out if it's full.
+     *
+     * @throws SerializationException if the message can't be converted to
+     *      protobuf, e.g. because it has extras. Nothing is written for it.
+     * @throws IOException if the underlying stream couldn't be written.
+     */
+    public void write(VehicleMessage message)
+            throws SerializationException, IOException {
+        if(mClosed) {
+            throw new IOException("Trace writer is closed");
+        }
+
+        BinaryFormatter.preSerialize(message).writeDelimitedTo(mBlock);
+        Long timestamp = message.getTimestamp();
+        if(timestamp != null) {
+            if(mBlockFirstTimestamp == NO_TIMESTAMP) {
+                mBlockFirstTimestamp = timestamp;
+            }
+            mBlockLastTimestamp = timestamp;
+        }
+        mBlockMessageCount++;
+        mMessageCount++;
+
+        if(mBlock.size() >= mBlockSize) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Write out the current, possibly partial, block and flush the underlying
+     * stream.
+     *
+     * Each flush ends a block, so flushing very often gives up some of the
+     * compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        if(!mClosed) {
+            writeBlock();
+            mOutput.flush();
+        }
+    }
+
+    /**
+     * Write out the current block and the index, and close the underlying
+     * stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if(mClosed) {
+            return;
+        }
+
+        try {
+            writeBlock();
+            long indexOffset = mOffset;
+            mOutput.writeInt(INDEX_MARKER);
+            mOutput.writeInt(mIndex.size());
+            for(BlockIndexEntry entry : mIndex) {
+                mOutput.writeLong(entry.getOffset());
+                mOutput.writeInt(entry.getMessageCount());
+                mOutput.writeLong(entry.getFirstTimestamp());
+                mOutput.writeLong(entry.getLastTimestamp());
+            }
+            mOutput.writeLong(indexOffset);
+            mOutput.writeInt(END_MARKER);
+            mOutput.flush();
+        } finally {
+            mClosed = true;
+            if(mDeflater != null) {
+                mDeflater.end();
+            }
+            mOutput.close();
+        }
+    }
+
+    /**
+     * @return the number of messages written so far.
+     */
+    public long getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * @return the number of bytes written to the underlying stream so far,
+     *      not counting the current block.
+     */
+    public long getBytesWritten() {
+        return mOffset;
+    }
+
+    /**
+     * @return the index entries of the blocks written so far.
+     */
+    public List<BlockIndexEntry> getIndex() {
+        return new ArrayList<>(mIndex);
+    }
+
+    private void writeBlock() throws IOException {
+        if(mBlockMessageCount == 0) {
+            return;
+        }
+
+        byte[] payload = mBlock.getBuffer();
+        int length = mBlock.size();
+        if(mDeflater != null) {
+            length = deflate(payload, length);
+            payload = mCompressed;
+        }
+
+        mIndex.add(new BlockIndexEntry(mOffset, mBlockMessageCount,
+                    mBlockFirstTimestamp, mBlockLastTimestamp));
+        mOutput.writeInt(BLOCK_MARKER);
+        mOutput.writeInt(mBlockMessageCount);
+        mOutput.writeLong(mBlockFirstTimestamp);
+        mOutput.writeLong(mBlockLastTimestamp);
+        mOutput.writeInt(mBlock.size());
+        mOutput.writeInt(length);
+        mOutput.write(payload, 0, length);
+        mOffset += BLOCK_HEADER_SIZE + length;
+        resetBlock();
+    }
+
+    private int deflate(byte[] input, int length) {
+        mDeflater.reset();
+        mDeflater.setInput(input, 0, length);
+        mDeflater.finish();
+        // Incompressible input can grow slightly
+        int bound = length + (length >> 8) + 64;
+        if(mCompressed.length < bound) {
+            mCompressed = new byte[bound];
+        }
+
+        int total = 0;
+        while(!mDeflater.finished()) {
+            if(total == mCompressed.length) {
+                byte[] larger = new byte[mCompressed.length * 2];
+                System.arraycopy(mCompressed, 0, larger, 0, total);
+                mCompressed = larger;
+            }
+            total += mDeflater.deflate(mCompressed, total,
+                    mCompressed.length - total);
+        }
+        return total;
+    }
+
+    private void resetBlock() {
+        mBlock.reset();
+        mBlockMessageCount = 0;
+        mBlockFirstTimestamp = NO_TIMESTAMP;
+        mBlockLastTimestamp = NO_TIMESTAMP;
+    }
+
+    /**
+     * The location and contents of one block in a binary trace.
+     */
+    public static class BlockIndexEntry {
+        private final long mOffset;
+        private final int mMessageCount;
+        private final long mFirstTimestamp;
+        private final long mLastTimestamp;
+
+        public BlockIndexEntry(long offset, int messageCount,
+                long firstTimestamp, long lastTimestamp) {
+            mOffset = offset;
+            mMessageCount = messageCount;
+            mFirstTimestamp = firstTimestamp;
+            mLastTimestamp = lastTimestamp;
+        }
+
+        /**
+         * @return the offset of the block's marker from the start of the file.
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public int getMessageCount() {
+            return mMessageCount;
+        }
+
+        public long getFirstTimestamp() {
+            return mFirstTimestamp;
+        }
+
+        public long getLastTimestamp() {
+            return mLastTimestamp;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that exposes its buffer, so a block can be
+     * compressed without copying it first.
+     */
+    private static class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -3,12 +3,15 @@ package com.openxc.messages.formatters;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.openxc.messages.CanMessage;
 import com.openxc.messages.Command;
 import com.openxc.messages.CommandResponse;
@@ -21,6 +24,9 @@ import com.openxc.messages.SimpleVehicleMessage;
 import com.openxc.messages.UnrecognizedMessageTypeException;
 import com.openxc.messages.VehicleMessage;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.util.Collection;
@@ -75,6 +81,9 @@ public class JsonFormatter {
     /**
      * Deserialize a single vehicle messages from the string.
      *
+     * Common message types are read in a single streaming pass, and anything
+     * else falls back to parsing the full JSON tree.
+     *
      * @param data a String containing the JSON serialized vehicle message.
      * @throws UnrecognizedMessageTypeException if no message could be
      *  deserialized.
@@ -82,6 +91,70 @@ public class JsonFormatter {
      */
     public static VehicleMessage deserialize(String data)
             throws UnrecognizedMessageTypeException {
+        VehicleMessage message = deserializeStreaming(new StringReader(data));
+        if(message == null) {
+            message = deserializeTree(data);
+        }
+        return message;
+    }
+
+    /**
+     * Deserialize a single vehicle message from a character stream.
+     *
+     * This avoids building an intermediate String when the serialized message
+     * is already available in some other buffer, e.g. the bytes received from a
+     * vehicle interface. The single-pass streaming decoder is only used if the
+     * Reader supports mark() and reset(), so it can fall back to parsing the
+     * full JSON tree.
+     *
+     * @param data a Reader containing exactly one JSON serialized vehicle
+     *      message.
+     * @throws UnrecognizedMessageTypeException if no message could be
+     *  deserialized.
+     * @return the deserialized VehicleMessage.
+     */
+    public static VehicleMessage deserialize(Reader data)
+            throws UnrecognizedMessageTypeException {
+        if(data.markSupported()) {
+            try {
+                data.mark(Integer.MAX_VALUE);
+                VehicleMessage message = deserializeStreaming(data);
+                if(message != null) {
+                    return message;
+                }
+                data.reset();
+            } catch(IOException e) {
+                throw new UnrecognizedMessageTypeException(
+                        "Unable to rewind JSON stream: " + e);
+            }
+        }
+        return deserializeTree(data);
+    }
+
+    /**
+     * Attempt to read the message with the StreamingJsonDeserializer.
+     *
+     * @return the message, or null if it must be parsed as a full JSON tree.
+     */
+    private static VehicleMessage deserializeStreaming(Reader data) {
+        JsonReader reader = new JsonReader(data);
+        // Match the leniency of JsonParser
+        reader.setLenient(true);
+        try {
+            VehicleMessage message = StreamingJsonDeserializer.deserialize(
+                    reader);
+            if(message != null && reader.peek() == JsonToken.END_DOCUMENT) {
+                return message;
+            }
+        } catch(IOException | IllegalStateException | NumberFormatException e) {
+            // The tree parser will report a more complete error, if it's
+            // really invalid
+        }
+        return null;
+    }
+
+    static VehicleMessage deserializeTree(String data)
+            throws UnrecognizedMessageTypeException {
         JsonObject root;
         try {
             JsonParser parser = new JsonParser();
@@ -90,7 +163,24 @@ public class JsonFormatter {
             throw new UnrecognizedMessageTypeException(
                     "Unable to parse JSON from \"" + data + "\": " + e);
         }
+        return deserialize(root);
+    }
+
+    private static VehicleMessage deserializeTree(Reader data)
+            throws UnrecognizedMessageTypeException {
+        JsonObject root;
+        try {
+            JsonParser parser = new JsonParser();
+            root = parser.parse(data).getAsJsonObject();
+        } catch(JsonSyntaxException | JsonIOException | IllegalStateException e) {
+            throw new UnrecognizedMessageTypeException(
+                    "Unable to parse JSON: " + e);
+        }
+        return deserialize(root);
+    }
 
+    private static VehicleMessage deserialize(JsonObject root)
+            throws UnrecognizedMessageTypeException {
         Set<String> fields = new HashSet<>();
         for(Map.Entry<String, JsonElement> entry : root.entrySet()) {
             fields.add(entry.getKey());
@@ -126,7 +216,7 @@ public class JsonFormatter {
             }
         }catch (NumberFormatException e){
            throw new UnrecognizedMessageTypeException(
-                    "Unable to parse JSON from \"" + data + "\": " + e);
+                    "Unable to parse JSON from \"" + root + "\": " + e);
         }
         return message;
     }
@@ -0,0 +1,302 @@
+package com.openxc.messages.formatters;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.Command.CommandType;
+import com.openxc.messages.CommandResponse;
+import com.openxc.messages.DiagnosticResponse;
+import com.openxc.messages.DiagnosticResponse.NegativeResponseCode;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.NamedVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * A single-pass deserializer for the common OpenXC JSON message shapes.
+ *
+ * The JsonFormatter's general approach parses each message into a JsonObject
+ * tree, inspects its keys to decide on the message type and then hands the tree
+ * back to Gson for a second, reflective pass. This class instead reads the
+ * fields straight off of a JsonReader and builds the message directly.
+ *
+ * It recognizes the same field combinations, in the same order of precedence,
+ * as the JsonFormatter. Anything it isn't sure it can reproduce exactly
+ * (commands, custom command responses, unexpected value types) is rejected by
+ * returning null, and the caller should fall back to the JsonFormatter.
+ */
+public class StreamingJsonDeserializer {
+    private static final int TIMESTAMP = 1;
+    private static final int EXTRAS = 1 << 1;
+    private static final int NAME = 1 << 2;
+    private static final int VALUE = 1 << 3;
+    private static final int EVENT = 1 << 4;
+    private static final int BUS = 1 << 5;
+    private static final int ID = 1 << 6;
+    private static final int DATA = 1 << 7;
+    private static final int MODE = 1 << 8;
+    private static final int PID = 1 << 9;
+    private static final int PAYLOAD = 1 << 10;
+    private static final int SUCCESS = 1 << 11;
+    private static final int NEGATIVE_RESPONSE_CODE = 1 << 12;
+    private static final int COMMAND_RESPONSE = 1 << 13;
+    private static final int STATUS = 1 << 14;
+    private static final int MESSAGE = 1 << 15;
+
+    private static final int CAN_MESSAGE_FIELDS = BUS | ID | DATA;
+    private static final int DIAGNOSTIC_RESPONSE_FIELDS = BUS | ID | MODE |
+            SUCCESS;
+    private static final int COMMAND_RESPONSE_FIELDS = COMMAND_RESPONSE |
+            STATUS;
+    private static final int EVENTED_MESSAGE_FIELDS = NAME | VALUE | EVENT;
+    private static final int SIMPLE_MESSAGE_FIELDS = NAME | VALUE;
+
+    // The CanMessage constructor always pads its data to this length, so
+    // anything else must go through Gson to come out the same.
+    private static final int CAN_MESSAGE_DATA_LENGTH = 8;
+
+    private static final Gson sGson = new Gson();
+    private static final TypeAdapter<Object> sObjectAdapter =
+            sGson.getAdapter(Object.class);
+    private static final TypeAdapter<Map<String, Object>> sExtrasAdapter =
+            sGson.getAdapter(new TypeToken<Map<String, Object>>() {});
+
+    private static final Map<String, CommandType> sCommandTypes =
+            new HashMap<>();
+    private static final Map<String, NegativeResponseCode>
+            sNegativeResponseCodes = new HashMap<>();
+
+    static {
+        for(CommandType type : CommandType.values()) {
+            sCommandTypes.put(type.toString().toLowerCase(Locale.US), type);
+        }
+        for(NegativeResponseCode code : NegativeResponseCode.values()) {
+            sNegativeResponseCodes.put(code.toString().toLowerCase(Locale.US),
+                    code);
+        }
+    }
+
+    /**
+     * Read a single message from the reader.
+     *
+     * @param reader a reader positioned at the start of a JSON object.
+     * @return the deserialized message, or null if the message isn't one of
+     *      the shapes this deserializer handles.
+     * @throws IOException if the JSON is malformed.
+     * @throws IllegalStateException if a field has an unexpected type.
+     * @throws NumberFormatException if a numeric field isn't a valid number.
+     */
+    public static VehicleMessage deserialize(JsonReader reader)
+            throws IOException {
+        int fields = 0;
+        Double timestamp = null;
+        Map<String, Object> extras = null;
+        String name = null;
+        Object value = null;
+        Object event = null;
+        int bus = 0;
+        int id = 0;
+        int mode = 0;
+        Integer pid = null;
+        byte[] data = null;
+        byte[] payload = null;
+        boolean success = false;
+        NegativeResponseCode negativeResponseCode = null;
+        CommandType command = null;
+        boolean status = false;
+        String message = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+            case "timestamp":
+                fields |= TIMESTAMP;
+                timestamp = readNumber(reader);
+                break;
+            case "extras":
+                fields |= EXTRAS;
+                extras = sExtrasAdapter.read(reader);
+                break;
+            case "name":
+                fields |= NAME;
+                name = readString(reader);
+                break;
+            case "value":
+                fields |= VALUE;
+                value = readValue(reader);
+                break;
+            case "event":
+                fields |= EVENT;
+                event = readValue(reader);
+                break;
+            case "bus":
+                fields |= BUS;
+                bus = reader.nextInt();
+                break;
+            case "id":
+                fields |= ID;
+                id = reader.nextInt();
+                break;
+            case "data":
+                fields |= DATA;
+                data = readBytes(reader);
+                break;
+            case "mode":
+                fields |= MODE;
+                mode = reader.nextInt();
+                break;
+            case "pid":
+                fields |= PID;
+                if(reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    pid = null;
+                } else {
+                    pid = reader.nextInt();
+                }
+                break;
+            case "payload":
+                fields |= PAYLOAD;
+                payload = readBytes(reader);
+                break;
+            case "success":
+                fields |= SUCCESS;
+                success = reader.nextBoolean();
+                break;
+            case "negative_response_code":
+                fields |= NEGATIVE_RESPONSE_CODE;
+                negativeResponseCode = sNegativeResponseCodes.get(
+                        readString(reader));
+                break;
+            case "command_response":
+                fields |= COMMAND_RESPONSE;
+                command = sCommandTypes.get(readString(reader));
+                break;
+            case "status":
+                fields |= STATUS;
+                status = reader.nextBoolean();
+                break;
+            case "message":
+                fields |= MESSAGE;
+                message = readString(reader);
+                break;
+            case "command":
+                // Commands carry nested requests and a number of optional
+                // fields, and are rare enough to leave to the JsonFormatter.
+                return null;
+            default:
+                // Unrecognized fields are ignored, like Gson would
+                reader.skipValue();
+                break;
+            }
+        }
+        reader.endObject();
+
+        if(extras != null && extras.isEmpty()) {
+            // setExtras() drops an empty map, which Gson would keep
+            return null;
+        }
+
+        VehicleMessage result;
+        if(contains(fields, CAN_MESSAGE_FIELDS)) {
+            if(data == null || data.length != CAN_MESSAGE_DATA_LENGTH) {
+                return null;
+            }
+            result = new CanMessage(bus, id, data);
+        } else if(contains(fields, DIAGNOSTIC_RESPONSE_FIELDS)) {
+            if(value != null && !(value instanceof Double)) {
+                return null;
+            }
+            DiagnosticResponse response = new DiagnosticResponse(bus, id, mode);
+            if(pid != null) {
+                response.setPid(pid);
+            }
+            response.setPayload(payload);
+            response.setValue((Double) value);
+            if(contains(fields, NEGATIVE_RESPONSE_CODE)) {
+                response.setNegativeResponseCode(negativeResponseCode);
+            }
+            response.setSuccess(success);
+            result = response;
+        } else if(contains(fields, COMMAND_RESPONSE_FIELDS)) {
+            if(command == null) {
+                // Must be a CustomCommandResponse
+                return null;
+            }
+            result = new CommandResponse(command, status, message);
+        } else if(contains(fields, EVENTED_MESSAGE_FIELDS)) {
+            result = new EventedSimpleVehicleMessage(name, value, event);
+        } else if(contains(fields, SIMPLE_MESSAGE_FIELDS)) {
+            result = new SimpleVehicleMessage(name, value);
+        } else if(contains(fields, NAME)) {
+            result = new NamedVehicleMessage(name);
+        } else if(contains(fields, EXTRAS)) {
+            result = new VehicleMessage();
+        } else {
+            return null;
+        }
+
+        result.setTimestampSeconds(timestamp);
+        result.setExtras(extras);
+        return result;
+    }
+
+    private static boolean contains(int fields, int required) {
+        return (fields & required) == required;
+    }
+
+    private static Double readNumber(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextDouble();
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if(token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        } else if(token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a string but was " +
+                    token);
+        }
+        return reader.nextString();
+    }
+
+    private static byte[] readBytes(JsonReader reader) throws IOException {
+        String hex = readString(reader);
+        if(hex == null) {
+            return null;
+        }
+        return ByteAdapter.hexStringToByteArray(
+                hex.replace("\"", "").replace("0x", ""));
+    }
+
+    /**
+     * Read an untyped value the same way Gson would for an Object field.
+     */
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch(reader.peek()) {
+        case NUMBER:
+            return reader.nextDouble();
+        case STRING:
+            return reader.nextString();
+        case BOOLEAN:
+            return reader.nextBoolean();
+        case NULL:
+            reader.nextNull();
+            return null;
+        default:
+            return sObjectAdapter.read(reader);
+        }
+    }
+}
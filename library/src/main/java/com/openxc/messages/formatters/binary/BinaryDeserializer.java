@@ -5,6 +5,7 @@ import java.io.InputStream;
 
 import android.util.Log;
 
+import com.google.protobuf.CodedInputStream;
 import com.openxc.BinaryMessages;
 import com.openxc.messages.CanMessage;
 import com.openxc.messages.Command;
@@ -37,6 +38,29 @@ public class BinaryDeserializer {
         return result;
     }
 
+    /**
+     * Deserialize a single vehicle message from a region of a byte array.
+     *
+     * The bytes are decoded in place, without copying them into an
+     * intermediate stream, so callers may reuse the array afterwards.
+     */
+    public static VehicleMessage deserialize(byte[] data, int offset,
+            int length) throws UnrecognizedMessageTypeException {
+        VehicleMessage result = null;
+        try {
+            BinaryMessages.VehicleMessage message =
+                BinaryMessages.VehicleMessage.parseFrom(
+                        CodedInputStream.newInstance(data, offset, length));
+
+            if(message != null) {
+                result = deserialize(message);
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to deserialize from binary buffer", e);
+        }
+        return result;
+    }
+
     private static NamedVehicleMessage deserializeNamedMessage(
             BinaryMessages.VehicleMessage binaryMessage) throws UnrecognizedMessageTypeException {
         BinaryMessages.SimpleMessage simpleMessage =
@@ -279,19 +303,25 @@ public class BinaryDeserializer {
     private static VehicleMessage deserialize(
             BinaryMessages.VehicleMessage binaryMessage)
                 throws UnrecognizedMessageTypeException {
+        VehicleMessage message;
         if(binaryMessage.hasSimpleMessage()) {
-            return deserializeNamedMessage(binaryMessage);
+            message = deserializeNamedMessage(binaryMessage);
         } else if(binaryMessage.hasCanMessage()) {
-            return deserializeCanMessage(binaryMessage);
+            message = deserializeCanMessage(binaryMessage);
         } else if(binaryMessage.hasCommandResponse()) {
-            return deserializeCommandResponse(binaryMessage);
+            message = deserializeCommandResponse(binaryMessage);
         } else if(binaryMessage.hasControlCommand()) {
-            return deserializeCommand(binaryMessage);
+            message = deserializeCommand(binaryMessage);
         } else if(binaryMessage.hasDiagnosticResponse()) {
-            return deserializeDiagnosticResponse(binaryMessage);
+            message = deserializeDiagnosticResponse(binaryMessage);
         } else {
             throw new UnrecognizedMessageTypeException(
                     "Binary message type not recognized");
         }
+
+        if(binaryMessage.hasTimestamp()) {
+            message.setTimestamp(binaryMessage.getTimestamp());
+        }
+        return message;
     }
 }
@@ -43,6 +43,10 @@ public class BinarySerializer {
         } else {
             serializeGenericVehicleMessage(builder, message);
         }
+
+        if(message.isTimestamped()) {
+            builder.setTimestamp(message.getTimestamp());
+        }
         return builder.build();
     }
 
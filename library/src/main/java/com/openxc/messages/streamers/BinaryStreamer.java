@@ -80,6 +80,15 @@ public class BinaryStreamer extends VehicleMessageStreamer {
     @Override
     public byte[] serializeForStream(VehicleMessage message)
             throws SerializationException {
+        return serializeDelimited(message);
+    }
+
+    /**
+     * Serialize the message to protobuf with a leading varint length
+     * delimiter, ready to be written to a binary message stream.
+     */
+    static byte[] serializeDelimited(VehicleMessage message)
+            throws SerializationException {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         try {
             MessageLite preSerialized = BinaryFormatter.preSerialize(message);
@@ -0,0 +1,133 @@
+package com.openxc.messages.streamers;
+
+import android.util.Log;
+
+import com.openxc.messages.SerializationException;
+import com.openxc.messages.UnrecognizedMessageTypeException;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryFormatter;
+
+/**
+ * A binary vehicle message streamer that decodes length-delimited protobuf
+ * frames directly from a reusable byte buffer.
+ *
+ * The BinaryStreamer copies its entire backlog into a new stream for every
+ * message it parses, which is quadratic in the number of buffered bytes. This
+ * streamer instead tracks a read and write position in a single growable array
+ * and hands each complete frame to the BinaryFormatter in place. Unconsumed
+ * bytes are only moved when the end of the array is reached, and by then they
+ * are usually just one partially received frame.
+ *
+ * The wire format is identical to the BinaryStreamer's, so the two can be used
+ * interchangeably.
+ */
+public class CompactingBinaryStreamer extends VehicleMessageStreamer {
+    private static final String TAG = "CompactingBinaryStreamer";
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // A 32-bit varint never takes more than 5 bytes
+    private static final int MAX_VARINT32_BYTES = 5;
+
+    private byte[] mBuffer;
+    private int mReadPosition = 0;
+    private int mWritePosition = 0;
+
+    public CompactingBinaryStreamer() {
+        this(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * @param initialCapacity the starting size of the internal buffer, in
+     *      bytes. The buffer grows as needed to hold a complete frame.
+     */
+    public CompactingBinaryStreamer(int initialCapacity) {
+        mBuffer = new byte[Math.max(initialCapacity, MAX_VARINT32_BYTES)];
+    }
+
+    @Override
+    public VehicleMessage parseNextMessage() {
+        VehicleMessage message = null;
+        while(message == null && mReadPosition < mWritePosition) {
+            int position = mReadPosition;
+            int size = 0;
+            int shift = 0;
+            int currentByte;
+            do {
+                if(position >= mWritePosition) {
+                    // Length prefix hasn't been completely received yet
+                    return null;
+                }
+                currentByte = mBuffer[position++];
+                size |= (currentByte & 0x7f) << shift;
+                shift += 7;
+            } while((currentByte & 0x80) != 0 && shift < 7 * MAX_VARINT32_BYTES);
+
+            if((currentByte & 0x80) != 0 || size < 0) {
+                Log.w(TAG, "Malformed message length, skipping a byte");
+                mReadPosition++;
+                continue;
+            }
+
+            if(mWritePosition - position < size) {
+                // Wait for the rest of the message
+                break;
+            }
+
+            try {
+                message = BinaryFormatter.deserialize(mBuffer, position, size);
+            } catch(UnrecognizedMessageTypeException e) {
+                Log.w(TAG, "Deserialized protobuf was an unrecognized message type", e);
+            }
+            mReadPosition = position + size;
+        }
+
+        if(mReadPosition == mWritePosition) {
+            // Everything has been consumed, so rewinding is free
+            mReadPosition = 0;
+            mWritePosition = 0;
+        }
+        return message;
+    }
+
+    @Override
+    public byte[] serializeForStream(VehicleMessage message)
+            throws SerializationException {
+        return BinaryStreamer.serializeDelimited(message);
+    }
+
+    @Override
+    public void receive(byte[] bytes, int length) {
+        super.receive(bytes, length);
+        ensureWritableBytes(length);
+        System.arraycopy(bytes, 0, mBuffer, mWritePosition, length);
+        mWritePosition += length;
+    }
+
+    /**
+     * @return the number of received bytes that have not yet been parsed.
+     */
+    public int getBufferedByteCount() {
+        return mWritePosition - mReadPosition;
+    }
+
+    /**
+     * Make room for at least length more bytes after the write position,
+     * either by moving the unconsumed bytes to the front of the buffer or by
+     * growing it.
+     */
+    private void ensureWritableBytes(int length) {
+        if(mBuffer.length - mWritePosition >= length) {
+            return;
+        }
+
+        int pending = mWritePosition - mReadPosition;
+        byte[] destination = mBuffer;
+        if(pending + length > mBuffer.length) {
+            destination = new byte[Math.max(mBuffer.length * 2,
+                    pending + length)];
+        }
+        System.arraycopy(mBuffer, mReadPosition, destination, 0, pending);
+        mBuffer = destination;
+        mReadPosition = 0;
+        mWritePosition = pending;
+    }
+}
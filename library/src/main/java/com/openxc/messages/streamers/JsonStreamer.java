@@ -1,5 +1,8 @@
 package com.openxc.messages.streamers;
 
+import java.io.Reader;
+import java.nio.charset.Charset;
+
 import android.util.Log;
 
 import com.google.common.base.CharMatcher;
@@ -17,12 +20,27 @@ import com.openxc.messages.formatters.JsonFormatter;
  * Unlike the JsonFormatter, the JsonStreamer is not stateless. It maintains
  * an internal buffer of bytes so that if partial messages is received it can
  * eventually receive an parse the entire thing.
+ *
+ * The buffer is a single reusable byte array - messages are framed by scanning
+ * the raw bytes for the delimiter and are parsed directly out of the array,
+ * so receiving data doesn't allocate and consuming a message doesn't shift
+ * the rest of the buffer.
  */
 public class JsonStreamer extends VehicleMessageStreamer {
     private static String TAG = "JsonStreamer";
     private final static String DELIMITER = "\u0000";
+    private final static byte DELIMITER_BYTE = 0;
+    private final static int INITIAL_BUFFER_SIZE = 4096;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
 
-    private StringBuffer mBuffer = new StringBuffer();
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mReadPosition = 0;
+    // Where to resume looking for a delimiter, so partial messages aren't
+    // scanned again each time more bytes arrive.
+    private int mScanPosition = 0;
+    private int mWritePosition = 0;
+    private boolean mPendingNonAscii = false;
+    private final ByteSliceReader mReader = new ByteSliceReader();
 
     /**
      * Return true if the buffer *most likely* contains JSON (as opposed to a
@@ -39,27 +57,60 @@ public class JsonStreamer extends VehicleMessageStreamer {
             .matchesAllOf(buffer);
     }
 
+    /**
+     * Return true if the first length bytes *most likely* contain JSON, by the
+     * same rules as {@link #containsJson(String)} but without decoding them to
+     * a String first.
+     */
+    public static boolean containsJson(byte[] bytes, int length) {
+        for(int i = 0; i < length; i++) {
+            byte current = bytes[i];
+            // Anything over 0x7f is negative, and isn't ASCII
+            if(current < 0 || current == 0x7f ||
+                    (current >= 0x01 && current <= 0x1f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public VehicleMessage parseNextMessage() {
-        String line = readToDelimiter();
-        if(line != null) {
-            try {
-                return JsonFormatter.deserialize(line);
-            } catch(UnrecognizedMessageTypeException e) {
-                Log.w(TAG, "Unable to deserialize JSON", e);
+        VehicleMessage message = null;
+        int delimiterIndex;
+        while(message == null && (delimiterIndex = findDelimiter()) != -1) {
+            int start = mReadPosition;
+            int length = delimiterIndex - start;
+            boolean nonAscii = mPendingNonAscii;
+
+            mReadPosition = delimiterIndex + 1;
+            mScanPosition = mReadPosition;
+            mPendingNonAscii = false;
+
+            // Skip over any empty messages, i.e. repeated delimiters
+            if(length > 0) {
+                try {
+                    message = deserialize(start, length, nonAscii);
+                } catch(UnrecognizedMessageTypeException e) {
+                    Log.w(TAG, "Unable to deserialize JSON", e);
+                }
             }
         }
-        return null;
+
+        if(mReadPosition == mWritePosition) {
+            mReadPosition = 0;
+            mScanPosition = 0;
+            mWritePosition = 0;
+        }
+        return message;
     }
 
     @Override
     public void receive(byte[] bytes, int length) {
         super.receive(bytes, length);
-        // Creating a new String object for each message causes the
-        // GC to go a little crazy, but I don't see another obvious way
-        // of converting the byte[] to something the StringBuilder can
-        // accept (either char[] or String). See #151.
-        mBuffer.append(new String(bytes, 0, length));
+        ensureWritableBytes(length);
+        System.arraycopy(bytes, 0, mBuffer, mWritePosition, length);
+        mWritePosition += length;
     }
 
     @Override
@@ -67,26 +118,123 @@ public class JsonStreamer extends VehicleMessageStreamer {
         return (JsonFormatter.serialize(message) + DELIMITER).getBytes();
     }
 
+    private VehicleMessage deserialize(int start, int length, boolean nonAscii)
+            throws UnrecognizedMessageTypeException {
+        if(nonAscii) {
+            // Rare enough that it's not worth decoding UTF-8 by hand
+            return JsonFormatter.deserialize(
+                    new String(mBuffer, start, length, UTF8));
+        }
+        mReader.reset(mBuffer, start, length);
+        return JsonFormatter.deserialize(mReader);
+    }
+
     /**
-     * Parse the current byte buffer to find the next potential message.
+     * Scan the unread part of the buffer for the next delimiter.
      *
-     * The first potential serialized message data in the buffer is removed and
-     * returned. Any delimiters at the start of the buffer will be cleared.
-     *
-     * @return A potential serialized JSON message or null if none found.
+     * @return the index of the delimiter in the buffer, or -1 if the buffer
+     *      doesn't contain a complete message yet.
+     */
+    private int findDelimiter() {
+        for(int i = mScanPosition; i < mWritePosition; i++) {
+            byte current = mBuffer[i];
+            if(current == DELIMITER_BYTE) {
+                return i;
+            } else if(current < 0) {
+                mPendingNonAscii = true;
+            }
+        }
+        mScanPosition = mWritePosition;
+        return -1;
+    }
+
+    /**
+     * Make room for at least length more bytes after the write position,
+     * either by moving the unread bytes to the front of the buffer or by
+     * growing it.
+     */
+    private void ensureWritableBytes(int length) {
+        if(mBuffer.length - mWritePosition >= length) {
+            return;
+        }
+
+        int pending = mWritePosition - mReadPosition;
+        byte[] destination = mBuffer;
+        if(pending + length > mBuffer.length) {
+            destination = new byte[Math.max(mBuffer.length * 2,
+                    pending + length)];
+        }
+        System.arraycopy(mBuffer, mReadPosition, destination, 0, pending);
+        mBuffer = destination;
+        mScanPosition -= mReadPosition;
+        mReadPosition = 0;
+        mWritePosition = pending;
+    }
+
+    /**
+     * A reusable Reader over a slice of ASCII bytes, so each message can be
+     * handed to the JSON parser without copying it into a String first.
      */
-    private String readToDelimiter() {
-        String line = null;
-        while(line == null || line.isEmpty()) {
-            int delimiterIndex = mBuffer.indexOf(DELIMITER);
-            if(delimiterIndex != -1) {
-                line = mBuffer.substring(0, delimiterIndex);
-                mBuffer.delete(0, delimiterIndex + 1);
-            } else {
-                line = null;
-                break;
+    private static class ByteSliceReader extends Reader {
+        private byte[] mBytes;
+        private int mPosition;
+        private int mEnd;
+        private int mMark;
+
+        void reset(byte[] bytes, int offset, int length) {
+            mBytes = bytes;
+            mPosition = offset;
+            mMark = offset;
+            mEnd = offset + length;
+        }
+
+        @Override
+        public int read() {
+            if(mPosition >= mEnd) {
+                return -1;
+            }
+            return mBytes[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(char[] destination, int offset, int length) {
+            if(length == 0) {
+                return 0;
+            }
+            if(mPosition >= mEnd) {
+                return -1;
             }
+
+            int count = Math.min(length, mEnd - mPosition);
+            for(int i = 0; i < count; i++) {
+                destination[offset + i] = (char) (mBytes[mPosition + i] & 0xff);
+            }
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public void reset() {
+            mPosition = mMark;
+        }
+
+        @Override
+        public void close() {
         }
-        return line;
     }
 }
@@ -0,0 +1,329 @@
+package com.openxc.remote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.Log;
+
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.MessageNameTable;
+import com.openxc.messages.NamedVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * A group of messages sent from the VehicleService to an application in a
+ * compact binary form.
+ *
+ * A VehicleMessage parcels itself with its full class name and Android's
+ * generic, type-tagged writeValue for the timestamp, value and extras. The
+ * common message types are written here instead as one header int (a type
+ * tag, which optional fields are present and the type of the value and event),
+ * the name as an ID from a {@link MessageNameTable} the application shared with
+ * the service, and the value in a primitive slot. Any other message type falls
+ * back to its own writeToParcel.
+ *
+ * The receiving process must register its name table with
+ * {@link #registerReceivingTable(MessageNameTable)} before sharing it, so
+ * batches can be decoded when they arrive.
+ */
+public class CompactMessageBatch implements Parcelable {
+    private final static String TAG = "CompactMessageBatch";
+
+    private static final int TYPE_LEGACY = 0;
+    private static final int TYPE_SIMPLE = 1;
+    private static final int TYPE_EVENTED = 2;
+    private static final int TYPE_NAMED = 3;
+    private static final int TYPE_CAN = 4;
+
+    private static final int FLAG_TIMESTAMP = 1;
+    private static final int FLAG_EXTRAS = 2;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_DOUBLE = 1;
+    private static final int VALUE_TRUE = 2;
+    private static final int VALUE_FALSE = 3;
+    private static final int VALUE_STRING = 4;
+    private static final int VALUE_OTHER = 5;
+
+    private static final Map<Integer, MessageNameTable> sReceivingTables =
+            new ConcurrentHashMap<>();
+
+    private final MessageNameTable mNameTable;
+    private final List<VehicleMessage> mMessages;
+
+    /**
+     * @param nameTable the service's copy of the receiving application's name
+     *      table.
+     * @param messages the messages to send - the list is only read when the
+     *      batch is written to a Parcel.
+     */
+    public CompactMessageBatch(MessageNameTable nameTable,
+            List<VehicleMessage> messages) {
+        mNameTable = nameTable;
+        mMessages = messages;
+    }
+
+    public List<VehicleMessage> getMessages() {
+        return mMessages;
+    }
+
+    /**
+     * Make a table available to decode incoming batches that were written
+     * with a copy of it.
+     */
+    public static void registerReceivingTable(MessageNameTable table) {
+        sReceivingTables.put(table.getToken(), table);
+    }
+
+    public static void unregisterReceivingTable(MessageNameTable table) {
+        sReceivingTables.remove(table.getToken());
+    }
+
+    /**
+     * Write one message in the compact format.
+     */
+    public static void writeMessage(Parcel out, VehicleMessage message,
+            MessageNameTable nameTable, int flags) {
+        Class<?> messageClass = message.getClass();
+        int type;
+        if(messageClass == SimpleVehicleMessage.class) {
+            type = TYPE_SIMPLE;
+        } else if(messageClass == EventedSimpleVehicleMessage.class) {
+            type = TYPE_EVENTED;
+        } else if(messageClass == NamedVehicleMessage.class) {
+            type = TYPE_NAMED;
+        } else if(messageClass == CanMessage.class) {
+            type = TYPE_CAN;
+        } else {
+            out.writeInt(TYPE_LEGACY);
+            message.writeToParcel(out, flags);
+            return;
+        }
+
+        Long timestamp = message.getTimestamp();
+        int header = type;
+        if(timestamp != null) {
+            header |= FLAG_TIMESTAMP << 8;
+        }
+        if(message.hasExtras()) {
+            header |= FLAG_EXTRAS << 8;
+        }
+
+        Object value = null;
+        Object event = null;
+        if(type == TYPE_SIMPLE || type == TYPE_EVENTED) {
+            value = message.asSimpleMessage().getValue();
+            header |= valueKind(value) << 16;
+        }
+        if(type == TYPE_EVENTED) {
+            event = ((EventedSimpleVehicleMessage) message).getEvent();
+            header |= valueKind(event) << 24;
+        }
+
+        out.writeInt(header);
+        if(timestamp != null) {
+            out.writeLong(timestamp);
+        }
+        if(message.hasExtras()) {
+            out.writeMap(message.getExtras());
+        }
+
+        if(type == TYPE_CAN) {
+            CanMessage canMessage = message.asCanMessage();
+            out.writeInt(canMessage.getBusId());
+            out.writeInt(canMessage.getId());
+            out.writeByteArray(canMessage.getData());
+            return;
+        }
+
+        writeName(out, message.asNamedMessage().getName(), nameTable);
+        if(type == TYPE_SIMPLE || type == TYPE_EVENTED) {
+            writeValue(out, value);
+        }
+        if(type == TYPE_EVENTED) {
+            writeValue(out, event);
+        }
+    }
+
+    /**
+     * Read one message written by
+     * {@link #writeMessage(Parcel, VehicleMessage, MessageNameTable, int)}.
+     *
+     * @param nameTable the table to look up name IDs in, may be null if the
+     *      sender's table is unknown.
+     * @return the message, or null if its name ID couldn't be found.
+     */
+    public static VehicleMessage readMessage(Parcel in,
+            MessageNameTable nameTable) {
+        int header = in.readInt();
+        int type = header & 0xff;
+        if(type == TYPE_LEGACY) {
+            return VehicleMessage.CREATOR.createFromParcel(in);
+        }
+
+        int flags = (header >> 8) & 0xff;
+        Long timestamp = null;
+        if((flags & FLAG_TIMESTAMP) != 0) {
+            timestamp = in.readLong();
+        }
+        HashMap<String, Object> extras = null;
+        if((flags & FLAG_EXTRAS) != 0) {
+            extras = new HashMap<>();
+            in.readMap(extras, CompactMessageBatch.class.getClassLoader());
+        }
+
+        VehicleMessage message;
+        if(type == TYPE_CAN) {
+            int busId = in.readInt();
+            int id = in.readInt();
+            message = new CanMessage(busId, id, in.createByteArray());
+            message.setTimestamp(timestamp);
+        } else {
+            int nameId = in.readInt();
+            String name = readName(in, nameId, nameTable);
+            Object value = null;
+            Object event = null;
+            if(type == TYPE_SIMPLE || type == TYPE_EVENTED) {
+                value = readValue(in, (header >> 16) & 0xff);
+            }
+            if(type == TYPE_EVENTED) {
+                event = readValue(in, (header >> 24) & 0xff);
+            }
+
+            if(name == null && nameId != MessageNameTable.NO_ID) {
+                return null;
+            }
+
+            if(type == TYPE_SIMPLE) {
+                message = new SimpleVehicleMessage(timestamp, name, value);
+            } else if(type == TYPE_EVENTED) {
+                message = new EventedSimpleVehicleMessage(timestamp, name,
+                        value, event);
+            } else if(type == TYPE_NAMED) {
+                message = new NamedVehicleMessage(timestamp, name);
+            } else {
+                throw new IllegalStateException(
+                        "Unrecognized compact message type " + type);
+            }
+        }
+
+        message.setExtras(extras);
+        return message;
+    }
+
+    private static void writeName(Parcel out, String name,
+            MessageNameTable nameTable) {
+        int id = nameTable != null ?
+                nameTable.getId(name) : MessageNameTable.NO_ID;
+        out.writeInt(id);
+        if(id == MessageNameTable.NO_ID) {
+            out.writeString(name);
+        }
+    }
+
+    private static String readName(Parcel in, int id,
+            MessageNameTable nameTable) {
+        if(id == MessageNameTable.NO_ID) {
+            return in.readString();
+        }
+        return nameTable != null ? nameTable.getName(id) : null;
+    }
+
+    private static int valueKind(Object value) {
+        if(value == null) {
+            return VALUE_NULL;
+        } else if(value instanceof Double) {
+            return VALUE_DOUBLE;
+        } else if(value instanceof Boolean) {
+            return (Boolean) value ? VALUE_TRUE : VALUE_FALSE;
+        } else if(value instanceof String) {
+            return VALUE_STRING;
+        }
+        return VALUE_OTHER;
+    }
+
+    private static void writeValue(Parcel out, Object value) {
+        switch(valueKind(value)) {
+            case VALUE_DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case VALUE_STRING:
+                out.writeString((String) value);
+                break;
+            case VALUE_OTHER:
+                out.writeValue(value);
+                break;
+            default:
+                // Null and booleans are entirely in the header
+                break;
+        }
+    }
+
+    private static Object readValue(Parcel in, int kind) {
+        switch(kind) {
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_STRING:
+                return in.readString();
+            case VALUE_OTHER:
+                return in.readValue(CompactMessageBatch.class.getClassLoader());
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mNameTable.getToken());
+        out.writeInt(mMessages.size());
+        for(VehicleMessage message : mMessages) {
+            writeMessage(out, message, mNameTable, flags);
+        }
+    }
+
+    public static final Parcelable.Creator<CompactMessageBatch> CREATOR =
+            new Parcelable.Creator<CompactMessageBatch>() {
+        @Override
+        public CompactMessageBatch createFromParcel(Parcel in) {
+            MessageNameTable nameTable = sReceivingTables.get(in.readInt());
+            int count = in.readInt();
+            List<VehicleMessage> messages = new ArrayList<>(count);
+            int unresolved = 0;
+            for(int i = 0; i < count; i++) {
+                VehicleMessage message = readMessage(in, nameTable);
+                if(message != null) {
+                    messages.add(message);
+                } else {
+                    unresolved++;
+                }
+            }
+
+            if(unresolved > 0) {
+                Log.w(TAG, "Dropped " + unresolved + " messages with names " +
+                        "missing from the name table");
+            }
+            return new CompactMessageBatch(nameTable, messages);
+        }
+
+        @Override
+        public CompactMessageBatch[] newArray(int size) {
+            return new CompactMessageBatch[size];
+        }
+    };
+}
@@ -1,5 +1,7 @@
 package com.openxc.remote;
 
+import java.util.List;
+
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -19,6 +21,7 @@ import com.openxc.interfaces.VehicleInterfaceException;
 import com.openxc.interfaces.VehicleInterfaceFactory;
 import com.openxc.interfaces.bluetooth.BluetoothVehicleInterface;
 import com.openxc.messages.MessageKey;
+import com.openxc.messages.MessageNameTable;
 import com.openxc.messages.VehicleMessage;
 import com.openxc.sinks.DataSinkException;
 import com.openxc.sinks.RemoteCallbackSink;
@@ -246,7 +249,7 @@ public class VehicleService extends Service implements DataPipeline.Operator {
                 VehicleInterfaceDescriptor descriptor = null;
                 synchronized(VehicleService.this) {
                     if(mVehicleInterface != null) {
-                        descriptor = new VehicleInterfaceDescriptor(mVehicleInterface);
+                        descriptor = describeVehicleInterface();
                     }
                 }
                 return descriptor;
@@ -270,6 +273,36 @@ public class VehicleService extends Service implements DataPipeline.Operator {
             public boolean isViConnected() {
                 return VehicleService.this.mPipeline.isActive();
             }
+
+            @Override
+            public void enableBatchedDelivery(
+                    VehicleServiceListener listener) {
+                Log.i(TAG, "Enabling batched delivery for " + listener);
+                mNotifier.enableBatchedDelivery(listener);
+            }
+
+            @Override
+            public void setSubscription(VehicleServiceListener listener,
+                    List<MessageKey> keys, List<String> messageTypes) {
+                Log.i(TAG, "Subscribing " + listener + " to " + keys.size() +
+                        " keys and " + messageTypes.size() + " message types");
+                mNotifier.setSubscription(listener, keys, messageTypes);
+            }
+
+            @Override
+            public void clearSubscription(VehicleServiceListener listener) {
+                Log.i(TAG, "Clearing subscription for " + listener);
+                mNotifier.clearSubscription(listener);
+            }
+
+            @Override
+            public void enableCompactDelivery(VehicleServiceListener listener,
+                    int tableToken, List<String> names) {
+                Log.i(TAG, "Enabling compact delivery for " + listener +
+                        " with " + names.size() + " names");
+                mNotifier.enableCompactDelivery(listener,
+                        new MessageNameTable(tableToken, names));
+            }
     };
 
     private void addViConnectionListener(ViConnectionListener listener) {
@@ -352,13 +385,23 @@ public class VehicleService extends Service implements DataPipeline.Operator {
         }
     }
 
+    private synchronized VehicleInterfaceDescriptor describeVehicleInterface() {
+        double writeBytesPerSecond = 0;
+        if(mVehicleInterface instanceof BluetoothVehicleInterface) {
+            writeBytesPerSecond = ((BluetoothVehicleInterface)
+                    mVehicleInterface).getWriteThroughput();
+        }
+        return new VehicleInterfaceDescriptor(mVehicleInterface.getClass(),
+                mVehicleInterface.isConnected(), writeBytesPerSecond);
+    }
+
     @Override
     public synchronized void onPipelineActivated() {
         mWakeLocker.acquireWakeLock();
         //moveToForeground();
         if(mVehicleInterface != null && mVehicleInterface.isConnected()) {
             VehicleInterfaceDescriptor descriptor =
-                        new VehicleInterfaceDescriptor(mVehicleInterface);
+                        describeVehicleInterface();
             synchronized(mViConnectionListeners) {
                 int i = mViConnectionListeners.beginBroadcast();
                 while(i > 0) {
@@ -1,14 +1,18 @@
 package com.openxc.sinks;
 
-import java.util.Iterator;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 
+import com.openxc.messages.KeyedMessage;
+import com.openxc.messages.MessageKey;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.util.BoundedRingQueue;
 
 /**
  * Functionality to notify multiple clients asynchronously of new measurements.
@@ -20,18 +24,80 @@ import com.openxc.messages.VehicleMessage;
  * new values.
  *
  * New measurements are queued up and propagated to receivers in a separate
- * thread, to avoid blocking the original sender of the data.
+ * thread, to avoid blocking the original sender of the data. The queue is a
+ * fixed-size lock-free ring, and the notification thread drains it in batches.
+ * What happens when the receivers can't keep up and the queue fills is decided
+ * by the {@link OverflowPolicy}.
+ *
+ * A sink can also set a batch window, to have the notification thread wait a
+ * little while for more messages before propagating a batch. That's useful
+ * when each delivery has a fixed cost, like a binder transaction.
  */
 public abstract class AbstractQueuedCallbackSink implements VehicleDataSink {
     private final static String TAG = "AbstractQueuedCallbackSink";
 
-    private NotificationThread mNotificationThread = new NotificationThread();
-    private Lock mNotificationsLock = new ReentrantLock();
-    private Condition mNotificationsChanged = mNotificationsLock.newCondition();
-    private CopyOnWriteArrayList<VehicleMessage> mNotifications =
-            new CopyOnWriteArrayList<>();
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY =
+            OverflowPolicy.BLOCK;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private static final long IDLE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long FULL_WAIT_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long CLEAR_WAIT_MILLIS = 100;
+
+    /**
+     * What to do with a new message when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the notification thread to make room. No messages are
+         * lost, but a slow receiver will hold up the sender.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued message to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Hold keyed messages aside, keeping only the latest message for
+         * each key until the notification thread catches up. Messages
+         * without a key fall back to DROP_OLDEST.
+         */
+        COALESCE_BY_KEY
+    }
+
+    private final NotificationThread mNotificationThread =
+            new NotificationThread();
+    private final BoundedRingQueue<VehicleMessage> mNotifications;
+    private final OverflowPolicy mOverflowPolicy;
+    private final Map<MessageKey, VehicleMessage> mCoalescedNotifications =
+            new ConcurrentHashMap<>();
+    // Messages received but not yet propagated or dropped, including those
+    // the notification thread is working on right now.
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final Object mClearedLock = new Object();
+    private volatile boolean mNotificationThreadWaiting;
+    private volatile int mBatchFillTarget;
+    private volatile long mBatchWindowNanos;
+    private volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
 
     public AbstractQueuedCallbackSink() {
+        this(DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * @param queueCapacity the number of messages to hold for the notification
+     *      thread before the overflow policy kicks in.
+     * @param overflowPolicy what to do when the queue is full.
+     */
+    public AbstractQueuedCallbackSink(int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        mNotifications = new BoundedRingQueue<>(queueCapacity);
+        mOverflowPolicy = overflowPolicy;
         mNotificationThread.start();
     }
 
@@ -42,76 +108,295 @@ public abstract class AbstractQueuedCallbackSink implements VehicleDataSink {
 
     @Override
     public void receive(VehicleMessage message) throws DataSinkException {
-        try {
-            mNotificationsLock.lock();
-            mNotifications.add(message);
-            mNotificationsChanged.signal();
-        } finally {
-            mNotificationsLock.unlock();
+        int pending = mPendingCount.incrementAndGet();
+        if(!mCoalescedNotifications.isEmpty() && replaceCoalesced(message)) {
+            // An older message with the same key was set aside - queueing
+            // this one would deliver it before that stale value
+        } else if(!mNotifications.offer(message)) {
+            overflow(message);
+        }
+
+        int fillTarget = mBatchFillTarget;
+        if(mNotificationThreadWaiting ||
+                (fillTarget > 0 && pending >= fillTarget)) {
+            LockSupport.unpark(mNotificationThread);
         }
     }
 
     /* Block until the notifications queue is cleared.
      */
     public void clearQueue() {
-        try {
-            mNotificationsLock.lock();
-            while(!mNotifications.isEmpty()) {
-                mNotificationsChanged.await();
+        synchronized(mClearedLock) {
+            while(mPendingCount.get() > 0 && mNotificationThread.isRunning()) {
+                try {
+                    mClearedLock.wait(CLEAR_WAIT_MILLIS);
+                } catch(InterruptedException e) {
+                    return;
+                }
             }
-        } catch(InterruptedException e) {
-        } finally {
-            mNotificationsLock.unlock();
         }
     }
 
+    /**
+     * Control how many messages are grouped together in each call to
+     * {@link #propagateMessages(VehicleMessage[], int)}.
+     *
+     * @param windowMillis after taking the first message of a batch, wait this
+     *      long for more messages to arrive before propagating it. 0 propagates
+     *      whatever is queued right away.
+     * @param maxBatchSize the most messages to propagate in one batch - the
+     *      batch is sent as soon as it's full, even within the window.
+     */
+    public void setBatchWindow(long windowMillis, int maxBatchSize) {
+        if(windowMillis < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch window " +
+                    windowMillis + "ms and size " + maxBatchSize);
+        }
+        mBatchWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public long getBatchWindowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mBatchWindowNanos);
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * @return the number of messages waiting to be propagated.
+     */
+    public int getQueueDepth() {
+        return mPendingCount.get();
+    }
+
+    public int getQueueCapacity() {
+        return mNotifications.capacity();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return the number of messages discarded because the queue was full.
+     */
+    public long getDroppedMessageCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of messages replaced by a newer message with the same
+     *      key before they could be propagated.
+     */
+    public long getCoalescedMessageCount() {
+        return mCoalescedCount.get();
+    }
+
     abstract protected void propagateMessage(VehicleMessage message);
 
+    /**
+     * Propagate a batch of messages drained from the queue, in the order they
+     * were received.
+     *
+     * Subclasses that can deliver a group of messages more efficiently than
+     * one at a time can override this.
+     *
+     * @param messages the array holding the batch, starting at index 0.
+     * @param count the number of messages in the batch.
+     */
+    protected void propagateMessages(VehicleMessage[] messages, int count) {
+        for(int i = 0; i < count; i++) {
+            propagateMessage(messages[i]);
+        }
+    }
+
+    private void overflow(VehicleMessage message) {
+        OverflowPolicy policy = mOverflowPolicy;
+        if(policy == OverflowPolicy.BLOCK &&
+                Thread.currentThread() == mNotificationThread) {
+            // A receiver sent a message back through this sink - waiting for
+            // ourselves to make room would never finish.
+            policy = OverflowPolicy.DROP_OLDEST;
+        }
+
+        switch(policy) {
+        case BLOCK:
+            while(!mNotifications.offer(message)) {
+                if(!mNotificationThread.isRunning()) {
+                    drop();
+                    return;
+                }
+                LockSupport.unpark(mNotificationThread);
+                LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+            }
+            break;
+        case COALESCE_BY_KEY:
+            if(message instanceof KeyedMessage) {
+                setAside(message.asKeyedMessage().getKey(), message);
+                break;
+            }
+            // fall through
+        case DROP_OLDEST:
+            while(!mNotifications.offer(message)) {
+                if(mNotifications.poll() != null) {
+                    drop();
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * @return true if the message replaced an older message with the same key
+     *      that was set aside when the queue was full.
+     */
+    private boolean replaceCoalesced(VehicleMessage message) {
+        if(message instanceof KeyedMessage) {
+            MessageKey key = message.asKeyedMessage().getKey();
+            if(mCoalescedNotifications.containsKey(key)) {
+                setAside(key, message);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hold a message outside of the queue, replacing any older message with
+     * the same key.
+     */
+    private void setAside(MessageKey key, VehicleMessage message) {
+        if(mCoalescedNotifications.put(key, message) != null) {
+            mCoalescedCount.incrementAndGet();
+            mPendingCount.decrementAndGet();
+        }
+    }
+
+    private void drop() {
+        mDroppedCount.incrementAndGet();
+        mPendingCount.decrementAndGet();
+    }
+
+    /**
+     * Fill the rest of the batch from the queue, then with any coalesced
+     * messages.
+     *
+     * @param count the number of messages already in the batch.
+     * @return the number of messages in the batch after draining.
+     */
+    private int drain(VehicleMessage[] batch, int count) {
+        while(count < batch.length) {
+            VehicleMessage message = mNotifications.poll();
+            if(message == null) {
+                break;
+            }
+            batch[count++] = message;
+        }
+
+        if(count < batch.length && !mCoalescedNotifications.isEmpty()) {
+            for(MessageKey key : mCoalescedNotifications.keySet()) {
+                VehicleMessage message = mCoalescedNotifications.remove(key);
+                if(message != null) {
+                    batch[count++] = message;
+                    if(count == batch.length) {
+                        break;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keep adding to a batch until the batch window closes or the batch is
+     * full.
+     */
+    private int fillBatchWindow(VehicleMessage[] batch, int count) {
+        long window = mBatchWindowNanos;
+        if(window <= 0) {
+            return count;
+        }
+
+        long deadline = System.nanoTime() + window;
+        // Senders only wake us once there are enough pending messages to fill
+        // the batch, not for every message in the window
+        mBatchFillTarget = batch.length;
+        count = drain(batch, count);
+        while(count < batch.length && mNotificationThread.isRunning()) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
+            count = drain(batch, count);
+        }
+        mBatchFillTarget = 0;
+        return count;
+    }
+
+    private void waitForNotifications() {
+        mNotificationThreadWaiting = true;
+        // Check again after announcing we're waiting, in case a message
+        // arrived in between and the sender didn't see the flag
+        if(mNotifications.isEmpty() && mCoalescedNotifications.isEmpty()) {
+            LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+        }
+        mNotificationThreadWaiting = false;
+    }
+
     private class NotificationThread extends Thread {
-        private boolean mRunning = true;
+        private volatile boolean mRunning = true;
 
-        private synchronized boolean isRunning() {
+        private boolean isRunning() {
             return mRunning;
         }
 
         public synchronized void done() {
             Log.d(TAG, "Stopping message notifier");
             mRunning = false;
-            // A context switch right can cause a race condition if we
-            // used take() instead of poll(): when mRunning is set to
-            // false and interrupt is called but we haven't called
-            // take() yet, so nobody is waiting. By using poll we can not be
-            // locked for more than 1s.
+            // Wake the thread up if it's waiting for new messages, so it
+            // notices it should stop.
             interrupt();
+            synchronized(mClearedLock) {
+                mClearedLock.notifyAll();
+            }
         }
 
         @Override
         public void run() {
             Log.d(TAG, "Starting notification thread");
+            VehicleMessage[] batch = new VehicleMessage[mMaxBatchSize];
             while(isRunning()) {
-                mNotificationsLock.lock();
-                try {
-                    if(mNotifications.isEmpty()) {
-                        mNotificationsChanged.await();
-                    }
+                if(batch.length != mMaxBatchSize) {
+                    batch = new VehicleMessage[mMaxBatchSize];
+                }
 
-                    Iterator<VehicleMessage> it = mNotifications.iterator();
-                    CopyOnWriteArrayList<VehicleMessage> deleted =
-                            new CopyOnWriteArrayList<>(mNotifications);
-                    while(it.hasNext()) {
-                        VehicleMessage message = it.next();
-                        propagateMessage(message);
-                        deleted.add(message);
+                int count = drain(batch, 0);
+                if(count == 0) {
+                    waitForNotifications();
+                    if(interrupted()) {
+                        Log.d(TAG, "Interrupted while waiting for a new " +
+                                "item for notification -- likely shutting down");
+                        break;
                     }
-                    mNotifications.removeAll(deleted) ;
+                    continue;
+                }
 
-                } catch(InterruptedException e) {
-                    Log.d(TAG, "Interrupted while waiting for a new " +
-                            "item for notification -- likely shutting down");
-                    break;
+                count = fillBatchWindow(batch, count);
+                try {
+                    propagateMessages(batch, count);
                 } finally {
-                    mNotificationsChanged.signal();
-                    mNotificationsLock.unlock();
+                    for(int i = 0; i < count; i++) {
+                        batch[i] = null;
+                    }
+
+                    if(mPendingCount.addAndGet(-count) == 0) {
+                        synchronized(mClearedLock) {
+                            mClearedLock.notifyAll();
+                        }
+                    }
                 }
             }
             Log.d(TAG, "Stopped notification thread");
@@ -2,18 +2,27 @@ package com.openxc.sinks;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 
+import com.openxc.messages.SerializationException;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryTraceWriter;
 import com.openxc.messages.formatters.JsonFormatter;
+import com.openxc.util.BinaryFileOpener;
+import com.openxc.util.BoundedRingQueue;
 import com.openxc.util.FileOpener;
+import com.openxc.util.LatencyHistogram;
 
 /**
- * Record raw vehicle messages to a file as JSON.
+ * Record raw vehicle messages to a file as JSON or as a binary trace.
  *
  * This data sink is a simple passthrough that records every raw vehicle
  * message as it arrives to a file on the device. It uses a heuristic to
@@ -23,86 +32,453 @@ import com.openxc.util.FileOpener;
  * The heuristic is very simple: if we haven't received any new data in a while,
  * consider the previous trip to have ended. When activity resumes, start a new
  * trip.
+ *
+ * In the {@link Format#BINARY} format messages are written with a
+ * {@link BinaryTraceWriter} as length-delimited protobuf frames in compressed
+ * blocks, which is several times smaller and cheaper to write than JSON. The
+ * binary format can't store message extras, so messages with extras are
+ * skipped and counted.
+ *
+ * Messages are handed to a dedicated writer thread through a bounded queue, so
+ * a slow write to storage never holds up the thread calling
+ * {@link #receive(VehicleMessage)} (and with it the rest of the pipeline). The
+ * writer serializes and writes messages in batches, and only flushes the
+ * trace through to storage ("commits") once enough time has passed or enough
+ * bytes have been written - see {@link #setCommitPolicy(long, long)}. If the
+ * queue fills up because storage can't keep up, new messages are dropped and
+ * counted rather than blocking.
  */
 public class FileRecorderSink implements VehicleDataSink {
     private final static String TAG = "FileRecorderSink";
     private final static int INTER_TRIP_THRESHOLD_MINUTES = 5;
+    private final static long INTER_TRIP_THRESHOLD_MILLIS =
+            TimeUnit.MINUTES.toMillis(INTER_TRIP_THRESHOLD_MINUTES);
+    public final static int DEFAULT_QUEUE_CAPACITY = 4096;
+    public final static long DEFAULT_COMMIT_INTERVAL_MILLIS = 2000;
+    public final static long DEFAULT_COMMIT_BYTES = 256 * 1024;
+    private final static int WRITE_BATCH_SIZE = 256;
+    private final static long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            500);
+    private final static long STOP_TIMEOUT_MILLIS = 5000;
+    // Queued in place of a message to tell the writer thread a new trip
+    // started, so the messages before it still go to the previous file
+    private final static VehicleMessage NEW_TRIP = new VehicleMessage();
     private static SimpleDateFormat sDateFormatter =
             new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
-    private FileOpener mFileOpener;
+    public enum Format {
+        JSON(".json"),
+        BINARY(".bin");
+
+        private final String mExtension;
+
+        private Format(String extension) {
+            mExtension = extension;
+        }
+
+        public String getExtension() {
+            return mExtension;
+        }
+    }
+
+    private final FileOpener mFileOpener;
+    private final Format mFormat;
+    private final BoundedRingQueue<VehicleMessage> mQueue;
+    private final WriterThread mWriterThread = new WriterThread();
+    private final AtomicLong mLastMessageReceived = new AtomicLong();
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram mCommitLatency = new LatencyHistogram();
+    private final Object mCommitLock = new Object();
+    private volatile boolean mWriterWaiting;
+    private volatile boolean mTripSplitPending;
+    private volatile boolean mCommitRequested;
+    private volatile long mCommittedCount;
+    private volatile long mWrittenCount;
+    private volatile long mSkippedCount;
+    private volatile IOException mWriteError;
+    private volatile long mCommitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+            DEFAULT_COMMIT_INTERVAL_MILLIS);
+    private volatile long mCommitBytes = DEFAULT_COMMIT_BYTES;
+
+    // Only touched by the writer thread
     private BufferedWriter mWriter;
-    private Calendar mLastMessageReceived;
+    private BinaryTraceWriter mBinaryWriter;
+    private long mUncommittedBytes;
 
     public FileRecorderSink(FileOpener fileOpener) {
+        this(fileOpener, Format.JSON);
+    }
+
+    /**
+     * @param fileOpener the opener for new trace files - it must be a
+     *      {@link BinaryFileOpener} to record in the binary format.
+     * @param format the format to record messages in.
+     */
+    public FileRecorderSink(FileOpener fileOpener, Format format) {
+        this(fileOpener, format, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity the most messages to hold for the writer thread
+     *      before dropping new ones.
+     */
+    public FileRecorderSink(FileOpener fileOpener, Format format,
+            int queueCapacity) {
+        if(format == Format.BINARY &&
+                !(fileOpener instanceof BinaryFileOpener)) {
+            throw new IllegalArgumentException(
+                    "Recording a binary trace requires a BinaryFileOpener");
+        }
         mFileOpener = fileOpener;
+        mFormat = format;
+        mQueue = new BoundedRingQueue<>(queueCapacity);
+        mWriterThread.start();
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Control how often the trace is flushed through to storage.
+     *
+     * @param intervalMillis commit at least this often while messages are
+     *      arriving.
+     * @param bytes commit as soon as this many bytes were written since the
+     *      last commit.
+     */
+    public void setCommitPolicy(long intervalMillis, long bytes) {
+        if(intervalMillis < 1 || bytes < 1) {
+            throw new IllegalArgumentException("Invalid commit interval " +
+                    intervalMillis + "ms and size " + bytes);
+        }
+        mCommitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mCommitBytes = bytes;
+        LockSupport.unpark(mWriterThread);
+    }
+
+    public long getCommitIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mCommitIntervalNanos);
+    }
+
+    public long getCommitBytes() {
+        return mCommitBytes;
+    }
+
+    /**
+     * @return the number of messages waiting for the writer thread.
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getQueueCapacity() {
+        return mQueue.capacity();
+    }
+
+    /**
+     * @return the number of messages discarded because the queue was full.
+     */
+    public long getDroppedMessageCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of messages that couldn't be written in the binary
+     *      format and were left out of the trace.
+     */
+    public long getSkippedMessageCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * @return the number of messages written to the trace so far.
+     */
+    public long getWrittenMessageCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * @return the time taken to serialize and write each batch of messages.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * @return the time taken by each commit to flush the trace to storage.
+     */
+    public LatencyHistogram getCommitLatency() {
+        return mCommitLatency;
     }
 
     @Override
-    public synchronized void receive(VehicleMessage message)
-            throws DataSinkException {
-        if(mLastMessageReceived == null ||
-                    Calendar.getInstance().getTimeInMillis()
-                    - mLastMessageReceived.getTimeInMillis()
-                > INTER_TRIP_THRESHOLD_MINUTES * 60 * 1000) {
+    public void receive(VehicleMessage message) throws DataSinkException {
+        if(!mWriterThread.isRunning()) {
+            throw new DataSinkException(
+                    "Recorder is stopped - not recording trace line");
+        }
+        if(mWriteError != null) {
+            throw new DataSinkException("Unable to record trace",
+                    mWriteError);
+        }
+
+        long now = System.currentTimeMillis();
+        long previous = mLastMessageReceived.getAndSet(now);
+        if(previous == 0 || now - previous > INTER_TRIP_THRESHOLD_MILLIS) {
             Log.i(TAG, "Detected a new trip, splitting recorded trace file");
-            try {
-                openTimestampedFile();
-            } catch(IOException e) {
-                throw new DataSinkException(
-                        "Unable to open file for recording", e);
+            mTripSplitPending = true;
+        }
+
+        if(mTripSplitPending) {
+            if(mQueue.offer(NEW_TRIP)) {
+                mTripSplitPending = false;
             }
         }
 
-        if(mWriter == null) {
-            throw new DataSinkException(
-                    "No valid writer - not recording trace line");
+        if(!mTripSplitPending && mQueue.offer(message)) {
+            mEnqueuedCount.incrementAndGet();
+        } else {
+            mDroppedCount.incrementAndGet();
         }
 
-        mLastMessageReceived = Calendar.getInstance();
-        try {
-            mWriter.write(JsonFormatter.serialize(message));
-            mWriter.newLine();
-        } catch(IOException e) {
-            throw new DataSinkException("Unable to write message to file");
+        if(mWriterWaiting) {
+            LockSupport.unpark(mWriterThread);
         }
     }
 
+    /**
+     * Stop accepting messages, write out everything already queued and close
+     * the trace.
+     */
     @Override
-    public synchronized void stop() {
-        close();
+    public void stop() {
+        mWriterThread.done();
+        try {
+            mWriterThread.join(STOP_TIMEOUT_MILLIS);
+        } catch(InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the trace to close");
+        }
         Log.i(TAG, "Shutting down");
     }
 
-    public synchronized void flush() {
-        if(mWriter != null) {
-            try {
+    /**
+     * Block until every message received so far is written and committed to
+     * storage.
+     */
+    public void flush() {
+        long target = mEnqueuedCount.get();
+        synchronized(mCommitLock) {
+            while(mCommittedCount < target && mWriterThread.isAlive()) {
+                mCommitRequested = true;
+                LockSupport.unpark(mWriterThread);
+                try {
+                    mCommitLock.wait(100);
+                } catch(InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void write(VehicleMessage message) throws IOException {
+        if(mWriter == null && mBinaryWriter == null) {
+            throw new IOException("No valid writer - not recording trace line");
+        }
+
+        try {
+            if(mBinaryWriter != null) {
+                mBinaryWriter.write(message);
+            } else {
+                String serialized = JsonFormatter.serialize(message);
+                mWriter.write(serialized);
+                mWriter.newLine();
+                mUncommittedBytes += serialized.length() + 1;
+            }
+            mWrittenCount++;
+        } catch(SerializationException e) {
+            mSkippedCount++;
+            Log.d(TAG, "Unable to record message in binary format", e);
+        }
+    }
+
+    private void commit() {
+        long start = System.nanoTime();
+        try {
+            if(mWriter != null) {
                 mWriter.flush();
-            } catch(IOException e) {
-                Log.w(TAG, "Unable to flush writer", e);
             }
+            if(mBinaryWriter != null) {
+                mBinaryWriter.flush();
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to flush writer", e);
         }
+        mCommitLatency.record(System.nanoTime() - start);
     }
 
-    private synchronized void close() {
-        if(mWriter != null) {
-            try {
+    private void close() {
+        try {
+            if(mWriter != null) {
                 mWriter.close();
-            } catch(IOException e) {
-                Log.w(TAG, "Unable to close output file", e);
             }
-            mWriter = null;
+            if(mBinaryWriter != null) {
+                mBinaryWriter.close();
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to close output file", e);
         }
+        mWriter = null;
+        mBinaryWriter = null;
     }
 
-    private synchronized void openTimestampedFile() throws IOException {
+    private void openTimestampedFile() throws IOException {
         Calendar calendar = Calendar.getInstance();
-        String filename = sDateFormatter.format(
-                calendar.getTime()) + ".json";
-        if(mWriter != null) {
-            close();
+        String filename;
+        synchronized(sDateFormatter) {
+            filename = sDateFormatter.format(
+                    calendar.getTime()) + mFormat.getExtension();
+        }
+        close();
+        if(mFormat == Format.BINARY) {
+            OutputStream stream = ((BinaryFileOpener) mFileOpener
+                    ).openStreamForWriting(filename);
+            mBinaryWriter = new BinaryTraceWriter(stream);
+        } else {
+            mWriter = mFileOpener.openForWriting(filename);
         }
-        mWriter = mFileOpener.openForWriting(filename);
         Log.i(TAG, "Opened trace file " + filename + " for writing");
     }
+
+    private class WriterThread extends Thread {
+        private volatile boolean mRunning = true;
+        private long mBinaryBytesCommitted;
+        private long mLastCommit = System.nanoTime();
+        private long mProcessedCount;
+
+        WriterThread() {
+            super(TAG);
+        }
+
+        private boolean isRunning() {
+            return mRunning;
+        }
+
+        private void done() {
+            mRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            VehicleMessage[] batch = new VehicleMessage[WRITE_BATCH_SIZE];
+            while(true) {
+                // Read the flag before draining, so everything queued before
+                // stop() was called is written
+                boolean running = isRunning();
+                int count = mQueue.drainTo(batch, batch.length);
+                if(count > 0) {
+                    writeBatch(batch, count);
+                } else if(!running) {
+                    break;
+                }
+
+                if(commitDue() || (count == 0 && mCommitRequested)) {
+                    commitAndNotify();
+                } else if(count == 0) {
+                    waitForMessages();
+                }
+            }
+
+            commitAndNotify();
+            close();
+            synchronized(mCommitLock) {
+                mCommitLock.notifyAll();
+            }
+            Log.d(TAG, "Stopped writer thread");
+        }
+
+        private void writeBatch(VehicleMessage[] batch, int count) {
+            long start = System.nanoTime();
+            for(int i = 0; i < count; i++) {
+                VehicleMessage message = batch[i];
+                batch[i] = null;
+                if(message == NEW_TRIP) {
+                    openFile();
+                    continue;
+                }
+
+                mProcessedCount++;
+                if(mWriteError == null) {
+                    try {
+                        write(message);
+                    } catch(IOException e) {
+                        Log.w(TAG, "Unable to write message to file", e);
+                        mWriteError = e;
+                    }
+                }
+            }
+            mWriteLatency.record(System.nanoTime() - start);
+        }
+
+        private void openFile() {
+            try {
+                openTimestampedFile();
+                mBinaryBytesCommitted = 0;
+                mWriteError = null;
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to open file for recording", e);
+                mWriteError = e;
+            }
+        }
+
+        private boolean commitDue() {
+            if(mWriter == null && mBinaryWriter == null) {
+                return false;
+            }
+
+            long uncommitted = mUncommittedBytes;
+            if(mBinaryWriter != null) {
+                uncommitted = mBinaryWriter.getBytesWritten() -
+                        mBinaryBytesCommitted;
+            }
+            return uncommitted >= mCommitBytes || (mProcessedCount >
+                        mCommittedCount && System.nanoTime() - mLastCommit >=
+                    mCommitIntervalNanos);
+        }
+
+        private void commitAndNotify() {
+            commit();
+            mUncommittedBytes = 0;
+            if(mBinaryWriter != null) {
+                mBinaryBytesCommitted = mBinaryWriter.getBytesWritten();
+            }
+            mLastCommit = System.nanoTime();
+
+            synchronized(mCommitLock) {
+                mCommitRequested = false;
+                mCommittedCount = mProcessedCount;
+                mCommitLock.notifyAll();
+            }
+        }
+
+        private void waitForMessages() {
+            mWriterWaiting = true;
+            // Check again after announcing we're waiting, in case a message
+            // arrived in between and the sender didn't see the flag
+            if(mQueue.isEmpty() && isRunning() && !mCommitRequested) {
+                long wait = IDLE_WAIT_NANOS;
+                if(mProcessedCount > mCommittedCount) {
+                    wait = Math.min(wait, mCommitIntervalNanos -
+                            (System.nanoTime() - mLastCommit));
+                }
+                if(wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+            mWriterWaiting = false;
+        }
+    }
 }
@@ -11,14 +11,18 @@ import com.openxc.measurements.Measurement;
 import com.openxc.measurements.UnrecognizedMeasurementTypeException;
 import com.openxc.messages.CommandResponse;
 import com.openxc.messages.CustomCommandResponse;
+import com.openxc.messages.ExactKeyMatcher;
 import com.openxc.messages.KeyMatcher;
 import com.openxc.messages.KeyedMessage;
+import com.openxc.messages.MessageKey;
 import com.openxc.messages.SimpleVehicleMessage;
 import com.openxc.messages.VehicleMessage;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,14 +31,24 @@ import java.util.Set;
  *
  * Applications requesting asynchronous updates for specific signals get their
  * values through this sink.
+ *
+ * Listeners registered with an {@link ExactKeyMatcher} are indexed by their
+ * key, so finding them for an incoming message is a single hash lookup no
+ * matter how many are registered. Only other KeyMatchers (e.g. wildcards) have
+ * to be checked against every message.
  */
 public class MessageListenerSink extends AbstractQueuedCallbackSink {
     private final static String TAG = "MessageListenerSink";
 
     // The non-persistent listeners will be removed after they receive their
-    // first message.
+    // first message. Every group is in this map, in the order they were
+    // registered, and also in exactly one of the two maps below.
+    private Map<KeyMatcher, MessageListenerGroup>
+            mMessageListeners = new LinkedHashMap<>();
+    private Map<MessageKey, MessageListenerGroup>
+            mExactKeyListeners = new HashMap<>();
     private Map<KeyMatcher, MessageListenerGroup>
-            mMessageListeners = new HashMap<>();
+            mCustomMatcherListeners = new LinkedHashMap<>();
     private Multimap<Class<? extends Measurement>, Measurement.Listener>
             mMeasurementTypeListeners = HashMultimap.create();
     private Multimap<Class<? extends VehicleMessage>, VehicleMessage.Listener>
@@ -42,9 +56,14 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
 
     private class MessageListenerGroup {
 
+        final KeyMatcher mMatcher;
         ArrayList<VehicleMessage.Listener> mPersistentListeners = new ArrayList<>();
         ArrayList<VehicleMessage.Listener> mListeners = new ArrayList<>();
 
+        MessageListenerGroup(KeyMatcher matcher) {
+            mMatcher = matcher;
+        }
+
         void add(VehicleMessage.Listener listener, boolean persist) {
             if (persist) {
                 mPersistentListeners.add(listener);
@@ -61,10 +80,12 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
             for (VehicleMessage.Listener listener : mPersistentListeners) {
                 listener.receive(message);
             }
-            for (VehicleMessage.Listener listener : mListeners) {
-                listener.receive(message);
+            if (!mListeners.isEmpty()) {
+                for (VehicleMessage.Listener listener : mListeners) {
+                    listener.receive(message);
+                }
+                mListeners = new ArrayList<>(); //delete all non-persistent
             }
-            mListeners = new ArrayList<>(); //delete all non-persistent
         }
 
         boolean isEmpty() {
@@ -76,13 +97,24 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
         super();
     }
 
+    public MessageListenerSink(int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        super(queueCapacity, overflowPolicy);
+    }
+
     public synchronized void register(KeyMatcher matcher,
             VehicleMessage.Listener listener, boolean persist) {
 
         MessageListenerGroup group = mMessageListeners.get(matcher);
         if (group == null) {
-            group = new MessageListenerGroup();
+            group = new MessageListenerGroup(matcher);
             mMessageListeners.put(matcher, group);
+            if (matcher instanceof ExactKeyMatcher) {
+                mExactKeyListeners.put(((ExactKeyMatcher) matcher).getKey(),
+                        group);
+            } else {
+                mCustomMatcherListeners.put(matcher, group);
+            }
         }
 
         group.add(listener, persist);
@@ -137,6 +169,51 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
         }
     }
 
+    /**
+     * @return true if a listener is registered with a KeyMatcher other than an
+     *      ExactKeyMatcher, so the messages it wants can't be listed ahead of
+     *      time.
+     */
+    public synchronized boolean hasCustomMatchers() {
+        return !mCustomMatcherListeners.isEmpty();
+    }
+
+    /**
+     * @return the keys of the messages listeners in this sink are registered
+     *      for, including the keys of Measurement types. Listeners with custom
+     *      KeyMatchers aren't included - see {@link #hasCustomMatchers()}.
+     */
+    public synchronized Set<MessageKey> getSubscribedKeys() {
+        Set<MessageKey> keys = new HashSet<>(mExactKeyListeners.keySet());
+        for(Class<? extends Measurement> measurementType :
+                mMeasurementTypeListeners.keySet()) {
+            try {
+                keys.add(BaseMeasurement.getKeyForMeasurement(
+                            measurementType));
+            } catch(UnrecognizedMeasurementTypeException e) {
+                // Without an ID it could never be built from a message anyway
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the message classes that listeners in this sink are registered
+     *      for regardless of their key.
+     */
+    public synchronized Set<Class<? extends VehicleMessage>>
+            getSubscribedMessageTypes() {
+        Set<Class<? extends VehicleMessage>> types =
+                new HashSet<>(mMessageTypeListeners.keySet());
+        if(!mMessageListeners.isEmpty()) {
+            // Responses that don't match any key still go to the first
+            // listener, see propagateMessage
+            types.add(CommandResponse.class);
+            types.add(CustomCommandResponse.class);
+        }
+        return types;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -144,6 +221,8 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
             .add("numMessageTypeListeners", mMessageTypeListeners.size())
             .add("numPersistentMessageListeners", getNumPersistentListeners())
             .add("numMeasurementTypeListeners", mMeasurementTypeListeners.size())
+            .add("queueDepth", getQueueDepth())
+            .add("droppedMessages", getDroppedMessageCount())
             .toString();
     }
 
@@ -160,33 +239,86 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
         MessageListenerGroup group = mMessageListeners.get(matcher);
         if (group != null && group.isEmpty()) {
             mMessageListeners.remove(matcher);
+            if (matcher instanceof ExactKeyMatcher) {
+                mExactKeyListeners.remove(((ExactKeyMatcher) matcher).getKey());
+            } else {
+                mCustomMatcherListeners.remove(matcher);
+            }
         }
     }
 
+    /**
+     * Send the message to the group's listeners.
+     *
+     * @return the group's matcher if it has no listeners left and should be
+     *      pruned, otherwise null.
+     */
+    private KeyMatcher receive(MessageListenerGroup group,
+            VehicleMessage message) {
+        group.receive(message);
+        return group.isEmpty() ? group.mMatcher : null;
+    }
+
     @Override
     protected synchronized void propagateMessage(VehicleMessage message) {
         if (message instanceof KeyedMessage) {
 
-            Set<KeyMatcher> matchedKeys = new HashSet<>();
-            for (KeyMatcher matcher : mMessageListeners.keySet()) {
-                if (matcher.matches(message.asKeyedMessage())) {
-                    MessageListenerGroup group = mMessageListeners.get(matcher);
-                    group.receive(message);
-                    matchedKeys.add(matcher);
-                } else if( message instanceof CustomCommandResponse || message instanceof CommandResponse){
-                    /*
-                     * This is bit of a hack to read response of custom messages for which keys won't match
-                     * as they are not pre-defined.
-                     */
-                    Map.Entry<KeyMatcher, MessageListenerGroup> entry = mMessageListeners.entrySet().iterator().next();
-                    MessageListenerGroup group = mMessageListeners.get(entry.getKey());
-                    group.receive(message);
-                    matchedKeys.add(entry.getKey());
+            KeyedMessage keyedMessage = message.asKeyedMessage();
+            boolean matched = false;
+
+            // Groups with only one-time listeners are left empty after they
+            // receive a message, and are pruned once dispatch is done.
+            KeyMatcher emptiedExactMatcher = null;
+            MessageListenerGroup exactGroup = mExactKeyListeners.get(
+                    keyedMessage.getKey());
+            if (exactGroup != null) {
+                emptiedExactMatcher = receive(exactGroup, message);
+                matched = true;
+            }
+
+            List<KeyMatcher> emptiedMatchers = null;
+            if (!mCustomMatcherListeners.isEmpty()) {
+                for (MessageListenerGroup group :
+                        mCustomMatcherListeners.values()) {
+                    if (group.mMatcher.matches(keyedMessage)) {
+                        KeyMatcher emptied = receive(group, message);
+                        if (emptied != null) {
+                            if (emptiedMatchers == null) {
+                                emptiedMatchers = new ArrayList<>();
+                            }
+                            emptiedMatchers.add(emptied);
+                        }
+                        matched = true;
+                    }
                 }
             }
 
-            for (KeyMatcher matcher : matchedKeys) {
-                pruneListeners(matcher);
+            if (!matched && !mMessageListeners.isEmpty() &&
+                    (message instanceof CustomCommandResponse ||
+                     message instanceof CommandResponse)) {
+                /*
+                 * This is bit of a hack to read response of custom messages for which keys won't match
+                 * as they are not pre-defined. The response goes to the
+                 * longest-registered listener group.
+                 */
+                MessageListenerGroup group =
+                        mMessageListeners.values().iterator().next();
+                KeyMatcher emptied = receive(group, message);
+                if (emptied != null) {
+                    if (emptiedMatchers == null) {
+                        emptiedMatchers = new ArrayList<>();
+                    }
+                    emptiedMatchers.add(emptied);
+                }
+            }
+
+            if (emptiedExactMatcher != null) {
+                pruneListeners(emptiedExactMatcher);
+            }
+            if (emptiedMatchers != null) {
+                for (KeyMatcher matcher : emptiedMatchers) {
+                    pruneListeners(matcher);
+                }
             }
 
             if (message instanceof SimpleVehicleMessage) {
@@ -204,14 +336,23 @@ public class MessageListenerSink extends AbstractQueuedCallbackSink {
 
     private synchronized void propagateMeasurementFromMessage(
             SimpleVehicleMessage message) {
+        // Only build the measurement if someone is listening for it, and
+        // check the ID up front instead of relying on an exception for the
+        // many messages that aren't measurements.
+        Class<? extends Measurement> measurementType =
+                BaseMeasurement.findClassForId(message.getName());
+        if(measurementType == null ||
+                !mMeasurementTypeListeners.containsKey(measurementType)) {
+            return;
+        }
+
         try {
             Measurement measurement =
-                BaseMeasurement.getMeasurementFromMessage(message);
-            if(mMeasurementTypeListeners.containsKey(measurement.getClass())) {
-                for(Measurement.Listener listener :
-                        mMeasurementTypeListeners.get(measurement.getClass())) {
-                    listener.receive(measurement);
-                }
+                BaseMeasurement.getMeasurementFromMessage(measurementType,
+                        message);
+            for(Measurement.Listener listener :
+                    mMeasurementTypeListeners.get(measurementType)) {
+                listener.receive(measurement);
             }
         } catch(UnrecognizedMeasurementTypeException e) {
             // The message is not a recognized Measurement, we don't propagate
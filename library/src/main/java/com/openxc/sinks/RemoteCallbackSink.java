@@ -1,11 +1,24 @@
 package com.openxc.sinks;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.google.common.base.MoreObjects;
+import com.openxc.messages.KeyedMessage;
+import com.openxc.messages.MessageKey;
+import com.openxc.messages.MessageNameTable;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.remote.CompactMessageBatch;
 import com.openxc.remote.VehicleServiceListener;
 
 /**
@@ -14,19 +27,164 @@ import com.openxc.remote.VehicleServiceListener;
  * This sink is used to send all new messages over an AIDL interface in
  * Android to applications using {@link com.openxc.VehicleManager}. Once
  * registered, a receiver gets all messages regardless of their type or
- * value.
+ * value, unless it sets a subscription to limit them to the keys and message
+ * types it has listeners for.
+ *
+ * Each callback is a binder transaction, so to cut the per-message overhead
+ * this sink waits a few milliseconds to collect a batch of messages while any
+ * listener has enabled batched delivery. Those listeners get the whole batch
+ * in one {@link VehicleServiceListener#receiveBatch(List)} call; the rest
+ * still get one {@link VehicleServiceListener#receive(VehicleMessage)} per
+ * message. With no batched listeners, messages are sent without waiting so
+ * the older listeners don't see any extra latency.
+ * Listeners that share a name table get batches in the smaller
+ * {@link CompactMessageBatch} encoding instead.
  */
 public class RemoteCallbackSink extends AbstractQueuedCallbackSink {
     private final static String TAG = "RemoteCallbackSink";
+    public final static long DEFAULT_BATCH_WINDOW_MILLIS = 10;
+    public final static int DEFAULT_BATCH_SIZE = 64;
 
     private int mListenerCount;
+    // Cleared once the batch window is set explicitly, after which it's no
+    // longer changed as listeners come and go
+    private boolean mDefaultBatchWindow = true;
+    private final Map<IBinder, ListenerState> mListenerStates =
+            new HashMap<>();
     private final RemoteCallbackList<VehicleServiceListener> mListeners =
-            new RemoteCallbackList<>();
+            new RemoteCallbackList<VehicleServiceListener>() {
+                @Override
+                public void onCallbackDied(VehicleServiceListener listener,
+                        Object cookie) {
+                    synchronized(mListeners) {
+                        --mListenerCount;
+                        mListenerStates.remove(listener.asBinder());
+                        updateBatchWindow();
+                    }
+                }
+            };
+    private final List<VehicleMessage> mBatch = new ArrayList<>();
+
+    /**
+     * The delivery options for one registered listener, kept as its cookie in
+     * the RemoteCallbackList.
+     */
+    private static class ListenerState {
+        volatile boolean mBatched;
+        volatile MessageNameTable mNameTable;
+        volatile Subscription mSubscription;
+
+        boolean isBatched() {
+            return mBatched || mNameTable != null;
+        }
+
+        boolean wants(VehicleMessage message) {
+            Subscription subscription = mSubscription;
+            return subscription == null || subscription.matches(message);
+        }
+    }
+
+    /**
+     * The keys and message classes a listener wants to receive.
+     */
+    private static class Subscription {
+        final Set<MessageKey> mKeys;
+        final Set<String> mMessageTypes;
+
+        Subscription(Collection<MessageKey> keys,
+                Collection<String> messageTypes) {
+            mKeys = new HashSet<>(keys);
+            mMessageTypes = new HashSet<>(messageTypes);
+        }
+
+        boolean matches(VehicleMessage message) {
+            if(mMessageTypes.contains(message.getClass().getName())) {
+                return true;
+            }
+            return message instanceof KeyedMessage &&
+                    mKeys.contains(((KeyedMessage) message).getKey());
+        }
+    }
+
+    public RemoteCallbackSink() {
+        super();
+        synchronized(mListeners) {
+            updateBatchWindow();
+        }
+    }
+
+    public RemoteCallbackSink(int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        super(queueCapacity, overflowPolicy);
+        synchronized(mListeners) {
+            updateBatchWindow();
+        }
+    }
+
+    /**
+     * Use this batch window no matter which kinds of listeners are
+     * registered, instead of the default of waiting
+     * {@link #DEFAULT_BATCH_WINDOW_MILLIS} only while a listener has batched
+     * delivery enabled.
+     */
+    @Override
+    public void setBatchWindow(long windowMillis, int maxBatchSize) {
+        synchronized(mListeners) {
+            mDefaultBatchWindow = false;
+            super.setBatchWindow(windowMillis, maxBatchSize);
+        }
+    }
 
     public synchronized void register(VehicleServiceListener listener) {
         synchronized(mListeners) {
-            if(mListeners.register(listener)) {
-                ++mListenerCount;
+            getState(listener);
+        }
+    }
+
+    /**
+     * Send messages to the listener in batches from now on. The listener is
+     * registered if it wasn't already.
+     */
+    public void enableBatchedDelivery(VehicleServiceListener listener) {
+        synchronized(mListeners) {
+            getState(listener).mBatched = true;
+            updateBatchWindow();
+        }
+    }
+
+    /**
+     * Send messages to the listener in compact batches from now on, using the
+     * listener's name table. The listener is registered if it wasn't already.
+     */
+    public void enableCompactDelivery(VehicleServiceListener listener,
+            MessageNameTable nameTable) {
+        synchronized(mListeners) {
+            getState(listener).mNameTable = nameTable;
+            updateBatchWindow();
+        }
+    }
+
+    /**
+     * Only send the listener messages that have one of the keys, or whose
+     * class name is one of the message types. The listener is registered if
+     * it wasn't already.
+     */
+    public void setSubscription(VehicleServiceListener listener,
+            Collection<MessageKey> keys, Collection<String> messageTypes) {
+        Subscription subscription = new Subscription(keys, messageTypes);
+        synchronized(mListeners) {
+            getState(listener).mSubscription = subscription;
+        }
+    }
+
+    /**
+     * Go back to sending every message to the listener.
+     */
+    public void clearSubscription(VehicleServiceListener listener) {
+        synchronized(mListeners) {
+            ListenerState state = mListenerStates.get(listener.asBinder());
+            if(state != null) {
+                state.mSubscription = null;
             }
         }
     }
@@ -36,6 +194,8 @@ public class RemoteCallbackSink extends AbstractQueuedCallbackSink {
             if(mListeners.unregister(listener)) {
                 --mListenerCount;
             }
+            mListenerStates.remove(listener.asBinder());
+            updateBatchWindow();
         }
     }
 
@@ -47,15 +207,101 @@ public class RemoteCallbackSink extends AbstractQueuedCallbackSink {
     public String toString() {
         return MoreObjects.toStringHelper(this)
             .add("numListeners", getListenerCount())
+            .add("queueDepth", getQueueDepth())
+            .add("droppedMessages", getDroppedMessageCount())
             .toString();
     }
 
+    /**
+     * Find the state for a listener, registering it if it's new.
+     *
+     * Must be called with mListeners locked.
+     */
+    private ListenerState getState(VehicleServiceListener listener) {
+        ListenerState state = mListenerStates.get(listener.asBinder());
+        if(state == null) {
+            state = new ListenerState();
+            if(mListeners.register(listener, state)) {
+                ++mListenerCount;
+                mListenerStates.put(listener.asBinder(), state);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Only wait for a batch to fill up if some listener gets batches.
+     *
+     * Must be called with mListeners locked.
+     */
+    private void updateBatchWindow() {
+        if(!mDefaultBatchWindow) {
+            return;
+        }
+
+        long windowMillis = 0;
+        for(ListenerState state : mListenerStates.values()) {
+            if(state.isBatched()) {
+                windowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+                break;
+            }
+        }
+        super.setBatchWindow(windowMillis, DEFAULT_BATCH_SIZE);
+    }
+
+    @Override
+    protected void propagateMessages(VehicleMessage[] messages, int count) {
+        synchronized(mListeners) {
+            int i = mListeners.beginBroadcast();
+            while(i > 0) {
+                i--;
+                ListenerState state =
+                        (ListenerState) mListeners.getBroadcastCookie(i);
+                for(int m = 0; m < count; m++) {
+                    if(state.wants(messages[m])) {
+                        mBatch.add(messages[m]);
+                    }
+                }
+
+                VehicleServiceListener listener =
+                        mListeners.getBroadcastItem(i);
+                MessageNameTable nameTable = state.mNameTable;
+                try {
+                    if(nameTable != null) {
+                        if(!mBatch.isEmpty()) {
+                            listener.receiveCompactBatch(
+                                    new CompactMessageBatch(nameTable, mBatch));
+                        }
+                    } else if(state.mBatched && mBatch.size() > 1) {
+                        listener.receiveBatch(mBatch);
+                    } else {
+                        for(VehicleMessage message : mBatch) {
+                            listener.receive(message);
+                        }
+                    }
+                } catch(RemoteException e) {
+                    Log.w(TAG, "Couldn't notify application " +
+                            "listener -- did it crash?", e);
+                } finally {
+                    mBatch.clear();
+                }
+            }
+            mListeners.finishBroadcast();
+        }
+    }
+
     @Override
     protected void propagateMessage(VehicleMessage message) {
         synchronized(mListeners) {
             int i = mListeners.beginBroadcast();
             while(i > 0) {
                 i--;
+                ListenerState state =
+                        (ListenerState) mListeners.getBroadcastCookie(i);
+                if(!state.wants(message)) {
+                    continue;
+                }
+
                 try {
                     mListeners.getBroadcastItem(i).receive(message);
                 } catch(RemoteException e) {
@@ -0,0 +1,872 @@
+package com.openxc.sinks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.google.common.base.MoreObjects;
+import com.openxc.messages.UnrecognizedMessageTypeException;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.JsonFormatter;
+
+/**
+ * A first-in, first-out queue of vehicle messages kept on disk, so they
+ * survive a long network outage (or the app being restarted) until they can
+ * be uploaded.
+ *
+ * Messages are appended to a series of segment files in a directory, each
+ * holding up to a fixed number of bytes. A consumer reads a batch with
+ * {@link #peek(int)} and calls {@link #acknowledge()} once it has been
+ * delivered - only then does the consumer offset move past the batch, and
+ * it's saved to disk so delivery picks up from the same spot after a restart.
+ * Segments are deleted once everything in them has been acknowledged.
+ *
+ * The total size of the segments is capped. When an append would go over the
+ * cap, the {@link EvictionPolicy} decides whether the oldest segment is
+ * thrown away or the new message is dropped.
+ *
+ * Each record is a small header (the payload length, the time it was queued
+ * and a CRC of the payload) followed by the message as JSON. A record torn by
+ * a crash part way through an append fails the check when the queue is
+ * reopened, and the segment is truncated before it. The same happens if an
+ * append fails part way, e.g. because the storage is full, or if a damaged
+ * record turns up while reading.
+ *
+ * Appends are buffered and written out before each read, on {@link #flush()}
+ * and {@link #close()} - they aren't synced to storage, so a record may be
+ * lost if the device loses power, but not if the app dies. A batch is read
+ * through one buffered stream per segment, and the time the oldest record was
+ * queued is kept in memory, so only {@link #peek(int)} and
+ * {@link #peekPayloads(int, long)} read from storage.
+ */
+public class SegmentedMessageQueue implements Closeable {
+    private static final String TAG = "SegmentedMessageQueue";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String CONSUMER_FILENAME = "consumer";
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final long DEFAULT_MAXIMUM_BYTES = 64 * 1024 * 1024;
+
+    public enum EvictionPolicy {
+        /**
+         * Delete the oldest segment, losing whatever in it hasn't been
+         * delivered, to make room for new messages.
+         */
+        DROP_OLDEST,
+        /**
+         * Keep the queued messages and drop new ones until there's room.
+         */
+        DROP_NEWEST
+    }
+
+    private final File mDirectory;
+    private final long mMaximumBytes;
+    private final int mSegmentBytes;
+    private final EvictionPolicy mEvictionPolicy;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private final CRC32 mCrc = new CRC32();
+    // When the last record read by readRecord() was queued
+    private long mReadTimestamp;
+    private OutputStream mWriter;
+    // Set if the tail segment couldn't be cut back after a failed append, so
+    // nothing more can safely be added to it
+    private boolean mTailDamaged;
+    private boolean mClosed;
+
+    // Where the consumer has acknowledged up to
+    private long mHeadOffset;
+    private long mHeadConsumedRecords;
+    // When the record the consumer is up to was queued
+    private long mHeadTimestamp;
+    // Where the last batch returned by peek() ends, if it hasn't been
+    // acknowledged, and when the record after it was queued - 0 until it's
+    // appended, if the batch went to the end of the queue
+    private Segment mPeekSegment;
+    private long mPeekOffset;
+    private long mPeekConsumedRecords;
+    private long mPeekNextTimestamp;
+
+    private long mTotalBytes;
+    private long mQueuedRecords;
+    private long mEvictedRecords;
+    private long mDroppedRecords;
+
+    /**
+     * Open the queue in a directory with the default size cap, segment size
+     * and eviction policy, picking up anything queued there before.
+     */
+    public SegmentedMessageQueue(File directory) throws IOException {
+        this(directory, DEFAULT_MAXIMUM_BYTES, DEFAULT_SEGMENT_BYTES,
+                EvictionPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param directory where to keep the segments - it's created if it
+     *      doesn't exist. Nothing else should write to it.
+     * @param maximumBytes the most space the segments can take up. It must
+     *      be at least twice the segment size.
+     * @param segmentBytes how big each segment grows before a new one is
+     *      started.
+     * @param evictionPolicy what to do when an append would go over the cap.
+     * @throws IOException if the directory or its segments can't be opened.
+     */
+    public SegmentedMessageQueue(File directory, long maximumBytes,
+            int segmentBytes, EvictionPolicy evictionPolicy)
+            throws IOException {
+        if(segmentBytes <= RECORD_HEADER_SIZE ||
+                maximumBytes < 2L * segmentBytes) {
+            throw new IllegalArgumentException("Invalid segment size " +
+                    segmentBytes + " for maximum size " + maximumBytes);
+        }
+
+        mDirectory = directory;
+        mMaximumBytes = maximumBytes;
+        mSegmentBytes = segmentBytes;
+        mEvictionPolicy = evictionPolicy;
+
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create queue directory " +
+                    mDirectory);
+        }
+        recover();
+    }
+
+    /**
+     * Add a message to the end of the queue.
+     *
+     * @return false if the message was dropped, because the queue is full
+     *      and the policy is {@link EvictionPolicy#DROP_NEWEST} or the
+     *      message couldn't be written.
+     */
+    public boolean offer(VehicleMessage message) {
+        return append(JsonFormatter.serialize(message).getBytes(UTF8));
+    }
+
+    private synchronized boolean append(byte[] payload) {
+        if(mClosed) {
+            mDroppedRecords++;
+            return false;
+        }
+
+        long recordSize = RECORD_HEADER_SIZE + payload.length;
+        if(!makeRoom(recordSize)) {
+            mDroppedRecords++;
+            return false;
+        }
+
+        try {
+            Segment tail = mSegments.peekLast();
+            if(tail == null || tail.length >= mSegmentBytes || mTailDamaged) {
+                tail = startSegment();
+            } else if(mWriter == null) {
+                // Carry on appending to the segment left from last time
+                mWriter = openWriter(tail);
+            }
+
+            long timestamp = System.currentTimeMillis();
+            mCrc.reset();
+            mCrc.update(payload);
+            writeInt(mWriter, payload.length);
+            writeLong(mWriter, timestamp);
+            writeInt(mWriter, (int) mCrc.getValue());
+            mWriter.write(payload);
+
+            if(tail.records == 0) {
+                tail.firstTimestamp = timestamp;
+            }
+            if(mQueuedRecords == 0) {
+                mHeadTimestamp = timestamp;
+            }
+            if(mPeekSegment != null && mPeekNextTimestamp == 0) {
+                // The first record after a batch that read to the end
+                mPeekNextTimestamp = timestamp;
+            }
+            tail.length += recordSize;
+            tail.records++;
+            mTotalBytes += recordSize;
+            mQueuedRecords++;
+            return true;
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to queue message in " + mDirectory, e);
+            mDroppedRecords++;
+            repairTail();
+            return false;
+        }
+    }
+
+    /**
+     * Read up to a number of messages from the front of the queue, without
+     * removing them.
+     *
+     * Calling this again before {@link #acknowledge()} returns the same
+     * messages (or more of them), so a batch that fails to send can be
+     * retried.
+     *
+     * @return the messages, which may be empty if nothing is queued.
+     */
+    public List<VehicleMessage> peek(int maximumRecords) throws IOException {
+        List<VehicleMessage> messages = new ArrayList<>();
+        for(byte[] payload : peekPayloads(maximumRecords, Long.MAX_VALUE)) {
+            VehicleMessage message = deserialize(payload);
+            if(message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Read messages from the front of the queue as they're stored - each one
+     * serialized as a JSON object, in UTF-8 - without removing them.
+     *
+     * This is the same as {@link #peek(int)}, but saves deserializing
+     * messages that are only going to be serialized again.
+     *
+     * @param maximumRecords the most messages to return.
+     * @param maximumBytes the most bytes of messages to return, although the
+     *      first message is returned however big it is.
+     */
+    public synchronized List<byte[]> peekPayloads(int maximumRecords,
+            long maximumBytes) throws IOException {
+        checkOpen();
+        try {
+            flushWriter();
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to write queued messages in " + mDirectory +
+                    ", reading what was saved", e);
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        long bytes = 0;
+        mPeekSegment = mSegments.peekFirst();
+        mPeekOffset = mHeadOffset;
+        mPeekConsumedRecords = mHeadConsumedRecords;
+        mPeekNextTimestamp = 0;
+        if(mPeekSegment == null) {
+            return payloads;
+        }
+
+        DataInputStream input = null;
+        boolean full = false;
+        try {
+            for(Segment segment : mSegments) {
+                if(segment != mPeekSegment) {
+                    if(mPeekOffset < mPeekSegment.length) {
+                        break;
+                    }
+                    mPeekSegment = segment;
+                    mPeekOffset = 0;
+                    mPeekConsumedRecords = 0;
+                    if(input != null) {
+                        input.close();
+                        input = null;
+                    }
+                }
+
+                while(mPeekOffset < segment.length) {
+                    if(input == null) {
+                        input = openReader(segment, mPeekOffset);
+                    }
+                    byte[] payload;
+                    try {
+                        payload = readRecord(input,
+                                segment.length - mPeekOffset);
+                    } catch(IOException e) {
+                        Log.w(TAG, "Truncating queue segment " +
+                                segment.file + " at a damaged record (" +
+                                e.getMessage() + ")");
+                        truncateSegment(segment, mPeekOffset,
+                                mPeekConsumedRecords);
+                        break;
+                    }
+                    if(payloads.isEmpty()) {
+                        // Always the oldest record, even if damaged ones
+                        // in front of it were just thrown away
+                        mHeadTimestamp = mReadTimestamp;
+                    } else if(payloads.size() >= maximumRecords ||
+                            bytes + payload.length > maximumBytes) {
+                        // Read past the batch so acknowledge() knows when
+                        // the next oldest record was queued
+                        mPeekNextTimestamp = mReadTimestamp;
+                        full = true;
+                        break;
+                    }
+                    mPeekOffset += RECORD_HEADER_SIZE + payload.length;
+                    mPeekConsumedRecords++;
+                    bytes += payload.length;
+                    payloads.add(payload);
+                }
+
+                if(full) {
+                    break;
+                }
+            }
+        } finally {
+            if(input != null) {
+                input.close();
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Remove the messages returned by the last call to {@link #peek(int)} or
+     * {@link #peekPayloads(int, long)} from the queue.
+     *
+     * Messages that have been evicted since then aren't affected.
+     */
+    public synchronized void acknowledge() throws IOException {
+        checkOpen();
+        Segment peeked = mPeekSegment;
+        mPeekSegment = null;
+        if(peeked == null || !mSegments.contains(peeked)) {
+            // Nothing peeked, or it was evicted in the meantime
+            return;
+        }
+
+        boolean moved = false;
+        while(mSegments.peekFirst() != peeked) {
+            // The batch started in an earlier segment, which it read to the
+            // end
+            mQueuedRecords -= mSegments.peekFirst().records -
+                    mHeadConsumedRecords;
+            deleteHead();
+            moved = true;
+        }
+
+        long acknowledged = mPeekConsumedRecords - mHeadConsumedRecords;
+        if(acknowledged > 0) {
+            mHeadOffset = mPeekOffset;
+            mHeadConsumedRecords = mPeekConsumedRecords;
+            mQueuedRecords -= acknowledged;
+            if(mHeadOffset >= peeked.length && mSegments.size() > 1) {
+                deleteHead();
+            }
+            moved = true;
+        }
+
+        if(moved) {
+            if(mPeekNextTimestamp != 0) {
+                mHeadTimestamp = mPeekNextTimestamp;
+            }
+            saveConsumerOffset();
+        }
+    }
+
+    /**
+     * Write buffered appends out to the segment file.
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        flushWriter();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(mClosed) {
+            return;
+        }
+        mClosed = true;
+        if(mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
+    }
+
+    /**
+     * @return the number of messages queued and not yet acknowledged.
+     */
+    public synchronized long size() {
+        return mQueuedRecords;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mQueuedRecords == 0;
+    }
+
+    /**
+     * @return the number of bytes of messages queued and not yet
+     *      acknowledged.
+     */
+    public synchronized long getBacklogBytes() {
+        return mTotalBytes - mHeadOffset;
+    }
+
+    /**
+     * @return the space taken up by the segments, including acknowledged
+     *      messages in a segment that's still being read.
+     */
+    public synchronized long getDiskBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return how many milliseconds ago the message at the front of the queue
+     *      was added, or 0 if the queue is empty.
+     */
+    public synchronized long getOldestRecordAgeMillis() {
+        if(mQueuedRecords == 0 || mClosed) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - mHeadTimestamp);
+    }
+
+    /**
+     * @return the number of queued messages thrown away by the
+     *      {@link EvictionPolicy#DROP_OLDEST} policy.
+     */
+    public synchronized long getEvictedRecordCount() {
+        return mEvictedRecords;
+    }
+
+    /**
+     * @return the number of new messages that couldn't be queued, or were
+     *      lost because an append failed or a record was damaged.
+     */
+    public synchronized long getDroppedRecordCount() {
+        return mDroppedRecords;
+    }
+
+    public long getMaximumBytes() {
+        return mMaximumBytes;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("directory", mDirectory)
+            .add("records", mQueuedRecords)
+            .add("backlogBytes", getBacklogBytes())
+            .add("segments", mSegments.size())
+            .add("evicted", mEvictedRecords)
+            .add("dropped", mDroppedRecords)
+            .toString();
+    }
+
+    private boolean makeRoom(long recordSize) {
+        while(mTotalBytes + recordSize > mMaximumBytes) {
+            if(mEvictionPolicy == EvictionPolicy.DROP_NEWEST ||
+                    mSegments.size() < 2) {
+                return false;
+            }
+
+            Segment head = mSegments.peekFirst();
+            long evicted = head.records - mHeadConsumedRecords;
+            mEvictedRecords += evicted;
+            mQueuedRecords -= evicted;
+            Log.w(TAG, "Queue in " + mDirectory + " is full, evicted " +
+                    evicted + " messages");
+            deleteHead();
+            for(Segment segment : mSegments) {
+                if(segment.records > 0) {
+                    mHeadTimestamp = segment.firstTimestamp;
+                    break;
+                }
+            }
+            try {
+                saveConsumerOffset();
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to save consumer offset in " +
+                        mDirectory, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delete the head segment and move the consumer to the start of the next
+     * one. Its remaining records must already have been accounted for.
+     */
+    private void deleteHead() {
+        Segment head = mSegments.removeFirst();
+        mTotalBytes -= head.length;
+        mHeadOffset = 0;
+        mHeadConsumedRecords = 0;
+        if(!head.file.delete()) {
+            Log.w(TAG, "Unable to delete queue segment " + head.file);
+        }
+    }
+
+    private Segment startSegment() throws IOException {
+        Segment tail = mSegments.peekLast();
+        long id = tail == null ? 0 : tail.id + 1;
+        if(mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
+
+        Segment segment = new Segment(id, segmentFile(id));
+        mWriter = openWriter(segment);
+        mSegments.addLast(segment);
+        mTailDamaged = false;
+        return segment;
+    }
+
+    private OutputStream openWriter(Segment segment) throws IOException {
+        return new BufferedOutputStream(openSegmentStream(segment.file),
+                WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * Open a segment file for appending - tests override this to make writes
+     * fail.
+     */
+    OutputStream openSegmentStream(File file) throws IOException {
+        return new FileOutputStream(file, true);
+    }
+
+    private void flushWriter() throws IOException {
+        if(mWriter != null) {
+            try {
+                mWriter.flush();
+            } catch(IOException e) {
+                repairTail();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * After an append fails, cut the tail segment back to the last record
+     * that was written whole, so later appends don't follow a partial one.
+     * Buffered records that didn't make it to the file are lost.
+     */
+    private void repairTail() {
+        if(mWriter != null) {
+            try {
+                // Write out what we can - whole records are kept below
+                mWriter.close();
+            } catch(IOException e) {
+                // Expected, it's probably what failed in the first place
+            }
+            mWriter = null;
+        }
+
+        Segment tail = mSegments.peekLast();
+        if(tail == null) {
+            return;
+        }
+
+        long offset = 0;
+        long records = 0;
+        try {
+            RandomAccessFile file = new RandomAccessFile(tail.file, "r");
+            try {
+                long end = Math.min(file.length(), tail.length);
+                while(offset < end) {
+                    file.seek(offset);
+                    try {
+                        readRecord(file, end - offset);
+                    } catch(IOException e) {
+                        break;
+                    }
+                    offset = file.getFilePointer();
+                    records++;
+                }
+            } finally {
+                file.close();
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to check queue segment " + tail.file +
+                    ", starting a new one", e);
+            mTailDamaged = true;
+            return;
+        }
+        truncateSegment(tail, offset, records);
+    }
+
+    /**
+     * Throw away everything in a segment from the given offset on, keeping
+     * the given number of records before it.
+     */
+    private void truncateSegment(Segment segment, long offset, long records) {
+        boolean tail = segment == mSegments.peekLast();
+        if(tail && mWriter != null) {
+            try {
+                mWriter.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to close queue segment " + segment.file,
+                        e);
+            }
+            mWriter = null;
+        }
+
+        long lost = segment.records - records;
+        if(lost > 0) {
+            Log.w(TAG, "Lost " + lost + " queued messages from " +
+                    segment.file);
+        }
+        mQueuedRecords -= lost;
+        mDroppedRecords += lost;
+        mTotalBytes -= segment.length - offset;
+        segment.length = offset;
+        segment.records = records;
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                if(file.length() > offset) {
+                    file.setLength(offset);
+                }
+            } finally {
+                file.close();
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to truncate queue segment " + segment.file,
+                    e);
+            if(tail) {
+                mTailDamaged = true;
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(mClosed) {
+            throw new IOException("Queue in " + mDirectory + " is closed");
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(mDirectory, String.format(Locale.US, "%020d%s", id,
+                    SEGMENT_EXTENSION));
+    }
+
+    /**
+     * Load the segments and consumer offset left in the directory, dropping
+     * any torn records at the end of a segment.
+     */
+    private void recover() throws IOException {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        if(files == null) {
+            throw new IOException("Unable to list queue directory " +
+                    mDirectory);
+        }
+        // The names are zero-padded, so they sort in order
+        Arrays.sort(files);
+
+        long consumerSegment = 0;
+        long consumerOffset = 0;
+        File consumerFile = new File(mDirectory, CONSUMER_FILENAME);
+        if(consumerFile.exists()) {
+            DataInputStream input = new DataInputStream(
+                    new FileInputStream(consumerFile));
+            try {
+                consumerSegment = input.readLong();
+                consumerOffset = input.readLong();
+            } catch(EOFException e) {
+                Log.w(TAG, "Consumer offset in " + mDirectory +
+                        " is incomplete, starting from the oldest message");
+            } finally {
+                input.close();
+            }
+        }
+
+        for(File file : files) {
+            long id;
+            try {
+                String name = file.getName();
+                id = Long.parseLong(name.substring(0,
+                            name.length() - SEGMENT_EXTENSION.length()));
+            } catch(NumberFormatException e) {
+                Log.w(TAG, "Ignoring unexpected file " + file);
+                continue;
+            }
+
+            if(id < consumerSegment) {
+                // Already delivered, but not deleted before we stopped
+                file.delete();
+                continue;
+            }
+
+            Segment segment = new Segment(id, file);
+            long headOffset = id == consumerSegment ? consumerOffset : 0;
+            scan(segment, headOffset);
+            if(mSegments.isEmpty()) {
+                mHeadOffset = Math.min(headOffset, segment.length);
+            }
+            mSegments.addLast(segment);
+            mTotalBytes += segment.length;
+        }
+
+        Log.i(TAG, "Opened queue in " + mDirectory + " with " +
+                mQueuedRecords + " messages waiting");
+    }
+
+    /**
+     * Count the records in a segment, truncating it at the first one that's
+     * incomplete or corrupt.
+     */
+    private void scan(Segment segment, long headOffset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            long length = file.length();
+            long offset = 0;
+            while(offset < length) {
+                file.seek(offset);
+                try {
+                    readRecord(file, length - offset);
+                } catch(IOException e) {
+                    Log.w(TAG, "Truncating queue segment " + segment.file +
+                            " at a damaged record (" + e.getMessage() + ")");
+                    file.setLength(offset);
+                    break;
+                }
+
+                if(offset < headOffset) {
+                    if(mSegments.isEmpty()) {
+                        mHeadConsumedRecords++;
+                    }
+                } else {
+                    if(mQueuedRecords == 0) {
+                        mHeadTimestamp = mReadTimestamp;
+                    }
+                    mQueuedRecords++;
+                }
+                if(segment.records == 0) {
+                    segment.firstTimestamp = mReadTimestamp;
+                }
+                segment.records++;
+                offset = file.getFilePointer();
+            }
+            segment.length = offset;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void saveConsumerOffset() throws IOException {
+        Segment head = mSegments.peekFirst();
+        File temporary = new File(mDirectory, CONSUMER_FILENAME + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+                new FileOutputStream(temporary));
+        try {
+            output.writeLong(head != null ? head.id : 0);
+            output.writeLong(mHeadOffset);
+        } finally {
+            output.close();
+        }
+
+        if(!temporary.renameTo(new File(mDirectory, CONSUMER_FILENAME))) {
+            throw new IOException("Unable to save consumer offset in " +
+                    mDirectory);
+        }
+    }
+
+    private DataInputStream openReader(Segment segment, long offset)
+            throws IOException {
+        FileInputStream file = new FileInputStream(segment.file);
+        try {
+            file.getChannel().position(offset);
+        } catch(IOException e) {
+            file.close();
+            throw e;
+        }
+        return new DataInputStream(new BufferedInputStream(file,
+                    READ_BUFFER_SIZE));
+    }
+
+    /**
+     * Read the record at the input's position, leaving it at the start of
+     * the next one, and note when it was queued in mReadTimestamp.
+     *
+     * @param remaining the bytes left in the segment from the start of the
+     *      record.
+     * @throws IOException if the record is incomplete or fails its CRC
+     *      check.
+     */
+    private byte[] readRecord(DataInput input, long remaining)
+            throws IOException {
+        int length = input.readInt();
+        long timestamp = input.readLong();
+        int crc = input.readInt();
+        if(length < 0 || length > remaining - RECORD_HEADER_SIZE) {
+            throw new EOFException("Record length " + length +
+                    " runs past the end of the segment");
+        }
+
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        mCrc.reset();
+        mCrc.update(payload);
+        if((int) mCrc.getValue() != crc) {
+            throw new IOException("Record failed its CRC check");
+        }
+        mReadTimestamp = timestamp;
+        return payload;
+    }
+
+    private VehicleMessage deserialize(byte[] payload) {
+        String data = new String(payload, UTF8);
+        try {
+            return JsonFormatter.deserialize(data);
+        } catch(UnrecognizedMessageTypeException e) {
+            Log.w(TAG, "Skipping queued message in an unexpected format: " +
+                    data);
+            return null;
+        }
+    }
+
+    private static void writeInt(OutputStream output, int value)
+            throws IOException {
+        output.write(value >>> 24);
+        output.write(value >>> 16);
+        output.write(value >>> 8);
+        output.write(value);
+    }
+
+    private static void writeLong(OutputStream output, long value)
+            throws IOException {
+        writeInt(output, (int) (value >>> 32));
+        writeInt(output, (int) value);
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        long length;
+        long records;
+        // When the first record was queued
+        long firstTimestamp;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+}
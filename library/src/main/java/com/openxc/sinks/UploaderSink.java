@@ -1,23 +1,32 @@
 package com.openxc.sinks;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHeader;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -26,8 +35,14 @@ import android.content.Context;
 import android.util.Log;
 
 import com.google.common.base.MoreObjects;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.openxc.messages.SerializationException;
+import com.openxc.messages.UnrecognizedMessageTypeException;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryFormatter;
 import com.openxc.messages.formatters.JsonFormatter;
+import com.openxc.util.BoundedRingQueue;
 
 /**
  * Upload a stream of all incoming vehicle data to a remote HTTP server.
@@ -38,32 +53,122 @@ import com.openxc.messages.formatters.JsonFormatter;
  *      [{"name": "steering_wheel_angle", "value": 42},
  *          {"name": "parking_brake_status", "value": false}]
  *
- * The UploaderSink has a small buffer to preserve records across short network
- * outages, but do not expect it to be especially reliable. No guarantee is
- * provided about the preservation of records - to do that, a subclass would
- * need to write the data to a file when no network connection is available.
+ * Records are stored on disk in a {@link SegmentedMessageQueue} until they're
+ * uploaded, so they're preserved across network outages and restarts of the
+ * app. Messages are handed to the uploader thread through a bounded
+ * in-memory queue and written to disk there, so receiving a message never
+ * waits on storage - if the uploader falls that far behind, new messages are
+ * dropped and counted. A batch is only removed from the queue once the
+ * server has accepted it - if the upload fails, the same batch is retried.
+ * The queue's size is
+ * capped, and once it's full its eviction policy decides whether the oldest
+ * or the newest records are thrown away. By default each upload URI gets its
+ * own queue in the app's private files directory.
+ *
+ * By default records are uploaded in batches of up to 25, or whatever has
+ * been queued after 5 seconds. For higher volumes, larger batches can be sent
+ * less often with {@link #setBatchPolicy(int, int, long)}, e.g. up to 1MB or
+ * 2 seconds of records at a time, and compressed with gzip if the server
+ * accepts a "Content-Encoding: gzip" request body
+ * ({@link #setCompressionEnabled(boolean)}). Either way, JSON records are
+ * written into the request straight from the queue without being
+ * deserialized, the HTTP connection is kept alive between batches, and failed
+ * uploads are retried after an exponentially increasing, randomized delay.
+ *
+ * Records can be uploaded in the binary format instead, as a stream of
+ * length-delimited protobuf VehicleMessages with the content type
+ * "application/x-protobuf", which is much smaller and cheaper to produce. The
+ * encoding for an endpoint is chosen with an "encoding" parameter in its URI,
+ * e.g. "http://example.com/records?encoding=protobuf", or with
+ * {@link #setEncoding(Encoding)}. If the server answers a protobuf upload with
+ * "415 Unsupported Media Type", the sink goes back to JSON for that endpoint
+ * and sends the batch again. Records that can't be represented in the binary
+ * format (e.g. with extras) are skipped.
  */
 public class UploaderSink extends ContextualVehicleDataSink {
     private final static String TAG = "UploaderSink";
-    private final static int UPLOAD_BATCH_SIZE = 25;
-    private final static int MAXIMUM_QUEUED_RECORDS = 5000;
     private final static int HTTP_TIMEOUT = 5000;
+    private final static int SC_UNPROCESSABLE_ENTITY = 422;
+    private final static String QUEUE_DIRECTORY_PREFIX = "upload-queue-";
+    private final static String ENCODING_PARAMETER = "encoding";
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int INCOMING_CAPACITY = 4096;
+    private final static long IDLE_WAIT_MILLIS = 5000;
+    private final static int NOT_WAITING = Integer.MAX_VALUE;
+
+    public final static int DEFAULT_BATCH_RECORDS = 25;
+    public final static int DEFAULT_BATCH_BYTES = 1024 * 1024;
+    public final static long DEFAULT_BATCH_DELAY_MILLIS = 5000;
+    public final static long DEFAULT_INITIAL_RETRY_MILLIS = 5000;
+    public final static long DEFAULT_MAXIMUM_RETRY_MILLIS = 5 * 60 * 1000;
+
+    public enum Encoding {
+        JSON("application/json"),
+        PROTOBUF("application/x-protobuf");
+
+        private final String mContentType;
+
+        private Encoding(String contentType) {
+            mContentType = contentType;
+        }
+
+        public String getContentType() {
+            return mContentType;
+        }
+    }
 
     private URI mUri;
-    private BlockingQueue<VehicleMessage> mRecordQueue =
-            new LinkedBlockingQueue<>(MAXIMUM_QUEUED_RECORDS);
+    private volatile Encoding mEncoding;
+    private SegmentedMessageQueue mRecordQueue;
+    private final BoundedRingQueue<VehicleMessage> mIncoming =
+            new BoundedRingQueue<>(INCOMING_CAPACITY);
+    private final AtomicLong mIncomingDroppedCount = new AtomicLong();
     private Lock mQueueLock = new ReentrantLock();
     private Condition mRecordsQueued = mQueueLock.newCondition();
-    private UploaderThread mUploader = new UploaderThread();
+    // How many messages waiting in mIncoming wake the uploader thread, while
+    // it's waiting
+    private volatile int mWakeThreshold = NOT_WAITING;
+    private volatile int mBatchRecords = DEFAULT_BATCH_RECORDS;
+    private volatile int mBatchBytes = DEFAULT_BATCH_BYTES;
+    private volatile long mBatchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
+    private volatile boolean mCompressionEnabled;
+    private volatile long mInitialRetryMillis = DEFAULT_INITIAL_RETRY_MILLIS;
+    private volatile long mMaximumRetryMillis = DEFAULT_MAXIMUM_RETRY_MILLIS;
+    private volatile long mUploadedCount;
+    private volatile long mUploadedBytes;
+    private volatile long mRequestCount;
+    private volatile long mFailedRequestCount;
+    private volatile long mUnencodableCount;
+    private volatile long mRejectedCount;
+    private UploaderThread mUploader;
 
     /**
-     * Initialize and start a new UploaderSink immediately.
+     * Initialize and start a new UploaderSink immediately, queueing records
+     * in the default directory for the URI.
      *
      * @param uri the URI to send HTTP POST requests to with the JSON data.
+     * @throws DataSinkException if the queue couldn't be opened.
      */
-    public UploaderSink(Context context, URI uri) {
+    public UploaderSink(Context context, URI uri) throws DataSinkException {
+        this(context, uri, openQueue(getDefaultQueueDirectory(context, uri)));
+    }
+
+    /**
+     * Initialize and start a new UploaderSink immediately, queueing records
+     * until they're uploaded in the given queue. The queue is closed when the
+     * sink is stopped.
+     *
+     * @param uri the URI to send HTTP POST requests to with the JSON data.
+     * @param queue the queue to store records in while they wait to be
+     *      uploaded, with its own size cap and eviction policy.
+     */
+    public UploaderSink(Context context, URI uri,
+            SegmentedMessageQueue queue) {
         super(context);
         mUri = uri;
+        mEncoding = parseEncoding(uri);
+        mRecordQueue = queue;
+        mUploader = new UploaderThread();
     }
 
     public UploaderSink(Context context, String path) throws DataSinkException {
@@ -73,21 +178,177 @@ public class UploaderSink extends ContextualVehicleDataSink {
     @Override
     public void stop() {
         mUploader.done();
+        signalUploader();
     }
 
     @Override
     public void receive(VehicleMessage message) {
-        mRecordQueue.offer(message);
-        if(mRecordQueue.size() >= UPLOAD_BATCH_SIZE) {
-            try {
-                mQueueLock.lock();
-                mRecordsQueued.signal();
-            } finally {
-                mQueueLock.unlock();
-            }
+        if(!mIncoming.offer(message)) {
+            mIncomingDroppedCount.incrementAndGet();
+        }
+        if(mIncoming.size() >= mWakeThreshold) {
+            signalUploader();
         }
     }
 
+    /**
+     * Control how records are grouped into requests. A batch is sent as soon
+     * as it's full, or once its oldest record has waited for the delay.
+     *
+     * @param maximumRecords the most records to send in a request.
+     * @param maximumBytes the most bytes of (uncompressed) JSON to send in a
+     *      request - a single record bigger than this is sent by itself.
+     * @param maximumDelayMillis the longest a record waits for its batch to
+     *      fill before it's sent anyway.
+     */
+    public void setBatchPolicy(int maximumRecords, int maximumBytes,
+            long maximumDelayMillis) {
+        if(maximumRecords < 1 || maximumBytes < 1 || maximumDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid batch policy: " +
+                    maximumRecords + " records, " + maximumBytes +
+                    " bytes, " + maximumDelayMillis + "ms");
+        }
+        mBatchRecords = maximumRecords;
+        mBatchBytes = maximumBytes;
+        mBatchDelayMillis = maximumDelayMillis;
+        signalUploader();
+    }
+
+    public int getBatchRecords() {
+        return mBatchRecords;
+    }
+
+    public int getBatchBytes() {
+        return mBatchBytes;
+    }
+
+    public long getBatchDelayMillis() {
+        return mBatchDelayMillis;
+    }
+
+    /**
+     * Change how records are encoded for upload, overriding the URI.
+     */
+    public void setEncoding(Encoding encoding) {
+        mEncoding = encoding;
+    }
+
+    /**
+     * @return the encoding records are uploaded in - this goes back to JSON
+     *      if the server doesn't accept another encoding.
+     */
+    public Encoding getEncoding() {
+        return mEncoding;
+    }
+
+    /**
+     * Compress request bodies with gzip. The server must accept requests
+     * with "Content-Encoding: gzip".
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Control how long to wait before retrying a failed upload. The delay
+     * doubles with each consecutive failure up to the maximum, and a random
+     * amount of up to half of it is taken off so many vehicles that lost
+     * their connection at the same time don't all retry at once.
+     */
+    public void setRetryPolicy(long initialMillis, long maximumMillis) {
+        if(initialMillis < 1 || maximumMillis < initialMillis) {
+            throw new IllegalArgumentException("Invalid retry policy: " +
+                    initialMillis + "ms to " + maximumMillis + "ms");
+        }
+        mInitialRetryMillis = initialMillis;
+        mMaximumRetryMillis = maximumMillis;
+    }
+
+    /**
+     * @return the directory records for the URI are queued in if no queue is
+     *      given to the constructor.
+     */
+    public static File getDefaultQueueDirectory(Context context, URI uri) {
+        return new File(context.getFilesDir(), QUEUE_DIRECTORY_PREFIX +
+                Integer.toHexString(uri.toString().hashCode()));
+    }
+
+    /**
+     * @return the number of records waiting to be uploaded.
+     */
+    public long getQueuedRecordCount() {
+        return mRecordQueue.size() + mIncoming.size();
+    }
+
+    /**
+     * @return the size of the records waiting to be uploaded, in bytes.
+     */
+    public long getBacklogBytes() {
+        return mRecordQueue.getBacklogBytes();
+    }
+
+    /**
+     * @return how long the oldest record waiting to be uploaded has been
+     *      queued, in milliseconds, or 0 if nothing is waiting.
+     */
+    public long getOldestRecordAgeMillis() {
+        return mRecordQueue.getOldestRecordAgeMillis();
+    }
+
+    /**
+     * @return the number of records thrown away because the queue was full,
+     *      by either eviction policy, or because the uploader thread fell
+     *      behind.
+     */
+    public long getDiscardedRecordCount() {
+        return mRecordQueue.getEvictedRecordCount() +
+                mRecordQueue.getDroppedRecordCount() +
+                mIncomingDroppedCount.get();
+    }
+
+    /**
+     * @return the number of records accepted by the server.
+     */
+    public long getUploadedRecordCount() {
+        return mUploadedCount;
+    }
+
+    /**
+     * @return the number of request body bytes sent, after compression,
+     *      including for requests that failed.
+     */
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public long getFailedRequestCount() {
+        return mFailedRequestCount;
+    }
+
+    /**
+     * @return the number of records skipped because they couldn't be
+     *      represented in the upload encoding.
+     */
+    public long getUnencodableRecordCount() {
+        return mUnencodableCount;
+    }
+
+    /**
+     * @return the number of records thrown away because the server said the
+     *      batch they were in was malformed.
+     */
+    public long getRejectedRecordCount() {
+        return mRejectedCount;
+    }
+
     /**
      * Returns true if the path is not null and if it is a valid URI.
      *
@@ -113,10 +374,62 @@ public class UploaderSink extends ContextualVehicleDataSink {
     public String toString() {
         return MoreObjects.toStringHelper(this)
             .add("uri", mUri)
-            .add("queuedRecords", mRecordQueue.size())
+            .add("encoding", mEncoding)
+            .add("queuedRecords", getQueuedRecordCount())
+            .add("backlogBytes", mRecordQueue.getBacklogBytes())
+            .add("uploadedRecords", mUploadedCount)
+            .add("uploadedBytes", mUploadedBytes)
             .toString();
     }
 
+    private boolean isBatchFull() {
+        return mRecordQueue.size() >= mBatchRecords ||
+                mRecordQueue.getBacklogBytes() >= mBatchBytes;
+    }
+
+    private void signalUploader() {
+        try {
+            mQueueLock.lock();
+            mRecordsQueued.signal();
+        } finally {
+            mQueueLock.unlock();
+        }
+    }
+
+    private static SegmentedMessageQueue openQueue(File directory)
+            throws UploaderException {
+        try {
+            return new SegmentedMessageQueue(directory);
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to open upload queue in " + directory, e);
+            throw new UploaderException("Unable to open upload queue in " +
+                    directory);
+        }
+    }
+
+    /**
+     * @return the encoding from the "encoding" parameter of the URI's query,
+     *      or JSON if it doesn't have a recognized one.
+     */
+    static Encoding parseEncoding(URI uri) {
+        if(uri == null || uri.getQuery() == null) {
+            return Encoding.JSON;
+        }
+
+        for(String parameter : uri.getQuery().split("&")) {
+            String[] parts = parameter.split("=", 2);
+            if(parts.length == 2 && parts[0].equals(ENCODING_PARAMETER)) {
+                try {
+                    return Encoding.valueOf(parts[1].toUpperCase(Locale.US));
+                } catch(IllegalArgumentException e) {
+                    Log.w(TAG, "Unrecognized upload encoding " + parts[1] +
+                            " in " + uri + ", using JSON");
+                }
+            }
+        }
+        return Encoding.JSON;
+    }
+
     private static URI uriFromString(String path) throws DataSinkException {
         try {
             return new URI(path);
@@ -136,8 +449,168 @@ public class UploaderSink extends ContextualVehicleDataSink {
         }
     }
 
+    /**
+     * A request body written from a batch of records as the request is sent,
+     * compressed on the way if necessary.
+     */
+    private abstract class UploadEntity extends AbstractHttpEntity {
+        UploadEntity(Encoding encoding, boolean compressed) {
+            setContentType(encoding.getContentType());
+            if(compressed) {
+                setContentEncoding("gzip");
+            }
+        }
+
+        /**
+         * Write the records, uncompressed.
+         */
+        protected abstract void writeRecords(OutputStream output)
+                throws IOException;
+
+        /**
+         * @return the length of the records, uncompressed.
+         */
+        protected abstract long getRecordsLength();
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            CountingOutputStream counter = new CountingOutputStream(output);
+            OutputStream target = counter;
+            if(getContentEncoding() != null) {
+                target = new GZIPOutputStream(counter, 8 * 1024);
+            }
+
+            writeRecords(target);
+
+            if(target instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) target).finish();
+            }
+            target.flush();
+            mUploadedBytes += counter.getCount();
+        }
+
+        @Override
+        public long getContentLength() {
+            if(getContentEncoding() != null) {
+                // Sent chunked, since it's compressed on the fly
+                return -1;
+            }
+            return getRecordsLength();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            writeTo(output);
+            return new ByteArrayInputStream(output.toByteArray());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * A JSON array, written from the records' serialized JSON.
+     */
+    private class JsonArrayEntity extends UploadEntity {
+        private final List<byte[]> mRecords;
+
+        JsonArrayEntity(List<byte[]> records, boolean compressed) {
+            super(Encoding.JSON, compressed);
+            mRecords = records;
+        }
+
+        @Override
+        protected void writeRecords(OutputStream output) throws IOException {
+            output.write('[');
+            for(int i = 0; i < mRecords.size(); i++) {
+                if(i > 0) {
+                    output.write(',');
+                }
+                output.write(mRecords.get(i));
+            }
+            output.write(']');
+        }
+
+        @Override
+        protected long getRecordsLength() {
+            long length = 2 + Math.max(0, mRecords.size() - 1);
+            for(byte[] record : mRecords) {
+                length += record.length;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * A stream of length-delimited protobuf messages.
+     */
+    private class ProtobufEntity extends UploadEntity {
+        private final List<MessageLite> mRecords;
+
+        ProtobufEntity(List<MessageLite> records, boolean compressed) {
+            super(Encoding.PROTOBUF, compressed);
+            mRecords = records;
+        }
+
+        @Override
+        protected void writeRecords(OutputStream output) throws IOException {
+            for(MessageLite record : mRecords) {
+                record.writeDelimitedTo(output);
+            }
+        }
+
+        @Override
+        protected long getRecordsLength() {
+            long length = 0;
+            for(MessageLite record : mRecords) {
+                int size = record.getSerializedSize();
+                length += CodedOutputStream.computeUInt32SizeNoTag(size) +
+                        size;
+            }
+            return length;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+            out.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
     private class UploaderThread extends Thread {
-        private boolean mRunning = true;
+        private volatile boolean mRunning = true;
+        private final Random mRandom = new Random();
+        private HttpClient mClient;
+        private int mConsecutiveFailures;
+        private final VehicleMessage[] mBatch =
+                new VehicleMessage[INCOMING_CAPACITY];
 
         public UploaderThread() {
             start();
@@ -145,17 +618,61 @@ public class UploaderSink extends ContextualVehicleDataSink {
 
         @Override
         public void run() {
-            while(mRunning) {
+            HttpParams parameters = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(parameters, HTTP_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(parameters, HTTP_TIMEOUT);
+            // One client for the life of the thread, so its connection is
+            // kept alive between batches
+            mClient = new DefaultHttpClient(parameters);
+            try {
+                while(mRunning) {
+                    try {
+                        List<byte[]> records = getRecords();
+                        if(records.isEmpty()) {
+                            continue;
+                        }
+
+                        Encoding encoding = mEncoding;
+                        HttpPost request = constructRequest(records,
+                                encoding);
+                        int statusCode = request == null ? HttpStatus.SC_OK :
+                                makeRequest(request);
+                        if(statusCode == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE
+                                && encoding != Encoding.JSON) {
+                            Log.w(TAG, mUri + " doesn't accept " + encoding +
+                                    " uploads, falling back to JSON");
+                            mEncoding = Encoding.JSON;
+                        } else if(isAccepted(statusCode)) {
+                            mRecordQueue.acknowledge();
+                            mUploadedCount += records.size();
+                            mConsecutiveFailures = 0;
+                        } else if(isRejected(statusCode)) {
+                            // Sending the same batch again would get the same
+                            // answer, and hold up everything behind it
+                            Log.w(TAG, "Dropping " + records.size() +
+                                    " records the server rejected with " +
+                                    statusCode);
+                            mRecordQueue.acknowledge();
+                            mRejectedCount += records.size();
+                            mConsecutiveFailures = 0;
+                        } else {
+                            retryLater();
+                        }
+                    } catch(IOException e) {
+                        Log.w(TAG, "Unable to read the upload queue", e);
+                        retryLater();
+                    }
+                }
+            } catch(InterruptedException e) {
+                Log.w(TAG, "Uploader was interrupted", e);
+            } finally {
+                mClient.getConnectionManager().shutdown();
+                // Keep what was received before stopping for next time
+                appendIncoming();
                 try {
-                    ArrayList<VehicleMessage> records = getRecords();
-                    String data = JsonFormatter.serialize(records);
-                    HttpPost request = constructRequest(data);
-                    makeRequest(request);
-                } catch(UploaderException e) {
-                    Log.w(TAG, "Problem uploading the record", e);
-                } catch(InterruptedException e) {
-                    Log.w(TAG, "Uploader was interrupted", e);
-                    break;
+                    mRecordQueue.close();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to close the upload queue", e);
                 }
             }
         }
@@ -164,58 +681,167 @@ public class UploaderSink extends ContextualVehicleDataSink {
             mRunning = false;
         }
 
-        private HttpPost constructRequest(String data)
-                throws UploaderException {
+        /**
+         * @return the request to upload the records, or null if none of them
+         *      can be sent in the encoding.
+         */
+        private HttpPost constructRequest(List<byte[]> records,
+                Encoding encoding) {
             HttpPost request = new HttpPost(mUri);
-            try {
-                ByteArrayEntity entity = new ByteArrayEntity(
-                        data.getBytes("UTF8"));
-                entity.setContentEncoding(
-                        new BasicHeader("Content-Type", "application/json"));
-                request.setEntity(entity);
-            } catch(UnsupportedEncodingException e) {
-                Log.w(TAG, "Couldn't encode records for uploading", e);
-                throw new UploaderException();
+            if(encoding == Encoding.JSON) {
+                request.setEntity(new JsonArrayEntity(records,
+                            mCompressionEnabled));
+                return request;
+            }
+
+            List<MessageLite> messages = new ArrayList<>(records.size());
+            for(byte[] record : records) {
+                String data = new String(record, UTF8);
+                try {
+                    messages.add(BinaryFormatter.preSerialize(
+                                JsonFormatter.deserialize(data)));
+                } catch(UnrecognizedMessageTypeException |
+                        SerializationException e) {
+                    Log.w(TAG, "Unable to encode record as " + encoding +
+                            ", skipping it: " + data, e);
+                    mUnencodableCount++;
+                }
+            }
+
+            if(messages.isEmpty()) {
+                return null;
             }
+            request.setEntity(new ProtobufEntity(messages,
+                        mCompressionEnabled));
             return request;
         }
 
-        private void makeRequest(HttpPost request) throws InterruptedException {
-            HttpParams parameters = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(parameters, HTTP_TIMEOUT);
-            HttpConnectionParams.setSoTimeout(parameters, HTTP_TIMEOUT);
-            final HttpClient client = new DefaultHttpClient(parameters);
+        private boolean isAccepted(int statusCode) {
+            return statusCode >= HttpStatus.SC_OK &&
+                    statusCode < HttpStatus.SC_MULTIPLE_CHOICES;
+        }
+
+        /**
+         * Only these mean the batch itself is bad. Anything else - a
+         * redirect from a captive portal, an expired credential, a
+         * misconfigured endpoint - may clear up, so the batch is kept and
+         * retried.
+         */
+        private boolean isRejected(int statusCode) {
+            return statusCode == HttpStatus.SC_BAD_REQUEST ||
+                    statusCode == HttpStatus.SC_REQUEST_TOO_LONG ||
+                    statusCode == SC_UNPROCESSABLE_ENTITY;
+        }
+
+        /**
+         * @return the status code of the response, or -1 if there wasn't
+         *      one. Records the server rejects as malformed are dropped,
+         *      since they'd never be accepted.
+         */
+        private int makeRequest(HttpPost request) {
+            mRequestCount++;
             try {
-                HttpResponse response = client.execute(request);
+                HttpResponse response = mClient.execute(request);
+                HttpEntity entity = response.getEntity();
+                if(entity != null) {
+                    // Read the rest of the response so the connection can be
+                    // reused
+                    entity.consumeContent();
+                }
+
                 final int statusCode = response.getStatusLine().getStatusCode();
                 if(statusCode != HttpStatus.SC_CREATED) {
                     Log.w(TAG, "Got unexpected status code: " + statusCode);
                 }
+                if(!isAccepted(statusCode)) {
+                    mFailedRequestCount++;
+                }
+                return statusCode;
             } catch(IOException e) {
                 Log.w(TAG, "Problem uploading the record", e);
-                try {
-                    Thread.sleep(5000);
-                } catch(InterruptedException e2) {
-                    Log.w(TAG, "Uploader interrupted after an error", e2);
-                    throw e2;
-                }
+                mFailedRequestCount++;
+                return -1;
+            }
+        }
+
+        private void retryLater() throws InterruptedException {
+            long delay = Math.min(mMaximumRetryMillis, mInitialRetryMillis <<
+                    Math.min(mConsecutiveFailures, 30));
+            // Anywhere from half to all of the delay
+            delay -= (long) (mRandom.nextDouble() * delay / 2);
+            mConsecutiveFailures++;
+            Log.d(TAG, "Retrying upload in " + delay + "ms");
+
+            long deadline = System.currentTimeMillis() + delay;
+            long remaining = delay;
+            while(mRunning && remaining > 0) {
+                // Keep queueing records on disk through a long outage
+                awaitIncoming(remaining, INCOMING_CAPACITY / 2);
+                appendIncoming();
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Wait until a batch is full, or the oldest record in it has waited
+         * long enough, and return it.
+         */
+        private List<byte[]> getRecords() throws InterruptedException,
+                IOException {
+            appendIncoming();
+            while(mRunning && mRecordQueue.isEmpty()) {
+                awaitIncoming(IDLE_WAIT_MILLIS, 1);
+                appendIncoming();
+            }
+
+            long remaining = mBatchDelayMillis -
+                    mRecordQueue.getOldestRecordAgeMillis();
+            long deadline = System.currentTimeMillis() + remaining;
+            while(mRunning && !isBatchFull() && remaining > 0) {
+                // Woken when enough records arrive to fill the batch - or
+                // half the incoming queue, so it can't overflow while the
+                // batch fills up by size
+                long missing = mBatchRecords - mRecordQueue.size();
+                awaitIncoming(remaining, (int) Math.max(1,
+                            Math.min(missing, INCOMING_CAPACITY / 2)));
+                appendIncoming();
+                remaining = deadline - System.currentTimeMillis();
+            }
+
+            if(!mRunning) {
+                return new ArrayList<>();
             }
+            return mRecordQueue.peekPayloads(mBatchRecords, mBatchBytes);
         }
 
-        private ArrayList<VehicleMessage> getRecords() throws InterruptedException {
+        /**
+         * Write the messages received since the last call to the queue on
+         * disk.
+         */
+        private void appendIncoming() {
+            int count = mIncoming.drainTo(mBatch, mBatch.length);
+            for(int i = 0; i < count; i++) {
+                mRecordQueue.offer(mBatch[i]);
+                mBatch[i] = null;
+            }
+        }
+
+        /**
+         * Wait for up to a number of milliseconds, until the sink is stopped
+         * or at least the threshold of messages are waiting to be queued.
+         */
+        private void awaitIncoming(long millis, int threshold)
+                throws InterruptedException {
             try {
                 mQueueLock.lock();
-                while(mRecordQueue.isEmpty()) {
-                    // the queue is already thread safe, but we use this lock to get
-                    // a condition variable we can use to signal when a batch has
-                    // been queued.
-                    mRecordsQueued.await(5, TimeUnit.SECONDS);
+                mWakeThreshold = threshold;
+                // Check again after publishing the threshold, in case a
+                // message arrived in between and the sender didn't see it
+                if(mRunning && mIncoming.size() < threshold) {
+                    mRecordsQueued.await(millis, TimeUnit.MILLISECONDS);
                 }
-
-                ArrayList<VehicleMessage> records = new ArrayList<>();
-                mRecordQueue.drainTo(records, UPLOAD_BATCH_SIZE);
-                return records;
             } finally {
+                mWakeThreshold = NOT_WAITING;
                 mQueueLock.unlock();
             }
         }
@@ -3,6 +3,7 @@ package com.openxc.sources;
 import java.io.IOException;
 import java.util.Timer;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -12,10 +13,11 @@ import android.util.Log;
 
 import com.openxc.messages.SerializationException;
 import com.openxc.messages.VehicleMessage;
-import com.openxc.messages.streamers.BinaryStreamer;
+import com.openxc.messages.streamers.CompactingBinaryStreamer;
 import com.openxc.messages.streamers.JsonStreamer;
 import com.openxc.messages.streamers.VehicleMessageStreamer;
 import com.openxc.sinks.DataSinkException;
+import com.openxc.util.LatencyHistogram;
 
 /**
  * Common functionality for data sources that read a stream of newline-separated
@@ -23,7 +25,7 @@ import com.openxc.sinks.DataSinkException;
  */
 public abstract class BytestreamDataSource extends ContextualVehicleDataSource
         implements Runnable {
-    private final static int READ_BATCH_SIZE = 512;
+    public final static int DEFAULT_READ_BUFFER_SIZE = 512;
     private static final int MAX_FAST_RECONNECTION_ATTEMPTS = 6;
     protected static final int RECONNECTION_ATTEMPT_WAIT_TIME_S = 10;
     protected static final int SLOW_RECONNECTION_ATTEMPT_WAIT_TIME_S = 60;
@@ -38,6 +40,11 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
     private VehicleMessageStreamer mStreamHandler = null;
     private boolean mFastPolling = true;
 
+    private final AtomicLong mReadCount = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mMaxBytesPerRead = new AtomicLong();
+    private final LatencyHistogram mParseLatency = new LatencyHistogram();
+
     public BytestreamDataSource(SourceCallback callback, Context context) {
         super(callback, context);
     }
@@ -122,6 +129,9 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
 
     @Override
     public void run() {
+        // Reused for every read - it's only replaced if the transport wants a
+        // different size, e.g. after connecting to a new USB device
+        byte[] bytes = null;
         while(isRunning()) {
             try {
                 waitForConnection();
@@ -131,8 +141,12 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
                 break;
             }
 
+            int bufferSize = getReadBufferSize();
+            if(bytes == null || bytes.length != bufferSize) {
+                bytes = new byte[bufferSize];
+            }
+
             int received;
-            byte[] bytes = new byte[READ_BATCH_SIZE];
             try {
                 received = read(bytes);
             } catch(IOException e) {
@@ -147,24 +161,35 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
                 continue;
             }
 
+            countRead(received);
             if(received > 0) {
+                VehicleMessageStreamer streamer;
                 synchronized(this) {
                     if(mStreamHandler == null) {
-                        if(JsonStreamer.containsJson(new String(bytes))) {
+                        if(JsonStreamer.containsJson(bytes, received)) {
                             mStreamHandler = new JsonStreamer();
                             Log.i(getTag(), "Source is sending JSON");
                         } else {
-                            mStreamHandler = new BinaryStreamer();
+                            mStreamHandler = new CompactingBinaryStreamer();
                             Log.i(getTag(), "Source is sending protocol buffers");
                         }
                     }
+                    streamer = mStreamHandler;
                 }
 
-                mStreamHandler.receive(bytes, received);
+                // Only the streamer's time counts, not the time spent
+                // handing messages to the pipeline
+                long start = System.nanoTime();
+                long parseNanos = 0;
+                streamer.receive(bytes, received);
                 VehicleMessage message;
-                while((message = mStreamHandler.parseNextMessage()) != null) {
+                while((message = streamer.parseNextMessage()) != null) {
+                    parseNanos += System.nanoTime() - start;
                     handleMessage(message);
+                    start = System.nanoTime();
                 }
+                parseNanos += System.nanoTime() - start;
+                mParseLatency.record(parseNanos);
             }
         }
         disconnect();
@@ -206,6 +231,11 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
      */
     @Override
     protected void disconnected() {
+        synchronized(this) {
+            // The next VI to connect may use another payload format, and any
+            // partial message from this one is useless now
+            mStreamHandler = null;
+        }
         mDeviceChanged.signal();
         super.disconnected();
     }
@@ -219,6 +249,53 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
         super.connected();
     }
 
+    /**
+     * @return the number of times the source has been read from, including
+     *      reads that returned no bytes.
+     */
+    public long getReadCount() {
+        return mReadCount.get();
+    }
+
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    /**
+     * @return the mean number of bytes returned by each read, or 0 if there
+     *      haven't been any.
+     */
+    public double getAverageBytesPerRead() {
+        long reads = mReadCount.get();
+        if(reads == 0) {
+            return 0;
+        }
+        return mBytesRead.get() / (double) reads;
+    }
+
+    public long getMaxBytesPerRead() {
+        return mMaxBytesPerRead.get();
+    }
+
+    /**
+     * @return how long the streamer took to take in and parse the bytes from
+     *      each read.
+     */
+    public LatencyHistogram getParseLatency() {
+        return mParseLatency;
+    }
+
+    /**
+     * The size of the buffer handed to {@link #read(byte[])}.
+     *
+     * Override this to match what the transport delivers at once, so a busy
+     * VI is drained in fewer reads. It's checked before every read, but the
+     * buffer is only reallocated when the size changes.
+     */
+    protected int getReadBufferSize() {
+        return DEFAULT_READ_BUFFER_SIZE;
+    }
+
     /**
      * Returns true if this source should be running, or if it should die.
      *
@@ -229,6 +306,15 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
         return mRunning.get();
     }
 
+    private void countRead(int received) {
+        mReadCount.incrementAndGet();
+        mBytesRead.addAndGet(received);
+        // Only the reading thread updates the maximum
+        if(received > mMaxBytesPerRead.get()) {
+            mMaxBytesPerRead.set(received);
+        }
+    }
+
     /**
      * Read data from the source into the given array.
      *
@@ -1,10 +1,19 @@
 package com.openxc.sources;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.google.common.base.MoreObjects;
+import com.openxc.measurements.BaseMeasurement;
+import com.openxc.messages.MessageKey;
+import com.openxc.messages.MessageNameTable;
+import com.openxc.messages.NamedVehicleMessage;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.remote.CompactMessageBatch;
 import com.openxc.remote.VehicleServiceInterface;
 import com.openxc.remote.VehicleServiceListener;
 
@@ -22,6 +31,7 @@ import com.openxc.remote.VehicleServiceListener;
 public class RemoteListenerSource extends BaseVehicleDataSource {
     private final static String TAG = "RemoteListenerSource";
     private VehicleServiceInterface mService;
+    private final MessageNameTable mNameTable = new MessageNameTable();
 
     /**
      * Registers a message listener with the remote service.
@@ -36,14 +46,79 @@ public class RemoteListenerSource extends BaseVehicleDataSource {
                 Log.w(TAG, "Unable to register to receive " +
                         "message callbacks", e);
             }
+
+            try {
+                mService.enableBatchedDelivery(mRemoteListener);
+            } catch(RemoteException e) {
+                Log.w(TAG, "Unable to enable batched message callbacks, " +
+                        "will receive them one at a time", e);
+            }
+
+            // Start the name table with the signals we know about, it grows
+            // as listeners subscribe to others
+            mNameTable.addAll(BaseMeasurement.getMeasurementIds());
+            CompactMessageBatch.registerReceivingTable(mNameTable);
+            sendNameTable();
         } else {
             Log.w(TAG, "Remote vehicle service is unexpectedly null");
         }
     }
 
+    /**
+     * Ask the remote service to only send messages with the given keys or of
+     * the given types. Services that don't support subscriptions keep sending
+     * everything.
+     */
+    public void setSubscription(Collection<MessageKey> keys,
+            Collection<Class<? extends VehicleMessage>> messageTypes) {
+        List<String> typeNames = new ArrayList<>();
+        for(Class<? extends VehicleMessage> messageType : messageTypes) {
+            typeNames.add(messageType.getName());
+        }
+
+        List<String> names = new ArrayList<>();
+        for(MessageKey key : keys) {
+            Object name = key.get(NamedVehicleMessage.NAME_KEY);
+            if(name instanceof String) {
+                names.add((String) name);
+            }
+        }
+        if(mNameTable.addAll(names)) {
+            sendNameTable();
+        }
+
+        try {
+            mService.setSubscription(mRemoteListener,
+                    new ArrayList<>(keys), typeNames);
+        } catch(RemoteException e) {
+            Log.w(TAG, "Unable to update message subscription", e);
+        }
+    }
+
+    /**
+     * Ask the remote service to send every message again.
+     */
+    public void clearSubscription() {
+        try {
+            mService.clearSubscription(mRemoteListener);
+        } catch(RemoteException e) {
+            Log.w(TAG, "Unable to clear message subscription", e);
+        }
+    }
+
+    private void sendNameTable() {
+        try {
+            mService.enableCompactDelivery(mRemoteListener,
+                    mNameTable.getToken(), mNameTable.getNames());
+        } catch(RemoteException e) {
+            Log.w(TAG, "Unable to enable compact message callbacks", e);
+        }
+    }
+
     @Override
     public void stop() {
         super.stop();
+        CompactMessageBatch.unregisterReceivingTable(mNameTable);
         try {
             mService.unregister(mRemoteListener);
         } catch(RemoteException e) {
@@ -68,5 +143,17 @@ public class RemoteListenerSource extends BaseVehicleDataSource {
             public void receive(VehicleMessage message) {
                 handleMessage(message);
             }
+
+            @Override
+            public void receiveBatch(List<VehicleMessage> messages) {
+                for(VehicleMessage message : messages) {
+                    handleMessage(message);
+                }
+            }
+
+            @Override
+            public void receiveCompactBatch(CompactMessageBatch batch) {
+                receiveBatch(batch.getMessages());
+            }
         };
 }
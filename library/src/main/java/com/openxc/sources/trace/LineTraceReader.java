@@ -0,0 +1,60 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.util.Log;
+
+import com.openxc.messages.UnrecognizedMessageTypeException;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.JsonFormatter;
+
+/**
+ * Read a trace one line at a time from a stream, deserializing each line as
+ * it's requested.
+ */
+class LineTraceReader implements TraceReader {
+    private static final String TAG = "LineTraceReader";
+
+    private final BufferedReader mReader;
+
+    LineTraceReader(InputStream stream) {
+        mReader = new BufferedReader(new InputStreamReader(stream));
+    }
+
+    @Override
+    public VehicleMessage read() throws IOException {
+        String line;
+        while((line = mReader.readLine()) != null) {
+            try {
+                VehicleMessage message = JsonFormatter.deserialize(line);
+                if(message != null) {
+                    return message;
+                }
+            } catch(UnrecognizedMessageTypeException e) {
+                Log.w(TAG, "A trace line was not in the expected " +
+                        "format: " + line);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean seek(long offset) {
+        // Streams can't go back, and skipping forward means reading every
+        // line in between anyway
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    @Override
+    public String toString() {
+        return mReader.toString();
+    }
+}
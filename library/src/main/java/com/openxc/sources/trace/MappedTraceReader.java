@@ -0,0 +1,543 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.openxc.messages.UnrecognizedMessageTypeException;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.JsonFormatter;
+
+/**
+ * Read a JSON trace file by memory-mapping it and deserializing it in
+ * parallel, ahead of where it's being read.
+ *
+ * The file is divided into fixed-size chunks, and each chunk is mapped and
+ * parsed by a task on a worker pool. A chunk owns every line that starts
+ * inside it: it skips the partial line at its start (the previous chunk's)
+ * and finishes the line running over its end. Lines are parsed straight out
+ * of the mapped buffer, without copying the chunk onto the heap. Up to a
+ * fixed number of chunks are parsed ahead, and their results are handed out
+ * strictly in file order, so {@link #read()} returns messages in the same
+ * order as a line-by-line reader no matter which worker finishes first.
+ *
+ * {@link #seek(long)} moves within the chunks that are already mapped when it
+ * can - the current one, the one before it and any parsed ahead - so looping
+ * over a short range doesn't parse anything again on the workers. Only when
+ * the reader has to start over somewhere else does it queue a new chunk, and
+ * it waits until playback reads from that chunk before queueing more.
+ */
+public class MappedTraceReader implements TraceReader {
+    private static final String TAG = "MappedTraceReader";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    // How far past the end of its chunk a task maps at first to finish its
+    // last line - it maps more if the line is longer
+    private static final int LINE_SLACK = 16 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final long mStart;
+    private final int mChunkSize;
+    private final int mChunksAhead;
+    private final ExecutorService mExecutor;
+    // The chunk being read first, then those queued after it, in file order
+    private final ArrayDeque<Chunk> mChunks = new ArrayDeque<>();
+    private final AtomicLong mSkippedLines = new AtomicLong();
+    private final ByteBufferReader mLineReader = new ByteBufferReader();
+    // Kept so a loop that wraps back just before the current chunk doesn't
+    // have to map and parse it again
+    private Chunk mPrevious;
+    private long mNextChunk;
+    private boolean mReadAhead;
+
+    /**
+     * @param file the trace file.
+     * @param start the offset of the first line to read.
+     * @param executor the pool to parse chunks on.
+     * @param chunkSize the number of bytes in each chunk.
+     * @param chunksAhead the most chunks to parse ahead of the one being read.
+     * @throws IOException if the file couldn't be opened.
+     */
+    public MappedTraceReader(File file, long start, ExecutorService executor,
+            int chunkSize, int chunksAhead) throws IOException {
+        if(chunkSize < 1 || chunksAhead < 1) {
+            throw new IllegalArgumentException("Invalid chunk size " +
+                    chunkSize + " or chunks ahead " + chunksAhead);
+        }
+
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        // File.length() instead of the channel's size(), which closes the
+        // channel if the thread happens to be interrupted
+        mLength = file.length();
+        mStart = start;
+        mExecutor = executor;
+        mChunkSize = chunkSize;
+        mChunksAhead = chunksAhead;
+        restartAt(start);
+    }
+
+    public MappedTraceReader(File file, long start, ExecutorService executor)
+            throws IOException {
+        this(file, start, executor, DEFAULT_CHUNK_SIZE,
+                defaultThreadCount() * 2);
+    }
+
+    /**
+     * Create a pool of daemon threads for parsing traces.
+     */
+    public static ExecutorService newWorkerPool(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        TAG + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the number of workers to use by default - one per core, leaving
+     *      one for the playback thread, and at most 4.
+     */
+    public static int defaultThreadCount() {
+        return Math.max(1, Math.min(4,
+                    Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    @Override
+    public VehicleMessage read() throws IOException {
+        Chunk chunk;
+        while((chunk = mChunks.peek()) != null) {
+            chunk.await();
+            VehicleMessage message = chunk.next();
+            if(message != null) {
+                if(!mReadAhead) {
+                    // Playback has reached the chunk it started from, so it's
+                    // worth parsing further ahead now
+                    mReadAhead = true;
+                    submitChunks();
+                }
+                return message;
+            }
+
+            mPrevious = mChunks.poll();
+            submitChunks();
+        }
+        return null;
+    }
+
+    /**
+     * Move to the line starting at the offset, using the chunks that are
+     * already parsed if the line is in one of them.
+     */
+    @Override
+    public boolean seek(long offset) throws IOException {
+        if(mPrevious != null && mPrevious.owns(offset)) {
+            mChunks.addFirst(mPrevious);
+            mPrevious = null;
+        }
+
+        Chunk target = null;
+        for(Chunk chunk : mChunks) {
+            if(chunk.owns(offset)) {
+                target = chunk;
+                break;
+            }
+        }
+
+        if(target == null) {
+            cancelChunks();
+            mPrevious = null;
+            restartAt(offset);
+            return true;
+        }
+
+        while(mChunks.peek() != target) {
+            mPrevious = mChunks.poll();
+        }
+        target.await();
+        target.moveTo(offset);
+        // Chunks after it may have been read already, before the seek
+        Iterator<Chunk> chunks = mChunks.iterator();
+        chunks.next();
+        while(chunks.hasNext()) {
+            chunks.next().moveTo(0);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of lines that weren't valid messages.
+     */
+    public long getSkippedLineCount() {
+        return mSkippedLines.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cancelChunks();
+        mPrevious = null;
+        mFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "(" + mStart + "-" + mLength + ")";
+    }
+
+    /**
+     * Start reading again from a line at the offset, queueing only the first
+     * chunk for now.
+     */
+    private void restartAt(long offset) {
+        mNextChunk = offset;
+        mReadAhead = false;
+        if(offset < mLength) {
+            submitChunk(true);
+        }
+    }
+
+    private void submitChunks() {
+        int limit = mReadAhead ? mChunksAhead : 1;
+        while(mChunks.size() < limit && mNextChunk < mLength) {
+            submitChunk(false);
+        }
+    }
+
+    private void submitChunk(boolean lineAligned) {
+        long start = mNextChunk;
+        long end = Math.min(mLength, start + mChunkSize);
+        mNextChunk = end;
+        final Chunk chunk = new Chunk(start, end, lineAligned);
+        chunk.mParsed = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                chunk.parse();
+                return null;
+            }
+        });
+        mChunks.add(chunk);
+    }
+
+    private void cancelChunks() {
+        for(Chunk chunk : mChunks) {
+            chunk.mParsed.cancel(false);
+        }
+        mChunks.clear();
+    }
+
+    private MappedByteBuffer map(long start, long end) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    /**
+     * @return the message on a line of the buffer, or null if it isn't a
+     *      valid one.
+     */
+    private static VehicleMessage parseLine(ByteBuffer buffer, int start,
+            int end, ByteBufferReader reader) {
+        boolean ascii = true;
+        for(int i = start; i < end; i++) {
+            if(buffer.get(i) < 0) {
+                ascii = false;
+                break;
+            }
+        }
+
+        try {
+            if(ascii) {
+                reader.reset(buffer, start, end);
+                return JsonFormatter.deserialize(reader);
+            }
+            // Rare enough that it's not worth decoding UTF-8 by hand
+            return JsonFormatter.deserialize(lineToString(buffer, start, end));
+        } catch(UnrecognizedMessageTypeException e) {
+            Log.w(TAG, "A trace line was not in the expected format: " +
+                    lineToString(buffer, start, end));
+        }
+        return null;
+    }
+
+    private static String lineToString(ByteBuffer buffer, int start,
+            int end) {
+        byte[] bytes = new byte[end - start];
+        for(int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * A range of the file, and once a worker has parsed it, the messages on
+     * the lines that start in that range.
+     *
+     * The fields set by parse() are only read after waiting on mParsed.
+     * Messages are cleared once they're handed out, because the caller may
+     * change them - a line that's read again after a seek is parsed again
+     * from the mapped buffer.
+     */
+    private class Chunk {
+        final long mStartOffset;
+        final long mEndOffset;
+        // The first chunk after opening or restarting starts on a line, so
+        // doesn't skip a partial one
+        final boolean mLineAligned;
+        Future<Void> mParsed;
+
+        MappedByteBuffer mBuffer;
+        long mBufferOffset;
+        int[] mLineStarts;
+        int[] mLineEnds;
+        VehicleMessage[] mMessages;
+        int mCount;
+        int mPosition;
+
+        Chunk(long start, long end, boolean lineAligned) {
+            mStartOffset = start;
+            mEndOffset = end;
+            mLineAligned = lineAligned;
+        }
+
+        boolean owns(long offset) {
+            return offset >= mStartOffset && offset < mEndOffset;
+        }
+
+        void await() throws IOException {
+            boolean interrupted = false;
+            try {
+                while(true) {
+                    try {
+                        mParsed.get();
+                        return;
+                    } catch(InterruptedException e) {
+                        // Playback can't go on without the chunk, so keep
+                        // waiting for it and pass the interrupt on once we
+                        // have it
+                        interrupted = true;
+                    } catch(ExecutionException e) {
+                        throw new IOException("Unable to parse trace chunk",
+                                e.getCause());
+                    }
+                }
+            } finally {
+                if(interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * @return the next message in the chunk, or null at the end of it.
+         */
+        VehicleMessage next() {
+            while(mPosition < mCount) {
+                int line = mPosition++;
+                VehicleMessage message = mMessages[line];
+                if(message != null) {
+                    mMessages[line] = null;
+                    return message;
+                }
+
+                // Already handed out once, before a seek
+                message = parseLine(mBuffer, mLineStarts[line],
+                        mLineEnds[line], mLineReader);
+                if(message != null) {
+                    return message;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Continue from the first line starting at or after the offset.
+         */
+        void moveTo(long offset) {
+            if(offset <= mStartOffset || mLineStarts == null) {
+                mPosition = 0;
+                return;
+            }
+
+            long relative = offset - mBufferOffset;
+            int position = Arrays.binarySearch(mLineStarts, 0, mCount,
+                    (int) relative);
+            mPosition = position >= 0 ? position : -position - 1;
+        }
+
+        void parse() throws IOException {
+            // Map from one byte early to see if the chunk starts on a line
+            long mapStart = mLineAligned ? mStartOffset : mStartOffset - 1;
+            int ownedEnd = (int) (mEndOffset - mapStart);
+            MappedByteBuffer buffer;
+            int length;
+            int lineStart = -1;
+            long slack = LINE_SLACK;
+            while(true) {
+                long mapEnd = Math.min(mLength, mEndOffset + slack);
+                buffer = map(mapStart, mapEnd);
+                length = (int) (mapEnd - mapStart);
+
+                if(lineStart < 0) {
+                    lineStart = 0;
+                    if(!mLineAligned) {
+                        // Skip the partial line that belongs to the previous
+                        // chunk, unless the previous byte ended a line
+                        lineStart = 1;
+                        if(buffer.get(0) != '\n') {
+                            while(lineStart < length &&
+                                    buffer.get(lineStart) != '\n') {
+                                lineStart++;
+                            }
+                            lineStart++;
+                        }
+                    }
+                }
+
+                // Make sure the last line we own is complete
+                int scan = Math.max(lineStart, ownedEnd - 1);
+                while(scan < length && buffer.get(scan) != '\n') {
+                    scan++;
+                }
+                if(scan < length || mapEnd == mLength ||
+                        lineStart >= ownedEnd) {
+                    break;
+                }
+                slack *= 2;
+            }
+
+            ByteBufferReader reader = new ByteBufferReader();
+            int[] lineStarts = new int[16];
+            int[] lineEnds = new int[16];
+            VehicleMessage[] messages = new VehicleMessage[16];
+            int count = 0;
+            while(lineStart < ownedEnd && lineStart < length) {
+                int lineEnd = lineStart;
+                while(lineEnd < length && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+
+                int contentEnd = lineEnd;
+                if(contentEnd > lineStart &&
+                        buffer.get(contentEnd - 1) == '\r') {
+                    contentEnd--;
+                }
+                if(contentEnd > lineStart) {
+                    VehicleMessage message = parseLine(buffer, lineStart,
+                            contentEnd, reader);
+                    if(message == null) {
+                        mSkippedLines.incrementAndGet();
+                    } else {
+                        if(count == messages.length) {
+                            lineStarts = Arrays.copyOf(lineStarts, count * 2);
+                            lineEnds = Arrays.copyOf(lineEnds, count * 2);
+                            messages = Arrays.copyOf(messages, count * 2);
+                        }
+                        lineStarts[count] = lineStart;
+                        lineEnds[count] = contentEnd;
+                        messages[count] = message;
+                        count++;
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+
+            mBuffer = buffer;
+            mBufferOffset = mapStart;
+            mLineStarts = lineStarts;
+            mLineEnds = lineEnds;
+            mMessages = messages;
+            mCount = count;
+        }
+    }
+
+    /**
+     * A reusable Reader over a range of ASCII bytes in a buffer, so each line
+     * can be handed to the JSON parser without copying it first.
+     */
+    private static class ByteBufferReader extends Reader {
+        private ByteBuffer mBuffer;
+        private int mPosition;
+        private int mEnd;
+        private int mMark;
+
+        void reset(ByteBuffer buffer, int start, int end) {
+            mBuffer = buffer;
+            mPosition = start;
+            mMark = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int read() {
+            if(mPosition >= mEnd) {
+                return -1;
+            }
+            return mBuffer.get(mPosition++) & 0xff;
+        }
+
+        @Override
+        public int read(char[] destination, int offset, int length) {
+            if(length == 0) {
+                return 0;
+            }
+            if(mPosition >= mEnd) {
+                return -1;
+            }
+
+            int count = Math.min(length, mEnd - mPosition);
+            for(int i = 0; i < count; i++) {
+                destination[offset + i] =
+                        (char) (mBuffer.get(mPosition + i) & 0xff);
+            }
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public void reset() {
+            mPosition = mMark;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
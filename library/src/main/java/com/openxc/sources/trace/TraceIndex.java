@@ -0,0 +1,353 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * A sparse index of a JSON trace file, mapping timestamps to the byte offset
+ * of the line where they appear, so playback can jump into the middle of a
+ * long trace without reading everything before it.
+ *
+ * The index has one entry for roughly every {@link #DEFAULT_INTERVAL_MILLIS}
+ * of recorded time. Building it means reading the whole trace once, but the
+ * lines aren't deserialized - only their timestamps are picked out. For a
+ * regular file the index is saved next to it in a sidecar file (the trace's
+ * name plus {@link #SIDECAR_EXTENSION}), which is reused as long as the trace
+ * hasn't changed.
+ */
+public class TraceIndex {
+    private static final String TAG = "TraceIndex";
+    public static final String SIDECAR_EXTENSION = ".idx";
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private static final int SIDECAR_MAGIC = 0x4f584349; // "OXCI"
+    private static final int SIDECAR_VERSION = 1;
+    private static final byte[] TIMESTAMP_FIELD = "\"timestamp\"".getBytes();
+
+    private long[] mTimestamps;
+    private long[] mOffsets;
+    private int mSize;
+    private long mFirstTimestamp = -1;
+    private long mLastTimestamp = -1;
+    private long mMessageCount;
+
+    private TraceIndex(int capacity) {
+        mTimestamps = new long[Math.max(capacity, 16)];
+        mOffsets = new long[mTimestamps.length];
+    }
+
+    /**
+     * Build an index by reading through a trace.
+     *
+     * @param trace the trace, positioned at its start. It's read to the end
+     *      but not closed.
+     * @param intervalMillis the minimum recorded time between index entries.
+     */
+    public static TraceIndex build(InputStream trace, long intervalMillis)
+            throws IOException {
+        TraceIndex index = new TraceIndex(16);
+        byte[] chunk = new byte[64 * 1024];
+        byte[] line = new byte[1024];
+        int length = 0;
+        long lineOffset = 0;
+        long offset = 0;
+        int read;
+        while((read = trace.read(chunk)) != -1) {
+            for(int i = 0; i < read; i++) {
+                byte b = chunk[i];
+                offset++;
+                if(b == '\n') {
+                    index.addLine(parseTimestamp(line, length), lineOffset,
+                            intervalMillis);
+                    length = 0;
+                    lineOffset = offset;
+                    continue;
+                }
+
+                if(length == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[length++] = b;
+            }
+        }
+
+        if(length > 0) {
+            index.addLine(parseTimestamp(line, length), lineOffset,
+                    intervalMillis);
+        }
+        return index;
+    }
+
+    /**
+     * Load the index for a trace file from its sidecar, or build it and try to
+     * save the sidecar if there isn't a current one.
+     */
+    public static TraceIndex load(File trace) throws IOException {
+        File sidecar = getSidecar(trace);
+        TraceIndex index = readSidecar(sidecar, trace);
+        if(index != null) {
+            return index;
+        }
+
+        Log.i(TAG, "Indexing trace " + trace);
+        InputStream stream = new FileInputStream(trace);
+        try {
+            index = build(stream, DEFAULT_INTERVAL_MILLIS);
+        } finally {
+            stream.close();
+        }
+
+        try {
+            index.save(sidecar, trace);
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to save trace index to " + sidecar +
+                    ", keeping it in memory", e);
+        }
+        return index;
+    }
+
+    /**
+     * Build and save the sidecar index for a trace file ahead of time, e.g.
+     * right after it's recorded.
+     */
+    public static TraceIndex createSidecar(File trace) throws IOException {
+        getSidecar(trace).delete();
+        return load(trace);
+    }
+
+    public static File getSidecar(File trace) {
+        return new File(trace.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * @return the offset of the latest indexed line at or before the
+     *      timestamp - playback starting there reaches the timestamp without
+     *      missing any messages. 0 if the timestamp is before the first entry.
+     */
+    public long getOffset(long timestamp) {
+        int position = Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+        if(position < 0) {
+            position = -position - 2;
+        } else {
+            // Several lines can share a timestamp - start from the first
+            while(position > 0 && mTimestamps[position - 1] == timestamp) {
+                position--;
+            }
+        }
+        return position < 0 ? 0 : mOffsets[position];
+    }
+
+    /**
+     * @param percentage how far through the trace, between 0 and 100.
+     * @return the recorded timestamp at that point in the trace's duration.
+     */
+    public long getTimestampAt(double percentage) {
+        if(percentage < 0 || percentage > 100) {
+            throw new IllegalArgumentException(
+                    "Percentage must be between 0 and 100, was " + percentage);
+        }
+        return mFirstTimestamp + Math.round(getDuration() * percentage / 100);
+    }
+
+    /**
+     * @return how far through the trace's duration the timestamp is, between
+     *      0 and 100.
+     */
+    public double getPercentage(long timestamp) {
+        long duration = getDuration();
+        if(duration <= 0) {
+            return 0;
+        }
+        double percentage = (timestamp - mFirstTimestamp) * 100.0 / duration;
+        return Math.max(0, Math.min(100, percentage));
+    }
+
+    /**
+     * @return the first timestamp in the trace, or -1 if it has none.
+     */
+    public long getFirstTimestamp() {
+        return mFirstTimestamp;
+    }
+
+    /**
+     * @return the latest timestamp in the trace, or -1 if it has none.
+     */
+    public long getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    public long getDuration() {
+        return mLastTimestamp - mFirstTimestamp;
+    }
+
+    /**
+     * @return the number of timestamped lines in the trace.
+     */
+    public long getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * @return the number of entries in the index.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    void save(File sidecar, File trace) throws IOException {
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            output.writeInt(SIDECAR_MAGIC);
+            output.writeInt(SIDECAR_VERSION);
+            output.writeLong(trace.length());
+            output.writeLong(trace.lastModified());
+            output.writeLong(mFirstTimestamp);
+            output.writeLong(mLastTimestamp);
+            output.writeLong(mMessageCount);
+            output.writeInt(mSize);
+            for(int i = 0; i < mSize; i++) {
+                output.writeLong(mTimestamps[i]);
+                output.writeLong(mOffsets[i]);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return the index in the sidecar, or null if it's missing, unreadable or
+     *      was written for a different version of the trace.
+     */
+    static TraceIndex readSidecar(File sidecar, File trace) {
+        if(!sidecar.exists()) {
+            return null;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(sidecar)));
+            if(input.readInt() != SIDECAR_MAGIC ||
+                    input.readInt() != SIDECAR_VERSION ||
+                    input.readLong() != trace.length() ||
+                    input.readLong() != trace.lastModified()) {
+                Log.i(TAG, "Trace index " + sidecar + " is out of date");
+                return null;
+            }
+
+            long firstTimestamp = input.readLong();
+            long lastTimestamp = input.readLong();
+            long messageCount = input.readLong();
+            int size = input.readInt();
+            TraceIndex index = new TraceIndex(size);
+            for(int i = 0; i < size; i++) {
+                index.mTimestamps[i] = input.readLong();
+                index.mOffsets[i] = input.readLong();
+            }
+            index.mSize = size;
+            index.mFirstTimestamp = firstTimestamp;
+            index.mLastTimestamp = lastTimestamp;
+            index.mMessageCount = messageCount;
+            return index;
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to read trace index " + sidecar, e);
+            return null;
+        } finally {
+            if(input != null) {
+                try {
+                    input.close();
+                } catch(IOException e) { }
+            }
+        }
+    }
+
+    private void addLine(long timestamp, long offset, long intervalMillis) {
+        if(timestamp < 0) {
+            return;
+        }
+
+        mMessageCount++;
+        if(mFirstTimestamp < 0) {
+            mFirstTimestamp = timestamp;
+        }
+        mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+
+        // Only add entries moving forward, so the index stays sorted even if
+        // the trace has the odd timestamp out of order
+        if(mSize == 0 ||
+                timestamp >= mTimestamps[mSize - 1] + intervalMillis) {
+            if(mSize == mTimestamps.length) {
+                mTimestamps = Arrays.copyOf(mTimestamps, mSize * 2);
+                mOffsets = Arrays.copyOf(mOffsets, mSize * 2);
+            }
+            mTimestamps[mSize] = timestamp;
+            mOffsets[mSize] = offset;
+            mSize++;
+        }
+    }
+
+    /**
+     * Pick the timestamp out of a serialized JSON message without
+     * deserializing the whole thing.
+     *
+     * @return the timestamp in milliseconds, or -1 if the line doesn't have
+     *      one.
+     */
+    static long parseTimestamp(byte[] line, int length) {
+        int position = indexOf(line, length, TIMESTAMP_FIELD);
+        if(position < 0) {
+            return -1;
+        }
+
+        position += TIMESTAMP_FIELD.length;
+        while(position < length && (line[position] == ' ' ||
+                    line[position] == ':')) {
+            position++;
+        }
+
+        int start = position;
+        while(position < length && isNumberCharacter(line[position])) {
+            position++;
+        }
+        if(position == start) {
+            return -1;
+        }
+
+        try {
+            double seconds = Double.parseDouble(new String(line, start,
+                        position - start, "US-ASCII"));
+            return (long) (seconds * 1000);
+        } catch(NumberFormatException | IOException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isNumberCharacter(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+' ||
+            b == 'e' || b == 'E';
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for(int i = 0; i <= length - pattern.length; i++) {
+            for(int j = 0; j < pattern.length; j++) {
+                if(data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
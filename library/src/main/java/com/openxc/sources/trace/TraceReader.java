@@ -0,0 +1,27 @@
+package com.openxc.sources.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Reads the messages of a trace in order, for the TraceVehicleDataSource to
+ * play back.
+ */
+interface TraceReader extends Closeable {
+    /**
+     * @return the next message in the trace, or null at the end of the trace.
+     *      Lines that aren't valid messages are skipped.
+     */
+    VehicleMessage read() throws IOException;
+
+    /**
+     * Continue reading from another point in the trace.
+     *
+     * @param offset the position in the file of the start of a line.
+     * @return false if this reader can't move, and a new one has to be opened
+     *      at the offset instead.
+     */
+    boolean seek(long offset) throws IOException;
+}
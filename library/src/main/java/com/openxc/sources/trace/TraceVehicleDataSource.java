@@ -1,22 +1,23 @@
 package com.openxc.sources.trace;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 import android.content.Context;
 import android.content.res.Resources;
 import android.util.Log;
 
 import com.google.common.base.MoreObjects;
-import com.openxc.messages.UnrecognizedMessageTypeException;
 import com.openxc.messages.VehicleMessage;
-import com.openxc.messages.formatters.JsonFormatter;
 import com.openxc.sources.ContextualVehicleDataSource;
 import com.openxc.sources.DataSourceException;
 import com.openxc.sources.SourceCallback;
@@ -48,6 +49,21 @@ import com.openxc.sources.SourceCallback;
  *
  * The trace file is played back in a continuous loop at roughly the same speed
  * as the original recording (at least according to the timestamps in the file).
+ * It can also be played faster (or slower) than it was recorded, or as fast as
+ * messages can be read, by setting a playback rate with the constructor,
+ * {@link #setPlaybackRate(double)} or a "rate" parameter in the URI, e.g.
+ * "file:///sdcard/trace.json?rate=4" or "file:///sdcard/trace.json?rate=max".
+ *
+ * Playback can jump to any timestamp or percentage of the trace with
+ * {@link #seekToTimestamp(long)} and {@link #seekToPercentage(double)}, and
+ * {@link #setLoopRange(long, long)} repeats just part of it. These use a
+ * {@link TraceIndex} of the trace, which is loaded from its sidecar file when
+ * playback starts if one exists, and otherwise built the first time it's
+ * needed (or ahead of time with {@link TraceIndex#createSidecar(File)}).
+ *
+ * Regular files are memory-mapped and deserialized ahead of playback on a
+ * small pool of worker threads (see {@link MappedTraceReader}), so the
+ * playback thread only has to keep time and hand messages to the callback.
  *
  * Playback will not begin until a callback is set, either via a constructor or
  * the
@@ -57,12 +73,34 @@ import com.openxc.sources.SourceCallback;
 public class TraceVehicleDataSource extends ContextualVehicleDataSource
             implements Runnable {
     private static final String TAG = "TraceVehicleDataSource";
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    private static final String RATE_PARAMETER = "rate";
+    private static final String UNTHROTTLED_RATE_VALUE = "max";
+
+    /**
+     * Play back the trace as fast as it can be read, without waiting between
+     * messages.
+     */
+    public static final double UNTHROTTLED = Double.POSITIVE_INFINITY;
+    public static final double REAL_TIME = 1.0;
 
     private boolean mTraceValid = false;
     private long mFirstTimestamp = 0;
     private boolean mRunning = true;
     private boolean mLoop = true;
     private URI mFilename;
+    private TraceIndex mIndex;
+    private volatile Thread mPlaybackThread;
+    private final AtomicLong mSeekTarget = new AtomicLong(NO_TIMESTAMP);
+    private volatile long mLoopStart = NO_TIMESTAMP;
+    private volatile long mLoopEnd = NO_TIMESTAMP;
+    private volatile long mPosition = NO_TIMESTAMP;
+    private volatile double mPlaybackRate;
+    private volatile boolean mRebaseTiming;
+    private volatile long mPlayedCount;
+    private volatile long mPassPlayedCount;
+    private volatile long mPassStartTime;
+    private ExecutorService mWorkers;
 
     /** Construct a trace data source with the given context, callback and
      * trace file resource URI.
@@ -84,14 +122,26 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
 
     public TraceVehicleDataSource(SourceCallback callback, Context context,
             URI filename, boolean loop) throws DataSourceException {
+        this(callback, context, filename, loop, parsePlaybackRate(filename));
+    }
+
+    /**
+     * @param playbackRate how many times faster than real time to play the
+     *      trace, or {@link #UNTHROTTLED}. This overrides any rate in the URI.
+     */
+    public TraceVehicleDataSource(SourceCallback callback, Context context,
+            URI filename, boolean loop, double playbackRate)
+            throws DataSourceException {
         super(callback, context);
         if(filename == null) {
             throw new DataSourceException(
                     "No filename specified for the trace source");
         }
+        validatePlaybackRate(playbackRate);
 
         mFilename = filename;
         mLoop = loop;
+        mPlaybackRate = playbackRate;
         Log.d(TAG, "Starting new trace data source with trace file " +
                 mFilename);
         new Thread(this).start();
@@ -112,6 +162,43 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         this(null, context, filename, loop);
     }
 
+    /**
+     * Change the playback speed, starting from the next message.
+     *
+     * @param playbackRate how many times faster than real time to play the
+     *      trace (e.g. 0.5, 1, 4 or 100), or {@link #UNTHROTTLED}.
+     */
+    public void setPlaybackRate(double playbackRate) {
+        validatePlaybackRate(playbackRate);
+        mPlaybackRate = playbackRate;
+        mRebaseTiming = true;
+        wakePlayback();
+    }
+
+    public double getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * @return the number of messages played back since the source was
+     *      created.
+     */
+    public long getPlayedMessageCount() {
+        return mPlayedCount;
+    }
+
+    /**
+     * @return the average number of messages played back per second since
+     *      playback last started from the beginning of the trace.
+     */
+    public double getMessagesPerSecond() {
+        long elapsed = System.currentTimeMillis() - mPassStartTime;
+        if(mPassStartTime == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mPassPlayedCount * 1000.0 / elapsed;
+    }
+
     /** Consider the trace source "connected" if it's running and at least 1
      * measurement was parsed successfully from the file.
      *
@@ -131,6 +218,116 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         super.stop();
         Log.d(TAG, "Stopping trace playback");
         mRunning = false;
+        wakePlayback();
+    }
+
+    /**
+     * Jump to the first message at or after the timestamp.
+     *
+     * The trace's index is built first if it doesn't exist yet, which blocks
+     * until the whole trace has been read once.
+     *
+     * @param timestamp a time in the trace, in milliseconds since the epoch.
+     * @throws DataSourceException if the trace couldn't be indexed.
+     */
+    public void seekToTimestamp(long timestamp) throws DataSourceException {
+        getIndex();
+        mSeekTarget.set(timestamp);
+        wakePlayback();
+    }
+
+    /**
+     * Jump to a point part way through the trace's duration.
+     *
+     * @param percentage between 0 (the start of the trace) and 100 (the end).
+     * @throws DataSourceException if the trace couldn't be indexed.
+     */
+    public void seekToPercentage(double percentage)
+            throws DataSourceException {
+        seekToTimestamp(getIndex().getTimestampAt(percentage));
+    }
+
+    /**
+     * Play only part of the trace, jumping back to the start of the range
+     * whenever playback passes the end of it (or the end of the trace).
+     *
+     * @param startTimestamp the beginning of the range, in milliseconds since
+     *      the epoch.
+     * @param endTimestamp the end of the range, in milliseconds since the
+     *      epoch.
+     * @throws DataSourceException if the trace couldn't be indexed.
+     */
+    public void setLoopRange(long startTimestamp, long endTimestamp)
+            throws DataSourceException {
+        if(endTimestamp < startTimestamp) {
+            throw new IllegalArgumentException("Loop range ends (" +
+                    endTimestamp + ") before it starts (" + startTimestamp +
+                    ")");
+        }
+        getIndex();
+        mLoopStart = startTimestamp;
+        mLoopEnd = endTimestamp;
+        long position = mPosition;
+        if(position == NO_TIMESTAMP || position < startTimestamp ||
+                position > endTimestamp) {
+            seekToTimestamp(startTimestamp);
+        }
+    }
+
+    /**
+     * Go back to playing the whole trace.
+     */
+    public void clearLoopRange() {
+        mLoopStart = NO_TIMESTAMP;
+        mLoopEnd = NO_TIMESTAMP;
+    }
+
+    /**
+     * @return the recorded timestamp of the last message played back, in
+     *      milliseconds since the epoch, or null if playback hasn't started.
+     */
+    public Long getPosition() {
+        long position = mPosition;
+        return position != NO_TIMESTAMP ? position : null;
+    }
+
+    /**
+     * @return how far through the trace's duration playback is, between 0 and
+     *      100, or null if playback hasn't started.
+     * @throws DataSourceException if the trace couldn't be indexed.
+     */
+    public Double getPositionPercentage() throws DataSourceException {
+        long position = mPosition;
+        if(position == NO_TIMESTAMP) {
+            return null;
+        }
+        return getIndex().getPercentage(position);
+    }
+
+    /**
+     * @return the index of the trace, building it if necessary.
+     * @throws DataSourceException if the trace couldn't be read.
+     */
+    public synchronized TraceIndex getIndex() throws DataSourceException {
+        if(mIndex == null) {
+            try {
+                if(isRegularFile(mFilename)) {
+                    mIndex = TraceIndex.load(new File(mFilename.getPath()));
+                } else {
+                    InputStream stream = openStream(mFilename);
+                    try {
+                        mIndex = TraceIndex.build(stream,
+                                TraceIndex.DEFAULT_INTERVAL_MILLIS);
+                    } finally {
+                        stream.close();
+                    }
+                }
+            } catch(IOException e) {
+                throw new DataSourceException(
+                        "Couldn't index the trace file " + mFilename, e);
+            }
+        }
+        return mIndex;
     }
 
     /**
@@ -142,56 +339,96 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
      */
     @Override
     public void run() {
+        mPlaybackThread = Thread.currentThread();
+        loadSidecarIndex();
         while(mRunning) {
             waitForCallback();
             Log.d(TAG, "Starting trace playback from beginning of " + mFilename);
-            BufferedReader reader;
+            TraceReader reader;
+            long loopStart = mLoopStart;
             try {
+                if(loopStart != NO_TIMESTAMP) {
+                    mSeekTarget.compareAndSet(NO_TIMESTAMP, loopStart);
+                }
                 reader = openFile(mFilename);
             } catch(DataSourceException e) {
                 Log.w(TAG, "Couldn't open the trace file " + mFilename, e);
                 break;
             }
 
-            String line;
             long startingTime = System.currentTimeMillis();
-            // In the future may want to support binary traces
+            mFirstTimestamp = 0;
+            mRebaseTiming = false;
+            mPassStartTime = startingTime;
+            mPassPlayedCount = 0;
+            long skipUntil = NO_TIMESTAMP;
             try {
-                while(mRunning && (line = reader.readLine()) != null) {
-                    VehicleMessage measurement;
-                    try {
-                        measurement = JsonFormatter.deserialize(line);
-                    } catch(UnrecognizedMessageTypeException e) {
-                        Log.w(TAG, "A trace line was not in the expected " +
-                                "format: " + line);
-                        continue;
+                while(mRunning) {
+                    long seekTarget = mSeekTarget.getAndSet(NO_TIMESTAMP);
+                    if(seekTarget != NO_TIMESTAMP) {
+                        reader = moveTo(reader, seekTarget);
+                        skipUntil = seekTarget;
+                        startingTime = System.currentTimeMillis();
+                        mFirstTimestamp = seekTarget;
+                    } else if(mRebaseTiming) {
+                        // Carry on from the current position at the new rate
+                        mRebaseTiming = false;
+                        startingTime = System.currentTimeMillis();
+                        long position = mPosition;
+                        mFirstTimestamp = position != NO_TIMESTAMP ?
+                                position : 0;
                     }
 
+                    VehicleMessage measurement = reader.read();
                     if(measurement == null) {
-                        continue;
+                        loopStart = mLoopStart;
+                        if(loopStart != NO_TIMESTAMP) {
+                            mSeekTarget.compareAndSet(NO_TIMESTAMP, loopStart);
+                            continue;
+                        }
+                        break;
                     }
 
-                    if(measurement != null && !measurement.isTimestamped()) {
+                    if(!measurement.isTimestamped()) {
                         Log.w(TAG, "A trace line was missing a timestamp: " +
-                                line);
+                                measurement);
                         continue;
                     }
 
-                    try {
-                        waitForNextRecord(startingTime, measurement.getTimestamp());
-                    } catch(NumberFormatException e) {
-                        Log.w(TAG, "A trace line was not in the expected " +
-                                "format: " + line);
+                    long timestamp = measurement.getTimestamp();
+                    if(skipUntil != NO_TIMESTAMP) {
+                        if(timestamp < skipUntil) {
+                            continue;
+                        }
+                        skipUntil = NO_TIMESTAMP;
+                    }
+
+                    long loopEnd = mLoopEnd;
+                    if(loopEnd != NO_TIMESTAMP && timestamp > loopEnd) {
+                        mSeekTarget.compareAndSet(NO_TIMESTAMP, mLoopStart);
                         continue;
                     }
+
+                    waitForNextRecord(startingTime, timestamp);
+
+                    if(mSeekTarget.get() != NO_TIMESTAMP) {
+                        // Asked to jump somewhere else while waiting for this
+                        // one
+                        continue;
+                    }
+
                     measurement.untimestamp();
                     if(!mTraceValid) {
                         connected();
                         mTraceValid = true;
                     }
+                    mPosition = timestamp;
+                    mPassPlayedCount++;
+                    mPlayedCount++;
                     handleMessage(measurement);
                 }
-            } catch(IOException e) {
+                logThroughput();
+            } catch(IOException | DataSourceException e) {
                 Log.w(TAG, "An exception occurred when reading the trace " +
                         reader, e);
                 break;
@@ -219,6 +456,9 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         }
         disconnected();
         mRunning = false;
+        if(mWorkers != null) {
+            mWorkers.shutdownNow();
+        }
         Log.d(TAG, "Playback of trace " + mFilename + " is finished");
     }
 
@@ -248,6 +488,7 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
     public String toString() {
         return MoreObjects.toStringHelper(this)
             .add("filename", mFilename)
+            .add("rate", mPlaybackRate)
             .toString();
     }
 
@@ -267,7 +508,8 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
 
     /**
      * Using the startingTime as the relative starting point, sleep this thread
-     * until the next timestamp would occur.
+     * until the next timestamp would occur, or until playback is asked to
+     * seek, change rate or stop.
      *
      * @param startingTime the relative starting time in milliseconds
      * @param timestamp the timestamp to wait for in milliseconds since the
@@ -279,51 +521,163 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
             Log.d(TAG, "Storing " + timestamp + " as the first " +
                     "timestamp of the trace file");
         }
-        long targetTime = startingTime + (timestamp - mFirstTimestamp);
-        long sleepDuration = Math.max(targetTime - System.currentTimeMillis(), 0);
-        try {
-            Thread.sleep(sleepDuration);
-        } catch(InterruptedException e) {}
+
+        double rate = mPlaybackRate;
+        if(rate == UNTHROTTLED) {
+            return;
+        }
+        long targetTime = startingTime +
+                (long) ((timestamp - mFirstTimestamp) / rate);
+        long remaining;
+        while(mRunning && !mRebaseTiming &&
+                mSeekTarget.get() == NO_TIMESTAMP &&
+                (remaining = targetTime - System.currentTimeMillis()) > 0) {
+            LockSupport.parkNanos(this,
+                    TimeUnit.MILLISECONDS.toNanos(remaining));
+        }
     }
 
-    private BufferedReader openResourceFile(URI filename) {
-        InputStream stream;
+    private void logThroughput() {
+        long elapsed = System.currentTimeMillis() - mPassStartTime;
+        Log.i(TAG, "Played " + mPassPlayedCount + " messages from " +
+                mFilename + " in " + elapsed + "ms (" +
+                Math.round(getMessagesPerSecond()) + " messages/s at rate " +
+                mPlaybackRate + ")");
+    }
+
+    private static void validatePlaybackRate(double playbackRate) {
+        if(Double.isNaN(playbackRate) || playbackRate <= 0) {
+            throw new IllegalArgumentException(
+                    "Playback rate must be positive, was " + playbackRate);
+        }
+    }
+
+    /**
+     * @return the playback rate from the "rate" parameter of the URI's query,
+     *      or {@link #REAL_TIME} if it doesn't have one.
+     * @throws DataSourceException if the rate isn't a positive number or
+     *      "max".
+     */
+    static double parsePlaybackRate(URI filename) throws DataSourceException {
+        if(filename == null || filename.getQuery() == null) {
+            return REAL_TIME;
+        }
+
+        for(String parameter : filename.getQuery().split("&")) {
+            String[] parts = parameter.split("=", 2);
+            if(parts.length == 2 && parts[0].equals(RATE_PARAMETER)) {
+                if(parts[1].equals(UNTHROTTLED_RATE_VALUE)) {
+                    return UNTHROTTLED;
+                }
+
+                try {
+                    double rate = Double.parseDouble(parts[1]);
+                    validatePlaybackRate(rate);
+                    return rate;
+                } catch(IllegalArgumentException e) {
+                    throw new DataSourceException("Invalid playback rate " +
+                            parts[1] + " in " + filename, e);
+                }
+            }
+        }
+        return REAL_TIME;
+    }
+
+    private void wakePlayback() {
+        Thread thread = mPlaybackThread;
+        if(thread != null) {
+            // Cut short the wait for the next record. This doesn't interrupt
+            // the thread, which also runs the callback and any inline sinks
+            // and shouldn't be left with a stray interrupt.
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Use an existing sidecar index, without building one if it's missing.
+     */
+    private synchronized void loadSidecarIndex() {
+        if(mIndex == null && isRegularFile(mFilename)) {
+            File trace = new File(mFilename.getPath());
+            mIndex = TraceIndex.readSidecar(TraceIndex.getSidecar(trace),
+                    trace);
+        }
+    }
+
+    /**
+     * Move playback to the latest indexed line before the timestamp, reusing
+     * the reader if it can seek and otherwise opening a new one there.
+     */
+    private TraceReader moveTo(TraceReader reader, long timestamp)
+            throws DataSourceException, IOException {
+        long offset = getIndex().getOffset(timestamp);
+        if(reader.seek(offset)) {
+            return reader;
+        }
+
+        reader.close();
+        if(isRegularFile(mFilename)) {
+            return openMapped(mFilename, offset);
+        }
+
+        InputStream stream = openStream(mFilename);
+        long skipped = 0;
+        while(skipped < offset) {
+            long count = stream.skip(offset - skipped);
+            if(count <= 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return new LineTraceReader(stream);
+    }
+
+    private InputStream openStream(URI filename) throws DataSourceException {
+        if(isRegularFile(filename)) {
+            try {
+                return new FileInputStream(filename.getPath());
+            } catch(FileNotFoundException e) {
+                throw new DataSourceException(
+                    "Couldn't open the trace file " + filename, e);
+            }
+        }
+
         try {
-            stream = getContext().getResources().openRawResource(
+            return getContext().getResources().openRawResource(
                     Integer.valueOf(filename.getAuthority()));
         } catch(Resources.NotFoundException e) {
             Log.w(TAG, "Unable to find a trace resource with URI " + filename
                     + " -- returning an empty buffer");
-            stream = new ByteArrayInputStream(new byte[0]);
+            return new ByteArrayInputStream(new byte[0]);
         }
-        return readerForStream(stream);
     }
 
-    private BufferedReader openRegularFile(URI filename)
+    private static boolean isRegularFile(URI filename) {
+        String scheme = filename.getScheme();
+        return scheme == null || !scheme.equals("resource");
+    }
+
+    private TraceReader openMapped(URI filename, long offset)
             throws DataSourceException {
-        FileInputStream stream;
+        if(mWorkers == null) {
+            mWorkers = MappedTraceReader.newWorkerPool(
+                    MappedTraceReader.defaultThreadCount());
+        }
+
         try {
-            stream = new FileInputStream(filename.getPath());
-        } catch(FileNotFoundException e) {
+            return new MappedTraceReader(new File(filename.getPath()), offset,
+                    mWorkers);
+        } catch(IOException e) {
             throw new DataSourceException(
                 "Couldn't open the trace file " + filename, e);
         }
-
-        return readerForStream(stream);
-    }
-
-    private BufferedReader readerForStream(InputStream stream) {
-        DataInputStream dataStream = new DataInputStream(stream);
-        return new BufferedReader(new InputStreamReader(dataStream));
     }
 
-    private BufferedReader openFile(URI filename)
+    private TraceReader openFile(URI filename)
             throws DataSourceException {
-        String scheme = filename.getScheme();
-        if(scheme != null && scheme.equals("resource")) {
-            return openResourceFile(filename);
-        } else {
-            return openRegularFile(filename);
+        if(isRegularFile(filename)) {
+            return openMapped(filename, 0);
         }
+        return new LineTraceReader(openStream(filename));
     }
 }
@@ -1,7 +1,9 @@
 package com.openxc.util;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -13,9 +15,10 @@ import android.util.Log;
 /**
  * A file opener that uses Android's permission flags.
  *
- * This file opener will only work on an Android device.
+ * This file opener will only work on an Android device. Flushing a file it
+ * opened also syncs it to storage, so a flushed trace survives losing power.
  */
-public class AndroidFileOpener implements FileOpener {
+public class AndroidFileOpener implements BinaryFileOpener {
     private static final String TAG = "AndroidFileOpener";
     private static final String DEFAULT_DIRECTORY = "openxc/traces";
 
@@ -27,6 +30,16 @@ public class AndroidFileOpener implements FileOpener {
 
     @Override
     public BufferedWriter openForWriting(String filename) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(open(filename)));
+    }
+
+    @Override
+    public OutputStream openStreamForWriting(String filename)
+            throws IOException {
+        return new BufferedOutputStream(open(filename));
+    }
+
+    private OutputStream open(String filename) throws IOException {
         Log.i(TAG, "Opening " + getDirectory() + "/" + filename
                 + " for writing on external storage");
 
@@ -36,8 +49,7 @@ public class AndroidFileOpener implements FileOpener {
         File file = new File(directory, filename);
         try {
             directory.mkdirs();
-            OutputStream outputStream = new FileOutputStream(file);
-            return new BufferedWriter(new OutputStreamWriter(outputStream));
+            return new SyncingFileOutputStream(file);
         } catch(IOException e) {
             Log.w(TAG, "Unable to open " + file + " for writing", e);
             throw e;
@@ -50,4 +62,16 @@ public class AndroidFileOpener implements FileOpener {
         }
         return mDirectory;
     }
+
+    private static class SyncingFileOutputStream extends FileOutputStream {
+        SyncingFileOutputStream(File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            super.flush();
+            getFD().sync();
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package com.openxc.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A FileOpener that can also open a file for writing raw bytes, e.g. for a
+ * binary trace.
+ */
+public interface BinaryFileOpener extends FileOpener {
+    /**
+     * Open the file at the given path for writing bytes.
+     *
+     * @return an OutputStream that references the requested file.
+     * @throws IOException if there are issues opening the file
+     */
+    public OutputStream openStreamForWriting(String path) throws IOException;
+}
@@ -0,0 +1,156 @@
+package com.openxc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free queue that is safe for any number of producer and
+ * consumer threads.
+ *
+ * Each slot in the ring has a sequence number that tells a producer when the
+ * slot is free to write and a consumer when it holds an element, so neither
+ * side ever takes a lock or allocates. This is the bounded queue described by
+ * Dmitry Vyukov, built on the java.util.concurrent atomics.
+ *
+ * Unlike a BlockingQueue, {@link #offer(Object)} and {@link #poll()} never
+ * wait - it's up to the caller to decide what to do when the queue is full or
+ * empty.
+ */
+public class BoundedRingQueue<E> {
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mEnqueuePosition = new AtomicLong();
+    private final AtomicLong mDequeuePosition = new AtomicLong();
+
+    /**
+     * @param capacity the minimum number of elements the queue can hold. It's
+     *      rounded up to the next power of two.
+     */
+    public BoundedRingQueue(int capacity) {
+        if(capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "Capacity must be between 1 and 2^30, was " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an element to the tail of the queue, if there is room.
+     *
+     * @return true if the element was added, false if the queue is full.
+     */
+    public boolean offer(E element) {
+        if(element == null) {
+            throw new NullPointerException();
+        }
+
+        long position = mEnqueuePosition.get();
+        int index;
+        while(true) {
+            index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+            if(difference == 0) {
+                if(mEnqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mEnqueuePosition.get();
+            } else if(difference < 0) {
+                // The slot still holds an element from the previous lap
+                return false;
+            } else {
+                // Another producer claimed this slot first
+                position = mEnqueuePosition.get();
+            }
+        }
+
+        mElements.set(index, element);
+        mSequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Remove the element at the head of the queue.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    public E poll() {
+        long position = mDequeuePosition.get();
+        int index;
+        while(true) {
+            index = (int) (position & mMask);
+            long difference = mSequences.get(index) - (position + 1);
+            if(difference == 0) {
+                if(mDequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mDequeuePosition.get();
+            } else if(difference < 0) {
+                // Nothing has been written to this slot yet
+                return null;
+            } else {
+                position = mDequeuePosition.get();
+            }
+        }
+
+        E element = mElements.get(index);
+        mElements.set(index, null);
+        // Free the slot for the producer on the next lap around the ring
+        mSequences.set(index, position + mMask + 1);
+        return element;
+    }
+
+    /**
+     * Remove up to maxElements from the head of the queue.
+     *
+     * @param destination the array to copy the elements in to, starting at
+     *      index 0.
+     * @return the number of elements removed.
+     */
+    public int drainTo(E[] destination, int maxElements) {
+        int count = 0;
+        int limit = Math.min(maxElements, destination.length);
+        while(count < limit) {
+            E element = poll();
+            if(element == null) {
+                break;
+            }
+            destination[count++] = element;
+        }
+        return count;
+    }
+
+    /**
+     * @return the approximate number of elements in the queue - it may be
+     *      stale by the time it's returned if other threads are active.
+     */
+    public int size() {
+        while(true) {
+            long dequeuePosition = mDequeuePosition.get();
+            long enqueuePosition = mEnqueuePosition.get();
+            if(dequeuePosition == mDequeuePosition.get()) {
+                long size = enqueuePosition - dequeuePosition;
+                return (int) Math.max(0, Math.min(size, capacity()));
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+}
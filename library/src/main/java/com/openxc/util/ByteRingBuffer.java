@@ -0,0 +1,109 @@
+package com.openxc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size, lock-free ring of bytes for one producer thread and one
+ * consumer thread.
+ *
+ * The producer only moves the write position and the consumer only moves the
+ * read position, so each side can copy a whole run of bytes in or out with
+ * {@link System#arraycopy} and then publish it with a single ordered store.
+ * Nothing is allocated after construction.
+ */
+public class ByteRingBuffer {
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final AtomicLong mWritePosition = new AtomicLong();
+    private final AtomicLong mReadPosition = new AtomicLong();
+
+    /**
+     * @param capacity the minimum number of bytes the ring can hold. It's
+     *      rounded up to the next power of two.
+     */
+    public ByteRingBuffer(int capacity) {
+        if(capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "Capacity must be between 1 and 2^30, was " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mBuffer = new byte[size];
+    }
+
+    /**
+     * Copy bytes in to the ring, if there is room for all of them. Only call
+     * this from the producer thread.
+     *
+     * @return true if the bytes were added, false if there wasn't room - in
+     *      which case none of them were.
+     */
+    public boolean offer(byte[] source, int offset, int length) {
+        long write = mWritePosition.get();
+        if(length > capacity() - (write - mReadPosition.get())) {
+            return false;
+        }
+
+        int index = (int) (write & mMask);
+        int firstPart = Math.min(length, mBuffer.length - index);
+        System.arraycopy(source, offset, mBuffer, index, firstPart);
+        System.arraycopy(source, offset + firstPart, mBuffer, 0,
+                length - firstPart);
+        // Publish the bytes only once they're all in place
+        mWritePosition.lazySet(write + length);
+        return true;
+    }
+
+    /**
+     * Copy bytes out of the ring. Only call this from the consumer thread.
+     *
+     * @return the number of bytes copied, which is 0 if the ring is empty.
+     */
+    public int poll(byte[] destination, int offset, int length) {
+        long read = mReadPosition.get();
+        int available = (int) (mWritePosition.get() - read);
+        int count = Math.min(available, length);
+        if(count <= 0) {
+            return 0;
+        }
+
+        int index = (int) (read & mMask);
+        int firstPart = Math.min(count, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, destination, offset, firstPart);
+        System.arraycopy(mBuffer, 0, destination, offset + firstPart,
+                count - firstPart);
+        // Free the space for the producer only once it's been copied out
+        mReadPosition.lazySet(read + count);
+        return count;
+    }
+
+    /**
+     * Discard everything in the ring. Only call this from the consumer
+     * thread.
+     */
+    public void clear() {
+        mReadPosition.set(mWritePosition.get());
+    }
+
+    /**
+     * @return the number of bytes in the ring - it may be stale by the time
+     *      it's returned if the other thread is active.
+     */
+    public int size() {
+        long read = mReadPosition.get();
+        return (int) Math.max(0, Math.min(mWritePosition.get() - read,
+                    capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+}
@@ -0,0 +1,92 @@
+package com.openxc.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of durations, for reporting latency percentiles
+ * without keeping every sample.
+ *
+ * Durations are counted in power-of-two buckets of microseconds, so recording
+ * is a few atomic increments and never allocates. The percentiles it reports
+ * are the upper bound of the bucket the percentile falls in, i.e. accurate to
+ * within a factor of two - plenty to tell a 2ms write from a 200ms one.
+ */
+public class LatencyHistogram {
+    // Bucket 0 is under 1us, bucket i is [2^(i-1), 2^i) us and the last
+    // bucket holds everything over ~9 minutes
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(micros));
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+
+        long max = mMaxMicros.get();
+        while(micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    /**
+     * @return the number of durations recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound in microseconds of the bucket holding the given
+     *      percentile, capped at the longest duration recorded, or 0 if
+     *      nothing has been recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "Percentile must be between 0 and 100, was " + percentile);
+        }
+
+        long total = mCount.get();
+        if(total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if(seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mMaxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "count=%d p50=%dus p90=%dus p99=%dus max=%dus", getCount(),
+                getPercentileMicros(50), getPercentileMicros(90),
+                getPercentileMicros(99), getMaxMicros());
+    }
+}
@@ -17,9 +17,12 @@ import com.openxc.measurements.UnrecognizedMeasurementTypeException;
 import com.openxc.measurements.VehicleSpeed;
 import com.openxc.measurements.EngineSpeed;
 import com.openxc.measurements.VehicleDoorStatus;
+import com.openxc.measurements.IgnitionStatus;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.EventedSimpleVehicleMessage;
 import com.openxc.messages.NamedVehicleMessage;
 import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.units.Degree;
 import com.openxc.units.Meter;
 import com.openxc.util.Range;
 
@@ -80,6 +83,18 @@ public class BaseMeasurementTest {
         }
     }
 
+    public static class LatitudeAlias extends BaseMeasurement<Degree> {
+        public final static String ID = "latitude_alias";
+
+        public LatitudeAlias(Number value) {
+            super(new Degree(value));
+        }
+
+        public String getGenericName() {
+            return ID;
+        }
+    }
+
     @Test
     public void getKeyForUnrecognizedMeasurementWithProperId()
             throws UnrecognizedMeasurementTypeException {
@@ -137,6 +152,61 @@ public class BaseMeasurementTest {
         BaseMeasurement.getMeasurementFromMessage(message);
     }
 
+    @Test(expected=UnrecognizedMeasurementTypeException.class)
+    public void buildFromMessageWithWrongValueType()
+            throws NoValueException, UnrecognizedMeasurementTypeException {
+        message = new SimpleVehicleMessage(VehicleSpeed.ID, "fast");
+        BaseMeasurement.getMeasurementFromMessage(message);
+    }
+
+    @Test(expected=UnrecognizedMeasurementTypeException.class)
+    public void buildFromMessageWithInvalidState()
+            throws NoValueException, UnrecognizedMeasurementTypeException {
+        message = new SimpleVehicleMessage(IgnitionStatus.ID, "sideways");
+        BaseMeasurement.getMeasurementFromMessage(message);
+    }
+
+    @Test(expected=UnrecognizedMeasurementTypeException.class)
+    public void buildNonEventedMeasurementFromEventedMessage()
+            throws NoValueException, UnrecognizedMeasurementTypeException {
+        message = new EventedSimpleVehicleMessage(VehicleSpeed.ID, value,
+                "foo");
+        BaseMeasurement.getMeasurementFromMessage(message);
+    }
+
+    @Test(expected=UnrecognizedMeasurementTypeException.class)
+    public void buildEventedMeasurementFromSimpleMessage()
+            throws NoValueException, UnrecognizedMeasurementTypeException {
+        message = new SimpleVehicleMessage(VehicleDoorStatus.ID, "driver");
+        BaseMeasurement.getMeasurementFromMessage(message);
+    }
+
+    @Test
+    public void buildFromMessageKeepsTimestamp()
+            throws UnrecognizedMeasurementTypeException, NoValueException {
+        message = new SimpleVehicleMessage(Long.valueOf(1000),
+                VehicleSpeed.ID, value);
+        Measurement measurement = BaseMeasurement.getMeasurementFromMessage(
+                message);
+        assertEquals(1000, measurement.getBirthtime());
+    }
+
+    @Test
+    public void buildNewMeasurementReflectively()
+            throws UnrecognizedMeasurementTypeException, NoValueException {
+        Measurement measurement = BaseMeasurement.getMeasurementFromMessage(
+                LatitudeAlias.class,
+                new SimpleVehicleMessage(LatitudeAlias.ID, value));
+        assertThat(measurement, instanceOf(LatitudeAlias.class));
+    }
+
+    @Test
+    public void findClassForId() {
+        assertEquals(VehicleSpeed.class,
+                BaseMeasurement.findClassForId(VehicleSpeed.ID));
+        assertThat(BaseMeasurement.findClassForId("foo"), nullValue());
+    }
+
     @Test
     public void getBirthtime() {
         VehicleSpeed measurement = new VehicleSpeed(value);
@@ -0,0 +1,183 @@
+package com.openxc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Assume;
+
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.DiagnosticResponse;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Helpers for the lightweight throughput benchmarks kept alongside the unit
+ * tests. They're skipped unless run with -Dopenxc.benchmark=true, e.g.
+ * {@code ./gradlew test -Dopenxc.benchmark=true}.
+ *
+ * These aren't meant to be as rigorous as a dedicated harness - they run a
+ * task a few times to warm up the JIT, then time a batch of iterations and
+ * sample the bytes allocated by the current thread (when the JVM supports it).
+ */
+public class BenchmarkUtils {
+    public static final String ENABLED_PROPERTY = "openxc.benchmark";
+
+    public interface Task {
+        public void run() throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        public final int iterations;
+        public final long elapsedNanos;
+        public final long allocatedBytes;
+
+        Result(String name, int iterations, long elapsedNanos,
+                long allocatedBytes) {
+            this.name = name;
+            this.iterations = iterations;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * @param unitsPerIteration how many units (messages, bytes, etc.)
+         *      each iteration of the task processed.
+         * @return the number of units processed per second.
+         */
+        public double perSecond(long unitsPerIteration) {
+            return unitsPerIteration * iterations /
+                    Math.max(elapsedNanos / 1e9, 1e-9);
+        }
+
+        /**
+         * @return the number of bytes allocated per unit processed, or -1 if
+         *      allocations can't be measured on this JVM.
+         */
+        public double allocatedPer(long unitsPerIteration) {
+            if(allocatedBytes < 0) {
+                return -1;
+            }
+            return (double) allocatedBytes / (unitsPerIteration * iterations);
+        }
+    }
+
+    /**
+     * @return true if benchmarks were asked for with -Dopenxc.benchmark=true -
+     *      they're slow, and too noisy to run in every build.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Skip the calling test unless benchmarks are enabled. Call it from a
+     * {@code @Before} method - the Robolectric runner doesn't skip a class
+     * when an assumption fails in {@code @BeforeClass}.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks are disabled", isEnabled());
+    }
+
+    /**
+     * Build a trace of messages with roughly the mix seen from a real vehicle
+     * interface - mostly simple signals, with some CAN and diagnostic traffic.
+     */
+    public static List<VehicleMessage> buildTrace(int count) {
+        List<VehicleMessage> trace = new ArrayList<>();
+        for(int i = 0; trace.size() < count; i++) {
+            switch(i % 10) {
+            case 0:
+                trace.add(new SimpleVehicleMessage("vehicle_speed",
+                            42.0 + i % 7));
+                break;
+            case 1:
+                trace.add(new SimpleVehicleMessage("windshield_wiper_status",
+                            i % 2 == 0));
+                break;
+            case 2:
+                trace.add(new SimpleVehicleMessage("steering_wheel_angle",
+                            94.1 + i % 13));
+                break;
+            case 3:
+                trace.add(new SimpleVehicleMessage(
+                            "transmission_gear_position", "first"));
+                break;
+            case 4:
+                trace.add(new SimpleVehicleMessage("engine_speed",
+                            1200.0 + i % 400));
+                break;
+            case 5:
+                trace.add(new SimpleVehicleMessage("latitude", 45.123));
+                break;
+            case 6:
+                trace.add(new SimpleVehicleMessage("longitude", 120.442));
+                break;
+            case 7:
+                trace.add(new EventedSimpleVehicleMessage("button_event",
+                            "up", "pressed"));
+                break;
+            case 8:
+                trace.add(new CanMessage(1, 0x128,
+                            new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i}));
+                break;
+            default:
+                trace.add(new DiagnosticResponse(1, 0x7e8, 1, 0x0c,
+                            new byte[] {0x1a, (byte) 0xf8}));
+                break;
+            }
+        }
+        return trace;
+    }
+
+    public static Result run(String name, int warmupIterations,
+            int iterations, Task task) throws Exception {
+        for(int i = 0; i < warmupIterations; i++) {
+            task.run();
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+
+        long allocated = -1;
+        if(allocatedBefore >= 0 && allocatedAfter >= 0) {
+            allocated = allocatedAfter - allocatedBefore;
+        }
+        return new Result(name, iterations, elapsed, allocated);
+    }
+
+    public static void report(Result result, long unitsPerIteration,
+            String unit) {
+        System.out.println(String.format(Locale.US,
+                    "%s: %.0f %ss/s, %.1f bytes allocated per %s",
+                    result.name, result.perSecond(unitsPerIteration), unit,
+                    result.allocatedPer(unitsPerIteration), unit));
+    }
+
+    /**
+     * @return the total number of bytes allocated by the current thread, or -1
+     *      if the JVM doesn't track it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean =
+                    (com.sun.management.ThreadMXBean) bean;
+            if(sunBean.isThreadAllocatedMemorySupported() &&
+                    sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
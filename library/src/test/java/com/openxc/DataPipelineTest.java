@@ -126,4 +126,31 @@ public class DataPipelineTest {
         assertThat(message, notNullValue());
         assertEquals(message, request);
     }
+
+    @Test
+    public void filteredSink() {
+        KeyedMessageFilter filter = new KeyedMessageFilter();
+        filter.setDefaultRule(KeyedMessageFilter.Rule.onChange(
+                    KeyedMessageFilter.Rule.NO_HEARTBEAT));
+        TestSink filteredSink = new TestSink();
+        pipeline.addSink(sink);
+        pipeline.addSink(filteredSink, filter);
+
+        pipeline.receive(new SimpleVehicleMessage("measurement", "value"));
+        assertTrue(sink.received);
+        assertTrue(filteredSink.received);
+
+        sink.received = false;
+        filteredSink.received = false;
+        pipeline.receive(new SimpleVehicleMessage("measurement", "value"));
+        assertTrue(sink.received);
+        assertFalse(filteredSink.received);
+    }
+
+    @Test
+    public void removeSinkDropsFilter() {
+        pipeline.addSink(sink, new KeyedMessageFilter());
+        pipeline.removeSink(sink);
+        assertThat(pipeline.getSinkFilter(sink), nullValue());
+    }
 }
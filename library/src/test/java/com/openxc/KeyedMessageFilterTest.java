@@ -0,0 +1,147 @@
+package com.openxc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.MessageKey;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+public class KeyedMessageFilterTest {
+    KeyedMessageFilter filter;
+    MessageKey speedKey = new SimpleVehicleMessage("speed", 0).getKey();
+
+    @Before
+    public void setUp() {
+        filter = new KeyedMessageFilter();
+    }
+
+    private boolean accept(VehicleMessage message, long millis) {
+        return filter.accept(message, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private SimpleVehicleMessage speed(Object value) {
+        return new SimpleVehicleMessage("speed", value);
+    }
+
+    @Test
+    public void noRulesAcceptsEverything() {
+        for(int i = 0; i < 10; i++) {
+            assertTrue(accept(speed(1), i));
+        }
+        assertEquals(10, filter.getAcceptedCount());
+        assertEquals(0, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void maximumRate() {
+        filter.setRule(speedKey, KeyedMessageFilter.Rule.maximumRate(10));
+        assertTrue(accept(speed(1), 0));
+        assertFalse(accept(speed(2), 50));
+        assertTrue(accept(speed(3), 100));
+        assertFalse(accept(speed(4), 199));
+        assertTrue(accept(speed(5), 200));
+        assertEquals(3, filter.getAcceptedCount());
+        assertEquals(2, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void rateLimitIsPerKey() {
+        filter.setDefaultRule(KeyedMessageFilter.Rule.maximumRate(1));
+        assertTrue(accept(speed(1), 0));
+        assertTrue(accept(new SimpleVehicleMessage("rpm", 1), 10));
+        assertFalse(accept(speed(1), 20));
+        assertFalse(accept(new SimpleVehicleMessage("rpm", 1), 30));
+    }
+
+    @Test
+    public void unchangedSuppressedUntilHeartbeat() {
+        filter.setRule(speedKey, KeyedMessageFilter.Rule.onChange(1000));
+        assertTrue(accept(speed(1), 0));
+        assertFalse(accept(speed(1), 10));
+        assertFalse(accept(speed(1), 999));
+        assertTrue(accept(speed(1), 1000));
+        assertTrue(accept(speed(2), 1001));
+        assertFalse(accept(speed(2), 1002));
+    }
+
+    @Test
+    public void unchangedSuppressedWithoutHeartbeat() {
+        filter.setRule(speedKey, KeyedMessageFilter.Rule.onChange(
+                    KeyedMessageFilter.Rule.NO_HEARTBEAT));
+        assertTrue(accept(speed("a"), 0));
+        assertFalse(accept(speed("a"), 100000));
+        assertTrue(accept(speed("b"), 100001));
+    }
+
+    @Test
+    public void deadband() {
+        filter.setRule(speedKey, KeyedMessageFilter.Rule.deadband(0.5, 1000));
+        assertTrue(accept(speed(10.0), 0));
+        assertFalse(accept(speed(10.4), 1));
+        assertFalse(accept(speed(9.6), 2));
+        assertTrue(accept(speed(10.6), 3));
+        // Compared with the last value let through, so slow drift still
+        // gets through
+        assertFalse(accept(speed(11.0), 4));
+        assertTrue(accept(speed(11.2), 5));
+    }
+
+    @Test
+    public void eventChangeAccepted() {
+        filter.setDefaultRule(KeyedMessageFilter.Rule.onChange(1000));
+        assertTrue(accept(new EventedSimpleVehicleMessage("door", "driver",
+                        false), 0));
+        assertFalse(accept(new EventedSimpleVehicleMessage("door", "driver",
+                        false), 1));
+        assertTrue(accept(new EventedSimpleVehicleMessage("door", "driver",
+                        true), 2));
+    }
+
+    @Test
+    public void canDataCompared() {
+        filter.setDefaultRule(KeyedMessageFilter.Rule.onChange(1000));
+        assertTrue(accept(new CanMessage(1, 42, new byte[] {1, 2}), 0));
+        assertFalse(accept(new CanMessage(1, 42, new byte[] {1, 2}), 1));
+        assertTrue(accept(new CanMessage(1, 42, new byte[] {1, 3}), 2));
+    }
+
+    @Test
+    public void rateLimitAndDeadband() {
+        filter.setRule(speedKey, new KeyedMessageFilter.Rule(10, 0, 1000));
+        assertTrue(accept(speed(1), 0));
+        assertFalse(accept(speed(2), 50));
+        assertFalse(accept(speed(1), 150));
+        assertTrue(accept(speed(2), 200));
+    }
+
+    @Test
+    public void unkeyedAccepted() {
+        filter.setDefaultRule(KeyedMessageFilter.Rule.maximumRate(1));
+        assertTrue(accept(new VehicleMessage(), 0));
+        assertTrue(accept(new VehicleMessage(), 1));
+    }
+
+    @Test
+    public void keyRuleOverridesDefault() {
+        filter.setDefaultRule(KeyedMessageFilter.Rule.maximumRate(1));
+        filter.setRule(speedKey, KeyedMessageFilter.Rule.maximumRate(1000));
+        assertTrue(accept(speed(1), 0));
+        assertTrue(accept(speed(1), 1));
+        filter.setRule(speedKey, null);
+        assertFalse(accept(speed(1), 2));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void negativeRateRejected() {
+        new KeyedMessageFilter.Rule(-1, 0, 0);
+    }
+}
@@ -0,0 +1,277 @@
+package com.openxc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.sinks.DataSinkException;
+import com.openxc.sinks.VehicleDataSink;
+
+@RunWith(RobolectricTestRunner.class)
+public class SinkDispatcherTest {
+    DataPipeline pipeline;
+    GatedSink slowSink;
+    GatedSink fastSink;
+
+    private static class GatedSink implements VehicleDataSink {
+        final CountDownLatch gate;
+        final List<VehicleMessage> received = new ArrayList<>();
+        volatile Thread receivingThread;
+        volatile boolean fail;
+        volatile boolean stopped;
+
+        GatedSink(boolean open) {
+            gate = new CountDownLatch(open ? 0 : 1);
+        }
+
+        @Override
+        public void receive(VehicleMessage message)
+                throws DataSinkException {
+            receivingThread = Thread.currentThread();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                return;
+            }
+            if(fail) {
+                throw new DataSinkException("Sink failed");
+            }
+            synchronized(this) {
+                received.add(message);
+            }
+        }
+
+        synchronized int receivedCount() {
+            return received.size();
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        pipeline = new DataPipeline();
+        slowSink = new GatedSink(false);
+        fastSink = new GatedSink(true);
+        pipeline.addSink(slowSink);
+        pipeline.addSink(fastSink);
+    }
+
+    @After
+    public void tearDown() {
+        slowSink.gate.countDown();
+        pipeline.stop();
+    }
+
+    private VehicleMessage message(int position) {
+        return new SimpleVehicleMessage("position", position);
+    }
+
+    private int position(VehicleMessage message) {
+        return ((SimpleVehicleMessage) message).getValueAsNumber().intValue();
+    }
+
+    @Test
+    public void slowSinkDoesNotBlockOthers() {
+        SinkDispatcher dispatcher = pipeline.dispatchInBackground(slowSink);
+        for(int i = 0; i < 10; i++) {
+            pipeline.receive(message(i));
+        }
+        assertEquals(10, fastSink.receivedCount());
+        assertEquals(0, slowSink.receivedCount());
+        assertThat(slowSink.receivingThread, not(Thread.currentThread()));
+
+        slowSink.gate.countDown();
+        dispatcher.clearQueue();
+        assertEquals(10, slowSink.receivedCount());
+        for(int i = 0; i < 10; i++) {
+            assertEquals(i, position(slowSink.received.get(i)));
+        }
+        assertEquals(10, dispatcher.getDeliveredMessageCount());
+        assertEquals(10, dispatcher.getReceiveLatency().getCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertThat(dispatcher.getMaxQueueDepth(), greaterThan(0));
+    }
+
+    @Test
+    public void dropNewest() {
+        SinkDispatcher dispatcher = pipeline.dispatchInBackground(slowSink, 4,
+                SinkDispatcher.OverflowPolicy.DROP_NEWEST);
+        for(int i = 0; i < 20; i++) {
+            pipeline.receive(message(i));
+        }
+        slowSink.gate.countDown();
+        dispatcher.clearQueue();
+
+        // The dispatch thread may have taken a batch out of the queue before
+        // the sink blocked, so more than the capacity can get through
+        assertThat(dispatcher.getDroppedMessageCount(), greaterThan(0L));
+        assertEquals(20, slowSink.receivedCount() +
+                dispatcher.getDroppedMessageCount());
+        assertEquals(0, position(slowSink.received.get(0)));
+    }
+
+    @Test
+    public void dropOldest() {
+        SinkDispatcher dispatcher = pipeline.dispatchInBackground(slowSink, 4,
+                SinkDispatcher.OverflowPolicy.DROP_OLDEST);
+        for(int i = 0; i < 20; i++) {
+            pipeline.receive(message(i));
+        }
+        slowSink.gate.countDown();
+        dispatcher.clearQueue();
+
+        assertEquals(20, slowSink.receivedCount() +
+                dispatcher.getDroppedMessageCount());
+        assertEquals(19, position(slowSink.received.get(
+                        slowSink.receivedCount() - 1)));
+    }
+
+    @Test
+    public void blockLosesNothing() {
+        SinkDispatcher dispatcher = pipeline.dispatchInBackground(slowSink, 4,
+                SinkDispatcher.OverflowPolicy.BLOCK);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch(InterruptedException e) { }
+                slowSink.gate.countDown();
+            }
+        }.start();
+        for(int i = 0; i < 100; i++) {
+            pipeline.receive(message(i));
+        }
+        dispatcher.clearQueue();
+        assertEquals(100, slowSink.receivedCount());
+        assertEquals(0, dispatcher.getDroppedMessageCount());
+    }
+
+    @Test
+    public void failingSinkRemoved() {
+        SinkDispatcher dispatcher = pipeline.dispatchInBackground(slowSink);
+        slowSink.fail = true;
+        slowSink.gate.countDown();
+        pipeline.receive(message(0));
+        dispatcher.clearQueue();
+        for(int i = 0; i < 100 && pipeline.getSinks().contains(slowSink);
+                i++) {
+            TestUtils.pause(10);
+        }
+        assertFalse(pipeline.getSinks().contains(slowSink));
+        assertTrue(slowSink.stopped);
+        assertThat(pipeline.getSinkDispatcher(slowSink), nullValue());
+        assertTrue(pipeline.getSinks().contains(fastSink));
+    }
+
+    @Test
+    public void dispatchInline() {
+        pipeline.dispatchInBackground(slowSink);
+        pipeline.receive(message(0));
+        slowSink.gate.countDown();
+        pipeline.dispatchInline(slowSink);
+        assertEquals(1, slowSink.receivedCount());
+
+        pipeline.receive(message(1));
+        assertEquals(2, slowSink.receivedCount());
+        assertEquals(Thread.currentThread(), slowSink.receivingThread);
+    }
+
+    /**
+     * Records the order messages arrive in, and whether it was ever called on
+     * two threads at once.
+     */
+    private static class OrderCheckingSink implements VehicleDataSink {
+        final List<Integer> positions = new ArrayList<>();
+        final AtomicInteger active = new AtomicInteger();
+        volatile boolean overlapped;
+
+        @Override
+        public void receive(VehicleMessage message) {
+            if(active.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            int position = ((SimpleVehicleMessage) message).getValueAsNumber()
+                    .intValue();
+            if(position % 16 == 0) {
+                // Slow enough now and then for a backlog to build up
+                TestUtils.pause(1);
+            }
+            synchronized(this) {
+                positions.add(position);
+            }
+            active.decrementAndGet();
+        }
+
+        @Override
+        public void stop() { }
+    }
+
+    @Test
+    public void switchingModesKeepsOrder() throws InterruptedException {
+        final OrderCheckingSink sink = new OrderCheckingSink();
+        pipeline.removeSink(slowSink);
+        pipeline.removeSink(fastSink);
+        pipeline.addSink(sink);
+
+        final int count = 2000;
+        Thread source = new Thread() {
+            @Override
+            public void run() {
+                for(int i = 0; i < count; i++) {
+                    pipeline.receive(message(i));
+                }
+            }
+        };
+        pipeline.dispatchInBackground(sink, 4096,
+                SinkDispatcher.OverflowPolicy.BLOCK);
+        source.start();
+        for(int i = 0; i < 10 && source.isAlive(); i++) {
+            TestUtils.pause(5);
+            if(i % 3 == 1) {
+                pipeline.dispatchInline(sink);
+            } else {
+                pipeline.dispatchInBackground(sink, 4096,
+                        SinkDispatcher.OverflowPolicy.BLOCK);
+            }
+        }
+        source.join();
+        pipeline.dispatchInline(sink);
+
+        assertFalse(sink.overlapped);
+        synchronized(sink) {
+            assertEquals(count, sink.positions.size());
+            for(int i = 0; i < count; i++) {
+                assertEquals(i, (int) sink.positions.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void removeSinkStopsDispatcher() {
+        pipeline.dispatchInBackground(slowSink);
+        pipeline.removeSink(slowSink);
+        assertThat(pipeline.getSinkDispatcher(slowSink), nullValue());
+        assertTrue(slowSink.stopped);
+    }
+}
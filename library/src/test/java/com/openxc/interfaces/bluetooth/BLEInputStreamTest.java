@@ -0,0 +1,81 @@
+package com.openxc.interfaces.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.TestUtils;
+
+@RunWith(RobolectricTestRunner.class)
+public class BLEInputStreamTest {
+    BLEInputStream stream;
+
+    @Before
+    public void setUp() {
+        stream = new BLEInputStream(64);
+    }
+
+    @Test
+    public void notificationsReadInBulk() throws IOException {
+        stream.putDataInBuffer("{\"name\":".getBytes());
+        stream.putDataInBuffer("\"foo\"}\u0000".getBytes());
+        byte[] bytes = new byte[128];
+        int read = stream.read(bytes, 0, bytes.length);
+        assertEquals("{\"name\":\"foo\"}\u0000", new String(bytes, 0, read));
+        assertEquals(read, stream.getReceivedByteCount());
+        assertFalse(stream.doesBufferHasRemaining());
+    }
+
+    @Test
+    public void emptyReadReturnsNothing() throws IOException {
+        assertEquals(0, stream.read(new byte[16], 0, 16));
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void readWokenByNotification() throws IOException {
+        new Thread() {
+            @Override
+            public void run() {
+                TestUtils.pause(20);
+                stream.putDataInBuffer(new byte[] {1, 2, 3});
+            }
+        }.start();
+
+        byte[] bytes = new byte[16];
+        int read = 0;
+        for(int i = 0; i < 50 && read == 0; i++) {
+            read = stream.read(bytes, 0, bytes.length);
+        }
+        assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(bytes, read));
+    }
+
+    @Test
+    public void overflowDropsWholeNotification() throws IOException {
+        stream.putDataInBuffer(new byte[60]);
+        stream.putDataInBuffer(new byte[] {1, 2, 3, 4, 5});
+        assertEquals(1, stream.getOverflowCount());
+        assertEquals(5, stream.getOverflowedByteCount());
+        assertEquals(60, stream.available());
+
+        // What was already buffered is still there
+        assertEquals(60, stream.read(new byte[128], 0, 128));
+    }
+
+    @Test
+    public void clearBufferDiscards() throws IOException {
+        stream.putDataInBuffer(new byte[] {1, 2, 3});
+        assertTrue(stream.doesBufferHasRemaining());
+        stream.clearBuffer();
+        assertFalse(stream.doesBufferHasRemaining());
+    }
+}
@@ -0,0 +1,249 @@
+package com.openxc.interfaces.bluetooth;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+@RunWith(RobolectricTestRunner.class)
+public class BLEWriteQueueTest {
+    static final int CAPACITY = 64;
+
+    RecordingQueue queue;
+
+    private static class RecordingQueue extends BLEWriteQueue {
+        final List<byte[]> packets = new ArrayList<>();
+        boolean busy;
+
+        RecordingQueue() {
+            this(CAPACITY);
+        }
+
+        RecordingQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        boolean writePacket(byte[] packet) {
+            if(busy) {
+                return false;
+            }
+            packets.add(packet.clone());
+            return true;
+        }
+
+        byte[] written() {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for(byte[] packet : packets) {
+                output.write(packet, 0, packet.length);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        queue = new RecordingQueue();
+    }
+
+    private byte[] bytes(int first, int count) {
+        byte[] bytes = new byte[count];
+        for(int i = 0; i < count; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    private void completeAll() {
+        for(int i = 0; i < 1000 && queue.getQueuedByteCount() > 0; i++) {
+            queue.onWriteComplete(true);
+        }
+        queue.onWriteComplete(true);
+    }
+
+    @Test
+    public void onePacketInFlight() {
+        assertTrue(queue.offer(bytes(0, 50)));
+        assertThat(queue.packets, hasSize(1));
+        assertEquals(BLEWriteQueue.DEFAULT_MTU - 3,
+                queue.packets.get(0).length);
+
+        queue.offer(bytes(50, 5));
+        assertThat(queue.packets, hasSize(1));
+
+        queue.onWriteComplete(true);
+        assertThat(queue.packets, hasSize(2));
+        completeAll();
+        assertArrayEquals(bytes(0, 55), queue.written());
+        assertEquals(55, queue.getBytesWritten());
+        assertEquals(3, queue.getPacketsWritten());
+    }
+
+    @Test
+    public void largerMtuMeansFewerPackets() {
+        queue.setMtu(43);
+        queue.offer(bytes(0, 50));
+        completeAll();
+        assertThat(queue.packets, hasSize(2));
+        assertEquals(40, queue.packets.get(0).length);
+        assertArrayEquals(bytes(0, 50), queue.written());
+    }
+
+    @Test
+    public void packetsCappedAtMaxAttributeLength() {
+        queue = new RecordingQueue(1024);
+        queue.setMtu(517);
+        queue.offer(bytes(0, 1000));
+        completeAll();
+        assertThat(queue.packets, hasSize(2));
+        assertEquals(BLEWriteQueue.MAX_ATTRIBUTE_LENGTH,
+                queue.packets.get(0).length);
+        assertEquals(1000 - BLEWriteQueue.MAX_ATTRIBUTE_LENGTH,
+                queue.packets.get(1).length);
+        assertArrayEquals(bytes(0, 1000), queue.written());
+    }
+
+    @Test
+    public void wrapsAroundBuffer() {
+        queue.setMtu(103);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(bytes(i * 40, 40)));
+            completeAll();
+        }
+        assertArrayEquals(bytes(0, 400), queue.written());
+    }
+
+    @Test
+    public void fullQueueRejectsWholeMessage() {
+        queue.busy = true;
+        assertTrue(queue.offer(bytes(0, 60)));
+        assertFalse(queue.offer(bytes(60, 10)));
+        assertEquals(60, queue.getQueuedByteCount());
+        assertEquals(10, queue.getRejectedByteCount());
+    }
+
+    @Test
+    public void busyStackRetriedOnPump() {
+        queue.busy = true;
+        queue.offer(bytes(0, 10));
+        assertThat(queue.packets, empty());
+        queue.busy = false;
+        queue.pump();
+        assertThat(queue.packets, hasSize(1));
+        assertArrayEquals(bytes(0, 10), queue.written());
+    }
+
+    @Test
+    public void failedWriteCounted() {
+        queue.offer(bytes(0, 10));
+        queue.onWriteComplete(false);
+        assertEquals(1, queue.getFailedWriteCount());
+        assertEquals(0, queue.getBytesWritten());
+    }
+
+    @Test
+    public void bytesQueuedUntilWriteSucceeds() {
+        queue.offer(bytes(0, 10));
+        assertThat(queue.packets, hasSize(1));
+        assertEquals(10, queue.getQueuedByteCount());
+        queue.onWriteComplete(true);
+        assertEquals(0, queue.getQueuedByteCount());
+    }
+
+    @Test
+    public void failedPacketRetried() {
+        queue.offer(bytes(0, 30));
+        queue.onWriteComplete(false);
+        assertThat(queue.packets, hasSize(2));
+        assertArrayEquals(queue.packets.get(0), queue.packets.get(1));
+
+        completeAll();
+        assertEquals(30, queue.getBytesWritten());
+        assertEquals(0, queue.getDroppedByteCount());
+        assertArrayEquals(bytes(20, 10),
+                queue.packets.get(queue.packets.size() - 1));
+    }
+
+    @Test
+    public void packetDroppedAfterRepeatedFailures() {
+        queue.offer(bytes(0, 30));
+        for(int i = 0; i < BLEWriteQueue.MAX_WRITE_ATTEMPTS; i++) {
+            queue.onWriteComplete(false);
+        }
+        assertEquals(BLEWriteQueue.DEFAULT_MTU - 3,
+                queue.getDroppedByteCount());
+        assertThat(queue.packets,
+                hasSize(BLEWriteQueue.MAX_WRITE_ATTEMPTS + 1));
+        assertArrayEquals(bytes(20, 10),
+                queue.packets.get(queue.packets.size() - 1));
+
+        // The next packet gets its own attempts
+        queue.onWriteComplete(false);
+        queue.onWriteComplete(true);
+        assertEquals(10, queue.getBytesWritten());
+        assertEquals(0, queue.getQueuedByteCount());
+    }
+
+    @Test
+    public void lostCallbackRetriedWithoutNewWrites() {
+        queue.offer(bytes(0, 10));
+        assertThat(queue.packets, hasSize(1));
+        ShadowLooper.idleMainLooper(BLEWriteQueue.WRITE_TIMEOUT_MILLIS - 1,
+                TimeUnit.MILLISECONDS);
+        assertThat(queue.packets, hasSize(1));
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        assertThat(queue.packets, hasSize(2));
+        assertEquals(1, queue.getFailedWriteCount());
+        queue.onWriteComplete(true);
+        assertEquals(10, queue.getBytesWritten());
+        assertEquals(0, queue.getQueuedByteCount());
+    }
+
+    @Test
+    public void answeredWriteCancelsTimeout() {
+        queue.offer(bytes(0, 10));
+        queue.onWriteComplete(true);
+        ShadowLooper.idleMainLooper(BLEWriteQueue.WRITE_TIMEOUT_MILLIS * 2,
+                TimeUnit.MILLISECONDS);
+        assertEquals(0, queue.getFailedWriteCount());
+        assertThat(queue.packets, hasSize(1));
+    }
+
+    @Test
+    public void throughputMeasured() {
+        assertEquals(0, queue.getThroughputBytesPerSecond(), 0);
+        queue.offer(bytes(0, 50));
+        completeAll();
+        assertThat(queue.getThroughputBytesPerSecond(), greaterThan(0.0));
+    }
+
+    @Test
+    public void resetDropsQueuedBytes() {
+        queue.busy = true;
+        queue.setMtu(100);
+        queue.offer(bytes(0, 10));
+        queue.reset();
+        assertEquals(0, queue.getQueuedByteCount());
+        assertEquals(BLEWriteQueue.DEFAULT_MTU, queue.getMtu());
+    }
+
+    @Test
+    public void smallMtuIgnored() {
+        queue.setMtu(10);
+        assertEquals(BLEWriteQueue.DEFAULT_MTU, queue.getMtu());
+    }
+}
@@ -0,0 +1,139 @@
+package com.openxc.interfaces.bluetooth;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.TestUtils;
+
+@RunWith(RobolectricTestRunner.class)
+public class CoalescingWriteQueueTest {
+    CountingOutputStream output;
+    CoalescingWriteQueue queue;
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+        int flushes;
+        volatile boolean fail;
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            writes++;
+            super.write(bytes, offset, length);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if(fail) {
+                throw new IOException("Socket closed");
+            }
+            flushes++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        output = new CountingOutputStream();
+        queue = new CoalescingWriteQueue(output, 256);
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    private byte[] command(int index) {
+        return ("{\"command\": " + index + "}\u0000").getBytes();
+    }
+
+    @Test
+    public void burstCoalesced() throws InterruptedException {
+        queue.setFlushPolicy(100, 1000, 1024);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for(int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(command(i)));
+            expected.write(command(i), 0, command(i).length);
+        }
+        queue.flush();
+
+        assertEquals(1, output.writes);
+        assertEquals(1, output.flushes);
+        assertArrayEquals(expected.toByteArray(), output.toByteArray());
+        assertEquals(10, queue.getCommandCount());
+        assertEquals(1, queue.getWriteCount());
+        assertEquals(expected.size(), queue.getBytesWritten());
+        assertEquals(1, queue.getWriteLatency().getCount());
+    }
+
+    @Test
+    public void writtenWhenIdle() {
+        queue.setFlushPolicy(5, 1000, 1024);
+        queue.offer(command(0));
+        queue.offer(command(1));
+        for(int i = 0; i < 100 && queue.getCommandCount() < 2; i++) {
+            TestUtils.pause(5);
+        }
+        assertEquals(2, queue.getCommandCount());
+        assertEquals(1, output.writes);
+    }
+
+    @Test
+    public void writtenWhenSizeReached() {
+        queue.setFlushPolicy(10000, 10000, 40);
+        for(int i = 0; i < 3; i++) {
+            queue.offer(command(i));
+        }
+        for(int i = 0; i < 100 && queue.getWriteCount() == 0; i++) {
+            TestUtils.pause(5);
+        }
+        assertThat(queue.getWriteCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void binaryPassedThrough() throws InterruptedException {
+        byte[] binary = new byte[] {(byte) 0x8f, 0, (byte) 0xff, 0x12};
+        queue.offer(binary);
+        queue.flush();
+        assertArrayEquals(binary, output.toByteArray());
+    }
+
+    @Test
+    public void fullQueueRejects() {
+        queue.setFlushPolicy(10000, 10000, 1024);
+        assertTrue(queue.offer(new byte[200]));
+        assertFalse(queue.offer(new byte[100]));
+        assertEquals(1, queue.getRejectedCommandCount());
+    }
+
+    @Test
+    public void failedWriteStopsQueue() throws InterruptedException {
+        output.fail = true;
+        queue.offer(command(0));
+        queue.flush();
+        assertThat(queue.getWriteError(), notNullValue());
+        assertFalse(queue.offer(command(1)));
+    }
+
+    @Test
+    public void closedQueueRejects() {
+        queue.close();
+        assertFalse(queue.offer(command(0)));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void maxDelayShorterThanIdleRejected() {
+        queue.setFlushPolicy(10, 5, 1024);
+    }
+}
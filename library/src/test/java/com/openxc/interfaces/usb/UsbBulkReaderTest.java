@@ -0,0 +1,158 @@
+package com.openxc.interfaces.usb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+@RunWith(RobolectricTestRunner.class)
+public class UsbBulkReaderTest {
+    UsbDeviceConnection connection;
+    UsbEndpoint endpoint;
+    List<UsbRequest> requests = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        connection = mock(UsbDeviceConnection.class);
+        endpoint = mock(UsbEndpoint.class);
+        when(endpoint.getMaxPacketSize()).thenReturn(64);
+    }
+
+    private UsbRequest newMockRequest() {
+        UsbRequest request = mock(UsbRequest.class);
+        final Object[] clientData = new Object[1];
+        when(request.initialize(any(UsbDeviceConnection.class),
+                    any(UsbEndpoint.class))).thenReturn(true);
+        when(request.queue(any(ByteBuffer.class), anyInt())).thenReturn(true);
+        org.mockito.Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                clientData[0] = invocation.getArgument(0);
+                return null;
+            }
+        }).when(request).setClientData(any());
+        when(request.getClientData()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return clientData[0];
+            }
+        });
+        requests.add(request);
+        return request;
+    }
+
+    private UsbBulkReader newReader(int requestCount, int transferSize) {
+        return new UsbBulkReader(connection, endpoint, requestCount,
+                transferSize) {
+            @Override
+            UsbRequest newRequest() {
+                return newMockRequest();
+            }
+        };
+    }
+
+    /**
+     * Pretend the request received these bytes.
+     */
+    private UsbRequest complete(UsbRequest request, byte[] data) {
+        ((ByteBuffer) request.getClientData()).put(data);
+        return request;
+    }
+
+    @Test
+    public void allRequestsQueued() {
+        UsbBulkReader reader = newReader(3, 512);
+        assertEquals(3, reader.getRequestCount());
+        for(UsbRequest request : requests) {
+            verify(request).queue(any(ByteBuffer.class), anyInt());
+        }
+    }
+
+    @Test
+    public void transferSizeRoundedToPackets() {
+        assertEquals(128, newReader(1, 100).getTransferSize());
+        assertEquals(UsbBulkReader.MAX_LEGACY_TRANSFER_SIZE,
+                UsbBulkReader.roundTransferSize(1 << 20, 64));
+    }
+
+    @Test
+    public void readsCompletedRequestAndRequeues() {
+        UsbBulkReader reader = newReader(2, 512);
+        UsbRequest first = requests.get(0);
+        UsbRequest completed = complete(first, new byte[] {1, 2, 3});
+        when(connection.requestWait()).thenReturn(completed);
+
+        byte[] bytes = new byte[16];
+        assertEquals(3, reader.read(bytes));
+        assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(bytes, 3));
+        assertEquals(1, reader.getTransferCount());
+        assertEquals(3, reader.getBytesTransferred());
+
+        // Queued again once its bytes have all been read
+        UsbRequest second = requests.get(1);
+        UsbRequest next = complete(second, new byte[] {4});
+        when(connection.requestWait()).thenReturn(next);
+        assertEquals(1, reader.read(bytes));
+        verify(first, times(2)).queue(any(ByteBuffer.class), anyInt());
+        assertEquals(4, bytes[0]);
+    }
+
+    @Test
+    public void largeTransferReadInPieces() {
+        UsbBulkReader reader = newReader(1, 512);
+        byte[] data = new byte[10];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        UsbRequest completed = complete(requests.get(0), data);
+        when(connection.requestWait()).thenReturn(completed);
+
+        byte[] bytes = new byte[4];
+        assertEquals(4, reader.read(bytes));
+        assertEquals(4, reader.read(bytes));
+        assertArrayEquals(new byte[] {4, 5, 6, 7}, bytes);
+        assertEquals(2, reader.read(bytes));
+        assertEquals(1, reader.getTransferCount());
+    }
+
+    @Test
+    public void failedWaitReturnsError() {
+        UsbBulkReader reader = newReader(1, 512);
+        when(connection.requestWait()).thenReturn(null);
+        assertEquals(-1, reader.read(new byte[16]));
+    }
+
+    @Test
+    public void cancelledReaderReturnsError() {
+        UsbBulkReader reader = newReader(2, 512);
+        reader.cancel();
+        assertEquals(-1, reader.read(new byte[16]));
+        for(UsbRequest request : requests) {
+            verify(request).cancel();
+        }
+        reader.close();
+        for(UsbRequest request : requests) {
+            verify(request).close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.openxc.measurements;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+
+/**
+ * Compare building each of the built-in measurement types from a message with
+ * the registered factories against the reflective constructor lookup.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BaseMeasurementBenchmark {
+    private static final int ROUNDS = 2000;
+    private static final int ITERATIONS = 10;
+
+    private List<SimpleVehicleMessage> mMessages = new ArrayList<>();
+    private List<Class<? extends Measurement>> mTypes = new ArrayList<>();
+
+    private void add(Class<? extends Measurement> type,
+            SimpleVehicleMessage message) {
+        mTypes.add(type);
+        mMessages.add(message);
+    }
+
+    @Before
+    public void setup() {
+        BenchmarkUtils.assumeEnabled();
+        add(AcceleratorPedalPosition.class, new SimpleVehicleMessage(
+                    AcceleratorPedalPosition.ID, 12.5));
+        add(BrakePedalStatus.class, new SimpleVehicleMessage(
+                    BrakePedalStatus.ID, true));
+        add(EngineSpeed.class, new SimpleVehicleMessage(
+                    EngineSpeed.ID, 1200.0));
+        add(FuelConsumed.class, new SimpleVehicleMessage(
+                    FuelConsumed.ID, 0.5));
+        add(FuelLevel.class, new SimpleVehicleMessage(FuelLevel.ID, 50.0));
+        add(HeadlampStatus.class, new SimpleVehicleMessage(
+                    HeadlampStatus.ID, false));
+        add(HighBeamStatus.class, new SimpleVehicleMessage(
+                    HighBeamStatus.ID, false));
+        add(IgnitionStatus.class, new SimpleVehicleMessage(
+                    IgnitionStatus.ID, "run"));
+        add(Latitude.class, new SimpleVehicleMessage(Latitude.ID, 45.1));
+        add(Longitude.class, new SimpleVehicleMessage(Longitude.ID, 120.4));
+        add(Odometer.class, new SimpleVehicleMessage(Odometer.ID, 1024.0));
+        add(ParkingBrakeStatus.class, new SimpleVehicleMessage(
+                    ParkingBrakeStatus.ID, true));
+        add(SteeringWheelAngle.class, new SimpleVehicleMessage(
+                    SteeringWheelAngle.ID, 94.1));
+        add(TorqueAtTransmission.class, new SimpleVehicleMessage(
+                    TorqueAtTransmission.ID, 232.1));
+        add(TransmissionGearPosition.class, new SimpleVehicleMessage(
+                    TransmissionGearPosition.ID, "first"));
+        add(TurnSignalStatus.class, new SimpleVehicleMessage(
+                    TurnSignalStatus.ID, "left"));
+        add(VehicleButtonEvent.class, new EventedSimpleVehicleMessage(
+                    VehicleButtonEvent.ID, "up", "pressed"));
+        add(VehicleDoorStatus.class, new EventedSimpleVehicleMessage(
+                    VehicleDoorStatus.ID, "driver", true));
+        add(VehicleSpeed.class, new SimpleVehicleMessage(
+                    VehicleSpeed.ID, 42.0));
+        add(WindshieldWiperStatus.class, new SimpleVehicleMessage(
+                    WindshieldWiperStatus.ID, true));
+    }
+
+    @Test
+    public void factoriesMatchReflection() throws Exception {
+        assertEquals(20, mMessages.size());
+        for(int i = 0; i < mMessages.size(); i++) {
+            assertEquals(mTypes.get(i),
+                    BaseMeasurement.findClassForId(mMessages.get(i).getName()));
+            assertEquals(BaseMeasurement.reflectMeasurement(mTypes.get(i),
+                        mMessages.get(i)),
+                    BaseMeasurement.getMeasurementFromMessage(mTypes.get(i),
+                        mMessages.get(i)));
+        }
+    }
+
+    @Test
+    public void reflection() throws Exception {
+        BenchmarkUtils.Result result = BenchmarkUtils.run(
+                "BaseMeasurement reflection", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                for(int round = 0; round < ROUNDS; round++) {
+                    for(int i = 0; i < mMessages.size(); i++) {
+                        BaseMeasurement.reflectMeasurement(mTypes.get(i),
+                                mMessages.get(i));
+                    }
+                }
+            }
+        });
+        BenchmarkUtils.report(result, ROUNDS * mMessages.size(),
+                "measurement");
+    }
+
+    @Test
+    public void factories() throws Exception {
+        BenchmarkUtils.Result result = BenchmarkUtils.run(
+                "BaseMeasurement factories", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                for(int round = 0; round < ROUNDS; round++) {
+                    for(SimpleVehicleMessage message : mMessages) {
+                        BaseMeasurement.getMeasurementFromMessage(message);
+                    }
+                }
+            }
+        });
+        BenchmarkUtils.report(result, ROUNDS * mMessages.size(),
+                "measurement");
+    }
+}
@@ -1,6 +1,8 @@
 package com.openxc.messages;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -39,4 +41,119 @@ public class MessageKeyTest {
         assertThat(createdFromParcel, instanceOf(MessageKey.class));
         assertEquals(key, createdFromParcel);
     }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void deprecatedReadFromParcel() {
+        final Parcel parcel = Parcel.obtain();
+        key.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+
+        MessageKey other = new MessageKey(new HashMap<String, Object>()) {
+            {
+                readFromParcel(parcel);
+            }
+        };
+        assertEquals(key.hashCode(), other.hashCode());
+        assertEquals("bar", other.get("foo"));
+    }
+
+    @Test
+    public void equalPartsAreEqual() {
+        Map<String, Object> otherParts = new HashMap<>();
+        otherParts.put("foo", "bar");
+        MessageKey other = new MessageKey(otherParts);
+        assertEquals(key, other);
+        assertEquals(key.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void hashCollisionNotEqual() {
+        // "Aa" and "BB" have the same String hash code
+        Map<String, Object> first = new HashMap<>();
+        first.put("name", "Aa");
+        Map<String, Object> second = new HashMap<>();
+        second.put("name", "BB");
+        MessageKey firstKey = new MessageKey(first);
+        MessageKey secondKey = new MessageKey(second);
+        assertEquals(firstKey.hashCode(), secondKey.hashCode());
+        assertThat(firstKey, not(equalTo(secondKey)));
+    }
+
+    @Test
+    public void partsCopied() {
+        parts.put("foo", "baz");
+        Map<String, Object> original = new HashMap<>();
+        original.put("foo", "bar");
+        assertEquals(new MessageKey(original), key);
+    }
+
+    @Test
+    public void forNameInterned() {
+        MessageKey first = MessageKey.forName("vehicle_speed");
+        assertThat(MessageKey.forName("vehicle_speed"), sameInstance(first));
+        assertThat(new NamedVehicleMessage("vehicle_speed").getKey(),
+                sameInstance(first));
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("name", "vehicle_speed");
+        assertEquals(new MessageKey(expected), first);
+        assertThat(MessageKey.intern(new MessageKey(expected)),
+                sameInstance(first));
+    }
+
+    @Test
+    public void collidingNamesInternedSeparately() {
+        MessageKey first = MessageKey.forName("Aa");
+        MessageKey second = MessageKey.forName("BB");
+        assertThat(first, not(equalTo(second)));
+        assertThat(MessageKey.forName("Aa"), sameInstance(first));
+        assertThat(MessageKey.forName("BB"), sameInstance(second));
+    }
+
+    @Test
+    public void forCanMessageInterned() {
+        MessageKey key = MessageKey.forCanMessage(1, 0x7e8);
+        assertThat(new CanMessage(1, 0x7e8, new byte[]{1}).getKey(),
+                sameInstance(key));
+        assertThat(MessageKey.forCanMessage(2, 0x7e8), not(equalTo(key)));
+    }
+
+    @Test
+    public void forDiagnosticMessageInterned() {
+        MessageKey key = MessageKey.forDiagnosticMessage(1, 0x7e8, 1, 0x0c);
+        assertThat(new DiagnosticResponse(1, 0x7e8, 1, 0x0c,
+                    new byte[]{1}).getKey(), sameInstance(key));
+        assertThat(new DiagnosticRequest(1, 0x7e8, 1, 0x0c).getKey(),
+                sameInstance(key));
+        assertThat(MessageKey.forCanMessage(1, 0x7e8), not(equalTo(key)));
+    }
+
+    @Test
+    public void forDiagnosticMessageWithoutPid() {
+        MessageKey key = MessageKey.forDiagnosticMessage(1, 0x7e8, 1, null);
+        assertThat(MessageKey.forDiagnosticMessage(1, 0x7e8, 1, null),
+                sameInstance(key));
+        assertThat(MessageKey.forDiagnosticMessage(1, 0x7e8, 1, 0),
+                not(equalTo(key)));
+    }
+
+    @Test
+    public void commandAndResponseShareKey() {
+        MessageKey key = new Command(Command.CommandType.VERSION).getKey();
+        assertThat(new CommandResponse(Command.CommandType.VERSION,
+                    true).getKey(), sameInstance(key));
+    }
+
+    @Test
+    public void manyKeysInterned() {
+        List<MessageKey> keys = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) {
+            keys.add(MessageKey.forCanMessage(3, i));
+        }
+        for(int i = 0; i < 2000; i++) {
+            assertThat(MessageKey.forCanMessage(3, i),
+                    sameInstance(keys.get(i)));
+        }
+    }
 }
@@ -0,0 +1,202 @@
+package com.openxc.messages.formatters;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.SerializationException;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryTraceWriter.BlockIndexEntry;
+
+@RunWith(RobolectricTestRunner.class)
+public class BinaryTraceWriterTest {
+    ByteArrayOutputStream output;
+    List<VehicleMessage> trace;
+
+    @Before
+    public void setUp() {
+        output = new ByteArrayOutputStream();
+        trace = BenchmarkUtils.buildTrace(1000);
+        long timestamp = 1000;
+        for(VehicleMessage message : trace) {
+            message.setTimestamp(timestamp++);
+        }
+    }
+
+    private List<VehicleMessage> readAll(byte[] bytes) throws IOException {
+        BinaryTraceReader reader = new BinaryTraceReader(
+                new ByteArrayInputStream(bytes));
+        List<VehicleMessage> messages = new ArrayList<>();
+        VehicleMessage message;
+        while((message = reader.read()) != null) {
+            messages.add(message);
+        }
+        reader.close();
+        return messages;
+    }
+
+    private void writeAll(BinaryTraceWriter writer,
+            List<VehicleMessage> messages) throws Exception {
+        for(VehicleMessage message : messages) {
+            writer.write(message);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output);
+        writeAll(writer, trace);
+        writer.close();
+
+        assertEquals(trace, readAll(output.toByteArray()));
+        assertEquals(trace.size(), writer.getMessageCount());
+    }
+
+    @Test
+    public void roundTripUncompressed() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output, 1024,
+                BinaryTraceWriter.CODEC_NONE);
+        writeAll(writer, trace);
+        writer.close();
+
+        assertEquals(trace, readAll(output.toByteArray()));
+    }
+
+    @Test
+    public void emptyTrace() throws Exception {
+        new BinaryTraceWriter(output).close();
+        assertThat(readAll(output.toByteArray()), empty());
+    }
+
+    @Test
+    public void smallerThanJson() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output);
+        writeAll(writer, trace);
+        writer.close();
+
+        int jsonBytes = 0;
+        for(VehicleMessage message : trace) {
+            jsonBytes += JsonFormatter.serialize(message).length() + 1;
+        }
+        assertThat(output.size(), lessThan(jsonBytes / 4));
+    }
+
+    @Test
+    public void blocksAreIndexed() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output, 1024,
+                BinaryTraceWriter.CODEC_DEFLATE);
+        writeAll(writer, trace);
+        writer.close();
+
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(output.toByteArray());
+        stream.close();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        List<BlockIndexEntry> index = BinaryTraceReader.readIndex(
+                randomAccessFile);
+        assertThat(index, hasSize(greaterThan(1)));
+        assertEquals(writer.getIndex().size(), index.size());
+
+        int messages = 0;
+        long previousTimestamp = 0;
+        for(BlockIndexEntry entry : index) {
+            assertThat(entry.getFirstTimestamp(),
+                    greaterThan(previousTimestamp));
+            assertThat(entry.getLastTimestamp(),
+                    greaterThanOrEqualTo(entry.getFirstTimestamp()));
+            previousTimestamp = entry.getLastTimestamp();
+            messages += entry.getMessageCount();
+
+            randomAccessFile.seek(entry.getOffset());
+            assertEquals(BinaryTraceWriter.BLOCK_MARKER,
+                    randomAccessFile.readInt());
+        }
+        assertEquals(trace.size(), messages);
+        randomAccessFile.close();
+    }
+
+    @Test
+    public void truncatedTraceReadsCompleteBlocks() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output, 1024,
+                BinaryTraceWriter.CODEC_DEFLATE);
+        writeAll(writer, trace);
+        writer.flush();
+        List<BlockIndexEntry> index = writer.getIndex();
+        BlockIndexEntry last = index.get(index.size() - 1);
+
+        // Cut the file part way through the final block, as if the recorder
+        // was killed while writing it
+        byte[] truncated = Arrays.copyOf(output.toByteArray(),
+                (int) last.getOffset() + 10);
+        List<VehicleMessage> messages = readAll(truncated);
+        assertEquals(trace.size() - last.getMessageCount(), messages.size());
+        assertEquals(trace.subList(0, messages.size()), messages);
+    }
+
+    @Test
+    public void unclosedTraceHasNoIndex() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output);
+        writeAll(writer, trace);
+        writer.flush();
+
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(output.toByteArray());
+        stream.close();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        assertNull(BinaryTraceReader.readIndex(randomAccessFile));
+        randomAccessFile.close();
+        assertEquals(trace, readAll(output.toByteArray()));
+    }
+
+    @Test
+    public void messageWithExtrasRejected() throws Exception {
+        BinaryTraceWriter writer = new BinaryTraceWriter(output);
+        SimpleVehicleMessage message = new SimpleVehicleMessage(1L, "foo",
+                1.0);
+        Map<String, Object> extras = new HashMap<>();
+        extras.put("foo", "bar");
+        message.setExtras(extras);
+        try {
+            writer.write(message);
+            fail("Expected a SerializationException");
+        } catch(SerializationException e) {
+        }
+
+        writer.write(trace.get(0));
+        writer.close();
+        assertEquals(trace.subList(0, 1), readAll(output.toByteArray()));
+    }
+
+    @Test(expected=IOException.class)
+    public void notATrace() throws IOException {
+        new BinaryTraceReader(new ByteArrayInputStream(
+                    "{\"name\": \"foo\"}".getBytes()));
+    }
+}
@@ -0,0 +1,72 @@
+package com.openxc.messages.formatters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Compare deserializing a JSON trace through the full JsonObject tree against
+ * the single-pass StreamingJsonDeserializer used by JsonFormatter.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class JsonFormatterBenchmark {
+    private static final int TRACE_MESSAGES = 5000;
+    private static final int ITERATIONS = 10;
+
+    private List<String> mTrace = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        BenchmarkUtils.assumeEnabled();
+        for(VehicleMessage message : BenchmarkUtils.buildTrace(
+                    TRACE_MESSAGES)) {
+            message.timestamp();
+            mTrace.add(JsonFormatter.serialize(message));
+        }
+    }
+
+    @Test
+    public void treeDeserializer() throws Exception {
+        BenchmarkUtils.Result result = BenchmarkUtils.run(
+                "JsonFormatter tree", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                int parsed = 0;
+                for(String line : mTrace) {
+                    JsonFormatter.deserializeTree(line);
+                    parsed++;
+                }
+                assertEquals(TRACE_MESSAGES, parsed);
+            }
+        });
+        BenchmarkUtils.report(result, TRACE_MESSAGES, "message");
+    }
+
+    @Test
+    public void streamingDeserializer() throws Exception {
+        BenchmarkUtils.Result result = BenchmarkUtils.run(
+                "JsonFormatter streaming", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                int parsed = 0;
+                for(String line : mTrace) {
+                    JsonFormatter.deserialize(line);
+                    parsed++;
+                }
+                assertEquals(TRACE_MESSAGES, parsed);
+            }
+        });
+        BenchmarkUtils.report(result, TRACE_MESSAGES, "message");
+    }
+}
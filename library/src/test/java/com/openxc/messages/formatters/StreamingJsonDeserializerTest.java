@@ -0,0 +1,169 @@
+package com.openxc.messages.formatters;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.CommandResponse;
+import com.openxc.messages.CustomCommandResponse;
+import com.openxc.messages.DiagnosticResponse;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.NamedVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.UnrecognizedMessageTypeException;
+import com.openxc.messages.VehicleMessage;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingJsonDeserializerTest {
+    private VehicleMessage stream(String data) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(data));
+        reader.setLenient(true);
+        return StreamingJsonDeserializer.deserialize(reader);
+    }
+
+    /**
+     * Assert that the streaming deserializer handles the message and produces
+     * the same result as parsing the full tree.
+     */
+    private VehicleMessage assertMatchesTree(String data)
+            throws IOException, UnrecognizedMessageTypeException {
+        VehicleMessage streamed = stream(data);
+        assertThat(streamed, notNullValue());
+        VehicleMessage tree = JsonFormatter.deserializeTree(data);
+        assertThat(streamed, instanceOf(tree.getClass()));
+        assertEquals(tree, streamed);
+        // Compare the parsed output, as the order of extras can differ
+        JsonParser parser = new JsonParser();
+        assertEquals(parser.parse(JsonFormatter.serialize(tree)),
+                parser.parse(JsonFormatter.serialize(streamed)));
+        return streamed;
+    }
+
+    @Test
+    public void namedMessage() throws Exception {
+        assertThat(assertMatchesTree("{\"name\": \"foo\"}"),
+                instanceOf(NamedVehicleMessage.class));
+    }
+
+    @Test
+    public void simpleMessageValueTypes() throws Exception {
+        assertThat(assertMatchesTree("{\"name\": \"foo\", \"value\": 42}"),
+                instanceOf(SimpleVehicleMessage.class));
+        assertMatchesTree("{\"name\": \"foo\", \"value\": 42.5}");
+        assertMatchesTree("{\"name\": \"foo\", \"value\": true}");
+        assertMatchesTree("{\"name\": \"foo\", \"value\": \"first\"}");
+        assertMatchesTree("{\"name\": \"foo\", \"value\": [1, 2]}");
+    }
+
+    @Test
+    public void timestampKeepsPrecision() throws Exception {
+        VehicleMessage message = assertMatchesTree(
+                "{\"timestamp\": 1332432977.831086, \"name\": \"foo\", " +
+                "\"value\": 42}");
+        assertThat(message.getTimestamp(), equalTo(1332432977831L));
+        assertThat(JsonFormatter.serialize(message),
+                containsString("1332432977.831086"));
+    }
+
+    @Test
+    public void eventedMessage() throws Exception {
+        assertThat(assertMatchesTree(
+                    "{\"name\": \"button_event\", \"value\": \"up\", " +
+                    "\"event\": \"pressed\"}"),
+                instanceOf(EventedSimpleVehicleMessage.class));
+    }
+
+    @Test
+    public void extras() throws Exception {
+        assertMatchesTree("{\"name\": \"foo\", \"value\": 1, " +
+                "\"extras\": {\"bar\": \"baz\", \"nested\": {\"a\": 1}}}");
+        assertMatchesTree("{\"extras\": {\"bar\": \"baz\"}}");
+    }
+
+    @Test
+    public void canMessage() throws Exception {
+        assertThat(assertMatchesTree(
+                    "{\"bus\": 1, \"id\": 42, \"data\": \"0x0102030405060708\"}"),
+                instanceOf(CanMessage.class));
+    }
+
+    @Test
+    public void shortCanMessageDeferredToTree() throws Exception {
+        assertThat(stream("{\"bus\": 1, \"id\": 42, \"data\": \"0x1234\"}"),
+                nullValue());
+    }
+
+    @Test
+    public void diagnosticResponse() throws Exception {
+        DiagnosticResponse response = (DiagnosticResponse) assertMatchesTree(
+                "{\"bus\":1,\"id\":2028,\"mode\":1,\"success\":true," +
+                "\"pid\":64,\"payload\":\"0x40800020\",\"value\":12.5}");
+        assertTrue(response.isSuccessful());
+        assertThat(response.getPid(), equalTo(64));
+
+        assertMatchesTree("{\"bus\":1,\"id\":2028,\"mode\":1," +
+                "\"success\":false,\"negative_response_code\":" +
+                "\"service_not_supported\"}");
+    }
+
+    @Test
+    public void commandResponse() throws Exception {
+        assertThat(assertMatchesTree("{\"command_response\": \"version\", " +
+                    "\"status\": true, \"message\": \"v7.0\"}"),
+                instanceOf(CommandResponse.class));
+    }
+
+    @Test
+    public void customCommandResponseDeferredToTree() throws Exception {
+        String data = "{\"command_response\": \"my_command\", " +
+                "\"status\": true}";
+        assertThat(stream(data), nullValue());
+        assertThat(JsonFormatter.deserialize(data),
+                instanceOf(CustomCommandResponse.class));
+    }
+
+    @Test
+    public void commandDeferredToTree() throws Exception {
+        assertThat(stream("{\"command\": \"version\"}"), nullValue());
+    }
+
+    @Test
+    public void unrecognizedFieldsIgnored() throws Exception {
+        assertMatchesTree("{\"name\": \"foo\", \"value\": 42, " +
+                "\"unknown\": {\"a\": [1, 2, 3]}}");
+    }
+
+    @Test
+    public void unrecognizedShapeRejected() throws Exception {
+        assertThat(stream("{\"foo\": \"bar\"}"), nullValue());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void wrongFieldTypeThrows() throws Exception {
+        stream("{\"name\": {\"foo\": 1}}");
+    }
+
+    @Test
+    public void formatterFallsBackForWrongFieldType() throws Exception {
+        // Gson's String adapter accepts a boolean, so the tree parser does too
+        VehicleMessage message = JsonFormatter.deserialize(
+                "{\"name\": true, \"value\": 1}");
+        assertThat(message.asNamedMessage().getName(), equalTo("true"));
+    }
+
+    @Test(expected=UnrecognizedMessageTypeException.class)
+    public void formatterRejectsTrailingData()
+            throws UnrecognizedMessageTypeException {
+        JsonFormatter.deserialize("{\"name\": \"foo\"} {\"name\": \"bar\"}");
+    }
+}
@@ -0,0 +1,93 @@
+package com.openxc.messages.streamers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Compare the throughput of the BinaryStreamer and CompactingBinaryStreamer
+ * when fed a binary trace in the same sized chunks the BytestreamDataSource
+ * reads from a vehicle interface.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BinaryStreamerBenchmark {
+    private static final int TRACE_MESSAGES = 5000;
+    private static final int READ_SIZE = 512;
+    private static final int ITERATIONS = 10;
+
+    private byte[] mTrace;
+
+    @Before
+    public void setup() throws Exception {
+        BenchmarkUtils.assumeEnabled();
+        List<VehicleMessage> messages = BenchmarkUtils.buildTrace(
+                TRACE_MESSAGES);
+        BinaryStreamer serializer = new BinaryStreamer();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for(VehicleMessage message : messages) {
+            stream.write(serializer.serializeForStream(message));
+        }
+        mTrace = stream.toByteArray();
+    }
+
+    private int replay(VehicleMessageStreamer streamer, int readSize) {
+        int parsed = 0;
+        byte[] chunk = new byte[readSize];
+        for(int offset = 0; offset < mTrace.length; offset += readSize) {
+            int length = Math.min(readSize, mTrace.length - offset);
+            System.arraycopy(mTrace, offset, chunk, 0, length);
+            streamer.receive(chunk, length);
+            while(streamer.parseNextMessage() != null) {
+                parsed++;
+            }
+        }
+        return parsed;
+    }
+
+    private void benchmark(final String name, final Class<?
+            extends VehicleMessageStreamer> streamerType, final int readSize)
+            throws Exception {
+        BenchmarkUtils.Result result = BenchmarkUtils.run(name, 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                assertEquals(TRACE_MESSAGES,
+                        replay(streamerType.newInstance(), readSize));
+            }
+        });
+        BenchmarkUtils.report(result, mTrace.length, "byte");
+        BenchmarkUtils.report(result, TRACE_MESSAGES, "message");
+    }
+
+    @Test
+    public void binaryStreamer() throws Exception {
+        benchmark("BinaryStreamer", BinaryStreamer.class, READ_SIZE);
+    }
+
+    @Test
+    public void compactingBinaryStreamer() throws Exception {
+        benchmark("CompactingBinaryStreamer", CompactingBinaryStreamer.class,
+                READ_SIZE);
+    }
+
+    @Test
+    public void binaryStreamerLargeReads() throws Exception {
+        benchmark("BinaryStreamer (16KB reads)", BinaryStreamer.class,
+                16 * 1024);
+    }
+
+    @Test
+    public void compactingBinaryStreamerLargeReads() throws Exception {
+        benchmark("CompactingBinaryStreamer (16KB reads)",
+                CompactingBinaryStreamer.class, 16 * 1024);
+    }
+}
@@ -4,6 +4,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.nio.charset.Charset;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,6 +41,24 @@ public class JsonStreamerTest {
         assertFalse(JsonStreamer.containsJson("\u0000\u0001\u0002"));
     }
 
+    @Test
+    public void jsonBytesContainJson() {
+        byte[] bytes = "{\"name\": \"foo\"}\u0000".getBytes();
+        assertTrue(JsonStreamer.containsJson(bytes, bytes.length));
+    }
+
+    @Test
+    public void binaryBytesDontContainJson() {
+        assertFalse(JsonStreamer.containsJson(
+                    new byte[] {'{', 0x01, (byte) 0x8f}, 3));
+    }
+
+    @Test
+    public void bytesPastLengthIgnored() {
+        assertTrue(JsonStreamer.containsJson(
+                    new byte[] {'{', '}', 0, 0x01, 0x02}, 3));
+    }
+
     @Test
     public void emptyHasNoMessages() {
         assertThat(streamer.parseNextMessage(), nullValue());
@@ -159,6 +179,53 @@ public class JsonStreamerTest {
         assertEquals(message, deserialized);
     }
 
+    @Test
+    public void readNonAsciiValue() {
+        byte[] bytes = new String("{\"name\": \"foo\", \"value\": \"caf\u00e9\"}\u0000").getBytes(
+                Charset.forName("UTF-8"));
+        streamer.receive(bytes, bytes.length);
+
+        VehicleMessage message = streamer.parseNextMessage();
+        assertThat(message, instanceOf(SimpleVehicleMessage.class));
+        assertThat(((SimpleVehicleMessage) message).getValueAsString(),
+                equalTo("caf\u00e9"));
+    }
+
+    @Test
+    public void unrecognizedMessageDoesntBlockNext() {
+        byte[] bytes = new String(
+                "{\"foo\": \"bar\"}\u0000{\"name\": \"foo\"}\u0000").getBytes();
+        streamer.receive(bytes, bytes.length);
+        assertThat(streamer.parseNextMessage(), notNullValue());
+        assertThat(streamer.parseNextMessage(), nullValue());
+    }
+
+    @Test
+    public void partialMessagesAcrossManyReceives() {
+        byte[] bytes = streamer.serializeForStream(message);
+        for(int i = 0; i < 1000; i++) {
+            // Feed a few bytes at a time so messages regularly straddle the
+            // end of the internal buffer
+            for(int offset = 0; offset < bytes.length; offset += 7) {
+                int length = Math.min(7, bytes.length - offset);
+                byte[] chunk = new byte[length];
+                System.arraycopy(bytes, offset, chunk, 0, length);
+                streamer.receive(chunk, length);
+            }
+            assertEquals(message, streamer.parseNextMessage());
+        }
+        assertThat(streamer.parseNextMessage(), nullValue());
+    }
+
+    @Test
+    public void readMessageLargerThanBuffer() {
+        SimpleVehicleMessage large = new SimpleVehicleMessage("foo",
+                new String(new char[10000]).replace('\0', 'x'));
+        byte[] data = streamer.serializeForStream(large);
+        streamer.receive(data, data.length);
+        assertEquals(large, streamer.parseNextMessage());
+    }
+
     @Test
     public void logTransferStatsAfterMegabyte() {
         byte[] data = streamer.serializeForStream(message);
@@ -0,0 +1,188 @@
+package com.openxc.remote;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.os.Parcel;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.measurements.BaseMeasurement;
+import com.openxc.measurements.VehicleSpeed;
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.Command;
+import com.openxc.messages.CommandResponse;
+import com.openxc.messages.DiagnosticResponse;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.MessageNameTable;
+import com.openxc.messages.NamedVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.sinks.RemoteCallbackSink;
+
+/**
+ * Compare the size and time to parcel and unparcel each type of message on its
+ * own with VehicleMessage.writeToParcel and in a CompactMessageBatch.
+ *
+ * Parcel sizes come from Robolectric's Parcel, which follows the same 4 byte
+ * alignment as the real one but isn't byte for byte identical.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CompactMessageBatchBenchmark {
+    private static final int MESSAGES = 5000;
+    private static final int ITERATIONS = 10;
+
+    private MessageNameTable mNameTable;
+
+    @Before
+    public void setUp() {
+        BenchmarkUtils.assumeEnabled();
+        mNameTable = new MessageNameTable();
+        mNameTable.addAll(BaseMeasurement.getMeasurementIds());
+        CompactMessageBatch.registerReceivingTable(mNameTable);
+    }
+
+    @After
+    public void tearDown() {
+        if(mNameTable != null) {
+            CompactMessageBatch.unregisterReceivingTable(mNameTable);
+        }
+    }
+
+    private int legacySize(VehicleMessage message) {
+        Parcel parcel = Parcel.obtain();
+        message.writeToParcel(parcel, 0);
+        int size = parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+
+    private int compactSize(VehicleMessage message) {
+        Parcel parcel = Parcel.obtain();
+        CompactMessageBatch.writeMessage(parcel, message, mNameTable, 0);
+        int size = parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+
+    private void benchmark(String type, final VehicleMessage message)
+            throws Exception {
+        final Parcel parcel = Parcel.obtain();
+        BenchmarkUtils.Result legacy = BenchmarkUtils.run(
+                type + " writeToParcel", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                for(int i = 0; i < MESSAGES; i++) {
+                    parcel.setDataPosition(0);
+                    message.writeToParcel(parcel, 0);
+                    parcel.setDataPosition(0);
+                    VehicleMessage.CREATOR.createFromParcel(parcel);
+                }
+            }
+        });
+
+        BenchmarkUtils.Result compact = BenchmarkUtils.run(
+                type + " compact", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                for(int i = 0; i < MESSAGES; i++) {
+                    parcel.setDataPosition(0);
+                    CompactMessageBatch.writeMessage(parcel, message,
+                            mNameTable, 0);
+                    parcel.setDataPosition(0);
+                    CompactMessageBatch.readMessage(parcel, mNameTable);
+                }
+            }
+        });
+        parcel.recycle();
+
+        BenchmarkUtils.report(legacy, MESSAGES, "message");
+        BenchmarkUtils.report(compact, MESSAGES, "message");
+        System.out.println(String.format(Locale.US,
+                    "%s: %d parcel bytes with writeToParcel, %d compact",
+                    type, legacySize(message), compactSize(message)));
+    }
+
+    @Test
+    public void compactMatchesLegacy() {
+        List<VehicleMessage> trace = BenchmarkUtils.buildTrace(100);
+        Parcel parcel = Parcel.obtain();
+        new CompactMessageBatch(mNameTable, trace).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        assertEquals(trace, CompactMessageBatch.CREATOR.createFromParcel(
+                    parcel).getMessages());
+        parcel.recycle();
+    }
+
+    @Test
+    public void perMessageType() throws Exception {
+        benchmark("SimpleVehicleMessage", new SimpleVehicleMessage(
+                    1234L, VehicleSpeed.ID, 42.0));
+        benchmark("SimpleVehicleMessage (unknown name)",
+                new SimpleVehicleMessage(1234L, "custom_signal", 42.0));
+        benchmark("EventedSimpleVehicleMessage",
+                new EventedSimpleVehicleMessage(1234L, "button_event", "up",
+                    "pressed"));
+        benchmark("NamedVehicleMessage",
+                new NamedVehicleMessage(1234L, VehicleSpeed.ID));
+        benchmark("CanMessage", new CanMessage(1, 0x128,
+                    new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        benchmark("DiagnosticResponse", new DiagnosticResponse(1, 0x7e8, 1,
+                    0x0c, new byte[]{0x1a, (byte) 0xf8}));
+        benchmark("Command", new Command(Command.CommandType.VERSION));
+        benchmark("CommandResponse", new CommandResponse(
+                    Command.CommandType.VERSION, true));
+    }
+
+    @Test
+    public void batchOfTrace() throws Exception {
+        final List<VehicleMessage> trace = BenchmarkUtils.buildTrace(
+                RemoteCallbackSink.DEFAULT_BATCH_SIZE);
+        final Parcel parcel = Parcel.obtain();
+        BenchmarkUtils.Result legacy = BenchmarkUtils.run(
+                "Trace batch writeTypedList", 2, ITERATIONS * 100,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                parcel.setDataPosition(0);
+                parcel.writeTypedList(trace);
+                parcel.setDataPosition(0);
+                parcel.createTypedArrayList(VehicleMessage.CREATOR);
+            }
+        });
+        int legacyBytes = parcel.dataPosition();
+
+        parcel.setDataPosition(0);
+        parcel.setDataSize(0);
+        final CompactMessageBatch batch = new CompactMessageBatch(mNameTable,
+                trace);
+        BenchmarkUtils.Result compact = BenchmarkUtils.run(
+                "Trace batch compact", 2, ITERATIONS * 100,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                parcel.setDataPosition(0);
+                batch.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                CompactMessageBatch.CREATOR.createFromParcel(parcel);
+            }
+        });
+        int compactBytes = parcel.dataPosition();
+        parcel.recycle();
+
+        BenchmarkUtils.report(legacy, trace.size(), "message");
+        BenchmarkUtils.report(compact, trace.size(), "message");
+        System.out.println(String.format(Locale.US,
+                    "Trace batch of %d: %d parcel bytes with writeTypedList, " +
+                    "%d compact", trace.size(), legacyBytes, compactBytes));
+    }
+}
@@ -0,0 +1,160 @@
+package com.openxc.remote;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.os.Parcel;
+
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.Command;
+import com.openxc.messages.DiagnosticResponse;
+import com.openxc.messages.EventedSimpleVehicleMessage;
+import com.openxc.messages.MessageNameTable;
+import com.openxc.messages.NamedVehicleMessage;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+@RunWith(RobolectricTestRunner.class)
+public class CompactMessageBatchTest {
+    MessageNameTable receivingTable;
+    MessageNameTable sendingTable;
+
+    @Before
+    public void setUp() {
+        receivingTable = new MessageNameTable();
+        receivingTable.addAll(Arrays.asList("vehicle_speed", "door_status"));
+        CompactMessageBatch.registerReceivingTable(receivingTable);
+        sendingTable = new MessageNameTable(receivingTable.getToken(),
+                receivingTable.getNames());
+    }
+
+    @After
+    public void tearDown() {
+        CompactMessageBatch.unregisterReceivingTable(receivingTable);
+    }
+
+    private List<VehicleMessage> roundTrip(VehicleMessage... messages) {
+        Parcel parcel = Parcel.obtain();
+        new CompactMessageBatch(sendingTable,
+                Arrays.asList(messages)).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        List<VehicleMessage> result =
+                CompactMessageBatch.CREATOR.createFromParcel(
+                        parcel).getMessages();
+        parcel.recycle();
+        return result;
+    }
+
+    private void assertRoundTrips(VehicleMessage message) {
+        List<VehicleMessage> result = roundTrip(message);
+        assertThat(result, hasSize(1));
+        assertThat(result.get(0), instanceOf(message.getClass()));
+        assertEquals(message, result.get(0));
+    }
+
+    @Test
+    public void simpleWithKnownName() {
+        assertRoundTrips(new SimpleVehicleMessage(1234L, "vehicle_speed",
+                    42.5));
+    }
+
+    @Test
+    public void simpleWithUnknownName() {
+        assertRoundTrips(new SimpleVehicleMessage(1234L, "foo", 42.5));
+    }
+
+    @Test
+    public void valueTypes() {
+        assertRoundTrips(new SimpleVehicleMessage("foo", true));
+        assertRoundTrips(new SimpleVehicleMessage("foo", false));
+        assertRoundTrips(new SimpleVehicleMessage("foo", "bar"));
+        assertRoundTrips(new SimpleVehicleMessage("foo", 42));
+    }
+
+    @Test
+    public void untimestamped() {
+        SimpleVehicleMessage message = new SimpleVehicleMessage("foo", 1.0);
+        message.untimestamp();
+        assertRoundTrips(message);
+    }
+
+    @Test
+    public void evented() {
+        assertRoundTrips(new EventedSimpleVehicleMessage(1234L, "door_status",
+                    "driver", true));
+    }
+
+    @Test
+    public void named() {
+        assertRoundTrips(new NamedVehicleMessage(1234L, "vehicle_speed"));
+    }
+
+    @Test
+    public void can() {
+        CanMessage message = new CanMessage(1, 0x123,
+                new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        message.setTimestamp(1234L);
+        assertRoundTrips(message);
+    }
+
+    @Test
+    public void extras() {
+        Map<String, Object> extras = new HashMap<>();
+        extras.put("foo", "bar");
+        SimpleVehicleMessage message = new SimpleVehicleMessage(1234L,
+                "vehicle_speed", 42.0);
+        message.setExtras(extras);
+        assertRoundTrips(message);
+    }
+
+    @Test
+    public void otherTypesUseTheirOwnParcelling() {
+        assertRoundTrips(new DiagnosticResponse(1, 2, 3));
+        assertRoundTrips(new Command(Command.CommandType.VERSION));
+    }
+
+    @Test
+    public void mixedBatchKeepsOrder() {
+        List<VehicleMessage> messages = new ArrayList<>();
+        messages.add(new SimpleVehicleMessage(1L, "vehicle_speed", 1.0));
+        messages.add(new CanMessage(1, 2, new byte[]{1}));
+        messages.add(new SimpleVehicleMessage(2L, "foo", "bar"));
+        messages.add(new Command(Command.CommandType.VERSION));
+        messages.add(new EventedSimpleVehicleMessage(3L, "door_status",
+                    "driver", false));
+
+        assertEquals(messages, roundTrip(
+                    messages.toArray(new VehicleMessage[messages.size()])));
+    }
+
+    @Test
+    public void receivingTableGrows() {
+        // The application appends names after sharing its table, and the IDs
+        // in the service's older copy keep their meaning
+        receivingTable.addAll(Arrays.asList("engine_speed"));
+        assertRoundTrips(new SimpleVehicleMessage(1L, "door_status", 1.0));
+    }
+
+    @Test
+    public void unknownNameIdDropped() {
+        sendingTable.addAll(Arrays.asList("only_on_service"));
+        List<VehicleMessage> result = roundTrip(
+                new SimpleVehicleMessage(1L, "only_on_service", 1.0),
+                new SimpleVehicleMessage(1L, "vehicle_speed", 1.0));
+        assertThat(result, hasSize(1));
+        assertEquals("vehicle_speed", result.get(0).asNamedMessage().getName());
+    }
+}
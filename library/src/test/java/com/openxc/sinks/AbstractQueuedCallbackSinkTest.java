@@ -0,0 +1,263 @@
+package com.openxc.sinks;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.sinks.AbstractQueuedCallbackSink.OverflowPolicy;
+
+@RunWith(RobolectricTestRunner.class)
+public class AbstractQueuedCallbackSinkTest {
+    RecordingSink sink;
+
+    private class RecordingSink extends AbstractQueuedCallbackSink {
+        List<VehicleMessage> received = Collections.synchronizedList(
+                new ArrayList<VehicleMessage>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(0);
+        List<Integer> batchSizes = Collections.synchronizedList(
+                new ArrayList<Integer>());
+
+        RecordingSink(int capacity, OverflowPolicy policy) {
+            super(capacity, policy);
+        }
+
+        /**
+         * Hold up the notification thread in the next message it propagates,
+         * until release() is called.
+         */
+        void stall() {
+            started = new CountDownLatch(1);
+            released = new CountDownLatch(1);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        protected void propagateMessages(VehicleMessage[] messages,
+                int count) {
+            batchSizes.add(count);
+            super.propagateMessages(messages, count);
+        }
+
+        @Override
+        protected void propagateMessage(VehicleMessage message) {
+            started.countDown();
+            try {
+                released.await();
+            } catch(InterruptedException e) {
+                return;
+            }
+            received.add(message);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if(sink != null) {
+            sink.release();
+            sink.stop();
+        }
+    }
+
+    private SimpleVehicleMessage message(String name, int value) {
+        return new SimpleVehicleMessage(name, (double) value);
+    }
+
+    /**
+     * Send one message and wait for the notification thread to get stuck
+     * propagating it.
+     */
+    private void stallNotificationThread() throws Exception {
+        sink.stall();
+        sink.receive(message("stalled", -1));
+        assertTrue(sink.started.await(5, TimeUnit.SECONDS));
+    }
+
+    private List<Object> receivedValues() {
+        List<Object> values = new ArrayList<>();
+        synchronized(sink.received) {
+            for(VehicleMessage message : sink.received) {
+                values.add(message.asSimpleMessage().getValue());
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void propagatesInOrder() throws Exception {
+        sink = new RecordingSink(16, OverflowPolicy.BLOCK);
+        for(int i = 0; i < 1000; i++) {
+            sink.receive(message("foo", i));
+        }
+        sink.clearQueue();
+
+        assertThat(sink.received, hasSize(1000));
+        for(int i = 0; i < 1000; i++) {
+            assertThat(sink.received.get(i).asSimpleMessage().getValue(),
+                    equalTo((Object) (double) i));
+        }
+        assertThat(sink.getQueueDepth(), equalTo(0));
+        assertThat(sink.getDroppedMessageCount(), equalTo(0L));
+    }
+
+    @Test
+    public void multipleSenders() throws Exception {
+        sink = new RecordingSink(8, OverflowPolicy.BLOCK);
+        List<Thread> senders = new ArrayList<>();
+        for(int s = 0; s < 4; s++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 500; i++) {
+                        try {
+                            sink.receive(message("foo", i));
+                        } catch(DataSinkException e) {
+                            fail();
+                        }
+                    }
+                }
+            };
+            senders.add(thread);
+            thread.start();
+        }
+        for(Thread thread : senders) {
+            thread.join();
+        }
+        sink.clearQueue();
+
+        assertThat(sink.received, hasSize(2000));
+        assertThat(sink.getDroppedMessageCount(), equalTo(0L));
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        sink = new RecordingSink(2, OverflowPolicy.BLOCK);
+        stallNotificationThread();
+        sink.receive(message("foo", 0));
+        sink.receive(message("foo", 1));
+        assertThat(sink.getQueueDepth(), equalTo(3));
+
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sink.receive(message("foo", 2));
+                } catch(DataSinkException e) {
+                }
+            }
+        };
+        sender.start();
+        sender.join(100);
+        assertTrue(sender.isAlive());
+
+        sink.release();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        sink.clearQueue();
+
+        assertThat(receivedValues(), contains((Object) (-1.0), 0.0, 1.0,
+                    2.0));
+        assertThat(sink.getDroppedMessageCount(), equalTo(0L));
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        sink = new RecordingSink(4, OverflowPolicy.DROP_OLDEST);
+        stallNotificationThread();
+        for(int i = 0; i < 10; i++) {
+            sink.receive(message("foo", i));
+        }
+        assertThat(sink.getDroppedMessageCount(), equalTo(6L));
+        assertThat(sink.getQueueDepth(), equalTo(5));
+
+        sink.release();
+        sink.clearQueue();
+        assertThat(receivedValues(), contains((Object) (-1.0), 6.0, 7.0,
+                    8.0, 9.0));
+    }
+
+    @Test
+    public void coalesceByKey() throws Exception {
+        sink = new RecordingSink(2, OverflowPolicy.COALESCE_BY_KEY);
+        stallNotificationThread();
+        sink.receive(message("foo", 0));
+        sink.receive(message("bar", 0));
+        for(int i = 1; i <= 5; i++) {
+            sink.receive(message("foo", i));
+        }
+        assertThat(sink.getCoalescedMessageCount(), equalTo(4L));
+        assertThat(sink.getQueueDepth(), equalTo(4));
+
+        sink.release();
+        sink.clearQueue();
+        assertThat(receivedValues(), contains((Object) (-1.0), 0.0, 0.0,
+                    5.0));
+        assertThat(sink.received.get(3).asNamedMessage().getName(),
+                equalTo("foo"));
+        assertThat(sink.getDroppedMessageCount(), equalTo(0L));
+    }
+
+    @Test
+    public void clearQueueReturnsAfterStop() throws Exception {
+        sink = new RecordingSink(4, OverflowPolicy.BLOCK);
+        stallNotificationThread();
+        sink.stop();
+        sink.clearQueue();
+    }
+
+    @Test
+    public void batchWindowCollectsMessages() throws Exception {
+        sink = new RecordingSink(64, OverflowPolicy.BLOCK);
+        sink.setBatchWindow(5000, 8);
+        assertThat(sink.getBatchWindowMillis(), equalTo(5000L));
+        assertThat(sink.getMaxBatchSize(), equalTo(8));
+
+        // Full batches go out as soon as they fill, without waiting
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 16; i++) {
+            sink.receive(message("foo", i));
+        }
+        sink.clearQueue();
+        assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+        assertThat(sink.batchSizes, contains(8, 8));
+        assertThat(sink.received, hasSize(16));
+    }
+
+    @Test
+    public void batchFilledWithinWindowSentImmediately() throws Exception {
+        sink = new RecordingSink(64, OverflowPolicy.BLOCK);
+        sink.setBatchWindow(5000, 4);
+
+        // Messages trickle in after the thread has started a batch
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 4; i++) {
+            sink.receive(message("foo", i));
+            Thread.sleep(20);
+        }
+        sink.clearQueue();
+        assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+        assertThat(sink.received, hasSize(4));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void emptyBatchSizeRejected() {
+        sink = new RecordingSink(4, OverflowPolicy.BLOCK);
+        sink.setBatchWindow(10, 0);
+    }
+}
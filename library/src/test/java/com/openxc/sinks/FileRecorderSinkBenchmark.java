@@ -0,0 +1,106 @@
+package com.openxc.sinks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.util.BinaryFileOpener;
+
+/**
+ * Compare the time and bytes written to record a trace with the
+ * FileRecorderSink in the JSON and binary formats.
+ *
+ * Messages are written on the sink's own thread, so the allocations reported
+ * are only those made by the thread calling receive().
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FileRecorderSinkBenchmark {
+    private static final int MESSAGES = 20000;
+    private static final int ITERATIONS = 10;
+
+    private long mBytesWritten;
+
+    private BinaryFileOpener mOpener = new BinaryFileOpener() {
+        @Override
+        public BufferedWriter openForWriting(String path) {
+            return new BufferedWriter(new Writer() {
+                @Override
+                public void write(char[] buffer, int offset, int length) {
+                    // Traces are ASCII, so a char is a byte on disk
+                    mBytesWritten += length;
+                }
+
+                @Override
+                public void flush() { }
+
+                @Override
+                public void close() { }
+            });
+        }
+
+        @Override
+        public OutputStream openStreamForWriting(String path) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    mBytesWritten++;
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) {
+                    mBytesWritten += length;
+                }
+            };
+        }
+    };
+
+    private void record(final FileRecorderSink.Format format)
+            throws Exception {
+        final List<VehicleMessage> trace = BenchmarkUtils.buildTrace(MESSAGES);
+        mBytesWritten = 0;
+        BenchmarkUtils.Result result = BenchmarkUtils.run(
+                "Record " + format, 2, ITERATIONS, new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                // Big enough that nothing is dropped, so every message is
+                // written before stop() returns
+                FileRecorderSink sink = new FileRecorderSink(mOpener, format,
+                        MESSAGES);
+                for(VehicleMessage message : trace) {
+                    sink.receive(message);
+                }
+                sink.stop();
+            }
+        });
+
+        BenchmarkUtils.report(result, MESSAGES, "message");
+        System.out.println(String.format(Locale.US,
+                    "Record %s: %.1f bytes written per message", format,
+                    (double) mBytesWritten / (MESSAGES * (ITERATIONS + 2))));
+    }
+
+    @Before
+    public void checkEnabled() {
+        BenchmarkUtils.assumeEnabled();
+    }
+
+    @Test
+    public void json() throws Exception {
+        record(FileRecorderSink.Format.JSON);
+    }
+
+    @Test
+    public void binary() throws Exception {
+        record(FileRecorderSink.Format.BINARY);
+    }
+}
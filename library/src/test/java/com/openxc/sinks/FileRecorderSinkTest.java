@@ -2,14 +2,22 @@ package com.openxc.sinks;
 
 import org.junit.runner.RunWith;
 import org.junit.Test;
+import org.junit.After;
 import org.junit.Before;
 import static org.junit.Assert.*;
 
 import org.robolectric.annotation.Config;
 import org.robolectric.RobolectricTestRunner;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -17,7 +25,9 @@ import org.json.JSONObject;
 import com.openxc.messages.KeyedMessage;
 import com.openxc.messages.SimpleVehicleMessage;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryTraceReader;
 import com.openxc.messages.formatters.JsonFormatter;
+import com.openxc.util.BinaryFileOpener;
 import com.openxc.util.FileOpener;
 
 @RunWith(RobolectricTestRunner.class)
@@ -25,6 +35,7 @@ public class FileRecorderSinkTest {
     FileRecorderSink sink;
     FileOpener opener;
     StringWriter outputString;
+    ByteArrayOutputStream outputBytes;
 
     String measurementId = "measurement";
     String value = "value";
@@ -32,10 +43,16 @@ public class FileRecorderSinkTest {
     @Before
     public void setUp() throws IOException, DataSinkException {
         outputString = new StringWriter();
+        outputBytes = new ByteArrayOutputStream();
         opener = new MockFileOpener();
         sink = new FileRecorderSink(opener);
     }
 
+    @After
+    public void tearDown() {
+        sink.stop();
+    }
+
     @Test
     public void testReceiveValueOnly() throws DataSinkException {
         assertTrue(outputString.toString().indexOf(measurementId) == -1);
@@ -111,10 +128,119 @@ public class FileRecorderSinkTest {
         assertTrue(records[1].indexOf("second") != -1);
     }
 
-    private class MockFileOpener implements FileOpener {
+    @Test
+    public void testBinaryFormat() throws IOException, DataSinkException {
+        sink = new FileRecorderSink(opener, FileRecorderSink.Format.BINARY);
+        VehicleMessage first = new SimpleVehicleMessage(1L, "first", true);
+        VehicleMessage second = new SimpleVehicleMessage(2L, "second", 42.0);
+        sink.receive(first);
+        sink.receive(second);
+        sink.stop();
+
+        BinaryTraceReader reader = new BinaryTraceReader(
+                new ByteArrayInputStream(outputBytes.toByteArray()));
+        assertEquals(first, reader.read());
+        assertEquals(second, reader.read());
+        assertNull(reader.read());
+        assertEquals(0, outputString.toString().length());
+    }
+
+    @Test
+    public void testBinarySkipsExtras() throws IOException, DataSinkException {
+        sink = new FileRecorderSink(opener, FileRecorderSink.Format.BINARY);
+        VehicleMessage withExtras = new SimpleVehicleMessage(1L, "first",
+                true);
+        Map<String, Object> extras = new HashMap<>();
+        extras.put("foo", "bar");
+        withExtras.setExtras(extras);
+        VehicleMessage second = new SimpleVehicleMessage(2L, "second", 42.0);
+        sink.receive(withExtras);
+        sink.receive(second);
+        sink.stop();
+
+        assertEquals(1, sink.getSkippedMessageCount());
+        BinaryTraceReader reader = new BinaryTraceReader(
+                new ByteArrayInputStream(outputBytes.toByteArray()));
+        assertEquals(second, reader.read());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void testReceiveNeverBlocks() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        sink = new FileRecorderSink(new FileOpener() {
+            @Override
+            public BufferedWriter openForWriting(String path) {
+                // A stand in for storage that has stopped responding
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                }
+                return new BufferedWriter(outputString);
+            }
+        }, FileRecorderSink.Format.JSON, 8);
+
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 100; i++) {
+            sink.receive(new SimpleVehicleMessage("foo", i));
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        // At most one queue's worth is in the writer's hands and another is
+        // in the queue
+        assertTrue(sink.getDroppedMessageCount() >= 100 - 16);
+        assertTrue(sink.getQueueDepth() <= sink.getQueueCapacity());
+
+        release.countDown();
+        sink.flush();
+        long written = sink.getWrittenMessageCount();
+        assertEquals(100 - sink.getDroppedMessageCount(), written);
+        assertEquals(written,
+                outputString.toString().split("\n").length);
+        sink.stop();
+    }
+
+    @Test
+    public void testCommitMetrics() throws DataSinkException {
+        sink.setCommitPolicy(10000, 1);
+        assertEquals(10000, sink.getCommitIntervalMillis());
+        assertEquals(1, sink.getCommitBytes());
+        for(int i = 0; i < 10; i++) {
+            sink.receive(new SimpleVehicleMessage("foo", i));
+        }
+        sink.flush();
+
+        assertEquals(10, sink.getWrittenMessageCount());
+        assertEquals(0, sink.getDroppedMessageCount());
+        assertTrue(sink.getWriteLatency().getCount() > 0);
+        assertTrue(sink.getCommitLatency().getCount() > 0);
+        assertEquals(10, outputString.toString().split("\n").length);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCommitPolicy() {
+        sink.setCommitPolicy(0, 1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBinaryRequiresBinaryOpener() {
+        new FileRecorderSink(new FileOpener() {
+            @Override
+            public BufferedWriter openForWriting(String path) {
+                return new BufferedWriter(outputString);
+            }
+        }, FileRecorderSink.Format.BINARY);
+    }
+
+    private class MockFileOpener implements BinaryFileOpener {
         @Override
         public BufferedWriter openForWriting(String path) throws IOException {
             return new BufferedWriter(outputString);
         }
+
+        @Override
+        public OutputStream openStreamForWriting(String path)
+                throws IOException {
+            return outputBytes;
+        }
     }
 }
@@ -0,0 +1,163 @@
+package com.openxc.sinks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for an upload server on localhost, which records the bodies it's
+ * sent and answers with a status code that can be changed on the fly.
+ */
+public class LocalUploadServer implements HttpHandler {
+    private final HttpServer mServer;
+    private final List<byte[]> mBodies = new ArrayList<>();
+    private final List<String> mContentTypes = new ArrayList<>();
+    private final Set<Integer> mClientPorts = new HashSet<>();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicInteger mFailuresLeft = new AtomicInteger();
+    private volatile int mStatus = 201;
+    private volatile boolean mRecordBodies = true;
+    private volatile String mRejectedContentType;
+
+    public LocalUploadServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", this);
+        mServer.start();
+    }
+
+    public URI getUri() {
+        return URI.create("http://127.0.0.1:" +
+                mServer.getAddress().getPort() + "/records");
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Answer the next requests with a 503 status.
+     */
+    public void failNext(int requests) {
+        mFailuresLeft.set(requests);
+    }
+
+    public void setStatus(int status) {
+        mStatus = status;
+    }
+
+    /**
+     * Answer requests with this content type with "415 Unsupported Media
+     * Type".
+     */
+    public void setRejectedContentType(String contentType) {
+        mRejectedContentType = contentType;
+    }
+
+    /**
+     * Don't keep the bodies, only count them - for benchmarks.
+     */
+    public void setRecordBodies(boolean recordBodies) {
+        mRecordBodies = recordBodies;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = body.read(buffer)) != -1) {
+            raw.write(buffer, 0, read);
+        }
+        mBytesReceived.addAndGet(raw.size());
+
+        String contentType = exchange.getRequestHeaders().getFirst(
+                "Content-Type");
+        byte[] data = null;
+        if(mRecordBodies) {
+            InputStream decoded = new ByteArrayInputStream(raw.toByteArray());
+            if("gzip".equals(exchange.getRequestHeaders().getFirst(
+                            "Content-Encoding"))) {
+                decoded = new GZIPInputStream(decoded);
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            while((read = decoded.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            data = output.toByteArray();
+        }
+
+        int status = mStatus;
+        if(mFailuresLeft.getAndDecrement() > 0) {
+            status = 503;
+        } else if(contentType != null &&
+                contentType.equals(mRejectedContentType)) {
+            status = 415;
+        }
+
+        synchronized(this) {
+            mClientPorts.add(exchange.getRemoteAddress().getPort());
+            mContentTypes.add(contentType);
+            if(data != null && status < 300) {
+                mBodies.add(data);
+            }
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    /**
+     * @return the decompressed bodies of the requests that were accepted.
+     */
+    public synchronized List<String> getBodies() {
+        List<String> bodies = new ArrayList<>();
+        for(byte[] body : mBodies) {
+            bodies.add(new String(body, Charset.forName("UTF-8")));
+        }
+        return bodies;
+    }
+
+    /**
+     * @return the decompressed bodies of the requests that were accepted, as
+     *      they were sent.
+     */
+    public synchronized List<byte[]> getRawBodies() {
+        return new ArrayList<>(mBodies);
+    }
+
+    /**
+     * @return the content type of every request, accepted or not.
+     */
+    public synchronized List<String> getContentTypes() {
+        return new ArrayList<>(mContentTypes);
+    }
+
+    /**
+     * @return the number of different connections requests came in on.
+     */
+    public synchronized int getConnectionCount() {
+        return mClientPorts.size();
+    }
+
+    /**
+     * @return the number of request body bytes received, as sent.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+}
@@ -0,0 +1,120 @@
+package com.openxc.sinks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.ExactKeyMatcher;
+import com.openxc.messages.KeyMatcher;
+import com.openxc.messages.MessageKey;
+import com.openxc.messages.NamedVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Measure the cost of dispatching a message in the MessageListenerSink as the
+ * number of registered listeners grows.
+ *
+ * Listeners registered with an ExactKeyMatcher are found with a hash lookup,
+ * while any other KeyMatcher has to be checked against every message. The
+ * "scanned" runs register matchers with the same behavior as an
+ * ExactKeyMatcher, but that the sink can't index, to show the difference.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MessageListenerSinkBenchmark {
+    private static final int MESSAGES = 20000;
+    private static final int ITERATIONS = 10;
+    private static final int[] LISTENER_COUNTS = {1, 10, 100, 1000};
+
+    private MessageListenerSink mSink;
+    private int mReceived;
+
+    private VehicleMessage.Listener mListener = new VehicleMessage.Listener() {
+        @Override
+        public void receive(VehicleMessage message) {
+            mReceived++;
+        }
+    };
+
+    @Before
+    public void checkEnabled() {
+        BenchmarkUtils.assumeEnabled();
+    }
+
+    @After
+    public void tearDown() {
+        if(mSink != null) {
+            mSink.stop();
+        }
+    }
+
+    private static class ScannedKeyMatcher extends KeyMatcher {
+        private final MessageKey mKey;
+
+        ScannedKeyMatcher(MessageKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public boolean matches(MessageKey other) {
+            return mKey.equals(other);
+        }
+    }
+
+    private void benchmark(String name, int listenerCount, boolean indexed)
+            throws Exception {
+        mSink = new MessageListenerSink();
+        for(int i = 0; i < listenerCount; i++) {
+            MessageKey key = new NamedVehicleMessage("signal_" + i).getKey();
+            KeyMatcher matcher = indexed ?
+                    ExactKeyMatcher.buildExactMatcher(key) :
+                    new ScannedKeyMatcher(key);
+            mSink.register(matcher, mListener);
+        }
+
+        final List<VehicleMessage> messages = new ArrayList<>();
+        for(int i = 0; i < MESSAGES; i++) {
+            // Named rather than simple messages, to leave measurement
+            // conversion out of the timing
+            messages.add(new NamedVehicleMessage(
+                        "signal_" + (i % listenerCount)));
+        }
+
+        mReceived = 0;
+        BenchmarkUtils.Result result = BenchmarkUtils.run(
+                name + " (" + listenerCount + " listeners)", 2, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                for(VehicleMessage message : messages) {
+                    mSink.propagateMessage(message);
+                }
+            }
+        });
+        assertEquals(MESSAGES * (ITERATIONS + 2), mReceived);
+        BenchmarkUtils.report(result, MESSAGES, "message");
+        mSink.stop();
+        mSink = null;
+    }
+
+    @Test
+    public void indexedExactMatchers() throws Exception {
+        for(int count : LISTENER_COUNTS) {
+            benchmark("MessageListenerSink indexed", count, true);
+        }
+    }
+
+    @Test
+    public void scannedMatchers() throws Exception {
+        for(int count : LISTENER_COUNTS) {
+            benchmark("MessageListenerSink scanned", count, false);
+        }
+    }
+}
@@ -18,6 +18,9 @@ import com.openxc.messages.DiagnosticResponse;
 import com.openxc.messages.VehicleMessage;
 import com.openxc.messages.KeyedMessage;
 import com.openxc.messages.ExactKeyMatcher;
+import com.openxc.messages.KeyMatcher;
+import com.openxc.messages.Command;
+import com.openxc.messages.CommandResponse;
 import com.openxc.measurements.UnrecognizedMeasurementTypeException;
 import com.openxc.measurements.VehicleSpeed;
 import com.openxc.measurements.SteeringWheelAngle;
@@ -206,6 +209,100 @@ public class MessageListenerSinkTest {
         assertThat(listener.received, nullValue());
     }
 
+    @Test
+    public void onlyExactKeyListenerReceives() throws DataSinkException {
+        SpyListener other = new SpyListener();
+        sink.register(ExactKeyMatcher.buildExactMatcher(
+                    new NamedVehicleMessage("foo")), listener);
+        sink.register(ExactKeyMatcher.buildExactMatcher(
+                    new NamedVehicleMessage("bar")), other);
+        NamedVehicleMessage message = new NamedVehicleMessage("bar");
+        sink.receive(message);
+        sink.clearQueue();
+        assertThat(listener.received, nullValue());
+        assertEquals(other.received, message);
+    }
+
+    @Test
+    public void wildcardAndExactListenersBothReceive()
+            throws DataSinkException {
+        SpyListener wildcard = new SpyListener();
+        NamedVehicleMessage message = new NamedVehicleMessage("foo");
+        sink.register(ExactKeyMatcher.buildExactMatcher(message), listener);
+        sink.register(KeyMatcher.getWildcardMatcher(), wildcard);
+        sink.receive(message);
+        sink.clearQueue();
+        assertEquals(listener.received, message);
+        assertEquals(wildcard.received, message);
+    }
+
+    @Test
+    public void exactListenerRegisteredWithEqualKey() throws DataSinkException {
+        // A matcher built from a different, but equal, key finds the same
+        // listeners
+        sink.register(ExactKeyMatcher.buildExactMatcher(
+                    new NamedVehicleMessage("foo")), listener);
+        SpyListener other = new SpyListener();
+        sink.register(ExactKeyMatcher.buildExactMatcher(
+                    new SimpleVehicleMessage("foo", 1)), other);
+        NamedVehicleMessage message = new NamedVehicleMessage("foo");
+        sink.receive(message);
+        sink.clearQueue();
+        assertEquals(listener.received, message);
+        assertEquals(other.received, message);
+    }
+
+    @Test
+    public void nonpersistentExactListenerPruned() throws DataSinkException {
+        NamedVehicleMessage message = new NamedVehicleMessage("foo");
+        sink.register(ExactKeyMatcher.buildExactMatcher(message), listener,
+                false);
+        sink.receive(message);
+        sink.clearQueue();
+        assertThat(sink.toString(), containsString("numMessageListeners=0"));
+
+        // Registering again after the group was pruned still works
+        listener.received = null;
+        sink.register(ExactKeyMatcher.buildExactMatcher(message), listener);
+        sink.receive(message);
+        sink.clearQueue();
+        assertEquals(listener.received, message);
+    }
+
+    @Test
+    public void commandResponseWithoutMatchGoesToFirstListener()
+            throws DataSinkException {
+        sink.register(ExactKeyMatcher.buildExactMatcher(
+                    new NamedVehicleMessage("foo")), listener, false);
+        CommandResponse response = new CommandResponse(
+                Command.CommandType.VERSION, true);
+        sink.receive(response);
+        sink.clearQueue();
+        assertEquals(listener.received, response);
+    }
+
+    @Test
+    public void subscribedKeysAndTypes()
+            throws UnrecognizedMeasurementTypeException {
+        assertThat(sink.getSubscribedKeys(), empty());
+        assertThat(sink.getSubscribedMessageTypes(), empty());
+
+        NamedVehicleMessage message = new NamedVehicleMessage("foo");
+        sink.register(ExactKeyMatcher.buildExactMatcher(message), listener);
+        sink.register(VehicleSpeed.class, speedListener);
+        sink.register(CanMessage.class, messageListener);
+        assertThat(sink.hasCustomMatchers(), equalTo(false));
+        assertThat(sink.getSubscribedKeys(), containsInAnyOrder(
+                    message.getKey(),
+                    BaseMeasurement.getKeyForMeasurement(VehicleSpeed.class)));
+        // Unmatched command responses fall back to the first key listener
+        assertThat(sink.getSubscribedMessageTypes(), hasItems(
+                    CanMessage.class, CommandResponse.class));
+
+        sink.register(KeyMatcher.getWildcardMatcher(), listener);
+        assertThat(sink.hasCustomMatchers(), equalTo(true));
+    }
+
     private VehicleSpeed.Listener speedListener = new VehicleSpeed.Listener() {
         @Override
         public void receive(Measurement measurement) {
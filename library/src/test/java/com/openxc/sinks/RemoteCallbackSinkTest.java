@@ -1,5 +1,10 @@
 package com.openxc.sinks;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.Test;
 import org.junit.Before;
 import static org.junit.Assert.*;
@@ -7,9 +12,13 @@ import org.junit.runner.RunWith;
 
 import org.robolectric.annotation.Config;
 import org.robolectric.RobolectricTestRunner;
+import com.openxc.messages.CanMessage;
+import com.openxc.messages.MessageKey;
+import com.openxc.messages.MessageNameTable;
 import com.openxc.messages.NamedVehicleMessage;
 import com.openxc.messages.SimpleVehicleMessage;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.remote.CompactMessageBatch;
 import com.openxc.remote.VehicleServiceListener;
 
 @RunWith(RobolectricTestRunner.class)
@@ -27,9 +36,49 @@ public class RemoteCallbackSinkTest {
             public void receive(VehicleMessage value) {
                 receivedId = ((NamedVehicleMessage)value).getName();
             }
+
+            @Override
+            public void receiveBatch(List<VehicleMessage> values) {
+            }
+
+            @Override
+            public void receiveCompactBatch(CompactMessageBatch batch) {
+            }
         };
     }
 
+    private class RecordingListener extends VehicleServiceListener.Stub {
+        List<VehicleMessage> singles = Collections.synchronizedList(
+                new ArrayList<VehicleMessage>());
+        List<List<VehicleMessage>> batches = Collections.synchronizedList(
+                new ArrayList<List<VehicleMessage>>());
+        List<List<VehicleMessage>> compactBatches =
+                Collections.synchronizedList(
+                        new ArrayList<List<VehicleMessage>>());
+
+        @Override
+        public void receive(VehicleMessage value) {
+            singles.add(value);
+        }
+
+        @Override
+        public void receiveBatch(List<VehicleMessage> values) {
+            batches.add(new ArrayList<>(values));
+        }
+
+        @Override
+        public void receiveCompactBatch(CompactMessageBatch batch) {
+            compactBatches.add(new ArrayList<>(batch.getMessages()));
+        }
+    }
+
+    private void sendMessages(int count) throws DataSinkException {
+        for(int i = 0; i < count; i++) {
+            notifier.receive(new SimpleVehicleMessage(messageId, i));
+        }
+        notifier.clearQueue();
+    }
+
     @Test
     public void testRegister() {
         assertEquals(0, notifier.getListenerCount());
@@ -66,4 +115,182 @@ public class RemoteCallbackSinkTest {
         assertNotNull(receivedId);
         assertEquals(receivedId, messageId);
     }
+
+    @Test
+    public void enableBatchedDeliveryKeepsOneRegistration() {
+        notifier.register(listener);
+        notifier.enableBatchedDelivery(listener);
+        assertEquals(1, notifier.getListenerCount());
+        notifier.unregister(listener);
+        assertEquals(0, notifier.getListenerCount());
+    }
+
+    @Test
+    public void noBatchWindowWithoutBatchedListeners() {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        assertEquals(0, notifier.getBatchWindowMillis());
+
+        notifier.enableBatchedDelivery(recorder);
+        assertEquals(RemoteCallbackSink.DEFAULT_BATCH_WINDOW_MILLIS,
+                notifier.getBatchWindowMillis());
+
+        notifier.unregister(recorder);
+        assertEquals(0, notifier.getBatchWindowMillis());
+    }
+
+    @Test
+    public void compactListenerOpensBatchWindow() {
+        RecordingListener recorder = new RecordingListener();
+        notifier.enableCompactDelivery(recorder, new MessageNameTable());
+        assertEquals(RemoteCallbackSink.DEFAULT_BATCH_WINDOW_MILLIS,
+                notifier.getBatchWindowMillis());
+    }
+
+    @Test
+    public void explicitBatchWindowKept() {
+        RecordingListener recorder = new RecordingListener();
+        notifier.setBatchWindow(50, 8);
+        notifier.enableBatchedDelivery(recorder);
+        notifier.unregister(recorder);
+        assertEquals(50, notifier.getBatchWindowMillis());
+        assertEquals(8, notifier.getMaxBatchSize());
+    }
+
+    @Test
+    public void batchedListenerReceivesBatch() throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.enableBatchedDelivery(recorder);
+        notifier.setBatchWindow(5000, 10);
+
+        sendMessages(10);
+        assertEquals(0, recorder.singles.size());
+        assertEquals(1, recorder.batches.size());
+        List<VehicleMessage> batch = recorder.batches.get(0);
+        assertEquals(10, batch.size());
+        for(int i = 0; i < batch.size(); i++) {
+            assertEquals(i, batch.get(i).asSimpleMessage().getValue());
+        }
+    }
+
+    @Test
+    public void unbatchedListenerReceivesSingleMessages()
+            throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.setBatchWindow(5000, 10);
+
+        sendMessages(10);
+        assertEquals(0, recorder.batches.size());
+        assertEquals(10, recorder.singles.size());
+        for(int i = 0; i < recorder.singles.size(); i++) {
+            assertEquals(i,
+                    recorder.singles.get(i).asSimpleMessage().getValue());
+        }
+    }
+
+    @Test
+    public void subscribedListenerOnlyReceivesMatches()
+            throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.setSubscription(recorder,
+                Arrays.asList(MessageKey.forName(messageId)),
+                Collections.<String>emptyList());
+
+        notifier.receive(new SimpleVehicleMessage("other", 1));
+        notifier.receive(new CanMessage(1, 2, new byte[]{1}));
+        notifier.receive(new SimpleVehicleMessage(messageId, 2));
+        notifier.clearQueue();
+
+        assertEquals(1, recorder.singles.size());
+        assertEquals(messageId,
+                recorder.singles.get(0).asNamedMessage().getName());
+        assertEquals(1, notifier.getListenerCount());
+    }
+
+    @Test
+    public void subscribedToMessageType() throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.setSubscription(recorder, Collections.<MessageKey>emptyList(),
+                Arrays.asList(CanMessage.class.getName()));
+
+        notifier.receive(new SimpleVehicleMessage(messageId, 1));
+        notifier.receive(new CanMessage(1, 2, new byte[]{1}));
+        notifier.clearQueue();
+
+        assertEquals(1, recorder.singles.size());
+        assertTrue(recorder.singles.get(0) instanceof CanMessage);
+    }
+
+    @Test
+    public void subscriptionFiltersBatches() throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.enableBatchedDelivery(recorder);
+        notifier.setSubscription(recorder,
+                Arrays.asList(MessageKey.forName(messageId)),
+                Collections.<String>emptyList());
+        notifier.setBatchWindow(5000, 6);
+
+        for(int i = 0; i < 3; i++) {
+            notifier.receive(new SimpleVehicleMessage("other", i));
+            notifier.receive(new SimpleVehicleMessage(messageId, i));
+        }
+        notifier.clearQueue();
+
+        assertEquals(1, recorder.batches.size());
+        assertEquals(3, recorder.batches.get(0).size());
+    }
+
+    @Test
+    public void clearSubscriptionReceivesEverything()
+            throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.setSubscription(recorder, Collections.<MessageKey>emptyList(),
+                Collections.<String>emptyList());
+        notifier.receive(new SimpleVehicleMessage(messageId, 1));
+        notifier.clearQueue();
+        assertEquals(0, recorder.singles.size());
+
+        notifier.clearSubscription(recorder);
+        notifier.receive(new SimpleVehicleMessage(messageId, 1));
+        notifier.clearQueue();
+        assertEquals(1, recorder.singles.size());
+    }
+
+    @Test
+    public void unsubscribedListenerUnaffected() throws DataSinkException {
+        RecordingListener subscribed = new RecordingListener();
+        RecordingListener everything = new RecordingListener();
+        notifier.register(subscribed);
+        notifier.register(everything);
+        notifier.setSubscription(subscribed,
+                Collections.<MessageKey>emptyList(),
+                Collections.<String>emptyList());
+
+        notifier.receive(new SimpleVehicleMessage(messageId, 1));
+        notifier.clearQueue();
+        assertEquals(0, subscribed.singles.size());
+        assertEquals(1, everything.singles.size());
+    }
+
+    @Test
+    public void compactListenerReceivesCompactBatches()
+            throws DataSinkException {
+        RecordingListener recorder = new RecordingListener();
+        notifier.register(recorder);
+        notifier.enableBatchedDelivery(recorder);
+        notifier.enableCompactDelivery(recorder, new MessageNameTable());
+        notifier.setBatchWindow(5000, 4);
+
+        sendMessages(4);
+        assertEquals(0, recorder.singles.size());
+        assertEquals(0, recorder.batches.size());
+        assertEquals(1, recorder.compactBatches.size());
+        assertEquals(4, recorder.compactBatches.get(0).size());
+    }
 }
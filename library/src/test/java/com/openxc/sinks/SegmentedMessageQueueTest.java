@@ -0,0 +1,379 @@
+package com.openxc.sinks;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.TestUtils;
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedMessageQueueTest {
+    static final int SEGMENT_BYTES = 1024;
+
+    File directory;
+    SegmentedMessageQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("queue", "");
+        directory.delete();
+        queue = open(SegmentedMessageQueue.EvictionPolicy.DROP_OLDEST);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        queue.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private SegmentedMessageQueue open(
+            SegmentedMessageQueue.EvictionPolicy policy) throws IOException {
+        return new SegmentedMessageQueue(directory, SEGMENT_BYTES * 4,
+                SEGMENT_BYTES, policy);
+    }
+
+    private SegmentedMessageQueue reopen() throws IOException {
+        queue.close();
+        queue = open(queue.getEvictionPolicy());
+        return queue;
+    }
+
+    private VehicleMessage message(int position) {
+        return new SimpleVehicleMessage("position", position);
+    }
+
+    private void offer(int first, int count) {
+        for(int i = first; i < first + count; i++) {
+            assertTrue(queue.offer(message(i)));
+        }
+    }
+
+    private int position(VehicleMessage message) {
+        return ((SimpleVehicleMessage) message).getValueAsNumber().intValue();
+    }
+
+    private void assertPositions(List<VehicleMessage> messages, int first,
+            int count) {
+        assertThat(messages, hasSize(count));
+        for(int i = 0; i < count; i++) {
+            assertEquals(first + i, position(messages.get(i)));
+        }
+    }
+
+    @Test
+    public void emptyQueue() throws IOException {
+        assertTrue(queue.isEmpty());
+        assertThat(queue.peek(10), empty());
+        assertEquals(0, queue.getBacklogBytes());
+        assertEquals(0, queue.getOldestRecordAgeMillis());
+    }
+
+    @Test
+    public void peekDoesNotRemove() throws IOException {
+        offer(0, 5);
+        assertPositions(queue.peek(3), 0, 3);
+        assertPositions(queue.peek(3), 0, 3);
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void acknowledgeRemovesBatch() throws IOException {
+        offer(0, 5);
+        assertPositions(queue.peek(3), 0, 3);
+        queue.acknowledge();
+        assertEquals(2, queue.size());
+        assertPositions(queue.peek(10), 3, 2);
+        queue.acknowledge();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBacklogBytes());
+    }
+
+    @Test
+    public void batchesSpanSegments() throws IOException {
+        // Enough for a few segments, without hitting the cap
+        offer(0, 60);
+        assertThat(directory.list().length, greaterThan(2));
+        for(int i = 0; i < 60; i += 25) {
+            assertPositions(queue.peek(25), i, Math.min(25, 60 - i));
+            queue.acknowledge();
+        }
+        assertTrue(queue.isEmpty());
+        // Everything but the segment still being written is deleted
+        assertThat(queue.getDiskBytes(), lessThanOrEqualTo(
+                    (long) SEGMENT_BYTES + 100));
+    }
+
+    @Test
+    public void backlogSurvivesReopening() throws IOException {
+        offer(0, 50);
+        assertPositions(queue.peek(20), 0, 20);
+        queue.acknowledge();
+        assertPositions(queue.peek(5), 20, 5);
+        long backlog = queue.getBacklogBytes();
+
+        reopen();
+        assertEquals(30, queue.size());
+        assertEquals(backlog, queue.getBacklogBytes());
+        offer(50, 10);
+        assertPositions(queue.peek(100), 20, 40);
+    }
+
+    @Test
+    public void tornRecordTruncated() throws IOException {
+        offer(0, 3);
+        queue.close();
+
+        File[] segments = directory.listFiles();
+        File segment = null;
+        for(File file : segments) {
+            if(file.getName().endsWith(".seg")) {
+                segment = file;
+            }
+        }
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long length = file.length();
+        file.setLength(length - 5);
+        file.close();
+
+        queue = open(SegmentedMessageQueue.EvictionPolicy.DROP_OLDEST);
+        assertEquals(2, queue.size());
+        offer(3, 1);
+        List<VehicleMessage> messages = queue.peek(10);
+        assertThat(messages, hasSize(3));
+        assertEquals(3, position(messages.get(2)));
+    }
+
+    private File segmentFile() {
+        File segment = null;
+        for(File file : directory.listFiles()) {
+            if(file.getName().endsWith(".seg")) {
+                segment = file;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Writes go through until it's told to fail, and then only the given
+     * number of bytes get written - like a disk filling up.
+     */
+    private static class FillingOutputStream extends FilterOutputStream {
+        int bytesLeft = -1;
+
+        FillingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(bytesLeft == 0) {
+                throw new IOException("No space left on device");
+            } else if(bytesLeft > 0) {
+                bytesLeft--;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+                throws IOException {
+            for(int i = 0; i < length; i++) {
+                write(bytes[offset + i]);
+            }
+        }
+    }
+
+    @Test
+    public void failedAppendTruncated() throws IOException {
+        queue.close();
+        final FillingOutputStream[] stream = new FillingOutputStream[1];
+        queue = new SegmentedMessageQueue(directory, SEGMENT_BYTES * 4,
+                SEGMENT_BYTES,
+                SegmentedMessageQueue.EvictionPolicy.DROP_OLDEST) {
+            @Override
+            OutputStream openSegmentStream(File file) throws IOException {
+                stream[0] = new FillingOutputStream(
+                        super.openSegmentStream(file));
+                return stream[0];
+            }
+        };
+
+        offer(0, 3);
+        queue.flush();
+        long length = segmentFile().length();
+
+        stream[0].bytesLeft = 10;
+        offer(3, 2);
+        try {
+            queue.flush();
+        } catch(IOException e) {
+            // Expected, the disk is full
+        }
+        // The partial record is gone, as are the ones that didn't fit
+        assertEquals(length, segmentFile().length());
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.getDroppedRecordCount());
+
+        offer(5, 2);
+        List<VehicleMessage> messages = queue.peek(10);
+        assertThat(messages, hasSize(5));
+        assertEquals(2, position(messages.get(2)));
+        assertEquals(5, position(messages.get(3)));
+
+        // Appended after the damage, so they're still there when reopened
+        reopen();
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void damagedRecordTruncatedOnPeek() throws IOException {
+        offer(0, 5);
+        queue.flush();
+
+        // Corrupt the payload of the third record
+        RandomAccessFile file = new RandomAccessFile(segmentFile(), "rw");
+        long offset = 0;
+        for(int i = 0; i < 2; i++) {
+            file.seek(offset);
+            offset += 16 + file.readInt();
+        }
+        file.seek(offset + 16);
+        int value = file.read();
+        file.seek(offset + 16);
+        file.write(value ^ 0xff);
+        file.close();
+
+        assertPositions(queue.peek(10), 0, 2);
+        assertEquals(2, queue.size());
+        assertEquals(3, queue.getDroppedRecordCount());
+
+        offer(5, 1);
+        List<VehicleMessage> messages = queue.peek(10);
+        assertThat(messages, hasSize(3));
+        assertEquals(5, position(messages.get(2)));
+        queue.acknowledge();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropOldestEvictsSegments() throws IOException {
+        offer(0, 200);
+        assertThat(queue.getDiskBytes(), lessThanOrEqualTo(
+                    (long) SEGMENT_BYTES * 4));
+        assertThat(queue.getEvictedRecordCount(), greaterThan(0L));
+        assertEquals(200, queue.size() + queue.getEvictedRecordCount());
+
+        // The newest messages are kept
+        List<VehicleMessage> messages = queue.peek(1000);
+        assertEquals(199, position(messages.get(messages.size() - 1)));
+    }
+
+    @Test
+    public void evictingPeekedBatchIgnoresAcknowledge() throws IOException {
+        offer(0, 10);
+        assertPositions(queue.peek(5), 0, 5);
+        offer(10, 200);
+        queue.acknowledge();
+        assertEquals(210, queue.size() + queue.getEvictedRecordCount());
+        List<VehicleMessage> messages = queue.peek(1000);
+        assertEquals(209, position(messages.get(messages.size() - 1)));
+    }
+
+    @Test
+    public void dropNewestKeepsBacklog() throws IOException {
+        queue.close();
+        queue = open(SegmentedMessageQueue.EvictionPolicy.DROP_NEWEST);
+        int accepted = 0;
+        for(int i = 0; i < 200; i++) {
+            if(queue.offer(message(i))) {
+                accepted++;
+            }
+        }
+        assertThat(accepted, lessThan(200));
+        assertEquals(200 - accepted, queue.getDroppedRecordCount());
+        assertEquals(0, queue.getEvictedRecordCount());
+        assertPositions(queue.peek(1000), 0, accepted);
+    }
+
+    @Test
+    public void oldestRecordAge() throws IOException {
+        offer(0, 1);
+        TestUtils.pause(50);
+        offer(1, 1);
+        assertThat(queue.getOldestRecordAgeMillis(),
+                greaterThanOrEqualTo(50L));
+        queue.peek(1);
+        queue.acknowledge();
+        assertThat(queue.getOldestRecordAgeMillis(), lessThan(50L));
+    }
+
+    @Test
+    public void oldestRecordAgeKeptInMemory() throws IOException {
+        offer(0, 2);
+        queue.flush();
+        // Nothing left to read it from
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        TestUtils.pause(50);
+        assertThat(queue.getOldestRecordAgeMillis(),
+                greaterThanOrEqualTo(50L));
+    }
+
+    @Test
+    public void oldestRecordAgeAfterPartialBatch() throws IOException {
+        offer(0, 2);
+        TestUtils.pause(50);
+        offer(2, 1);
+        queue.peek(1);
+        queue.acknowledge();
+        assertThat(queue.getOldestRecordAgeMillis(),
+                greaterThanOrEqualTo(50L));
+        queue.peek(1);
+        queue.acknowledge();
+        assertThat(queue.getOldestRecordAgeMillis(), lessThan(50L));
+    }
+
+    @Test
+    public void oldestRecordAgeAfterReopening() throws IOException {
+        offer(0, 2);
+        queue.peek(1);
+        queue.acknowledge();
+        TestUtils.pause(50);
+        reopen();
+        assertThat(queue.getOldestRecordAgeMillis(),
+                greaterThanOrEqualTo(50L));
+    }
+
+    @Test
+    public void offerAfterCloseDropped() throws IOException {
+        queue.close();
+        assertFalse(queue.offer(message(0)));
+        assertEquals(1, queue.getDroppedRecordCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void capSmallerThanTwoSegments() throws IOException {
+        new SegmentedMessageQueue(directory, SEGMENT_BYTES, SEGMENT_BYTES,
+                SegmentedMessageQueue.EvictionPolicy.DROP_OLDEST);
+    }
+}
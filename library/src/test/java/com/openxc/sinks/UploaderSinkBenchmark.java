@@ -0,0 +1,123 @@
+package com.openxc.sinks;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.httpclient.FakeHttp;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.TestUtils;
+import com.openxc.messages.VehicleMessage;
+
+/**
+ * Measure how fast the UploaderSink drains a backlog of records to a local
+ * stand-in server, and how many bytes it sends to do it, with small JSON
+ * batches (the default) and with large JSON and protobuf batches, with and
+ * without gzip.
+ *
+ * The backlog is queued before the sink starts, as it would be after a
+ * network outage, and the batch delay is 0 so partial batches aren't held
+ * back - this measures the upload path, not the batching timer.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UploaderSinkBenchmark {
+    private static final int RECORDS = 20000;
+    private static final int ITERATIONS = 3;
+
+    private LocalUploadServer mServer;
+    private File mDirectory;
+    private List<VehicleMessage> mTrace;
+
+    @Before
+    public void setUp() throws Exception {
+        BenchmarkUtils.assumeEnabled();
+        FakeHttp.getFakeHttpLayer().interceptHttpRequests(false);
+        mServer = new LocalUploadServer();
+        mServer.setRecordBodies(false);
+        mDirectory = File.createTempFile("upload", "");
+        mDirectory.delete();
+        mTrace = BenchmarkUtils.buildTrace(RECORDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(mServer != null) {
+            mServer.stop();
+            FileUtils.deleteDirectory(mDirectory);
+        }
+    }
+
+    private void drain(String name, final int batchRecords,
+            final int batchBytes, final boolean compressed,
+            final UploaderSink.Encoding encoding) throws Exception {
+        long bytesBefore = mServer.getBytesReceived();
+        BenchmarkUtils.Result result = BenchmarkUtils.run(name, 1, ITERATIONS,
+                new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                SegmentedMessageQueue queue = new SegmentedMessageQueue(
+                        mDirectory);
+                for(VehicleMessage message : mTrace) {
+                    queue.offer(message);
+                }
+
+                UploaderSink sink = new UploaderSink(
+                        RuntimeEnvironment.application, mServer.getUri(),
+                        queue);
+                sink.setBatchPolicy(batchRecords, batchBytes, 0);
+                sink.setCompressionEnabled(compressed);
+                sink.setEncoding(encoding);
+                while(sink.getUploadedRecordCount() < RECORDS) {
+                    TestUtils.pause(1);
+                }
+                sink.stop();
+            }
+        });
+
+        BenchmarkUtils.report(result, RECORDS, "record");
+        System.out.println(String.format(Locale.US,
+                    "%s: %.1f bytes on the wire per record", name,
+                    (double) (mServer.getBytesReceived() - bytesBefore) /
+                    (RECORDS * (ITERATIONS + 1))));
+    }
+
+    @Test
+    public void smallBatches() throws Exception {
+        drain("25 record batches", UploaderSink.DEFAULT_BATCH_RECORDS,
+                UploaderSink.DEFAULT_BATCH_BYTES, false,
+                UploaderSink.Encoding.JSON);
+    }
+
+    @Test
+    public void largeBatches() throws Exception {
+        drain("1MB batches", Integer.MAX_VALUE, 1024 * 1024, false,
+                UploaderSink.Encoding.JSON);
+    }
+
+    @Test
+    public void largeCompressedBatches() throws Exception {
+        drain("1MB gzip batches", Integer.MAX_VALUE, 1024 * 1024, true,
+                UploaderSink.Encoding.JSON);
+    }
+
+    @Test
+    public void largeProtobufBatches() throws Exception {
+        drain("1MB protobuf batches", Integer.MAX_VALUE, 1024 * 1024, false,
+                UploaderSink.Encoding.PROTOBUF);
+    }
+
+    @Test
+    public void largeCompressedProtobufBatches() throws Exception {
+        drain("1MB gzip protobuf batches", Integer.MAX_VALUE, 1024 * 1024,
+                true, UploaderSink.Encoding.PROTOBUF);
+    }
+}
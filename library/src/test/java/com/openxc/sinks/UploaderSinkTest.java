@@ -2,10 +2,13 @@ package com.openxc.sinks;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.openxc.BinaryMessages;
 import com.openxc.TestUtils;
 import com.openxc.messages.SimpleVehicleMessage;
 import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.BinaryFormatter;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.http.client.methods.HttpPost;
 import org.junit.After;
 import org.junit.Before;
@@ -15,15 +18,25 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.httpclient.FakeHttp;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -51,6 +64,291 @@ public class UploaderSinkTest {
         assertFalse(FakeHttp.httpRequestWasMade());
     }
 
+    @Test
+    public void testFailedBatchStaysQueued() throws DataSinkException {
+        FakeHttp.setDefaultHttpResponse(503, "unavailable");
+        for(int i = 0; i < 25; i++) {
+            sink.receive(message);
+        }
+        TestUtils.pause(500);
+        assertTrue(FakeHttp.httpRequestWasMade());
+        assertThat(sink.getQueuedRecordCount(), equalTo(25L));
+        assertThat(sink.getBacklogBytes(), greaterThan(0L));
+        assertThat(sink.getOldestRecordAgeMillis(),
+                greaterThanOrEqualTo(500L));
+        assertThat(sink.getUploadedRecordCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testUploadedBatchRemoved() throws DataSinkException {
+        FakeHttp.getFakeHttpLayer().interceptHttpRequests(true);
+        for(int i = 0; i < 25; i++) {
+            sink.receive(message);
+        }
+        for(int i = 0; i < 50 && sink.getUploadedRecordCount() == 0; i++) {
+            TestUtils.pause(100);
+        }
+        assertThat(sink.getQueuedRecordCount(), equalTo(0L));
+        assertThat(sink.getBacklogBytes(), equalTo(0L));
+        assertThat(sink.getUploadedRecordCount(), equalTo(25L));
+    }
+
+    private UploaderSink localSink(LocalUploadServer server)
+            throws DataSinkException {
+        return localSink(server.getUri());
+    }
+
+    private UploaderSink localSink(URI uri) throws DataSinkException {
+        sink.stop();
+        sink = new UploaderSink(RuntimeEnvironment.application, uri);
+        return sink;
+    }
+
+    private void waitForUploads(long records) {
+        for(int i = 0; i < 100 && sink.getUploadedRecordCount() < records;
+                i++) {
+            TestUtils.pause(50);
+        }
+    }
+
+    private List<SimpleVehicleMessage> parse(List<String> bodies) {
+        Type listType = new TypeToken<List<SimpleVehicleMessage>>() {}.getType();
+        List<SimpleVehicleMessage> messages = new ArrayList<>();
+        for(String body : bodies) {
+            messages.addAll((List<SimpleVehicleMessage>) gson.fromJson(body,
+                        listType));
+        }
+        return messages;
+    }
+
+    @Test
+    public void testLargeCompressedBatches() throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            localSink(server);
+            sink.setBatchPolicy(Integer.MAX_VALUE, 1024 * 1024, 200);
+            sink.setCompressionEnabled(true);
+            for(int i = 0; i < 1000; i++) {
+                sink.receive(message);
+            }
+            waitForUploads(1000);
+
+            assertThat(sink.getUploadedRecordCount(), equalTo(1000L));
+            assertThat(server.getBodies().size(), lessThan(5));
+            assertThat(parse(server.getBodies()), hasSize(1000));
+            // The same message over and over compresses very well
+            assertThat(server.getBytesReceived(), lessThan(1000L * 10));
+            assertThat(sink.getUploadedBytes(),
+                    equalTo(server.getBytesReceived()));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testReceiveDoesNotWriteToDisk() throws Exception {
+        final List<Thread> writers = new ArrayList<>();
+        File directory = File.createTempFile("queue", "");
+        directory.delete();
+        SegmentedMessageQueue queue = new SegmentedMessageQueue(directory) {
+            @Override
+            public boolean offer(VehicleMessage message) {
+                synchronized(writers) {
+                    writers.add(Thread.currentThread());
+                }
+                return super.offer(message);
+            }
+        };
+
+        try {
+            sink.stop();
+            sink = new UploaderSink(RuntimeEnvironment.application,
+                    URI.create("http://localhost"), queue);
+            for(int i = 0; i < 25; i++) {
+                sink.receive(message);
+            }
+            for(int i = 0; i < 50 && sink.getBacklogBytes() == 0; i++) {
+                TestUtils.pause(20);
+            }
+            assertThat(sink.getQueuedRecordCount(), equalTo(25L));
+            assertThat(sink.getBacklogBytes(), greaterThan(0L));
+            synchronized(writers) {
+                assertThat(writers, hasSize(25));
+                assertThat(writers, not(hasItem(Thread.currentThread())));
+            }
+        } finally {
+            sink.stop();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testConnectionReused() throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            localSink(server);
+            sink.setBatchPolicy(10, 1024 * 1024, 5000);
+            for(int i = 0; i < 50; i++) {
+                sink.receive(message);
+            }
+            waitForUploads(50);
+
+            assertThat(server.getBodies(), hasSize(5));
+            assertThat(server.getConnectionCount(), equalTo(1));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRetriedWithBackoff() throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            server.failNext(2);
+            localSink(server);
+            sink.setRetryPolicy(100, 1000);
+            for(int i = 0; i < 25; i++) {
+                sink.receive(message);
+            }
+            waitForUploads(25);
+
+            assertThat(sink.getUploadedRecordCount(), equalTo(25L));
+            assertThat(sink.getRequestCount(), equalTo(3L));
+            assertThat(sink.getFailedRequestCount(), equalTo(2L));
+            assertThat(parse(server.getBodies()), hasSize(25));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void assertBatchKeptAfter(int status) throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            server.setStatus(status);
+            localSink(server);
+            sink.setRetryPolicy(100, 1000);
+            for(int i = 0; i < 25; i++) {
+                sink.receive(message);
+            }
+            for(int i = 0; i < 50 && sink.getFailedRequestCount() < 2; i++) {
+                TestUtils.pause(50);
+            }
+
+            assertThat(sink.getFailedRequestCount(), greaterThanOrEqualTo(2L));
+            assertThat(sink.getQueuedRecordCount(), equalTo(25L));
+            assertThat(sink.getUploadedRecordCount(), equalTo(0L));
+            assertThat(sink.getRejectedRecordCount(), equalTo(0L));
+
+            // Once the endpoint is fixed, the backlog goes through
+            server.setStatus(201);
+            waitForUploads(25);
+            assertThat(sink.getUploadedRecordCount(), equalTo(25L));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRedirectedBatchStaysQueued() throws Exception {
+        assertBatchKeptAfter(302);
+    }
+
+    @Test
+    public void testNotFoundBatchStaysQueued() throws Exception {
+        assertBatchKeptAfter(404);
+    }
+
+    @Test
+    public void testMalformedBatchDropped() throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            server.setStatus(400);
+            localSink(server);
+            for(int i = 0; i < 25; i++) {
+                sink.receive(message);
+            }
+            for(int i = 0; i < 100 && sink.getRejectedRecordCount() == 0;
+                    i++) {
+                TestUtils.pause(50);
+            }
+
+            assertThat(sink.getRejectedRecordCount(), equalTo(25L));
+            assertThat(sink.getQueuedRecordCount(), equalTo(0L));
+            assertThat(sink.getUploadedRecordCount(), equalTo(0L));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEncodingFromUri() {
+        assertThat(UploaderSink.parseEncoding(URI.create("http://localhost")),
+                equalTo(UploaderSink.Encoding.JSON));
+        assertThat(UploaderSink.parseEncoding(URI.create(
+                        "http://localhost/?encoding=protobuf")),
+                equalTo(UploaderSink.Encoding.PROTOBUF));
+        assertThat(UploaderSink.parseEncoding(URI.create(
+                        "http://localhost/?foo=bar&encoding=json")),
+                equalTo(UploaderSink.Encoding.JSON));
+        assertThat(UploaderSink.parseEncoding(URI.create(
+                        "http://localhost/?encoding=xml")),
+                equalTo(UploaderSink.Encoding.JSON));
+    }
+
+    @Test
+    public void testProtobufUpload() throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            localSink(URI.create(server.getUri() + "?encoding=protobuf"));
+            sink.setCompressionEnabled(true);
+            for(int i = 0; i < 25; i++) {
+                sink.receive(message);
+            }
+            waitForUploads(25);
+
+            assertThat(server.getContentTypes(),
+                    everyItem(equalTo("application/x-protobuf")));
+            List<VehicleMessage> messages = new ArrayList<>();
+            for(byte[] body : server.getRawBodies()) {
+                InputStream stream = new ByteArrayInputStream(body);
+                BinaryMessages.VehicleMessage frame;
+                while((frame = BinaryMessages.VehicleMessage.parseDelimitedFrom(
+                                stream)) != null) {
+                    byte[] bytes = frame.toByteArray();
+                    messages.add(BinaryFormatter.deserialize(bytes, 0,
+                                bytes.length));
+                }
+            }
+            assertThat(messages, hasSize(25));
+            for(VehicleMessage deserializedMessage : messages) {
+                assertThat(deserializedMessage, equalTo(message));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testProtobufFallsBackToJson() throws Exception {
+        LocalUploadServer server = new LocalUploadServer();
+        try {
+            server.setRejectedContentType("application/x-protobuf");
+            localSink(URI.create(server.getUri() + "?encoding=protobuf"));
+            for(int i = 0; i < 25; i++) {
+                sink.receive(message);
+            }
+            waitForUploads(25);
+
+            assertThat(sink.getEncoding(),
+                    equalTo(UploaderSink.Encoding.JSON));
+            assertThat(server.getContentTypes(), contains(
+                        "application/x-protobuf", "application/json"));
+            assertThat(parse(server.getBodies()), hasSize(25));
+        } finally {
+            server.stop();
+        }
+    }
+
     @Test
     public void testUploadBatch() throws DataSinkException, IOException {
         TestUtils.pause(50);
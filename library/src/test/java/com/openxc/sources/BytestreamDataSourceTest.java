@@ -160,6 +160,33 @@ public class BytestreamDataSourceTest {
         }
     }
 
+    @Test
+    public void readCountsBytes() {
+        source.start();
+        source.connect();
+        source.inject(new byte[] {1,2,3,4});
+        source.inject(new byte[] {5,6});
+        TestUtils.pause(100);
+        assertEquals(2, source.getReadCount());
+        assertEquals(6, source.getBytesRead());
+        assertEquals(4, source.getMaxBytesPerRead());
+        assertEquals(3.0, source.getAverageBytesPerRead(), 0.001);
+        assertEquals(2, source.getParseLatency().getCount());
+    }
+
+    @Test
+    public void readBufferReused() {
+        source.readBufferSize = 1024;
+        source.start();
+        source.connect();
+        source.inject(new byte[] {1,2,3,4});
+        source.inject(new byte[] {5,6});
+        TestUtils.pause(100);
+        assertEquals(2, source.readBuffers.size());
+        assertSame(source.readBuffers.get(0), source.readBuffers.get(1));
+        assertEquals(1024, source.readBuffers.get(0).length);
+    }
+
     private class TestBytestreamSource extends BytestreamDataSource {
         public boolean connected = false;
         public ArrayList<byte[]> packets = new ArrayList<>();
@@ -167,6 +194,8 @@ public class BytestreamDataSourceTest {
         private Condition mPacketReceived = mPacketLock.newCondition();
         public boolean nextReadIsError = false;
         public boolean nextReadThrowsException = false;
+        public int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+        public List<byte[]> readBuffers = new ArrayList<>();
 
         public TestBytestreamSource(SourceCallback callback) {
             super(callback, RuntimeEnvironment.application);
@@ -202,6 +231,11 @@ public class BytestreamDataSourceTest {
             }
         }
 
+        @Override
+        protected int getReadBufferSize() {
+            return readBufferSize;
+        }
+
         @Override
         protected int read(byte[] bytes) throws IOException {
             try {
@@ -209,6 +243,7 @@ public class BytestreamDataSourceTest {
                 while(packets.isEmpty()) {
                     mPacketReceived.await();
                 }
+                readBuffers.add(bytes);
                 if(nextReadIsError) {
                     return -1;
                 } else if(nextReadThrowsException) {
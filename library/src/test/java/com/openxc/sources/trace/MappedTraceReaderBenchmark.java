@@ -0,0 +1,147 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.BenchmarkUtils;
+import com.openxc.messages.VehicleMessage;
+import com.openxc.messages.formatters.JsonFormatter;
+
+/**
+ * Compare how many messages per second can be decoded from a large JSON trace
+ * line by line and with the MappedTraceReader on 1, 2 and 4 workers.
+ *
+ * Only runs with -Dopenxc.benchmark=true. The trace is 500MB, which is
+ * long enough to see how the workers scale - set the
+ * "openxc.benchmark.traceMegabytes" system property for a quicker run.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MappedTraceReaderBenchmark {
+    private static final int DEFAULT_TRACE_MEGABYTES = 500;
+
+    private static File sTrace;
+    private static long sMessages;
+
+    @BeforeClass
+    public static void writeTrace() throws Exception {
+        if(!BenchmarkUtils.isEnabled()) {
+            return;
+        }
+        long size = Long.getLong("openxc.benchmark.traceMegabytes",
+                DEFAULT_TRACE_MEGABYTES) * 1024 * 1024;
+        List<VehicleMessage> messages = BenchmarkUtils.buildTrace(1000);
+        sTrace = File.createTempFile("benchmark", ".json");
+        sTrace.deleteOnExit();
+
+        Writer writer = new BufferedWriter(new FileWriter(sTrace), 1 << 16);
+        long written = 0;
+        long timestamp = 1332432977000L;
+        try {
+            while(written < size) {
+                for(VehicleMessage message : messages) {
+                    message.setTimestamp(timestamp++);
+                    String line = JsonFormatter.serialize(message);
+                    writer.write(line);
+                    writer.write('\n');
+                    written += line.length() + 1;
+                    sMessages++;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println(String.format(Locale.US,
+                    "Decoding a %.0fMB trace of %d messages",
+                    sTrace.length() / 1024.0 / 1024, sMessages));
+    }
+
+    @Before
+    public void checkEnabled() {
+        BenchmarkUtils.assumeEnabled();
+    }
+
+    @AfterClass
+    public static void deleteTrace() {
+        if(sTrace != null) {
+            sTrace.delete();
+        }
+    }
+
+    private static void readAll(TraceReader reader) throws IOException {
+        long count = 0;
+        try {
+            while(reader.read() != null) {
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        if(count != sMessages) {
+            throw new IllegalStateException("Expected " + sMessages +
+                    " messages but read " + count);
+        }
+    }
+
+    private void decode(String name, BenchmarkUtils.Task task)
+            throws Exception {
+        BenchmarkUtils.Result result = BenchmarkUtils.run(name, 1, 2, task);
+        BenchmarkUtils.report(result, sMessages, "message");
+    }
+
+    private void mapped(final int workers) throws Exception {
+        final ExecutorService pool = MappedTraceReader.newWorkerPool(workers);
+        try {
+            decode("Mapped reader, " + workers + " workers",
+                    new BenchmarkUtils.Task() {
+                @Override
+                public void run() throws Exception {
+                    readAll(new MappedTraceReader(sTrace, 0, pool,
+                                MappedTraceReader.DEFAULT_CHUNK_SIZE,
+                                workers * 2));
+                }
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void lineByLine() throws Exception {
+        decode("Line reader", new BenchmarkUtils.Task() {
+            @Override
+            public void run() throws Exception {
+                readAll(new LineTraceReader(new FileInputStream(sTrace)));
+            }
+        });
+    }
+
+    @Test
+    public void mappedOneWorker() throws Exception {
+        mapped(1);
+    }
+
+    @Test
+    public void mappedTwoWorkers() throws Exception {
+        mapped(2);
+    }
+
+    @Test
+    public void mappedFourWorkers() throws Exception {
+        mapped(4);
+    }
+}
@@ -0,0 +1,278 @@
+package com.openxc.sources.trace;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.VehicleMessage;
+
+@RunWith(RobolectricTestRunner.class)
+public class MappedTraceReaderTest {
+    File trace;
+    ExecutorService workers;
+
+    /**
+     * Counts the chunks submitted for parsing.
+     */
+    private static class CountingExecutor extends AbstractExecutorService {
+        final ExecutorService delegate;
+        int submitted;
+
+        CountingExecutor(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            submitted++;
+            delegate.execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        trace = TraceIndexTest.writeTrace(10);
+        workers = MappedTraceReader.newWorkerPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+        trace.delete();
+    }
+
+    private List<VehicleMessage> readAll(TraceReader reader)
+            throws IOException {
+        List<VehicleMessage> messages = new ArrayList<>();
+        VehicleMessage message;
+        while((message = reader.read()) != null) {
+            messages.add(message);
+        }
+        reader.close();
+        return messages;
+    }
+
+    private List<VehicleMessage> readLines(File file) throws IOException {
+        return readAll(new LineTraceReader(new FileInputStream(file)));
+    }
+
+    private int position(VehicleMessage message) {
+        return ((SimpleVehicleMessage) message).getValueAsNumber().intValue();
+    }
+
+    /**
+     * @return where a line of the trace starts in the file.
+     */
+    private long offsetOf(int line) throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(trace);
+        long offset = 0;
+        for(int i = 0; i < line; i++) {
+            while(bytes[(int) offset] != '\n') {
+                offset++;
+            }
+            offset++;
+        }
+        return offset;
+    }
+
+    private void assertPositions(List<VehicleMessage> messages, int first,
+            int count) {
+        assertEquals(count, messages.size());
+        for(int i = 0; i < count; i++) {
+            assertEquals(first + i, ((SimpleVehicleMessage) messages.get(i))
+                    .getValueAsNumber().intValue());
+        }
+    }
+
+    @Test
+    public void sameAsLineReader() throws IOException {
+        List<VehicleMessage> expected = readLines(trace);
+        assertEquals(expected, readAll(new MappedTraceReader(trace, 0,
+                        workers)));
+    }
+
+    @Test
+    public void sameAsLineReaderWithSmallChunks() throws IOException {
+        List<VehicleMessage> expected = readLines(trace);
+        // Chunks smaller than a line, exactly a line and a bit over
+        int lineLength = (int) (trace.length() / expected.size());
+        for(int chunkSize : new int[] {1, 7, lineLength, lineLength + 3,
+                    1000}) {
+            assertEquals("chunk size " + chunkSize, expected,
+                    readAll(new MappedTraceReader(trace, 0, workers,
+                            chunkSize, 4)));
+        }
+    }
+
+    @Test
+    public void linesLongerThanSlack() throws IOException {
+        StringBuilder name = new StringBuilder();
+        for(int i = 0; i < 40 * 1024; i++) {
+            name.append('a');
+        }
+        String line = "{\"name\": \"" + name + "\", \"value\": 1, " +
+                "\"timestamp\": 1332432977.0}\n";
+        FileUtils.writeStringToFile(trace, line + line + line);
+
+        assertEquals(readLines(trace), readAll(new MappedTraceReader(trace, 0,
+                        workers, 1024, 2)));
+    }
+
+    @Test
+    public void startFromOffset() throws IOException {
+        long offset = TraceIndex.load(trace).getOffset(
+                TraceIndexTest.START + 5000);
+        List<VehicleMessage> messages = readAll(new MappedTraceReader(trace,
+                    offset, workers, 64, 3));
+        assertPositions(messages, 50, 50);
+        TraceIndex.getSidecar(trace).delete();
+    }
+
+    @Test
+    public void seekWithinParsedChunk() throws IOException {
+        CountingExecutor counting = new CountingExecutor(workers);
+        MappedTraceReader reader = new MappedTraceReader(trace, 0, counting);
+        List<VehicleMessage> first = new ArrayList<>();
+        for(int i = 0; i < 30; i++) {
+            first.add(reader.read());
+        }
+
+        assertTrue(reader.seek(offsetOf(10)));
+        VehicleMessage again = reader.read();
+        assertEquals(10, position(again));
+        // Handed out before, so it's parsed again rather than shared
+        assertNotSame(first.get(10), again);
+        assertTrue(reader.seek(offsetOf(50)));
+        assertPositions(readAll(reader), 50, 50);
+        assertEquals(1, counting.submitted);
+    }
+
+    @Test
+    public void seekBackIntoPreviousChunk() throws IOException {
+        CountingExecutor counting = new CountingExecutor(workers);
+        int chunkSize = 512;
+        MappedTraceReader reader = new MappedTraceReader(trace, 0, counting,
+                chunkSize, 2);
+        // Read up to the first line of the chunk after line 37's
+        long nextChunk = (offsetOf(37) / chunkSize + 1) * chunkSize;
+        int line = 0;
+        while(offsetOf(line) < nextChunk) {
+            line++;
+        }
+        for(int i = 0; i <= line; i++) {
+            assertEquals(i, position(reader.read()));
+        }
+        int submitted = counting.submitted;
+
+        assertTrue(reader.seek(offsetOf(37)));
+        assertEquals(37, position(reader.read()));
+        assertEquals(submitted, counting.submitted);
+        assertPositions(readAll(reader), 38, 62);
+    }
+
+    @Test
+    public void seekElsewhereQueuesOneChunk() throws IOException {
+        CountingExecutor counting = new CountingExecutor(workers);
+        MappedTraceReader reader = new MappedTraceReader(trace, 0, counting,
+                64, 8);
+        assertEquals(1, counting.submitted);
+
+        assertTrue(reader.seek(offsetOf(80)));
+        assertTrue(reader.seek(offsetOf(60)));
+        assertEquals(3, counting.submitted);
+
+        assertEquals(60, position(reader.read()));
+        assertTrue(counting.submitted > 3);
+        assertPositions(readAll(reader), 61, 39);
+    }
+
+    @Test
+    public void skipsInvalidLines() throws IOException {
+        FileUtils.writeStringToFile(trace,
+                "{\"name\": \"position\", \"value\": 0, " +
+                "\"timestamp\": 1332432977.0}\n" +
+                "not json\n" +
+                "\n" +
+                "{\"name\": \"position\", \"value\": 1, " +
+                "\"timestamp\": 1332432977.1}\r\n");
+
+        MappedTraceReader reader = new MappedTraceReader(trace, 0, workers,
+                16, 2);
+        List<VehicleMessage> messages = readAll(reader);
+        assertPositions(messages, 0, 2);
+        assertEquals(1, reader.getSkippedLineCount());
+    }
+
+    @Test
+    public void missingTrailingNewline() throws IOException {
+        FileUtils.writeStringToFile(trace,
+                "{\"name\": \"position\", \"value\": 0, " +
+                "\"timestamp\": 1332432977.0}\n" +
+                "{\"name\": \"position\", \"value\": 1, " +
+                "\"timestamp\": 1332432977.1}");
+
+        assertPositions(readAll(new MappedTraceReader(trace, 0, workers, 10,
+                        2)), 0, 2);
+    }
+
+    @Test
+    public void emptyTrace() throws IOException {
+        FileUtils.writeStringToFile(trace, "");
+        assertNull(new MappedTraceReader(trace, 0, workers).read());
+    }
+
+    @Test
+    public void closeBeforeEnd() throws IOException {
+        MappedTraceReader reader = new MappedTraceReader(trace, 0, workers,
+                64, 8);
+        assertNotNull(reader.read());
+        reader.close();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidChunkSize() throws IOException {
+        new MappedTraceReader(trace, 0, workers, 0, 1);
+    }
+}
@@ -0,0 +1,144 @@
+package com.openxc.sources.trace;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.openxc.messages.SimpleVehicleMessage;
+import com.openxc.messages.formatters.JsonFormatter;
+
+@RunWith(RobolectricTestRunner.class)
+public class TraceIndexTest {
+    static final long START = 1332432977000L;
+    static final int SECONDS = 100;
+    static final int MESSAGES_PER_SECOND = 10;
+
+    File trace;
+
+    /**
+     * Write a trace with messages every 100ms, each with its position in the
+     * trace as the value.
+     */
+    static File writeTrace(int seconds) throws IOException {
+        File file = File.createTempFile("trace", ".json");
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        for(int i = 0; i < seconds * MESSAGES_PER_SECOND; i++) {
+            writer.write(JsonFormatter.serialize(new SimpleVehicleMessage(
+                            START + i * 100, "position", i)));
+            writer.write("\n");
+        }
+        writer.close();
+        return file;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        trace = writeTrace(SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        TraceIndex.getSidecar(trace).delete();
+        trace.delete();
+    }
+
+    @Test
+    public void parseTimestamp() {
+        byte[] line = ("{\"name\": \"foo\", \"timestamp\": 1332432977.831086, " +
+                "\"value\": 42}").getBytes();
+        assertEquals(1332432977831L,
+                TraceIndex.parseTimestamp(line, line.length));
+        line = "{\"name\": \"foo\", \"value\": 42}".getBytes();
+        assertEquals(-1, TraceIndex.parseTimestamp(line, line.length));
+    }
+
+    @Test
+    public void indexCoversTrace() throws IOException {
+        TraceIndex index = TraceIndex.load(trace);
+        assertEquals(START, index.getFirstTimestamp());
+        assertEquals(START + (SECONDS * MESSAGES_PER_SECOND - 1) * 100,
+                index.getLastTimestamp());
+        assertEquals(SECONDS * MESSAGES_PER_SECOND, index.getMessageCount());
+        assertEquals(SECONDS, index.size());
+    }
+
+    @Test
+    public void offsetIsAtOrBeforeTimestamp() throws IOException {
+        TraceIndex index = TraceIndex.load(trace);
+        assertEquals(0, index.getOffset(START - 1000));
+        assertEquals(0, index.getOffset(START));
+
+        long offset = index.getOffset(START + 42500);
+        byte[] bytes = FileUtils.readFileToByteArray(trace);
+        int end = (int) offset;
+        while(bytes[end] != '\n') {
+            end++;
+        }
+        long timestamp = TraceIndex.parseTimestamp(
+                Arrays.copyOfRange(bytes, (int) offset, end),
+                end - (int) offset);
+        assertEquals(START + 42000, timestamp);
+    }
+
+    @Test
+    public void percentages() throws IOException {
+        TraceIndex index = TraceIndex.load(trace);
+        assertEquals(index.getFirstTimestamp(), index.getTimestampAt(0));
+        assertEquals(index.getLastTimestamp(), index.getTimestampAt(100));
+        assertEquals(50.0, index.getPercentage(index.getTimestampAt(50)), 0.1);
+    }
+
+    @Test
+    public void sidecarReused() throws IOException {
+        TraceIndex index = TraceIndex.load(trace);
+        File sidecar = TraceIndex.getSidecar(trace);
+        assertTrue(sidecar.exists());
+
+        TraceIndex loaded = TraceIndex.readSidecar(sidecar, trace);
+        assertNotNull(loaded);
+        assertEquals(index.size(), loaded.size());
+        assertEquals(index.getLastTimestamp(), loaded.getLastTimestamp());
+        assertEquals(index.getOffset(START + 50000),
+                loaded.getOffset(START + 50000));
+    }
+
+    @Test
+    public void staleSidecarIgnored() throws IOException {
+        TraceIndex.load(trace);
+        Writer writer = new FileWriter(trace, true);
+        writer.write("{\"timestamp\": 1332433977.0, \"name\": \"foo\", " +
+                "\"value\": 1}\n");
+        writer.close();
+
+        assertNull(TraceIndex.readSidecar(TraceIndex.getSidecar(trace), trace));
+        assertEquals(1332433977000L, TraceIndex.load(trace).getLastTimestamp());
+    }
+
+    @Test
+    public void untimestampedLinesSkipped() throws IOException {
+        TraceIndex index = TraceIndex.build(new ByteArrayInputStream((
+                    "not json\n" +
+                    "{\"timestamp\": 1.5, \"name\": \"foo\", \"value\": 1}\n" +
+                    "{\"name\": \"foo\", \"value\": 1}\n" +
+                    "{\"timestamp\": 3.0, \"name\": \"foo\", \"value\": 1}"
+                    ).getBytes()), 1000);
+        assertEquals(2, index.getMessageCount());
+        assertEquals(1500, index.getFirstTimestamp());
+        assertEquals(3000, index.getLastTimestamp());
+        assertEquals(9, index.getOffset(1500));
+    }
+}
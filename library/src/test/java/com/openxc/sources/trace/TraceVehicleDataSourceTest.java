@@ -0,0 +1,200 @@
+package com.openxc.sources.trace;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.openxc.messages.VehicleMessage;
+import com.openxc.sources.DataSourceException;
+import com.openxc.sources.SourceCallback;
+import com.openxc.sources.VehicleDataSource;
+
+@RunWith(RobolectricTestRunner.class)
+public class TraceVehicleDataSourceTest {
+    File trace;
+    TraceVehicleDataSource source;
+    BlockingQueue<VehicleMessage> received = new LinkedBlockingQueue<>();
+    volatile boolean receivedInterrupted;
+    volatile boolean holdPlayback;
+
+    SourceCallback callback = new SourceCallback() {
+        @Override
+        public void receive(VehicleMessage message) {
+            while(holdPlayback) {
+                Thread.yield();
+            }
+            if(Thread.currentThread().isInterrupted()) {
+                receivedInterrupted = true;
+            }
+            received.add(message);
+        }
+
+        @Override
+        public void sourceDisconnected(VehicleDataSource source) { }
+
+        @Override
+        public void sourceConnected(VehicleDataSource source) { }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        // A 100 second trace, so only a seek gets anywhere near the end of it
+        // during a test
+        trace = TraceIndexTest.writeTrace(TraceIndexTest.SECONDS);
+        source = new TraceVehicleDataSource(callback,
+                RuntimeEnvironment.application, trace.toURI(), false);
+    }
+
+    @After
+    public void tearDown() {
+        source.stop();
+        TraceIndex.getSidecar(trace).delete();
+        trace.delete();
+    }
+
+    private int nextPosition() throws InterruptedException {
+        VehicleMessage message = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        return ((Number) message.asSimpleMessage().getValue()).intValue();
+    }
+
+    private int skipTo(int position) throws InterruptedException {
+        int next;
+        do {
+            next = nextPosition();
+        } while(next < position);
+        return next;
+    }
+
+    @Test
+    public void playsFromStart() throws Exception {
+        assertEquals(0, nextPosition());
+        assertEquals(TraceIndexTest.START, (long) source.getPosition());
+    }
+
+    @Test
+    public void seekToTimestamp() throws Exception {
+        assertEquals(0, nextPosition());
+        source.seekToTimestamp(TraceIndexTest.START + 42000);
+        assertEquals(420, skipTo(100));
+        assertEquals(TraceIndexTest.START + 42000, (long) source.getPosition());
+        assertEquals(42.0, source.getPositionPercentage(), 0.1);
+    }
+
+    @Test
+    public void seekToPercentage() throws Exception {
+        assertEquals(0, nextPosition());
+        source.seekToPercentage(50);
+        int position = skipTo(100);
+        assertTrue(position >= 499 && position <= 501);
+    }
+
+    @Test
+    public void loopRange() throws Exception {
+        assertEquals(0, nextPosition());
+        source.setLoopRange(TraceIndexTest.START + 80000,
+                TraceIndexTest.START + 80200);
+        assertEquals(800, skipTo(100));
+        assertEquals(801, nextPosition());
+        assertEquals(802, nextPosition());
+        assertEquals(800, nextPosition());
+        source.clearLoopRange();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidLoopRange() throws Exception {
+        source.setLoopRange(TraceIndexTest.START + 1000, TraceIndexTest.START);
+    }
+
+    private URI withQuery(String query) throws Exception {
+        return new URI(trace.toURI().toString() + "?" + query);
+    }
+
+    private void restart(double rate) throws Exception {
+        source.stop();
+        received.clear();
+        source = new TraceVehicleDataSource(callback,
+                RuntimeEnvironment.application, trace.toURI(), false, rate);
+    }
+
+    @Test
+    public void rateFromUri() throws Exception {
+        assertEquals(TraceVehicleDataSource.REAL_TIME,
+                TraceVehicleDataSource.parsePlaybackRate(trace.toURI()), 0);
+        assertEquals(4, TraceVehicleDataSource.parsePlaybackRate(
+                    withQuery("rate=4")), 0);
+        assertEquals(0.5, TraceVehicleDataSource.parsePlaybackRate(
+                    withQuery("foo=bar&rate=0.5")), 0);
+        assertEquals(TraceVehicleDataSource.UNTHROTTLED,
+                TraceVehicleDataSource.parsePlaybackRate(
+                    withQuery("rate=max")), 0);
+    }
+
+    @Test(expected=DataSourceException.class)
+    public void invalidRateInUri() throws Exception {
+        TraceVehicleDataSource.parsePlaybackRate(withQuery("rate=-1"));
+    }
+
+    @Test
+    public void unthrottledPlaysInOrder() throws Exception {
+        restart(TraceVehicleDataSource.UNTHROTTLED);
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < TraceIndexTest.SECONDS *
+                TraceIndexTest.MESSAGES_PER_SECOND; i++) {
+            assertEquals(i, nextPosition());
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(TraceIndexTest.SECONDS *
+                TraceIndexTest.MESSAGES_PER_SECOND,
+                source.getPlayedMessageCount());
+    }
+
+    @Test
+    public void acceleratedRate() throws Exception {
+        restart(20);
+        assertEquals(20, source.getPlaybackRate(), 0);
+        assertEquals(0, nextPosition());
+        long start = System.currentTimeMillis();
+        // 2 seconds of the trace at 20x is 100ms
+        skipTo(20);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 50 && elapsed < 1500);
+        assertTrue(source.getMessagesPerSecond() > 0);
+    }
+
+    @Test
+    public void changeRate() throws Exception {
+        assertEquals(0, nextPosition());
+        source.setPlaybackRate(TraceVehicleDataSource.UNTHROTTLED);
+        assertEquals(999, skipTo(999));
+    }
+
+    @Test
+    public void changeRateLeavesCallbackUninterrupted() throws Exception {
+        holdPlayback = true;
+        restart(TraceVehicleDataSource.UNTHROTTLED);
+        // Let playback get as far as the callback for the first message
+        Thread.sleep(200);
+        source.setPlaybackRate(TraceVehicleDataSource.UNTHROTTLED);
+        holdPlayback = false;
+        assertEquals(0, nextPosition());
+        assertEquals(1, nextPosition());
+        assertFalse(receivedInterrupted);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void zeroRateRejected() {
+        source.setPlaybackRate(0);
+    }
+}
@@ -0,0 +1,138 @@
+package com.openxc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedRingQueueTest {
+    BoundedRingQueue<Integer> queue;
+
+    @Before
+    public void setUp() {
+        queue = new BoundedRingQueue<>(4);
+    }
+
+    @Test
+    public void capacityRoundedToPowerOfTwo() {
+        assertThat(new BoundedRingQueue<Integer>(5).capacity(), equalTo(8));
+        assertThat(queue.capacity(), equalTo(4));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void zeroCapacityRejected() {
+        new BoundedRingQueue<Integer>(0);
+    }
+
+    @Test
+    public void emptyPollsNull() {
+        assertTrue(queue.isEmpty());
+        assertThat(queue.poll(), nullValue());
+    }
+
+    @Test
+    public void firstInFirstOut() {
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertThat(queue.size(), equalTo(2));
+        assertThat(queue.poll(), equalTo(1));
+        assertThat(queue.poll(), equalTo(2));
+        assertThat(queue.poll(), nullValue());
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        for(int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertThat(queue.size(), equalTo(4));
+
+        assertThat(queue.poll(), equalTo(0));
+        assertTrue(queue.offer(4));
+    }
+
+    @Test
+    public void wrapsAround() {
+        for(int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(i + 1000));
+            assertThat(queue.poll(), equalTo(i));
+            assertThat(queue.poll(), equalTo(i + 1000));
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void drainTo() {
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        Integer[] batch = new Integer[2];
+        assertThat(queue.drainTo(batch, batch.length), equalTo(2));
+        assertThat(batch[0], equalTo(1));
+        assertThat(batch[1], equalTo(2));
+        assertThat(queue.drainTo(batch, batch.length), equalTo(1));
+        assertThat(batch[0], equalTo(3));
+        assertThat(queue.drainTo(batch, batch.length), equalTo(0));
+    }
+
+    @Test(expected=NullPointerException.class)
+    public void nullRejected() {
+        queue.offer(null);
+    }
+
+    @Test
+    public void concurrentProducers() throws InterruptedException {
+        final int producerCount = 4;
+        final int perProducer = 20000;
+        final BoundedRingQueue<Integer> shared = new BoundedRingQueue<>(64);
+
+        List<Thread> producers = new ArrayList<>();
+        for(int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perProducer; i++) {
+                        while(!shared.offer(producer * perProducer + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            producers.add(thread);
+            thread.start();
+        }
+
+        // Each producer's values must come out in the order it sent them
+        int[] lastSeen = new int[producerCount];
+        for(int p = 0; p < producerCount; p++) {
+            lastSeen[p] = -1;
+        }
+        int received = 0;
+        while(received < producerCount * perProducer) {
+            Integer value = shared.poll();
+            if(value == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = value / perProducer;
+            int sequence = value % perProducer;
+            assertThat(sequence, greaterThan(lastSeen[producer]));
+            lastSeen[producer] = sequence;
+            received++;
+        }
+
+        for(Thread thread : producers) {
+            thread.join();
+        }
+        assertTrue(shared.isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package com.openxc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ByteRingBufferTest {
+    ByteRingBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new ByteRingBuffer(16);
+    }
+
+    private byte[] bytes(int first, int count) {
+        byte[] bytes = new byte[count];
+        for(int i = 0; i < count; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void capacityRoundedToPowerOfTwo() {
+        assertThat(new ByteRingBuffer(17).capacity(), equalTo(32));
+        assertThat(buffer.capacity(), equalTo(16));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void zeroCapacityRejected() {
+        new ByteRingBuffer(0);
+    }
+
+    @Test
+    public void emptyPollsNothing() {
+        assertTrue(buffer.isEmpty());
+        assertThat(buffer.poll(new byte[4], 0, 4), equalTo(0));
+    }
+
+    @Test
+    public void bytesComeOutInOrder() {
+        assertTrue(buffer.offer(bytes(0, 10), 0, 10));
+        byte[] destination = new byte[6];
+        assertThat(buffer.poll(destination, 0, 6), equalTo(6));
+        assertArrayEquals(bytes(0, 6), destination);
+        assertThat(buffer.size(), equalTo(4));
+    }
+
+    @Test
+    public void wrapsAround() {
+        byte[] destination = new byte[12];
+        for(int i = 0; i < 10; i++) {
+            assertTrue(buffer.offer(bytes(i * 12, 12), 0, 12));
+            assertThat(buffer.poll(destination, 0, 12), equalTo(12));
+            assertArrayEquals(bytes(i * 12, 12), destination);
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void offerThatDoesNotFitRejected() {
+        assertTrue(buffer.offer(bytes(0, 12), 0, 12));
+        assertFalse(buffer.offer(bytes(12, 5), 0, 5));
+        assertThat(buffer.size(), equalTo(12));
+        assertTrue(buffer.offer(bytes(12, 4), 0, 4));
+        assertThat(buffer.size(), equalTo(16));
+    }
+
+    @Test
+    public void pollIntoOffset() {
+        buffer.offer(bytes(0, 3), 0, 3);
+        byte[] destination = new byte[5];
+        assertThat(buffer.poll(destination, 2, 3), equalTo(3));
+        assertArrayEquals(new byte[] {0, 0, 0, 1, 2}, destination);
+    }
+
+    @Test
+    public void clearDiscards() {
+        buffer.offer(bytes(0, 8), 0, 8);
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(bytes(0, 16), 0, 16));
+    }
+
+    @Test
+    public void producerAndConsumerThreads() throws InterruptedException {
+        final int total = 1000000;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[7];
+                int next = 0;
+                while(next < total) {
+                    int count = Math.min(chunk.length, total - next);
+                    for(int i = 0; i < count; i++) {
+                        chunk[i] = (byte) (next + i);
+                    }
+                    if(buffer.offer(chunk, 0, count)) {
+                        next += count;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        byte[] destination = new byte[5];
+        int received = 0;
+        while(received < total) {
+            int count = buffer.poll(destination, 0, destination.length);
+            for(int i = 0; i < count; i++) {
+                assertEquals((byte) (received + i), destination[i]);
+            }
+            received += count;
+            if(count == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,52 @@
+package com.openxc.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    LatencyHistogram histogram;
+
+    @Before
+    public void setUp() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void emptyIsZero() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void percentilesWithinFactorOfTwo() {
+        for(int i = 0; i < 90; i++) {
+            histogram.record(100 * 1000);
+        }
+        for(int i = 0; i < 10; i++) {
+            histogram.record(50 * 1000 * 1000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(128, histogram.getPercentileMicros(50));
+        assertEquals(128, histogram.getPercentileMicros(90));
+        // Capped at the longest duration actually seen
+        assertEquals(50 * 1000, histogram.getPercentileMicros(99));
+        assertEquals(50 * 1000, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void reset() {
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidPercentile() {
+        histogram.getPercentileMicros(101);
+    }
+}